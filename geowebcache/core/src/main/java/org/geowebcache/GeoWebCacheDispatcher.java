@@ -30,6 +30,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -49,7 +52,9 @@ import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.FileResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.layer.BackendFetchExecutor;
 import org.geowebcache.layer.BadTileException;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
@@ -76,6 +81,26 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
     public static final String TYPE_HOME = "home";
 
+    /**
+     * Request attributes of the Tomcat sendfile support, see
+     * http://tomcat.apache.org/tomcat-6.0-doc/aio.html
+     */
+    static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    /**
+     * Size of the scratch buffers used to copy cached tiles into the response, most tiles fit in a
+     * single one
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_COPY_BUFFERS = 64;
+
     private TileLayerDispatcher tileLayerDispatcher = null;
 
     private DefaultStorageFinder defaultStorageFinder = null;
@@ -92,6 +117,16 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
     private String servletPrefix = null;
 
+    private boolean diagnosticHeaders = false;
+
+    private boolean sendfileEnabled = true;
+
+    private BackendFetchExecutor backendFetchExecutor;
+
+    private final Queue<byte[]> copyBuffers = new ConcurrentLinkedQueue<byte[]>();
+
+    private final AtomicInteger pooledCopyBuffers = new AtomicInteger();
+
     /**
      * Should be invoked through Spring
      * 
@@ -139,6 +174,32 @@ public class GeoWebCacheDispatcher extends AbstractController {
         log.info("Invoked setServletPrefix(" + servletPrefix + ")");
     }
 
+    /**
+     * Whether to add the {@code geowebcache-tile-bounds}, {@code geowebcache-gridset} and
+     * {@code geowebcache-crs} headers to tile responses. They are meant for debugging and cost a
+     * bounds computation and a few string conversions per tile, so they're off by default.
+     */
+    public void setDiagnosticHeaders(boolean diagnosticHeaders) {
+        this.diagnosticHeaders = diagnosticHeaders;
+    }
+
+    /**
+     * Sets the executor cache misses for tiles are run on, so that they can't take all the
+     * container threads and queue up the cache hits behind them. If not set, misses are run by the
+     * request thread.
+     */
+    public void setBackendFetchExecutor(BackendFetchExecutor backendFetchExecutor) {
+        this.backendFetchExecutor = backendFetchExecutor;
+    }
+
+    /**
+     * Whether to let the servlet container send cached tile files straight from the file system
+     * when it supports it (Tomcat's NIO and APR connectors), defaults to {@code true}
+     */
+    public void setSendfileEnabled(boolean sendfileEnabled) {
+        this.sendfileEnabled = sendfileEnabled;
+    }
+
     /**
      * Services convert HTTP requests into the internal grid representation and specify what layer
      * the response should come from.
@@ -252,6 +313,10 @@ public class GeoWebCacheDispatcher extends AbstractController {
                 writeError(response, 404, "Unknown path: " + requestComps[0]);
             }
         } catch (HttpErrorCodeException e) {
+            if (e.getErrorCode() == 503 && backendFetchExecutor != null) {
+                response.setHeader("Retry-After",
+                        String.valueOf(backendFetchExecutor.getRetryAfterSeconds()));
+            }
             writeFixedResponse(response, e.getErrorCode(), "text/plain", new ByteArrayResource(e
                     .getMessage().getBytes()), CacheResult.OTHER);
         } catch (RequestFilterException e) {
@@ -344,6 +409,7 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
             // Save it for later
             convTile.setTileLayer(layer);
+            convTile.setBackendFetchExecutor(backendFetchExecutor);
 
             // Apply the filters
             layer.applyRequestFilters(convTile);
@@ -488,13 +554,15 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
         servletResp.setHeader("geowebcache-cache-result", String.valueOf(cacheResult));
         servletResp.setHeader("geowebcache-tile-index", Arrays.toString(tile.getTileIndex()));
-        long[] tileIndex = tile.getTileIndex();
-        TileLayer layer = tile.getLayer();
-        GridSubset gridSubset = layer.getGridSubset(tile.getGridSetId());
-        BoundingBox tileBounds = gridSubset.boundsFromIndex(tileIndex);
-        servletResp.setHeader("geowebcache-tile-bounds", tileBounds.toString());
-        servletResp.setHeader("geowebcache-gridset", gridSubset.getName());
-        servletResp.setHeader("geowebcache-crs", gridSubset.getSRS().toString());
+        if (diagnosticHeaders) {
+            long[] tileIndex = tile.getTileIndex();
+            TileLayer layer = tile.getLayer();
+            GridSubset gridSubset = layer.getGridSubset(tile.getGridSetId());
+            BoundingBox tileBounds = gridSubset.boundsFromIndex(tileIndex);
+            servletResp.setHeader("geowebcache-tile-bounds", tileBounds.toString());
+            servletResp.setHeader("geowebcache-gridset", gridSubset.getName());
+            servletResp.setHeader("geowebcache-crs", gridSubset.getSRS().toString());
+        }
 
         final long tileTimeStamp = tile.getTSCreated();
         final String ifModSinceHeader = servletReq.getHeader("If-Modified-Since");
@@ -541,9 +609,34 @@ public class GeoWebCacheDispatcher extends AbstractController {
             servletResp.setHeader("ETag", hexTag);
         }
 
+        if (blob instanceof FileResource && sendfile(servletReq, (FileResource) blob, contentLength)) {
+            servletResp.setStatus(httpCode);
+            servletResp.setContentType(mimeType);
+            servletResp.setContentLength(contentLength);
+            runtimeStats.log(contentLength, cacheResult);
+            return;
+        }
+
         writeFixedResponse(servletResp, httpCode, mimeType, blob, cacheResult, contentLength);
     }
 
+    /**
+     * Hands the file over to the servlet container if it supports sendfile, in which case the
+     * contents are copied by the kernel straight from the file system cache into the socket
+     * 
+     * @return {@code true} if the container will send the file
+     */
+    private boolean sendfile(HttpServletRequest request, FileResource resource, int contentLength) {
+        if (!sendfileEnabled || request == null || contentLength <= 0
+                || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME, resource.getFile().getAbsolutePath());
+        request.setAttribute(SENDFILE_START, Long.valueOf(0));
+        request.setAttribute(SENDFILE_END, Long.valueOf(contentLength));
+        return true;
+    }
+
     /**
      * Writes a transparent, 8 bit PNG to avoid having clients like OpenLayers showing lots of pink
      * tiles
@@ -586,7 +679,7 @@ public class GeoWebCacheDispatcher extends AbstractController {
         if (resource != null) {
             try {
                 OutputStream os = response.getOutputStream();
-                resource.transferTo(Channels.newChannel(os));
+                writeBody(resource, os);
 
                 runtimeStats.log(contentLength, cacheRes);
 
@@ -595,4 +688,32 @@ public class GeoWebCacheDispatcher extends AbstractController {
             }
         }
     }
+
+    /**
+     * Copies the resource into the response avoiding the intermediate buffers of
+     * {@link Channels#newChannel(OutputStream)} for the common in memory and file resources
+     */
+    private void writeBody(Resource resource, OutputStream os) throws IOException {
+        if (resource instanceof ByteArrayResource) {
+            ((ByteArrayResource) resource).writeTo(os);
+        } else if (resource instanceof FileResource) {
+            byte[] buffer = copyBuffers.poll();
+            if (buffer == null) {
+                buffer = new byte[COPY_BUFFER_SIZE];
+            } else {
+                pooledCopyBuffers.decrementAndGet();
+            }
+            try {
+                ((FileResource) resource).transferTo(os, buffer);
+            } finally {
+                if (pooledCopyBuffers.incrementAndGet() <= MAX_POOLED_COPY_BUFFERS) {
+                    copyBuffers.offer(buffer);
+                } else {
+                    pooledCopyBuffers.decrementAndGet();
+                }
+            }
+        } else {
+            resource.transferTo(Channels.newChannel(os));
+        }
+    }
 }
@@ -32,6 +32,7 @@ import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.layer.BackendFetchExecutor;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileResponseReceiver;
 import org.geowebcache.mime.MimeType;
@@ -58,6 +59,10 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
 
     private boolean isMetaTileCacheOnly;
 
+    private BackendFetchExecutor backendFetchExecutor;
+
+    private long backendLatency = -1;
+
     public ConveyorTile(StorageBroker sb, String layerId, HttpServletRequest servletReq,
             HttpServletResponse servletResp) {
         super(layerId, sb, servletReq, servletResp);
@@ -122,6 +127,33 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
         return tileLayer;
     }
 
+    /**
+     * @return the executor backend requests for this tile shall be run on, or {@code null} if they
+     *         shall be run by the calling thread
+     */
+    public BackendFetchExecutor getBackendFetchExecutor() {
+        return backendFetchExecutor;
+    }
+
+    public void setBackendFetchExecutor(BackendFetchExecutor backendFetchExecutor) {
+        this.backendFetchExecutor = backendFetchExecutor;
+    }
+
+    /**
+     * @return how long the request to the backend for this tile took, in milliseconds, or
+     *         {@code -1} if the tile was produced without one (e.g. it was cached already)
+     */
+    public long getBackendLatency() {
+        return backendLatency;
+    }
+
+    /**
+     * Set by the layer once it got a response, or a failure, from the backend
+     */
+    public void setBackendLatency(long backendLatency) {
+        this.backendLatency = backendLatency;
+    }
+
     public long getTSCreated() {
         return stObj.getCreated();
     }
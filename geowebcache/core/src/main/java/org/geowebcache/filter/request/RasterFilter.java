@@ -18,8 +18,10 @@
 package org.geowebcache.filter.request;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
 import java.io.IOException;
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,6 +30,7 @@ import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.util.SparseBitMatrix;
 
 /**
  * A raster filter allows to optimize data loading by avoiding the generation of requests and the
@@ -37,6 +40,9 @@ import org.geowebcache.layer.TileLayer;
  * To conserve memory, the layer bounds are used.
  * 
  * The raster must match the dimensions of the zoomlevel and use 0x000000 for tiles that are valid.
+ * 
+ * The rasters are kept as {@link SparseBitMatrix sparse bit matrices}, which take a fraction of
+ * the memory of the images for the deep zoom levels and are looked up without locking.
  */
 public abstract class RasterFilter extends RequestFilter {
 
@@ -54,7 +60,7 @@ public abstract class RasterFilter extends RequestFilter {
 
     private Boolean debug;
 
-    public transient Hashtable<String, BufferedImage[]> matrices;
+    private transient ConcurrentHashMap<String, AtomicReferenceArray<SparseBitMatrix>> matrices;
 
     public RasterFilter() {
 
@@ -176,13 +182,16 @@ public abstract class RasterFilter extends RequestFilter {
             idx[2] = zoomStop;
         }
 
-        if (matrices == null || matrices.get(gridSetId) == null
-                || matrices.get(gridSetId)[(int) idx[2]] == null) {
+        SparseBitMatrix mat = getMatrix(gridSetId, (int) idx[2]);
+        if (mat == null) {
             try {
                 setMatrix(convTile.getLayer(), gridSetId, (int) idx[2], false);
+                mat = getMatrix(gridSetId, (int) idx[2]);
             } catch (Exception e) {
                 log.error("Failed to load matrix for " + this.getName() + ", " + gridSetId + ", "
                         + idx[2] + " : " + e.getMessage());
+            }
+            if (mat == null) {
                 throw new RequestFilterException(this, 500,
                         "Failed while trying to load filter for " + idx[2]
                                 + ", please check the logs");
@@ -190,7 +199,7 @@ public abstract class RasterFilter extends RequestFilter {
         }
 
         if (zoomDiff == 0) {
-            if (!lookup(convTile.getGridSubset(), idx)) {
+            if (!lookup(mat, convTile.getGridSubset(), idx)) {
                 if (debug != null && debug) {
                     throw new GreenTileException(this);
                 } else {
@@ -198,7 +207,7 @@ public abstract class RasterFilter extends RequestFilter {
                 }
             }
         } else if (zoomDiff > 0) {
-            if (!lookupQuad(convTile.getGridSubset(), idx)) {
+            if (!lookupQuad(mat, convTile.getGridSubset(), idx)) {
                 if (debug != null && debug) {
                     throw new GreenTileException(this);
                 } else {
@@ -206,7 +215,7 @@ public abstract class RasterFilter extends RequestFilter {
                 }
             }
         } else if (zoomDiff < 0) {
-            if (!lookupSubsample(convTile.getGridSubset(), idx, zoomDiff)) {
+            if (!lookupSubsample(mat, convTile.getGridSubset(), idx, zoomDiff)) {
                 if (debug != null && debug) {
                     throw new GreenTileException(this);
                 } else {
@@ -243,16 +252,14 @@ public abstract class RasterFilter extends RequestFilter {
      * @param idx
      * @return
      */
-    private boolean lookup(GridSubset grid, long[] idx) {
-        BufferedImage mat = matrices.get(grid.getName())[(int) idx[2]];
-
+    private boolean lookup(SparseBitMatrix mat, GridSubset grid, long[] idx) {
         long[] gridCoverage = grid.getCoverage((int) idx[2]);
 
         // Changing index to top left hand origin
         long x = idx[0] - gridCoverage[0];
         long y = gridCoverage[3] - idx[1];
 
-        return (mat.getRaster().getSample((int) x, (int) y, 0) == 0);
+        return mat.get(x, y);
     }
 
     /**
@@ -263,108 +270,40 @@ public abstract class RasterFilter extends RequestFilter {
      * @param idx
      * @return
      */
-    private boolean lookupQuad(GridSubset grid, long[] idx) {
-        BufferedImage mat = matrices.get(grid.getName())[(int) idx[2]];
-
+    private boolean lookupQuad(SparseBitMatrix mat, GridSubset grid, long[] idx) {
         long[] gridCoverage = grid.getCoverage((int) idx[2]);
 
         // Changing index to top left hand origin
-        int baseX = (int) (idx[0] - gridCoverage[0]);
-        int baseY = (int) (gridCoverage[3] - idx[1]);
-
-        int width = mat.getWidth();
-        int height = mat.getHeight();
-
-        int x = baseX;
-        int y = baseY;
+        long baseX = idx[0] - gridCoverage[0];
+        long baseY = gridCoverage[3] - idx[1];
 
         // We're checking 4 samples. The base is bottom left hand corner
-        boolean hasData = false;
-
-        // BL, BR, TL, TR
-        int[] xOffsets = { 0, 1, 0, 1 };
-        int[] yOffsets = { 0, 0, 1, 1 };
-
-        // Lock, in case someone wants to replace the matrix
-        synchronized (mat) {
-            try {
-                for (int i = 0; i < 4 && !hasData; i++) {
-                    x = baseX + xOffsets[i];
-                    y = baseY - yOffsets[i];
-
-                    if (x > -1 && x < width && y > -1 && y < height) {
-                        if (mat.getRaster().getSample(x, y, 0) == 0) {
-                            hasData = true;
-                        }
-                    }
-                }
-            } catch (ArrayIndexOutOfBoundsException aioob) {
-                log.error("x:" + x + "  y:" + y + " (" + mat.getWidth() + " " + mat.getHeight()
-                        + ")");
-            }
-        }
-
-        return hasData;
+        return mat.any(baseX, baseY - 1, baseX + 1, baseY);
     }
 
-    private boolean lookupSubsample(GridSubset grid, long[] idx, int zoomDiff) {
-        BufferedImage mat = matrices.get(grid.getName())[(int) idx[2]];
-
-        int sampleChange = 1 << (-1 * zoomDiff);
+    private boolean lookupSubsample(SparseBitMatrix mat, GridSubset grid, long[] idx,
+            int zoomDiff) {
+        long sampleChange = 1L << (-1 * zoomDiff);
 
         long[] gridCoverage = grid.getCoverage((int) idx[2]);
 
         // Changing index to top left hand origin
-        int baseX = (int) (idx[0] - gridCoverage[0]);
-        int baseY = (int) (gridCoverage[3] - idx[1]);
+        long baseX = idx[0] - gridCoverage[0];
+        long baseY = gridCoverage[3] - idx[1];
 
-        int width = mat.getWidth();
-        int height = mat.getHeight();
-
-        int startX = Math.max(0, baseX);
-        int stopX = Math.min(width, baseX + sampleChange);
-        int startY = Math.min(baseY, height - 1);
-        int stopY = Math.max(0, baseY - sampleChange);
-
-        int x = -1;
-        int y = -1;
-
-        // Lock, in case someone wants to replace the matrix
-        synchronized (mat) {
-            try {
-                // Try center and edges first
-                x = (stopX + startX) / 2;
-                y = (startY + stopY) / 2;
-                if (mat.getRaster().getSample(x, y, 0) == 0
-                        || mat.getRaster().getSample(stopX - 1, stopY + 1, 0) == 0
-                        || mat.getRaster().getSample(stopX - 1, startY, 0) == 0
-                        || mat.getRaster().getSample(startX, stopY + 1, 0) == 0) {
-                    return true;
-                }
+        // Left to right, bottom to top
+        return mat.any(baseX, baseY - sampleChange + 1, baseX + sampleChange - 1, baseY);
+    }
 
-                // Do the hard work, loop over all pixels
-                x = startX;
-                y = startY;
-
-                // Left to right
-                while (x < stopX) {
-                    // Bottom to top
-                    while (y > stopY) {
-                        if (mat.getRaster().getSample(x, y, 0) == 0) {
-                            return true;
-                        }
-                        y--;
-                    }
-                    x++;
-                    y = startY;
-                }
-            } catch (ArrayIndexOutOfBoundsException aioob) {
-                log.error("x:" + x + "  y:" + y + " (" + mat.getWidth() + " " + mat.getHeight()
-                        + ")");
-            }
+    private SparseBitMatrix getMatrix(String gridSetId, int z) {
+        if (matrices == null) {
+            return null;
         }
-
-        return false;
+        AtomicReferenceArray<SparseBitMatrix> levels = matrices.get(gridSetId);
+        if (levels == null || z >= levels.length()) {
+            return null;
+        }
+        return levels.get(z);
     }
 
     /**
@@ -382,28 +321,53 @@ public abstract class RasterFilter extends RequestFilter {
             throws IOException, GeoWebCacheException {
 
         if (matrices == null) {
-            matrices = new Hashtable<String, BufferedImage[]>();
+            matrices = new ConcurrentHashMap<String, AtomicReferenceArray<SparseBitMatrix>>();
         }
 
-        if (matrices.get(gridSetId) == null) {
-            matrices.put(gridSetId, new BufferedImage[zoomStop + 1]);
+        AtomicReferenceArray<SparseBitMatrix> levels = matrices.get(gridSetId);
+        if (levels == null) {
+            levels = new AtomicReferenceArray<SparseBitMatrix>(zoomStop + 1);
+            matrices.put(gridSetId, levels);
         }
 
-        if (matrices.get(gridSetId)[z] == null) {
-            matrices.get(gridSetId)[z] = loadMatrix(layer, gridSetId, z);
-
-        } else if (replace) {
-            BufferedImage oldImg = matrices.get(gridSetId)[z];
-            BufferedImage[] matArray = matrices.get(gridSetId);
-
-            // Get the replacement
-            BufferedImage newImg = loadMatrix(layer, gridSetId, z);
+        if (levels.get(z) == null || replace) {
+            BufferedImage img = loadMatrix(layer, gridSetId, z);
+            if (img != null) {
+                // lookups in flight keep using the old one
+                levels.set(z, toMatrix(img));
+            }
+        }
+    }
 
-            // We need to lock it
-            synchronized (oldImg) {
-                matArray[z] = newImg;
+    /**
+     * Converts the image into a bit matrix with the bits set for the valid tiles
+     */
+    static SparseBitMatrix toMatrix(BufferedImage img) {
+        final Raster raster = img.getRaster();
+        final int width = raster.getWidth();
+        final int height = raster.getHeight();
+        final int minX = raster.getMinX();
+        final int minY = raster.getMinY();
+
+        SparseBitMatrix mat = new SparseBitMatrix(width, height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            row = raster.getSamples(minX, minY + y, width, 1, 0, row);
+            // set the runs of valid tiles at once
+            int x = 0;
+            while (x < width) {
+                if (row[x] != 0) {
+                    x++;
+                    continue;
+                }
+                int runStart = x;
+                while (x < width && row[x] == 0) {
+                    x++;
+                }
+                mat.set(runStart, y, x - 1, y);
             }
         }
+        return mat;
     }
 
     /**
@@ -8,6 +8,8 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
+import javax.imageio.stream.ImageOutputStreamImpl;
+
 import org.springframework.util.Assert;
 
 public class ByteArrayResource implements Resource {
@@ -77,6 +79,16 @@ public class ByteArrayResource implements Resource {
         return length;
     }
 
+    /**
+     * Writes the contents to {@code out} with a single call
+     */
+    public long writeTo(OutputStream out) throws IOException {
+        if (length > 0) {
+            out.write(data, offset, length);
+        }
+        return length;
+    }
+
     /**
      * @see org.geowebcache.io.Resource#transferFrom(java.nio.channels.ReadableByteChannel)
      */
@@ -136,6 +148,13 @@ public class ByteArrayResource implements Resource {
         return buff;
     }
 
+    /**
+     * @return the number of bytes that can be held without growing the backing array
+     */
+    public int getCapacity() {
+        return data == null ? 0 : data.length;
+    }
+
     public void truncate() {
         offset = 0;
         length = 0;
@@ -145,6 +164,14 @@ public class ByteArrayResource implements Resource {
         return new SeekableOutputStream(this);
     }
 
+    /**
+     * @return an image output stream writing straight into this resource's backing array,
+     *         starting at the beginning of its contents
+     */
+    public SeekableImageOutputStream getImageOutputStream() {
+        return new SeekableImageOutputStream(this);
+    }
+
     public void expand() {
         if (data == null) {
             data = new byte[4096];
@@ -214,4 +241,101 @@ public class ByteArrayResource implements Resource {
         }
     }
 
+    /**
+     * Seekable image output stream over the resource's contents, so that image writers don't need
+     * a cache stream in between
+     */
+    public static final class SeekableImageOutputStream extends ImageOutputStreamImpl {
+
+        private final ByteArrayResource res;
+
+        public SeekableImageOutputStream(ByteArrayResource res) {
+            this.res = res;
+            res.length = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + 1);
+            res.data[res.offset + (int) streamPos] = (byte) b;
+            advance(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            flushBits();
+            if (len == 0) {
+                return;
+            }
+            ensureCapacity(streamPos + len);
+            System.arraycopy(b, off, res.data, res.offset + (int) streamPos, len);
+            advance(len);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= res.length) {
+                return -1;
+            }
+            return res.data[res.offset + (int) streamPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (len == 0) {
+                return 0;
+            }
+            if (streamPos >= res.length) {
+                return -1;
+            }
+            int read = Math.min(len, res.length - (int) streamPos);
+            System.arraycopy(res.data, res.offset + (int) streamPos, b, off, read);
+            streamPos += read;
+            return read;
+        }
+
+        @Override
+        public long length() {
+            return res.length;
+        }
+
+        @Override
+        public boolean isCached() {
+            return true;
+        }
+
+        @Override
+        public boolean isCachedMemory() {
+            return true;
+        }
+
+        private void advance(int len) {
+            streamPos += len;
+            if (streamPos > res.length) {
+                res.length = (int) streamPos;
+            }
+        }
+
+        private void ensureCapacity(long size) throws IOException {
+            checkClosed();
+            long required = res.offset + size;
+            if (required > Integer.MAX_VALUE) {
+                throw new IOException("Image too big for an in memory resource: " + size);
+            }
+            if (res.data == null || res.data.length < required) {
+                int capacity = res.data == null ? 0 : res.data.length;
+                byte[] newdata = new byte[(int) Math.max(required, Math.max(4096,
+                        capacity + (capacity >> 1)))];
+                if (res.data != null) {
+                    System.arraycopy(res.data, 0, newdata, 0, res.offset + res.length);
+                }
+                res.data = newdata;
+            }
+        }
+    }
 }
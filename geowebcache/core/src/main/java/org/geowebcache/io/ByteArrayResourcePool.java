@@ -0,0 +1,77 @@
+package org.geowebcache.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe pool of {@link ByteArrayResource} buffers, to be used instead of allocating a new
+ * buffer for each backend response or encoded tile.
+ * <p>
+ * A buffer shall be {@link #release(ByteArrayResource) released} only once nothing references it
+ * anymore, so resources handed over to a client response shall not come from the pool. Buffers
+ * that grew beyond {@code maxRetainedCapacity} are not pooled back, so an occasional huge response
+ * does not pin its memory forever.
+ * </p>
+ */
+public class ByteArrayResourcePool {
+
+    private final Queue<ByteArrayResource> buffers = new ConcurrentLinkedQueue<ByteArrayResource>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final int maxPooled;
+
+    private final int initialCapacity;
+
+    private final int maxRetainedCapacity;
+
+    /**
+     * @param maxPooled
+     *            maximum number of idle buffers kept in the pool
+     * @param initialCapacity
+     *            capacity of newly allocated buffers
+     * @param maxRetainedCapacity
+     *            buffers with a bigger capacity are discarded on release
+     */
+    public ByteArrayResourcePool(int maxPooled, int initialCapacity, int maxRetainedCapacity) {
+        this.maxPooled = maxPooled;
+        this.initialCapacity = initialCapacity;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+    }
+
+    /**
+     * @return an empty buffer, either pooled or newly allocated
+     */
+    public ByteArrayResource acquire() {
+        ByteArrayResource buffer = buffers.poll();
+        if (buffer == null) {
+            return new ByteArrayResource(initialCapacity);
+        }
+        pooled.decrementAndGet();
+        buffer.truncate();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool, the caller shall not use it afterwards
+     */
+    public void release(ByteArrayResource buffer) {
+        if (buffer == null || buffer.getCapacity() > maxRetainedCapacity) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.truncate();
+        buffers.offer(buffer);
+    }
+
+    /**
+     * @return number of idle buffers in the pool
+     */
+    public int size() {
+        return pooled.get();
+    }
+}
@@ -19,6 +19,10 @@ public class FileResource implements Resource {
         this.file = file;
     }
 
+    public File getFile() {
+        return file;
+    }
+
     /**
      * @see org.geowebcache.io.Resource#getLastModified()
      */
@@ -52,6 +56,25 @@ public class FileResource implements Resource {
         }
     }
 
+    /**
+     * Copies the file contents to {@code out} through the given scratch buffer, files no bigger
+     * than the buffer are written with a single call to {@code out}
+     */
+    public long transferTo(OutputStream out, byte[] buffer) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            long written = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                written += read;
+            }
+            return written;
+        } finally {
+            in.close();
+        }
+    }
+
     public long transferFrom(ReadableByteChannel channel) throws IOException {
         final FileChannel out = new FileOutputStream(file).getChannel();
         final FileLock lock = out.lock();
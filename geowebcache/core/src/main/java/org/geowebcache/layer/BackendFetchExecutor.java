@@ -0,0 +1,341 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.service.HttpErrorCodeException;
+
+/**
+ * Runs the backend requests for tile cache misses on a dedicated, bounded thread pool.
+ * <p>
+ * Cache hits are served by the request thread as usual, only misses are handed over here, so that
+ * a burst of requests for an uncached area can't take all the servlet container threads and have
+ * the cache hits wait behind them. Misses are admitted only while below the limits of pending
+ * (queued or running) requests for their layer and for their backend, and while the shared queue
+ * is not full; otherwise they're rejected with a {@code 503 Service Unavailable} error right away
+ * instead of piling up.
+ * </p>
+ * <p>
+ * The servlet API in use has no asynchronous request support, so the request thread still waits
+ * for the outcome of the miss it handed over, but only for up to {@link #setMaxWaitSeconds(int)
+ * maxWaitSeconds}, {@link #DEFAULT_MAX_WAIT_SECONDS} by default and never more than
+ * {@link #MAX_WAIT_SECONDS}. A miss taking longer gets a 503 error, while its backend request
+ * completes and caches the tile for the client to find on retry, so a slow backend holds at most
+ * the pending misses' worth of request threads, for a short time.
+ * </p>
+ */
+public class BackendFetchExecutor {
+
+    private static Log log = LogFactory.getLog(BackendFetchExecutor.class);
+
+    public static final int DEFAULT_MAX_THREADS = 32;
+
+    public static final int DEFAULT_MAX_QUEUED = 256;
+
+    public static final int DEFAULT_MAX_PER_LAYER = 64;
+
+    public static final int DEFAULT_MAX_PER_BACKEND = 128;
+
+    public static final int DEFAULT_MAX_WAIT_SECONDS = 10;
+
+    public static final int MAX_WAIT_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String, Limiter> layerLimiters = new ConcurrentHashMap<String, Limiter>();
+
+    private final ConcurrentMap<String, Limiter> backendLimiters = new ConcurrentHashMap<String, Limiter>();
+
+    private int maxPerLayer = DEFAULT_MAX_PER_LAYER;
+
+    private int maxPerBackend = DEFAULT_MAX_PER_BACKEND;
+
+    private int maxWaitSeconds = DEFAULT_MAX_WAIT_SECONDS;
+
+    private int retryAfterSeconds = 5;
+
+    private final AtomicLong executed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong timedOut = new AtomicLong();
+
+    public BackendFetchExecutor() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * @param maxThreads
+     *            number of backend requests run concurrently
+     * @param maxQueued
+     *            number of backend requests waiting for a thread, beyond which requests are
+     *            rejected
+     */
+    public BackendFetchExecutor(int maxThreads, int maxQueued) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("maxThreads shall be a positive number: "
+                    + maxThreads);
+        }
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("maxQueued shall be a positive number: "
+                    + maxQueued);
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GWC backend fetch "
+                        + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(maxQueued), threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Default maximum number of pending requests for a layer, used when the layer does not set
+     * its own
+     */
+    public void setMaxPerLayer(int maxPerLayer) {
+        this.maxPerLayer = maxPerLayer;
+    }
+
+    public int getMaxPerLayer() {
+        return maxPerLayer;
+    }
+
+    /**
+     * Maximum number of pending requests against a single backend, shared by all the layers
+     * served by it
+     */
+    public void setMaxPerBackend(int maxPerBackend) {
+        this.maxPerBackend = maxPerBackend;
+    }
+
+    public int getMaxPerBackend() {
+        return maxPerBackend;
+    }
+
+    /**
+     * How long a request waits for its backend request to complete before giving up with a 503
+     * error, up to {@link #MAX_WAIT_SECONDS}. The backend request keeps going, and its result is
+     * cached anyway.
+     */
+    public void setMaxWaitSeconds(int maxWaitSeconds) {
+        if (maxWaitSeconds <= 0 || maxWaitSeconds > MAX_WAIT_SECONDS) {
+            throw new IllegalArgumentException("maxWaitSeconds shall be between 1 and "
+                    + MAX_WAIT_SECONDS + ": " + maxWaitSeconds);
+        }
+        this.maxWaitSeconds = maxWaitSeconds;
+    }
+
+    public int getMaxWaitSeconds() {
+        return maxWaitSeconds;
+    }
+
+    /**
+     * Value of the {@code Retry-After} header sent along with the 503 errors
+     */
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Runs {@code fetch} on a backend thread and waits for its result.
+     *
+     * @param layerName
+     *            the layer the request is for
+     * @param layerLimit
+     *            maximum number of pending requests for the layer, or {@code null} to use
+     *            {@link #getMaxPerLayer()}
+     * @param backend
+     *            identifies the server the request goes to, e.g. its host and port
+     * @throws HttpErrorCodeException
+     *             with a 503 error code if the request was rejected because of the limits, or it
+     *             did not complete in time
+     * @throws GeoWebCacheException
+     *             if {@code fetch} failed
+     */
+    public <T> T execute(final String layerName, final Integer layerLimit, final String backend,
+            final Callable<T> fetch) throws GeoWebCacheException {
+
+        final Limiter layerLimiter = limiter(layerLimiters, layerName,
+                layerLimit == null ? maxPerLayer : layerLimit.intValue());
+        if (!layerLimiter.permits.tryAcquire()) {
+            throw reject("Too many pending requests for layer " + layerName);
+        }
+        final Limiter backendLimiter = limiter(backendLimiters, backend, maxPerBackend);
+        if (!backendLimiter.permits.tryAcquire()) {
+            layerLimiter.permits.release();
+            throw reject("Too many pending requests for backend " + backend);
+        }
+
+        Future<T> future;
+        try {
+            future = executor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    try {
+                        return fetch.call();
+                    } finally {
+                        backendLimiter.permits.release();
+                        layerLimiter.permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            backendLimiter.permits.release();
+            layerLimiter.permits.release();
+            throw reject("Backend request queue is full");
+        }
+        executed.incrementAndGet();
+
+        try {
+            return future.get(maxWaitSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            timedOut.incrementAndGet();
+            throw new HttpErrorCodeException(503, "Timed out after " + maxWaitSeconds
+                    + " seconds waiting for the backend request for layer " + layerName);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException("Interrupted while waiting for the backend request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeoWebCacheException) {
+                throw (GeoWebCacheException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new GeoWebCacheException(cause);
+        }
+    }
+
+    /**
+     * @return number of requests handed over to the backend threads so far
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * @return number of requests rejected because of the limits
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of requests that gave up waiting for their backend request
+     */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return number of backend requests waiting for a thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of backend requests running
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Stops the backend threads, has to be referenced in the bean declaration
+     */
+    public void destroy() {
+        log.info("Shutting down backend fetch executor: " + this);
+        executor.shutdownNow();
+    }
+
+    public String toString() {
+        return "BackendFetchExecutor[active: " + getActiveCount() + ", queued: " + getQueueSize()
+                + ", executed: " + executed.get() + ", rejected: " + rejected.get()
+                + ", timed out: " + timedOut.get() + "]";
+    }
+
+    private HttpErrorCodeException reject(String message) {
+        rejected.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug(message + ", rejecting request. " + this);
+        }
+        return new HttpErrorCodeException(503, message + ", please try again later");
+    }
+
+    /**
+     * Returns the limiter for the given key, replacing it if the limit changed (e.g. the layer got
+     * reconfigured). Requests in flight release their permits on the limiter they acquired them
+     * from.
+     */
+    private static Limiter limiter(ConcurrentMap<String, Limiter> limiters, String key, int limit) {
+        Limiter limiter = limiters.get(key);
+        while (limiter == null || limiter.limit != limit) {
+            Limiter created = new Limiter(limit);
+            if (limiter == null) {
+                limiter = limiters.putIfAbsent(key, created);
+                if (limiter == null) {
+                    return created;
+                }
+            } else if (limiters.replace(key, limiter, created)) {
+                return created;
+            } else {
+                limiter = limiters.get(key);
+            }
+        }
+        return limiter;
+    }
+
+    private static final class Limiter {
+        final int limit;
+
+        final Semaphore permits;
+
+        Limiter(int limit) {
+            this.limit = limit;
+            this.permits = new Semaphore(Math.max(1, limit));
+        }
+    }
+}
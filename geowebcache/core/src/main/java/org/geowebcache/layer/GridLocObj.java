@@ -29,6 +29,16 @@ public class GridLocObj {
 
     int hashCode;
         
+    public GridLocObj(long[] gridLoc) {
+        this.gridLoc = gridLoc;
+        long sum = gridLoc[0] * 433L + gridLoc[1] * 19L + gridLoc[2];
+        this.hashCode = (int) (sum ^ (sum >>> 32));
+    }
+
+    /**
+     * @param max
+     *            the number of buckets the hash code is reduced to
+     */
     public GridLocObj(long[] gridLoc, int max) {
         this.gridLoc = gridLoc;
         long sum = gridLoc[0] * 433L + gridLoc[1] * 19L + gridLoc[2];
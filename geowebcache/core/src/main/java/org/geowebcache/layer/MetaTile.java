@@ -21,20 +21,14 @@ import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Vector;
 
-import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.ImageOutputStream;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.media.jai.JAI;
 import javax.media.jai.PlanarImage;
 import javax.media.jai.RenderedOp;
@@ -49,6 +43,7 @@ import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.mime.FormatModifier;
+import org.geowebcache.mime.ImageWriterPool;
 import org.geowebcache.mime.MimeType;
 import org.springframework.util.Assert;
 
@@ -354,34 +349,19 @@ public class MetaTile implements TileResponseReceiver {
             log.debug("Thread: " + Thread.currentThread().getName() + " writing: " + tileIdx);
         }
 
-        // TODO should we recycle the writers ?
-        // GR: it'd be only a 2% perf gain according to profiler
-        ImageWriter writer = javax.imageio.ImageIO.getImageWritersByFormatName(format).next();
-        ImageWriteParam param = writer.getDefaultWriteParam();
-
-        if (this.formatModifier != null) {
-            param = formatModifier.adjustImageWriteParam(param);
-        }
-
         Rectangle tileRegion = tiles[tileIdx];
         RenderedImage tile = createTile(tileRegion.x, tileRegion.y, tileRegion.width,
                 tileRegion.height);
         disposeLater(tile);
-        OutputStream outputStream = target.getOutputStream();
-        ImageOutputStream imgOut = new MemoryCacheImageOutputStream(outputStream);
-        writer.setOutput(imgOut);
-        IIOImage image = new IIOImage(tile, null, null);
-        try {
-            writer.write(null, image, param);
-        } finally {
-            imgOut.close();
-            writer.dispose();
-        }
+        ImageWriterPool.getInstance().write(tile, format, formatModifier, target);
 
         return true;
     }
 
-    protected void disposeLater(RenderedImage tile) {
+    /**
+     * Tiles of the same metatile may be encoded concurrently, hence the synchronization
+     */
+    protected synchronized void disposeLater(RenderedImage tile) {
         if (disposableImages == null) {
             disposableImages = new ArrayList<RenderedImage>(tiles.length);
         }
@@ -483,7 +463,7 @@ public class MetaTile implements TileResponseReceiver {
      * Should be called as soon as the meta tile is no longer needed in order to dispose any held
      * resource
      */
-    public void dispose() {
+    public synchronized void dispose() {
         if (metaTileImage == null) {
             return;
         }
@@ -25,12 +25,21 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.GeoWebCacheExtensions;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.filter.parameters.ParameterFilter;
 import org.geowebcache.filter.request.RequestFilter;
@@ -44,6 +53,7 @@ import org.geowebcache.grid.GridUtil;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.ByteArrayResourcePool;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.updatesource.UpdateSourceDefinition;
@@ -65,9 +75,22 @@ public abstract class TileLayer {
 
     private static Log log = LogFactory.getLog(org.geowebcache.layer.TileLayer.class);
 
-    protected static final ThreadLocal<ByteArrayResource> WMS_BUFFER = new ThreadLocal<ByteArrayResource>();
+    /**
+     * Environment variable setting the number of threads encoding the tiles of a metatile other
+     * than the requested one, defaults to the number of available processors
+     */
+    public static final String GWC_METATILE_ENCODER_THREADS = "GWC_METATILE_ENCODER_THREADS";
+
+    /**
+     * Buffers for backend responses that are no longer needed once decoded. Encoded tiles get a
+     * buffer of their own, as the caller or the storage may hold on to it.
+     */
+    protected static final ByteArrayResourcePool BUFFER_POOL = new ByteArrayResourcePool(64,
+            16 * 1024, 4 * 1024 * 1024);
+
+    private static ExecutorService encoderPool;
 
-    protected static final ThreadLocal<ByteArrayResource> WMS_BUFFER2 = new ThreadLocal<ByteArrayResource>();
+    private static int encoderThreads;
 
     // cached default parameter filter values
     protected transient Map<String, String> defaultParameterFilterValues;
@@ -551,24 +574,20 @@ public abstract class TileLayer {
 
     public abstract void addGridSubset(GridSubset gridSubset);
 
-    protected ByteArrayResource getImageBuffer(ThreadLocal<ByteArrayResource> tl) {
-        ByteArrayResource buffer = tl.get();
-        if (buffer == null) {
-            buffer = new ByteArrayResource(16 * 1024);
-            tl.set(buffer);
-        }
-        buffer.truncate();
-        return buffer;
-    }
-
     /**
-     * Loops over the gridPositions, generates cache keys and saves to cache
+     * Encodes and saves the tiles of the metatile.
+     * <p>
+     * The requested tile is encoded first, on the calling thread, and set as the blob of
+     * {@code tileProto}. The remaining tiles, if they are to be stored, are then
+     * encoded and saved in parallel by the calling thread and the shared encoder pool, this method
+     * returning once all of them are stored so the metatile can be disposed of.
+     * </p>
      * 
-     * @param gridPositions
      * @param metaTile
-     * @param imageFormat
+     * @param tileProto
      */
-    protected void saveTiles(MetaTile metaTile, ConveyorTile tileProto) throws GeoWebCacheException {
+    protected void saveTiles(final MetaTile metaTile, final ConveyorTile tileProto)
+            throws GeoWebCacheException {
 
         final long[][] gridPositions = metaTile.getTilesGridPositions();
         final long[] gridLoc = tileProto.getTileIndex();
@@ -577,57 +596,152 @@ public abstract class TileLayer {
         final int zoomLevel = (int) gridLoc[2];
         final boolean store = this.getExpireCache(zoomLevel) != GWCVars.CACHE_DISABLE_CACHE;
 
-        Resource resource;
-        boolean encode;
+        List<Integer> others = new ArrayList<Integer>(gridPositions.length);
         for (int i = 0; i < gridPositions.length; i++) {
             final long[] gridPos = gridPositions[i];
+            if (!gridSubset.covers(gridPos)) {
+                // edge tile outside coverage, do not store it
+                continue;
+            }
             if (Arrays.equals(gridLoc, gridPos)) {
-                // Is this the one we need to save? then don't use the buffer or it'll be overridden
-                // by the next tile
-                resource = getImageBuffer(WMS_BUFFER2);
+                ByteArrayResource resource = new ByteArrayResource(16 * 1024);
                 tileProto.setBlob(resource);
-                encode = true;
-            } else {
-                resource = getImageBuffer(WMS_BUFFER);
-                encode = store;
+                TileObject tile = encodeTile(metaTile, tileProto, i, resource, store);
+                if (tile != null) {
+                    tileProto.getStorageObject().setCreated(tile.getCreated());
+                }
+            } else if (store) {
+                others.add(Integer.valueOf(i));
             }
+        }
 
-            if (encode) {
-                if (!gridSubset.covers(gridPos)) {
-                    // edge tile outside coverage, do not store it
-                    continue;
+        if (!others.isEmpty()) {
+            saveTilesInParallel(metaTile, tileProto, others);
+        }
+    }
+
+    private void saveTilesInParallel(final MetaTile metaTile, final ConveyorTile tileProto,
+            final List<Integer> tileIndexes) throws GeoWebCacheException {
+
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(tileIndexes.size());
+        final AtomicReference<GeoWebCacheException> failure = new AtomicReference<GeoWebCacheException>();
+
+        Runnable encoder = new Runnable() {
+            public void run() {
+                int n;
+                while ((n = next.getAndIncrement()) < tileIndexes.size()) {
+                    try {
+                        if (failure.get() == null) {
+                            encodeTile(metaTile, tileProto, tileIndexes.get(n).intValue(),
+                                    new ByteArrayResource(16 * 1024), true);
+                        }
+                    } catch (GeoWebCacheException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, new GeoWebCacheException(e));
+                    } finally {
+                        done.countDown();
+                    }
                 }
+            }
+        };
+
+        // the calling thread keeps encoding too, helpers that can't be queued or start after all
+        // the tiles were taken simply do nothing
+        ExecutorService pool = getEncoderPool();
+        int helpers = Math.min(encoderThreads, tileIndexes.size() - 1);
+        for (int i = 0; i < helpers; i++) {
+            pool.execute(encoder);
+        }
+        encoder.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Encodes the tile at index {@code tileIdx} of the metatile into {@code resource} and, if
+     * requested, stores it
+     * 
+     * @return the stored tile, or {@code null} if the tile wasn't stored
+     */
+    private TileObject encodeTile(MetaTile metaTile, ConveyorTile tileProto, int tileIdx,
+            Resource resource, boolean store) throws GeoWebCacheException {
+        try {
+            boolean completed = metaTile.writeTileToStream(tileIdx, resource);
+            if (!completed) {
+                log.error("metaTile.writeTileToStream returned false, no tiles saved");
+            }
+            if (store) {
+                final long[] gridPos = metaTile.getTilesGridPositions()[tileIdx];
+                long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
+
+                TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx,
+                        tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
+                        tileProto.getParameters(), resource);
 
                 try {
-                    boolean completed = metaTile.writeTileToStream(i, resource);
-                    if (!completed) {
-                        log.error("metaTile.writeTileToStream returned false, no tiles saved");
+                    if (tileProto.isMetaTileCacheOnly()) {
+                        tileProto.getStorageBroker().putTransient(tile);
+                    } else {
+                        tileProto.getStorageBroker().put(tile);
                     }
-                    if (store) {
-                        long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
-
-                        TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx,
-                                tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
-                                tileProto.getParameters(), resource);
-
-                        try {
-                            if (tileProto.isMetaTileCacheOnly()) {
-                                tileProto.getStorageBroker().putTransient(tile);
-                            } else {
-                                tileProto.getStorageBroker().put(tile);
-                            }
-                            tileProto.getStorageObject().setCreated(tile.getCreated());
-                        } catch (StorageException e) {
-                            throw new GeoWebCacheException(e);
-                        }
-                    }
-                } catch (IOException ioe) {
-                    log.error("Unable to write image tile to " + "ByteArrayOutputStream: "
-                            + ioe.getMessage());
-                    ioe.printStackTrace();
+                } catch (StorageException e) {
+                    throw new GeoWebCacheException(e);
+                }
+                return tile;
+            }
+        } catch (IOException ioe) {
+            log.error("Unable to write image tile to " + "ByteArrayOutputStream: "
+                    + ioe.getMessage());
+            ioe.printStackTrace();
+        }
+        return null;
+    }
+
+    private static synchronized ExecutorService getEncoderPool() {
+        if (encoderPool == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            String configured = GeoWebCacheExtensions.getProperty(GWC_METATILE_ENCODER_THREADS);
+            if (configured != null) {
+                try {
+                    threads = Integer.parseInt(configured.trim());
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid value for " + GWC_METATILE_ENCODER_THREADS + ": "
+                            + configured + ", using " + threads);
                 }
             }
+            threads = Math.max(1, threads);
+            final AtomicInteger count = new AtomicInteger();
+            ThreadFactory threadFactory = new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "GWC MetaTile Encoder-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(4 * threads),
+                    threadFactory, new ThreadPoolExecutor.DiscardPolicy());
+            encoderThreads = threads;
+            encoderPool = executor;
+            log.info("Encoding metatiles with up to " + threads + " extra threads");
         }
+        return encoderPool;
     }
 
 }
@@ -19,8 +19,11 @@ package org.geowebcache.layer;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,6 +36,9 @@ import org.geowebcache.config.meta.ServiceInformation;
 import org.geowebcache.grid.GridSet;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
+import org.geowebcache.layer.wms.WMSHttpHelper;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.layer.wms.WMSSourceHelper;
 import org.geowebcache.util.CompositeIterable;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.util.Assert;
@@ -50,6 +56,9 @@ public class TileLayerDispatcher implements DisposableBean {
 
     private ServiceInformation serviceInformation;
 
+    private final List<TileLayerDispatcherListener> listeners =
+        new CopyOnWriteArrayList<TileLayerDispatcherListener>();
+
     /**
      * @deprecated use {@link #TileLayerDispatcher(GridSetBroker)} instead, configurations are
      *             loaded from the application context, this {@code config} parameter will be
@@ -71,6 +80,17 @@ public class TileLayerDispatcher implements DisposableBean {
         List<Configuration> newList = new ArrayList<Configuration>(configs);
         newList.add(config);
         this.configs = newList;
+        for (TileLayerDispatcherListener listener : listeners) {
+            listener.configurationReloaded();
+        }
+    }
+
+    public void addListener(TileLayerDispatcherListener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean removeListener(TileLayerDispatcherListener listener) {
+        return listeners.remove(listener);
     }
 
     public boolean layerExists(final String layerName) {
@@ -113,9 +133,28 @@ public class TileLayerDispatcher implements DisposableBean {
      * 
      */
     public void reInit() {
+        List<TileLayer> previousLayers = new ArrayList<TileLayer>();
+        if (configs != null) {
+            for (TileLayer layer : getLayerList()) {
+                previousLayers.add(layer);
+            }
+        }
         List<Configuration> extensions = GeoWebCacheExtensions.extensions(Configuration.class);
         this.configs = new ArrayList<Configuration>(extensions);
         initialize();
+        // release the connections of the layers not reloaded as is
+        Map<TileLayer, Boolean> currentLayers = new IdentityHashMap<TileLayer, Boolean>();
+        for (TileLayer layer : getLayerList()) {
+            currentLayers.put(layer, Boolean.TRUE);
+        }
+        for (TileLayer layer : previousLayers) {
+            if (!currentLayers.containsKey(layer)) {
+                disposeSourceHelper(layer);
+            }
+        }
+        for (TileLayerDispatcherListener listener : listeners) {
+            listener.configurationReloaded();
+        }
     }
 
     public int getLayerCount() {
@@ -208,10 +247,32 @@ public class TileLayerDispatcher implements DisposableBean {
     }
 
     /**
+     * Shuts down the backend connection pools held by the layers' source helpers
+     * 
      * @see org.springframework.beans.factory.DisposableBean#destroy()
      */
     public void destroy() throws Exception {
-        //
+        for (TileLayer layer : getLayerList()) {
+            disposeSourceHelper(layer);
+        }
+    }
+
+    /**
+     * Shuts down the backend connection pool of a layer no longer in use, it's recreated if the
+     * layer is used again
+     */
+    private void disposeSourceHelper(final TileLayer layer) {
+        if (!(layer instanceof WMSLayer)) {
+            return;
+        }
+        WMSSourceHelper sourceHelper = ((WMSLayer) layer).getSourceHelper();
+        if (sourceHelper instanceof WMSHttpHelper) {
+            try {
+                ((WMSHttpHelper) sourceHelper).dispose();
+            } catch (RuntimeException e) {
+                log.warn("Error releasing backend connections for layer " + layer.getName(), e);
+            }
+        }
     }
 
     /**
@@ -231,7 +292,12 @@ public class TileLayerDispatcher implements DisposableBean {
     public synchronized Configuration removeLayer(final String layerName)
             throws IllegalArgumentException {
         for (Configuration config : configs) {
+            final TileLayer removed = config.getTileLayer(layerName);
             if (config.removeLayer(layerName)) {
+                disposeSourceHelper(removed);
+                for (TileLayerDispatcherListener listener : listeners) {
+                    listener.layerRemoved(layerName);
+                }
                 return config;
             }
         }
@@ -254,6 +320,9 @@ public class TileLayerDispatcher implements DisposableBean {
         for (Configuration c : configs) {
             if (c.canSave(tl)) {
                 c.addLayer(tl);
+                for (TileLayerDispatcherListener listener : listeners) {
+                    listener.layerAdded(tl.getName());
+                }
                 return c;
             }
         }
@@ -269,7 +338,14 @@ public class TileLayerDispatcher implements DisposableBean {
      */
     public synchronized Configuration modify(final TileLayer tl) throws IllegalArgumentException {
         Configuration config = getConfiguration(tl);
+        final TileLayer replaced = config.getTileLayerById(tl.getId());
         config.modifyLayer(tl);
+        if (replaced != tl) {
+            disposeSourceHelper(replaced);
+        }
+        for (TileLayerDispatcherListener listener : listeners) {
+            listener.layerModified(tl.getName());
+        }
         return config;
     }
 
@@ -326,6 +402,9 @@ public class TileLayerDispatcher implements DisposableBean {
         GridSet removed = gridSetBroker.remove(gridSetName);
         Assert.notNull(removed != null);
         Assert.notNull(persistingConfig.removeGridset(gridSetName));
+        for (TileLayerDispatcherListener listener : listeners) {
+            listener.gridSetRemoved(gridSetName);
+        }
 
         return persistingConfig;
     }
@@ -336,6 +415,9 @@ public class TileLayerDispatcher implements DisposableBean {
             throw new IllegalArgumentException("GridSet " + gridSet.getName() + " already exists");
         }
         saveGridSet(gridSet);
+        for (TileLayerDispatcherListener listener : listeners) {
+            listener.gridSetAdded(gridSet.getName());
+        }
     }
 
     private void saveGridSet(final GridSet gridSet) throws IOException {
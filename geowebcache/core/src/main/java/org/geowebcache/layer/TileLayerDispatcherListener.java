@@ -0,0 +1,42 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+/**
+ * Notified by the {@link TileLayerDispatcher} of the changes made through it to the layers and
+ * gridsets configuration.
+ * <p>
+ * Events are sent once the change is applied to the configuration, whether it's saved or not.
+ * </p>
+ *
+ * @see TileLayerDispatcher#addListener(TileLayerDispatcherListener)
+ */
+public interface TileLayerDispatcherListener {
+
+    void layerAdded(String layerName);
+
+    void layerModified(String layerName);
+
+    void layerRemoved(String layerName);
+
+    void gridSetAdded(String gridSetName);
+
+    void gridSetRemoved(String gridSetName);
+
+    /**
+     * Called when the configurations are (re)loaded, after which any layer may have changed
+     */
+    void configurationReloaded();
+}
@@ -23,12 +23,18 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,18 +51,47 @@ import org.springframework.util.Assert;
 /**
  * This class is a wrapper for HTTP interaction with WMS backend
  * 
- * All methods in this class MUST be written as if they were static
+ * All methods in this class MUST be written as if they were static, the only state kept is the
+ * pool of persistent connections to the backend servers, which is shared by all the requests
+ * issued through this helper (usually, all the requests of a single layer)
  * 
  */
 public class WMSHttpHelper extends WMSSourceHelper {
     private static Log log = LogFactory.getLog(org.geowebcache.layer.wms.WMSHttpHelper.class);
 
+    /**
+     * Default maximum number of pooled connections to a single backend host
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 32;
+
+    /**
+     * Time in milliseconds after which an unused pooled connection is closed
+     */
+    static final long IDLE_CONNECTION_TIMEOUT = 60 * 1000;
+
     private final URL proxyUrl;
 
     private final String httpUsername;
 
     private final String httpPassword;
 
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    /**
+     * Connection pools by backend timeout, as the connect timeout is a setting of the pool. There's
+     * usually a single one, the timeout being a layer setting.
+     */
+    private final Map<Integer, MultiThreadedHttpConnectionManager> connectionManagers =
+        new HashMap<Integer, MultiThreadedHttpConnectionManager>();
+
+    /**
+     * One client per backend host and timeout, those with the same timeout sharing the same
+     * {@link #connectionManagers connection pool}
+     */
+    private final Map<String, HttpClient> clients = new ConcurrentHashMap<String, HttpClient>();
+
+    private volatile long lastIdleCheck;
+
     public WMSHttpHelper() {
         this(null, null, null);
     }
@@ -68,6 +103,22 @@ public class WMSHttpHelper extends WMSSourceHelper {
         this.proxyUrl = proxyUrl;
     }
 
+    /**
+     * Sets the maximum number of persistent connections kept open against each backend host. Takes
+     * effect for connection pools created after this call, that is, before the first request or
+     * after a {@link #dispose()}
+     * 
+     * @param maxConnectionsPerHost
+     */
+    public synchronized void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        Assert.isTrue(maxConnectionsPerHost > 0, "maxConnectionsPerHost shall be a positive integer");
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
     /**
      * Loops over the different backends, tries the request
      * 
@@ -260,9 +311,7 @@ public class WMSHttpHelper extends WMSSourceHelper {
     public GetMethod executeRequest(final URL url, final Map<String, String> queryParams,
             final Integer backendTimeout) throws HttpException, IOException {
 
-        HttpClientBuilder builder = new HttpClientBuilder(url, backendTimeout, httpUsername,
-                httpPassword, proxyUrl);
-        HttpClient httpClient = builder.buildClient();
+        HttpClient httpClient = getHttpClient(url, backendTimeout);
 
         GetMethod getMethod = new GetMethod(url.toString());
         if (queryParams != null && queryParams.size() > 0) {
@@ -274,9 +323,99 @@ public class WMSHttpHelper extends WMSSourceHelper {
             }
             getMethod.setQueryString(params);
         }
-        getMethod.setDoAuthentication(builder.isDoAuthentication());
+        getMethod.setDoAuthentication(httpUsername != null);
 
         httpClient.executeMethod(getMethod);
         return getMethod;
     }
+
+    /**
+     * Returns the client to use against the host of {@code url}, creating it and the connection
+     * pool it relies on if needed.
+     * 
+     * @param url
+     *            the backend URL about to be requested
+     * @param backendTimeout
+     *            timeout in seconds
+     * @return a client that reuses the persistent connections of this helper
+     */
+    HttpClient getHttpClient(final URL url, final Integer backendTimeout) {
+        final String key = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort() + "/"
+                + backendTimeout;
+
+        HttpClient httpClient = clients.get(key);
+        if (httpClient == null) {
+            synchronized (this) {
+                httpClient = clients.get(key);
+                if (httpClient == null) {
+                    HttpClientBuilder builder = new HttpClientBuilder(url, backendTimeout,
+                            httpUsername, httpPassword, proxyUrl);
+                    httpClient = builder.buildClient(getConnectionManager(backendTimeout));
+                    clients.put(key, httpClient);
+                }
+            }
+        }
+        closeIdleConnections();
+        return httpClient;
+    }
+
+    private synchronized MultiThreadedHttpConnectionManager getConnectionManager(
+            final Integer backendTimeout) {
+        MultiThreadedHttpConnectionManager connectionManager = connectionManagers
+                .get(backendTimeout);
+        if (connectionManager == null) {
+            connectionManager = new MultiThreadedHttpConnectionManager();
+            HttpConnectionManagerParams params = connectionManager.getParams();
+            params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+            // a layer may round robin over several backends, let each of them use its full share
+            params.setMaxTotalConnections(Integer.MAX_VALUE);
+            params.setStaleCheckingEnabled(true);
+            if (backendTimeout != null) {
+                params.setConnectionTimeout(backendTimeout.intValue() * 1000);
+            }
+            if (connectionManagers.isEmpty()) {
+                lastIdleCheck = System.currentTimeMillis();
+            }
+            connectionManagers.put(backendTimeout, connectionManager);
+        }
+        return connectionManager;
+    }
+
+    /**
+     * Closes the pooled connections that have not been used for {@link #IDLE_CONNECTION_TIMEOUT}
+     * milliseconds. Checked at most once every timeout period, piggybacking on the requests
+     * instead of requiring a monitor thread per layer.
+     */
+    private void closeIdleConnections() {
+        final long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < IDLE_CONNECTION_TIMEOUT) {
+            return;
+        }
+        synchronized (this) {
+            if (now - lastIdleCheck >= IDLE_CONNECTION_TIMEOUT) {
+                lastIdleCheck = now;
+                for (MultiThreadedHttpConnectionManager manager : connectionManagers.values()) {
+                    manager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT);
+                    manager.deleteClosedConnections();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all the pooled connections held by this helper. The helper is still usable
+     * afterwards, a new connection pool will be created on the next request.
+     */
+    public void dispose() {
+        List<MultiThreadedHttpConnectionManager> managers;
+        synchronized (this) {
+            managers = new ArrayList<MultiThreadedHttpConnectionManager>(connectionManagers
+                    .values());
+            connectionManagers.clear();
+            clients.clear();
+        }
+        for (MultiThreadedHttpConnectionManager manager : managers) {
+            manager.shutdown();
+        }
+    }
 }
\ No newline at end of file
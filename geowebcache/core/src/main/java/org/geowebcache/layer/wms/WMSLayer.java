@@ -18,15 +18,20 @@
 package org.geowebcache.layer.wms;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -46,6 +51,7 @@ import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.AbstractTileLayer;
+import org.geowebcache.layer.BackendFetchExecutor;
 import org.geowebcache.layer.ExpirationRule;
 import org.geowebcache.layer.GridLocObj;
 import org.geowebcache.layer.TileLayer;
@@ -102,26 +108,34 @@ public class WMSLayer extends AbstractTileLayer {
 
     private Integer concurrency;
 
+    private Integer maxBackendConnections;
+
+    private Integer maxPendingRequests;
+
     // private transient int expireCacheInt = -1;
 
     // private transient int expireClientsInt = -1;
 
     private transient int curWmsURL;
 
-    private transient Lock layerLock;
-
-    private transient boolean layerLocked;
-
-    private transient Condition layerLockedCond;
-
-    private transient Condition[] gridLocConds;
+    /**
+     * Requests to the backend hold the read lock while in flight, {@link #acquireLayerLock()} takes
+     * the write lock so that it waits for them to finish and keeps new ones out
+     */
+    private transient ReadWriteLock layerLock;
 
-    private transient HashMap<GridLocObj, Boolean> procQueue;
+    /**
+     * The (meta) tiles being requested to the backend, mapped to the latch released once the
+     * request is complete
+     */
+    private transient ConcurrentMap<GridLocObj, CountDownLatch> procQueue;
 
     private transient WMSSourceHelper sourceHelper;
 
     protected transient String sphericalMercatorOverride;
 
+    private transient String backendId;
+
     WMSLayer(){
         //default constructor for XStream
     }
@@ -191,27 +205,20 @@ public class WMSLayer extends AbstractTileLayer {
             backendTimeout = 120;
         }
 
-        layerLock = new ReentrantLock();
-        layerLockedCond = layerLock.newCondition();
-        procQueue = new HashMap<GridLocObj, Boolean>();
-
         if (this.metaWidthHeight == null || this.metaWidthHeight.length != 2) {
             this.metaWidthHeight = new int[2];
             this.metaWidthHeight[0] = 3;
             this.metaWidthHeight[1] = 3;
         }
 
-        // Create conditions for tile locking
+        // Set up the structures for tile locking
         if (concurrency == null) {
             concurrency = 32;
         }
 
         // TODO There should be a WMSServer object and it should be on that
-        this.gridLocConds = new Condition[concurrency];
-
-        for (int i = 0; i < gridLocConds.length; i++) {
-            gridLocConds[i] = layerLock.newCondition();
-        }
+        layerLock = new ReentrantReadWriteLock(true);
+        procQueue = new ConcurrentHashMap<GridLocObj, CountDownLatch>(16, 0.75f, concurrency);
 
         if (this.sourceHelper instanceof WMSHttpHelper) {
             for (int i = 0; i < wmsUrl.length; i++) {
@@ -220,6 +227,9 @@ public class WMSLayer extends AbstractTileLayer {
                     wmsUrl[i] = url + "?";
                 }
             }
+            if (maxBackendConnections != null) {
+                ((WMSHttpHelper) sourceHelper).setMaxConnectionsPerHost(maxBackendConnections);
+            }
         }
 
         if (gutter == null) {
@@ -282,16 +292,14 @@ public class WMSLayer extends AbstractTileLayer {
         ConveyorTile returnTile;
 
         tile.setMetaTileCacheOnly(!gridSubset.shouldCacheAtZoom(gridLoc[2]));
-        try {
-            if (tryCacheFetch(tile)) {
-                returnTile = finalizeTile(tile);
-            } else if (mime.supportsTiling()) { // Okay, so we need to go to the backend
-                returnTile = getMetatilingReponse(tile, true);
-            } else {
-                returnTile = getNonMetatilingReponse(tile, true);
-            }
-        } finally {
-            cleanUpThreadLocals();
+        if (tryCacheFetch(tile)) {
+            returnTile = finalizeTile(tile);
+        } else if (tile.getBackendFetchExecutor() != null) {
+            returnTile = fetchFromBackend(tile, mime, tile.getBackendFetchExecutor());
+        } else if (mime.supportsTiling()) { // Okay, so we need to go to the backend
+            returnTile = getMetatilingReponse(tile, true);
+        } else {
+            returnTile = getNonMetatilingReponse(tile, true);
         }
         
         sendTileRequestedEvent(returnTile);
@@ -299,6 +307,47 @@ public class WMSLayer extends AbstractTileLayer {
         return returnTile;
     }
 
+    /**
+     * Hands the cache miss over to the backend fetch executor and waits for it. The backend thread
+     * only fetches and saves the tile, as it may outlive the request if it times out, and the
+     * response is finalized by the request thread.
+     */
+    private ConveyorTile fetchFromBackend(final ConveyorTile tile, final MimeType mime,
+            final BackendFetchExecutor executor) throws GeoWebCacheException {
+        ConveyorTile fetched = executor.execute(name, maxPendingRequests, getBackendId(),
+                new Callable<ConveyorTile>() {
+                    public ConveyorTile call() throws Exception {
+                        if (mime.supportsTiling()) {
+                            return fetchMetatile(tile, true);
+                        }
+                        return fetchNonMetatile(tile, true);
+                    }
+                });
+        return finalizeTile(fetched);
+    }
+
+    /**
+     * @return the host and port of the first backend URL, identifying the backend server for the
+     *         purpose of limiting the concurrent requests against it
+     */
+    private String getBackendId() {
+        String backendId = this.backendId;
+        if (backendId == null) {
+            String url = wmsUrl == null || wmsUrl.length == 0 ? null : wmsUrl[0];
+            if (url == null) {
+                backendId = name;
+            } else {
+                try {
+                    backendId = new URL(url).getAuthority();
+                } catch (MalformedURLException e) {
+                    backendId = url;
+                }
+            }
+            this.backendId = backendId;
+        }
+        return backendId;
+    }
+
     /**
      * Used for seeding
      */
@@ -326,6 +375,15 @@ public class WMSLayer extends AbstractTileLayer {
      */
     private ConveyorTile getMetatilingReponse(ConveyorTile tile, boolean tryCache)
             throws GeoWebCacheException {
+        return finalizeTile(fetchMetatile(tile, tryCache));
+    }
+
+    /**
+     * Gets the tile from the cache, or requests and saves its metatile, without touching the
+     * response
+     */
+    private ConveyorTile fetchMetatile(ConveyorTile tile, boolean tryCache)
+            throws GeoWebCacheException {
 
         // int idx = this.getSRSIndex(tile.getSRS());
         long[] gridLoc = tile.getTileIndex();
@@ -349,23 +407,28 @@ public class WMSLayer extends AbstractTileLayer {
         }
 
         long[] metaGridLoc = metaTile.getMetaGridPos();
-        GridLocObj metaGlo = new GridLocObj(metaGridLoc, this.gridLocConds.length);
+        GridLocObj metaGlo = new GridLocObj(metaGridLoc);
 
         /** ****************** Acquire lock ******************* */
-        waitForQueue(metaGlo);
+        while (!waitForQueue(metaGlo)) {
+            // Someone else just requested the same metatile, it should be cached by now
+            if (tryCache && tryCacheFetch(tile)) {
+                return tile;
+            }
+        }
         /** ****************** Check cache again ************** */
         if (tryCache && tryCacheFetch(tile)) {
             // Someone got it already, return lock and we're done
             removeFromQueue(metaGlo);
-            return finalizeTile(tile);
+            return tile;
         }
 
         tile.setCacheResult(CacheResult.MISS);
         
         /*
-         * This thread's byte buffer
+         * Pooled buffer for the backend response, no longer needed once the metatile is decoded
          */
-        ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
+        ByteArrayResource buffer = BUFFER_POOL.acquire();
 
         try {
             /** ****************** No luck, Request metatile ****** */
@@ -373,7 +436,12 @@ public class WMSLayer extends AbstractTileLayer {
             if (saveExpirationHeaders) {
                 metaTile.setExpiresHeader(GWCVars.CACHE_USE_WMS_BACKEND_VALUE);
             }
-            sourceHelper.makeRequest(metaTile, buffer);
+            final long start = System.currentTimeMillis();
+            try {
+                sourceHelper.makeRequest(metaTile, buffer);
+            } finally {
+                tile.setBackendLatency(System.currentTimeMillis() - start);
+            }
 
             if (metaTile.getError()) {
                 throw new GeoWebCacheException("Empty metatile, error message: "
@@ -393,8 +461,9 @@ public class WMSLayer extends AbstractTileLayer {
         } finally {
             removeFromQueue(metaGlo);
             metaTile.dispose();
+            BUFFER_POOL.release(buffer);
         }
-        return finalizeTile(tile);
+        return tile;
     }
 
     /**
@@ -408,17 +477,29 @@ public class WMSLayer extends AbstractTileLayer {
      */
     private ConveyorTile getNonMetatilingReponse(ConveyorTile tile, boolean tryCache)
             throws GeoWebCacheException {
+        return finalizeTile(fetchNonMetatile(tile, tryCache));
+    }
+
+    /**
+     * Gets the tile from the cache, or requests and saves it, without touching the response
+     */
+    private ConveyorTile fetchNonMetatile(ConveyorTile tile, boolean tryCache)
+            throws GeoWebCacheException {
         // String debugHeadersStr = null;
         long[] gridLoc = tile.getTileIndex();
-        GridLocObj glo = new GridLocObj(gridLoc, this.gridLocConds.length);
+        GridLocObj glo = new GridLocObj(gridLoc);
 
         /** ****************** Acquire lock ******************* */
-        waitForQueue(glo);
+        while (!waitForQueue(glo)) {
+            // Someone else just requested the same tile, it should be cached by now
+            if (tryCache && tryCacheFetch(tile)) {
+                return tile;
+            }
+        }
         try {
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
                 // Someone got it already, return lock and we're done
-                removeFromQueue(glo);
                 return tile;
                 // return this.createTileResponse(tile.getData(), -1, mime,
                 // response);
@@ -431,7 +512,12 @@ public class WMSLayer extends AbstractTileLayer {
                 tile.setExpiresHeader(GWCVars.CACHE_USE_WMS_BACKEND_VALUE);
             }
 
-            tile = doNonMetatilingRequest(tile);
+            final long start = System.currentTimeMillis();
+            try {
+                tile = doNonMetatilingRequest(tile);
+            } finally {
+                tile.setBackendLatency(System.currentTimeMillis() - start);
+            }
 
             if (tile.getStatus() > 299
                     || this.getExpireCache((int) gridLoc[2]) != GWCVars.CACHE_DISABLE_CACHE) {
@@ -447,7 +533,7 @@ public class WMSLayer extends AbstractTileLayer {
         } finally {
             removeFromQueue(glo);
         }
-        return finalizeTile(tile);
+        return tile;
     }
 
     public boolean tryCacheFetch(ConveyorTile tile) {
@@ -467,7 +553,8 @@ public class WMSLayer extends AbstractTileLayer {
     public ConveyorTile doNonMetatilingRequest(ConveyorTile tile) throws GeoWebCacheException {
         tile.setTileLayer(this);
 
-        ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
+        // not pooled, the buffer is handed over to the caller
+        ByteArrayResource buffer = new ByteArrayResource(16 * 1024);
         sourceHelper.makeRequest(tile, buffer);
 
         if (tile.getError() || buffer.getSize() == 0) {
@@ -638,23 +725,9 @@ public class WMSLayer extends AbstractTileLayer {
      */
     public void acquireLayerLock() {
         if (layerLock == null) {
-            layerLocked = true;
             return;
         }
-
-        boolean wait = true;
-        // Wait until the queue is free
-        while (wait) {
-            try {
-                layerLock.lock();
-                this.layerLocked = true;
-                if (this.procQueue == null || this.procQueue.size() == 0) {
-                    wait = false;
-                }
-            } finally {
-                layerLock.unlock();
-            }
-        }
+        layerLock.writeLock().lock();
     }
 
     /**
@@ -662,76 +735,68 @@ public class WMSLayer extends AbstractTileLayer {
      */
     public void releaseLayerLock() {
         if (layerLock == null) {
-            layerLocked = false;
             return;
         }
-
-        layerLock.lock();
-        try {
-            layerLocked = false;
-            // Wake everyone up
-            layerLockedCond.signalAll();
-        } finally {
-            layerLock.unlock();
-        }
+        layerLock.writeLock().unlock();
     }
 
     /**
+     * Synchronization function, ensures that the same metatile is not requested simultaneously by
+     * two threads.
+     * <p>
+     * If no other thread is processing {@code glo} the calling thread takes it over and shall call
+     * {@link #removeFromQueue(GridLocObj)} once done. Otherwise the calling thread waits for that
+     * exact request to complete, without holding any lock, and gets {@code false} back so that it
+     * can look for the result in the cache before trying again.
      * 
-     * @param metaGridLoc
-     * @return
+     * @param glo
+     *            the grid position of the tile (bottom left of metatile)
+     * @return {@code true} if the calling thread now owns {@code glo}, {@code false} if it waited
+     *         for another thread to complete the same request
      */
     protected boolean waitForQueue(GridLocObj glo) {
-        boolean retry = true;
-        boolean hasWaited = false;
-        // int condIdx = getLocCondIdx(gridLoc);
+        final CountDownLatch ownLatch = new CountDownLatch(1);
+
+        // Blocks while the layer is locked
+        layerLock.readLock().lock();
+        CountDownLatch inFlight = procQueue.putIfAbsent(glo, ownLatch);
+        if (inFlight == null) {
+            // the read lock is kept until removeFromQueue
+            return true;
+        }
+        layerLock.readLock().unlock();
 
-        while (retry) {
-            layerLock.lock();
+        boolean interrupted = false;
+        while (true) {
             try {
-                // Check for global lock
-                if (layerLocked) {
-                    this.layerLockedCond.await();
-                } else if (this.procQueue.containsKey(glo)) {
-                    // System.out.println(Thread.currentThread().getId()
-                    // + " WAITING FOR "+glo.toString()+ " convar " + condIdx);
-                    hasWaited = true;
-                    this.gridLocConds[glo.hashCode()].await();
-                    // System.out.println(Thread.currentThread().getId()
-                    // + " WAKING UP "+glo.toString()+ " convar " + condIdx);
-                } else {
-                    this.procQueue.put(glo, true);
-                    retry = false;
-                    // System.out.println(Thread.currentThread().getId()
-                    // + " CONTINUES "+glo.toString()+ " convar " + condIdx);
-                }
+                inFlight.await();
+                break;
             } catch (InterruptedException ie) {
                 // Do we care? Maybe if the program is about to shut down
-            } finally {
-                layerLock.unlock();
+                interrupted = true;
             }
         }
-
-        return hasWaited;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
     }
 
     /**
-     * Synchronization function, ensures that the same metatile is not requested simultaneously by
-     * two threads.
+     * Releases a tile acquired through {@link #waitForQueue(GridLocObj)} and wakes up the threads
+     * waiting for it.
      * 
-     * @param gridLoc
-     *            the grid positions of the tile (bottom left of metatile)
-     * @return
+     * @param glo
+     *            the grid position of the tile (bottom left of metatile)
      */
     protected void removeFromQueue(GridLocObj glo) {
-        layerLock.lock();
+        CountDownLatch latch = procQueue.remove(glo);
         try {
-            // System.out.println(Thread.currentThread().getId()
-            // + " DONE, SIGNALLING "+glo.toString() + " convar " + condIdx);
-            this.procQueue.remove(glo);
-            this.gridLocConds[glo.hashCode()].signalAll();
+            if (latch != null) {
+                latch.countDown();
+            }
         } finally {
-            layerLock.unlock();
+            layerLock.readLock().unlock();
         }
     }
 
@@ -746,6 +811,7 @@ public class WMSLayer extends AbstractTileLayer {
 
     public void setWMSurl(String[] wmsurl) {
         this.wmsUrl = wmsurl;
+        this.backendId = null;
     }
 
     public String[] getWMSurl() {
@@ -768,6 +834,32 @@ public class WMSLayer extends AbstractTileLayer {
         return proxyUrl;
     }
 
+    /**
+     * @return the maximum number of persistent connections to keep open against each of the
+     *         backend hosts, or {@code null} if not set and hence the default applies
+     */
+    public Integer getMaxBackendConnections() {
+        return maxBackendConnections;
+    }
+
+    public void setMaxBackendConnections(Integer maxBackendConnections) {
+        this.maxBackendConnections = maxBackendConnections;
+    }
+
+    /**
+     * @return the maximum number of cache misses for this layer that can be queued or running
+     *         against the backend when the dispatcher runs them through a
+     *         {@link BackendFetchExecutor}, or {@code null} if not set and hence the executor's
+     *         default applies
+     */
+    public Integer getMaxPendingRequests() {
+        return maxPendingRequests;
+    }
+
+    public void setMaxPendingRequests(Integer maxPendingRequests) {
+        this.maxPendingRequests = maxPendingRequests;
+    }
+
     /**
      * Mandatory
      */
@@ -816,8 +908,7 @@ public class WMSLayer extends AbstractTileLayer {
 
         // Should we do mime type checks?
 
-        // note: not using getImageBuffer() here cause this method is not called during seeding, so
-        // there's no gain
+        // note: not using the buffer pool here, the buffer is handed over to the caller
         Resource buffer = new ByteArrayResource(2048);
         sourceHelper.makeRequest(tile, buffer);
         tile.setBlob(buffer);
@@ -833,11 +924,6 @@ public class WMSLayer extends AbstractTileLayer {
         }
     }
 
-    public void cleanUpThreadLocals() {
-        WMS_BUFFER.remove();
-        WMS_BUFFER2.remove();
-    }
-
     public void setMetaInformation(LayerMetaInformation layerMetaInfo) {
         this.metaInformation = layerMetaInfo;
     }
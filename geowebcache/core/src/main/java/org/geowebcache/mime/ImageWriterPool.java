@@ -0,0 +1,199 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.mime;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+
+/**
+ * Thread safe pool of {@link ImageWriter}s, by format name.
+ * <p>
+ * Looking up a writer in the ImageIO service registry and creating it for every single tile is
+ * noticeable when seeding, so writers are {@link ImageWriter#reset() reset} and kept for reuse
+ * once done. New writers are created straight from the {@link ImageWriterSpi} found the first time
+ * a format is requested. At most {@code maxIdle} writers per format are kept, the exceeding ones
+ * are disposed.
+ * </p>
+ */
+public class ImageWriterPool {
+
+    private static Log log = LogFactory.getLog(ImageWriterPool.class);
+
+    private static final ImageWriterPool INSTANCE = new ImageWriterPool(Math.max(4, 2 * Runtime
+            .getRuntime().availableProcessors()));
+
+    private final int maxIdle;
+
+    private final ConcurrentMap<String, FormatPool> pools = new ConcurrentHashMap<String, FormatPool>();
+
+    /**
+     * @return the pool shared by the whole application
+     */
+    public static ImageWriterPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param maxIdle
+     *            maximum number of idle writers kept for each format
+     */
+    public ImageWriterPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Encodes {@code image} into {@code target}, using a pooled writer for the given format and
+     * the write parameters adjusted by {@code formatModifier}, if any.
+     * <p>
+     * {@link ByteArrayResource} targets are written to directly, other resources through a memory
+     * cache stream.
+     * </p>
+     *
+     * @param formatName
+     *            the ImageIO format name, as in {@link MimeType#getInternalName()}
+     */
+    public void write(final RenderedImage image, final String formatName,
+            final FormatModifier formatModifier, final Resource target) throws IOException {
+
+        final ImageWriter writer = acquire(formatName);
+        boolean reusable = false;
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (formatModifier != null) {
+                param = formatModifier.adjustImageWriteParam(param);
+            }
+            final ImageOutputStream imgOut;
+            if (target instanceof ByteArrayResource) {
+                imgOut = ((ByteArrayResource) target).getImageOutputStream();
+            } else {
+                imgOut = new MemoryCacheImageOutputStream(target.getOutputStream());
+            }
+            try {
+                writer.setOutput(imgOut);
+                writer.write(null, new IIOImage(image, null, null), param);
+                reusable = true;
+            } finally {
+                imgOut.close();
+            }
+        } finally {
+            release(formatName, writer, reusable);
+        }
+    }
+
+    /**
+     * Returns a writer for the given format, to be given back with
+     * {@link #release(String, ImageWriter, boolean)} once done
+     *
+     * @throws IIOException
+     *             if there's no writer for the format
+     */
+    public ImageWriter acquire(final String formatName) throws IIOException {
+        FormatPool pool = pools.get(formatName);
+        if (pool == null) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+            if (!writers.hasNext()) {
+                throw new IIOException("No ImageWriter available for format " + formatName);
+            }
+            ImageWriter writer = writers.next();
+            pools.putIfAbsent(formatName, new FormatPool(writer.getOriginatingProvider()));
+            return writer;
+        }
+
+        ImageWriter writer = pool.idle.poll();
+        if (writer != null) {
+            pool.idleCount.decrementAndGet();
+            return writer;
+        }
+        return pool.createWriter(formatName);
+    }
+
+    /**
+     * Gives back a writer obtained through {@link #acquire(String)}
+     *
+     * @param reusable
+     *            {@code false} if the writer failed and shall be disposed instead of reused
+     */
+    public void release(final String formatName, final ImageWriter writer, final boolean reusable) {
+        FormatPool pool = pools.get(formatName);
+        if (reusable && pool != null) {
+            try {
+                writer.reset();
+                if (pool.idleCount.incrementAndGet() <= maxIdle) {
+                    pool.idle.offer(writer);
+                    return;
+                }
+                pool.idleCount.decrementAndGet();
+            } catch (RuntimeException e) {
+                log.debug("Unable to reset image writer, disposing it", e);
+            }
+        }
+        writer.dispose();
+    }
+
+    /**
+     * @return number of idle writers kept for the given format
+     */
+    public int getIdleCount(final String formatName) {
+        FormatPool pool = pools.get(formatName);
+        return pool == null ? 0 : pool.idleCount.get();
+    }
+
+    private static final class FormatPool {
+        final ImageWriterSpi spi;
+
+        final Queue<ImageWriter> idle = new ConcurrentLinkedQueue<ImageWriter>();
+
+        final AtomicInteger idleCount = new AtomicInteger();
+
+        FormatPool(ImageWriterSpi spi) {
+            this.spi = spi;
+        }
+
+        ImageWriter createWriter(String formatName) throws IIOException {
+            if (spi != null) {
+                try {
+                    return spi.createWriterInstance();
+                } catch (IOException e) {
+                    log.debug("Unable to create writer from " + spi + ", using the registry", e);
+                }
+            }
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+            if (!writers.hasNext()) {
+                throw new IIOException("No ImageWriter available for format " + formatName);
+            }
+            return writers.next();
+        }
+    }
+}
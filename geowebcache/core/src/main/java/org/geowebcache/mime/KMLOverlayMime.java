@@ -0,0 +1,89 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.mime;
+
+/**
+ * The format KML and KMZ overlays are cached as, one per format of the tiles they wrap, so that
+ * the overlays of a tile don't collide with each other nor with the KML tiles of vector layers.
+ * <p>
+ * The format is the one of the wrapper with an {@code overlay} parameter naming the format of the
+ * data, e.g. {@code application/vnd.google-earth.kmz;overlay=image/png}, and the file extension
+ * is the data one followed by the wrapper one, e.g. {@code png.kmz}.
+ * </p>
+ */
+public class KMLOverlayMime extends MimeType {
+
+    private static final String OVERLAY_PARAM = ";overlay=";
+
+    private final MimeType wrapper;
+
+    private final MimeType data;
+
+    public KMLOverlayMime(MimeType wrapper, MimeType data) {
+        super(wrapper.getMimeType(), data.getFileExtension() + "." + wrapper.getFileExtension(),
+                wrapper.getInternalName(), format(wrapper, data.getFormat()), false);
+        this.wrapper = wrapper;
+        this.data = data;
+    }
+
+    public MimeType getWrapper() {
+        return wrapper;
+    }
+
+    public MimeType getData() {
+        return data;
+    }
+
+    /**
+     * @return the format of the overlays wrapping tiles of the given format
+     */
+    public static String format(MimeType wrapper, String dataFormat) {
+        return wrapper.getFormat() + OVERLAY_PARAM + dataFormat;
+    }
+
+    /**
+     * @return whether the format is the one of an overlay
+     */
+    public static boolean isOverlayFormat(String formatStr) {
+        return formatStr != null && formatStr.indexOf(OVERLAY_PARAM) > 0;
+    }
+
+    protected static KMLOverlayMime checkForFormat(String formatStr) throws MimeException {
+        int idx = formatStr.indexOf(OVERLAY_PARAM);
+        if (idx <= 0) {
+            return null;
+        }
+        XMLMime wrapper = XMLMime.checkForFormat(formatStr.substring(0, idx));
+        if (wrapper != XMLMime.kml && wrapper != XMLMime.kmz) {
+            return null;
+        }
+        MimeType data = MimeType.createFromFormat(formatStr.substring(idx
+                + OVERLAY_PARAM.length()));
+        return new KMLOverlayMime(wrapper, data);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof KMLOverlayMime) {
+            return getFormat().equals(((KMLOverlayMime) obj).getFormat());
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return getFormat().hashCode();
+    }
+}
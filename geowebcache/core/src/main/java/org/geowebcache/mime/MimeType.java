@@ -84,7 +84,13 @@ public class MimeType {
         if(formatStr == null) {
             throw new MimeException("formatStr was not set");
         }
-        
+
+        // Overlays carry the format of the data as a parameter, check before slicing it off
+        mimeType = KMLOverlayMime.checkForFormat(formatStr);
+        if(mimeType != null) {
+            return mimeType;
+        }
+
         // TODO Making a special exception, generalize later
         if(! formatStr.equals("image/png; mode=24bit") && formatStr.contains(";")) {
             if(log.isDebugEnabled()) {
@@ -0,0 +1,154 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Limits the number of backend requests in flight, adapting the limit to how the backend copes
+ * with additive increase / multiplicative decrease.
+ * <p>
+ * Every successful request answered about as fast as the best recent ones raises the limit by
+ * {@code 1 / limit}, that is by about one after a full round of requests. A failed request, or
+ * one taking more than {@link #LATENCY_TOLERANCE} times the best recent latency, cuts the limit by
+ * a {@link #DECREASE_FACTOR}, at most once per round trip so that a burst of slow responses to the
+ * same round only counts once. The limit starts at the configured minimum and always stays
+ * between it and the maximum; when they're equal this is a plain counting semaphore.
+ * </p>
+ */
+class AdaptiveConcurrencyLimit {
+
+    private static final Log log = LogFactory.getLog(AdaptiveConcurrencyLimit.class);
+
+    /**
+     * How much slower than the best recent latency a response can be before taken as a sign of an
+     * overloaded backend
+     */
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    static final double DECREASE_FACTOR = 0.75;
+
+    /**
+     * How fast the best latency seen is forgotten, so that the baseline follows a backend getting
+     * slower for other reasons than our own load (e.g. deeper zoom levels)
+     */
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final String name;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private double limit;
+
+    private int inFlight;
+
+    private double baselineLatency = -1;
+
+    private long lastDecrease;
+
+    /**
+     * @param name
+     *            what is being limited, for logging purposes
+     * @param minLimit
+     *            minimum number of requests allowed in flight, at least one, also the initial
+     *            limit
+     * @param maxLimit
+     *            maximum number of requests allowed in flight
+     */
+    public AdaptiveConcurrencyLimit(final String name, final int minLimit, final int maxLimit) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = this.minLimit;
+    }
+
+    /**
+     * Waits until a request can be sent to the backend. Each call shall be followed by one to
+     * {@link #release(long, boolean)}
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Reports the outcome of a request and lets another one through
+     *
+     * @param latencyMillis
+     *            how long the backend request took, or a negative value if no backend request
+     *            was made, in which case the limit is left as is
+     * @param success
+     *            whether the backend answered properly
+     */
+    public synchronized void release(final long latencyMillis, final boolean success) {
+        inFlight--;
+        if (minLimit < maxLimit && latencyMillis >= 0) {
+            adapt(latencyMillis, success);
+        }
+        notifyAll();
+    }
+
+    private void adapt(final long latencyMillis, final boolean success) {
+        final double latency = Math.max(1, latencyMillis);
+        if (success) {
+            if (baselineLatency < 0 || latency < baselineLatency) {
+                baselineLatency = latency;
+            } else {
+                baselineLatency += (latency - baselineLatency) * BASELINE_DRIFT;
+            }
+        }
+
+        final boolean overloaded = !success || latency > LATENCY_TOLERANCE * baselineLatency;
+        if (overloaded) {
+            final long now = System.currentTimeMillis();
+            if (now - lastDecrease >= baselineLatency) {
+                lastDecrease = now;
+                final double previous = limit;
+                limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+                if (log.isDebugEnabled() && (int) previous != (int) limit) {
+                    log.debug(name + ": " + (success ? latencyMillis + "ms response" : "error")
+                            + ", lowering concurrency to " + (int) limit);
+                }
+            }
+        } else if (limit < maxLimit) {
+            final double previous = limit;
+            limit = Math.min(maxLimit, limit + 1 / limit);
+            if (log.isDebugEnabled() && (int) previous != (int) limit) {
+                log.debug(name + ": raising concurrency to " + (int) limit);
+            }
+        }
+    }
+
+    /**
+     * @return the number of requests currently allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + getInFlight() + "/" + getLimit() + "]";
+    }
+}
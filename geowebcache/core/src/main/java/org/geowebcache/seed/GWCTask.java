@@ -65,6 +65,10 @@ public abstract class GWCTask {
 
     private long groupStartTime;
 
+    private SeedJob job;
+
+    private volatile boolean interrupted;
+
     /**
      * Marks this task as active in the group by incrementing the shared counter, delegates to
      * {@link #doActionInternal()}, and makes sure to remove this task from the group count.
@@ -74,6 +78,9 @@ public abstract class GWCTask {
         this.groupStartTime = System.currentTimeMillis();
         try {
             doActionInternal();
+        } catch (InterruptedException e) {
+            interrupted = true;
+            throw e;
         } finally {
             dispose();
             int membersRemaining = this.sharedThreadCount.decrementAndGet();
@@ -82,6 +89,9 @@ public abstract class GWCTask {
                 log.info("Thread group finished " + parsedType + " task after "
                         + groupTotalTimeSecs + " seconds");
             }
+            if (job != null) {
+                job.taskFinished(this);
+            }
         }
     }
 
@@ -104,6 +114,17 @@ public abstract class GWCTask {
         this.threadOffset = threadOffset;
     }
 
+    /**
+     * @return the job this task works on, if journaled, or {@code null}
+     */
+    public SeedJob getJob() {
+        return job;
+    }
+
+    void setJob(SeedJob job) {
+        this.job = job;
+    }
+
     public void setTaskId(long taskId) {
         this.taskId = taskId;
     }
@@ -165,6 +186,14 @@ public abstract class GWCTask {
         return state;
     }
 
+    /**
+     * @return whether this task stopped because its thread was interrupted, e.g. when shutting
+     *         down, rather than because it failed
+     */
+    public boolean isInterrupted() {
+        return interrupted;
+    }
+
     protected void checkInterrupted() throws InterruptedException {
         if (Thread.interrupted()) {
             this.state = STATE.DEAD;
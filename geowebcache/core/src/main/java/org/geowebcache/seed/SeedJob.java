@@ -0,0 +1,515 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.seed.GWCTask.STATE;
+import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.TileRange;
+
+/**
+ * A seed or truncate job, the group of {@link GWCTask tasks} working on the same tile range,
+ * journaled to a file so that it can be resumed where it stopped if the application is restarted
+ * before it finishes.
+ * <p>
+ * The range is processed in chunks: those of the {@link org.geowebcache.storage.TileRangeIterator}
+ * when seeding, one per zoom level when truncating. The journal is a binary file with the job
+ * definition followed by the index of each chunk as it's finished. As chunks are handed out in
+ * order, the ones done are kept as a {@link #getWatermark() watermark} below which all of them
+ * are, plus the few done out of order above it.
+ * </p>
+ * <p>
+ * The journal is deleted once all the tasks finish successfully, or the job is
+ * {@link #cancel() canceled}. It's kept if any task is interrupted because the application is
+ * shutting down, so that the job is resumed on the next start up. If a task fails instead, e.g.
+ * on reaching the seed abort limit, the journal is renamed with the {@link #FAILED_EXTENSION} so
+ * that the job is listed as {@link #isFailed() failed} but not resumed, until canceled.
+ * </p>
+ */
+public class SeedJob {
+
+    private static final Log log = LogFactory.getLog(SeedJob.class);
+
+    static final String FILE_EXTENSION = ".job";
+
+    static final String FAILED_EXTENSION = ".failed";
+
+    private static final int MAGIC = 0x47574a42;
+
+    private static final int VERSION = 1;
+
+    private final long id;
+
+    private final TYPE type;
+
+    private final TileRange tileRange;
+
+    private final int threadCount;
+
+    private final boolean filterUpdate;
+
+    private final int[] metaTilingFactors;
+
+    private final boolean resumed;
+
+    private long chunkCount;
+
+    /**
+     * Chunks below this index are all done
+     */
+    private long watermark;
+
+    /**
+     * Chunks done above the {@link #watermark}
+     */
+    private final Set<Long> doneChunks = new HashSet<Long>();
+
+    private final List<GWCTask> tasks = new ArrayList<GWCTask>();
+
+    private int runningTasks;
+
+    private boolean failed;
+
+    private boolean interrupted;
+
+    private boolean canceled;
+
+    private boolean finished;
+
+    private File file;
+
+    private DataOutputStream journal;
+
+    SeedJob(long id, TYPE type, TileRange tileRange, int threadCount, boolean filterUpdate,
+            int[] metaTilingFactors) {
+        this(id, type, tileRange, threadCount, filterUpdate, metaTilingFactors, false);
+    }
+
+    private SeedJob(long id, TYPE type, TileRange tileRange, int threadCount,
+            boolean filterUpdate, int[] metaTilingFactors, boolean resumed) {
+        this.id = id;
+        this.type = type;
+        this.tileRange = tileRange;
+        this.threadCount = threadCount;
+        this.filterUpdate = filterUpdate;
+        this.metaTilingFactors = metaTilingFactors;
+        this.resumed = resumed;
+    }
+
+    /**
+     * @return whether jobs on the given tile range can be journaled, which is not the case of
+     *         discontinuous ones as their raster mask isn't
+     */
+    static boolean isJournaled(TileRange tileRange) {
+        return tileRange.getClass() == TileRange.class;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public TYPE getType() {
+        return type;
+    }
+
+    public TileRange getTileRange() {
+        return tileRange;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public boolean isFilterUpdate() {
+        return filterUpdate;
+    }
+
+    int[] getMetaTilingFactors() {
+        return metaTilingFactors;
+    }
+
+    /**
+     * @return whether this job was started before the last restart
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public synchronized long getChunkCount() {
+        return chunkCount;
+    }
+
+    synchronized void setChunkCount(long chunkCount) {
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * @return the number of chunks finished, including before a restart
+     */
+    public synchronized long getChunksDone() {
+        return watermark + doneChunks.size();
+    }
+
+    synchronized long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * @return the tasks working on this job
+     */
+    public synchronized List<GWCTask> getTasks() {
+        return new ArrayList<GWCTask>(tasks);
+    }
+
+    synchronized void addTask(GWCTask task) {
+        tasks.add(task);
+        runningTasks++;
+        task.setJob(this);
+    }
+
+    /**
+     * @return whether any task of this job failed, in which case it's not resumed
+     */
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return whether all the tasks of this job finished
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public synchronized boolean isChunkDone(long chunk) {
+        return chunk < watermark || doneChunks.contains(Long.valueOf(chunk));
+    }
+
+    /**
+     * Records the chunk as done, so that it's skipped if the job is resumed
+     */
+    public synchronized void chunkDone(long chunk) {
+        if (isChunkDone(chunk)) {
+            return;
+        }
+        doneChunks.add(Long.valueOf(chunk));
+        while (doneChunks.remove(Long.valueOf(watermark))) {
+            watermark++;
+        }
+        if (journal != null) {
+            try {
+                journal.writeLong(chunk);
+                journal.flush();
+            } catch (IOException e) {
+                log.warn("Error writing the journal of seed job " + id + " to " + file
+                        + ", it won't be resumable: " + e.getMessage());
+                closeJournal();
+            }
+        }
+    }
+
+    /**
+     * Called by each task when it stops working on this job, either because it finished or not
+     */
+    synchronized void taskFinished(GWCTask task) {
+        if (task.getState() != STATE.DONE) {
+            if (task.isInterrupted()) {
+                interrupted = true;
+            } else {
+                failed = true;
+            }
+        }
+        if (--runningTasks > 0) {
+            return;
+        }
+        finished = true;
+        closeJournal();
+        if (canceled || !(failed || interrupted)) {
+            deleteJournal();
+        } else if (file == null) {
+            return;
+        } else if (failed) {
+            markFailed();
+        } else {
+            log.info("Seed job " + id + " on layer " + tileRange.getLayerName()
+                    + " was interrupted before finishing, its journal " + file
+                    + " is kept so it's resumed on the next start up");
+        }
+    }
+
+    /**
+     * Renames the journal so that the job is not resumed, but still listed until canceled
+     */
+    private void markFailed() {
+        String name = file.getName();
+        name = name.substring(0, name.length() - FILE_EXTENSION.length()) + FAILED_EXTENSION;
+        File failedFile = new File(file.getParentFile(), name);
+        if (file.renameTo(failedFile)) {
+            log.warn("Seed job " + id + " on layer " + tileRange.getLayerName()
+                    + " failed, it won't be resumed. Its journal is kept as " + failedFile
+                    + " until the job is canceled");
+            file = failedFile;
+        } else {
+            log.error("Seed job " + id + " on layer " + tileRange.getLayerName()
+                    + " failed, and its journal couldn't be renamed to " + failedFile
+                    + ". Deleting it so that the job is not resumed");
+            deleteJournal();
+        }
+    }
+
+    /**
+     * Terminates the tasks of this job and forgets about it, so that it's not resumed
+     */
+    public synchronized void cancel() {
+        canceled = true;
+        for (GWCTask task : tasks) {
+            task.terminateNicely();
+        }
+        closeJournal();
+        deleteJournal();
+    }
+
+    public synchronized boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Closes the journal of a job that can't be resumed now, keeping it so that it's resumed on
+     * the next start up
+     */
+    synchronized void suspend() {
+        closeJournal();
+    }
+
+    /**
+     * Creates the journal of this job in the given directory
+     */
+    synchronized void createJournal(File directory) throws IOException {
+        this.file = new File(directory, id + FILE_EXTENSION);
+        writeJournal(file);
+    }
+
+    /**
+     * Writes the job definition, and the chunks done so far, to the given file and keeps it open
+     * to record the next ones
+     */
+    private void writeJournal(File target) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(target));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(id);
+            out.writeUTF(type.name());
+            out.writeUTF(tileRange.getLayerName());
+            out.writeUTF(tileRange.getGridSetId());
+            out.writeUTF(tileRange.getMimeType().getFormat());
+            out.writeInt(tileRange.getZoomStart());
+            out.writeInt(tileRange.getZoomStop());
+            for (int z = tileRange.getZoomStart(); z <= tileRange.getZoomStop(); z++) {
+                long[] bounds = tileRange.rangeBounds(z);
+                for (int i = 0; i < 4; i++) {
+                    out.writeLong(bounds[i]);
+                }
+            }
+            Map<String, String> parameters = tileRange.getParameters();
+            if (parameters == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(parameters.size());
+                for (Map.Entry<String, String> e : parameters.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+            }
+            Long parametersId = tileRange.getParametersId();
+            out.writeBoolean(parametersId != null);
+            out.writeLong(parametersId == null ? 0 : parametersId.longValue());
+            out.writeInt(threadCount);
+            out.writeBoolean(filterUpdate);
+            out.writeInt(metaTilingFactors[0]);
+            out.writeInt(metaTilingFactors[1]);
+            out.writeLong(watermark);
+            for (Long chunk : doneChunks) {
+                out.writeLong(chunk.longValue());
+            }
+            out.flush();
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        this.journal = out;
+    }
+
+    /**
+     * Reads a job journal and compacts it, to resume the job
+     */
+    static SeedJob resume(final File file) throws IOException {
+        final SeedJob job = read(file);
+
+        // compact the journal and keep it open for the resumed job
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        job.writeJournal(tmp);
+        job.closeJournal();
+        if (!file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file + " by " + tmp);
+        }
+        job.file = file;
+        job.journal = new DataOutputStream(new FileOutputStream(file, true));
+        return job;
+    }
+
+    /**
+     * Reads the journal of a failed job, which is not resumed but listed until canceled
+     */
+    static SeedJob readFailed(final File file) throws IOException {
+        SeedJob job = read(file);
+        job.file = file;
+        job.failed = true;
+        job.finished = true;
+        return job;
+    }
+
+    private static SeedJob read(final File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        final SeedJob job;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a seed job journal");
+            }
+            final long id = in.readLong();
+            final TYPE type = TYPE.valueOf(in.readUTF());
+            final String layerName = in.readUTF();
+            final String gridSetId = in.readUTF();
+            final MimeType mimeType;
+            try {
+                mimeType = MimeType.createFromFormat(in.readUTF());
+            } catch (MimeException e) {
+                throw (IOException) new IOException(e.getMessage()).initCause(e);
+            }
+            final int zoomStart = in.readInt();
+            final int zoomStop = in.readInt();
+            long[][] rangeBounds = new long[1 + zoomStop - zoomStart][];
+            for (int z = zoomStart; z <= zoomStop; z++) {
+                rangeBounds[z - zoomStart] = new long[] { in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong(), z };
+            }
+            Map<String, String> parameters = null;
+            final int numParameters = in.readInt();
+            if (numParameters >= 0) {
+                parameters = new HashMap<String, String>();
+                for (int i = 0; i < numParameters; i++) {
+                    parameters.put(in.readUTF(), in.readUTF());
+                }
+            }
+            final boolean hasParametersId = in.readBoolean();
+            final long parametersId = in.readLong();
+            final int threadCount = in.readInt();
+            final boolean filterUpdate = in.readBoolean();
+            final int[] metaTilingFactors = { in.readInt(), in.readInt() };
+
+            TileRange tileRange = new TileRange(layerName, gridSetId, zoomStart, zoomStop,
+                    rangeBounds, mimeType, parameters, hasParametersId ? Long
+                            .valueOf(parametersId) : null);
+            job = new SeedJob(id, type, tileRange, threadCount, filterUpdate,
+                    metaTilingFactors, true);
+            job.watermark = in.readLong();
+            while (true) {
+                long chunk;
+                try {
+                    chunk = in.readLong();
+                } catch (EOFException eof) {
+                    break;
+                }
+                job.chunkDone(chunk);
+            }
+        } finally {
+            in.close();
+        }
+        return job;
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.debug("Error closing " + file, e);
+            }
+            journal = null;
+        }
+    }
+
+    private void deleteJournal() {
+        if (file != null && file.exists() && !file.delete()) {
+            log.warn("Unable to delete the journal of seed job " + id + ": " + file);
+        }
+    }
+
+    /**
+     * @return the journal files of the jobs to resume found in the given directory
+     */
+    static List<File> findJournals(File directory) {
+        return findFiles(directory, FILE_EXTENSION);
+    }
+
+    /**
+     * @return the journal files of the failed jobs found in the given directory
+     */
+    static List<File> findFailedJournals(File directory) {
+        return findFiles(directory, FAILED_EXTENSION);
+    }
+
+    private static List<File> findFiles(File directory, String extension) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> journals = new ArrayList<File>();
+        for (File f : files) {
+            if (f.isFile() && f.getName().endsWith(extension)) {
+                journals.add(f);
+            }
+        }
+        return journals;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[job ").append(id).append(": ").append(
+                tileRange.getLayerName()).append(", ").append(type).append(", ").append(
+                getChunksDone()).append("/").append(getChunkCount()).append(" chunks]")
+                .toString();
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.geowebcache.seed;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -28,11 +29,14 @@ import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.filter.request.RequestFilter;
+import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.TileLayer;
-import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.TileRangeIterator;
+import org.geowebcache.storage.TileRangeVisitor;
+import org.geowebcache.util.GWCVars;
 
 class SeedTask extends GWCTask {
     private static Log log = LogFactory.getLog(org.geowebcache.seed.SeedTask.class);
@@ -55,6 +59,15 @@ class SeedTask extends GWCTask {
 
     private AtomicLong sharedFailureCounter;
 
+    private AdaptiveConcurrencyLimit concurrencyLimit;
+
+    private AdaptiveConcurrencyLimit backendLimit;
+
+    /**
+     * Tiles of the chunks this task skipped as they were done before the job was resumed
+     */
+    private long tilesDoneBeforeResume;
+
     /**
      * Constructs a SeedTask from a SeedRequest
      * 
@@ -112,10 +125,21 @@ class SeedTask extends GWCTask {
         final boolean tryCache = !reseed;
 
         checkInterrupted();
-        long[] gridLoc = trIter.nextMetaGridLocation(new long[3]);
-
-        long seedCalls = 0;
-        while (gridLoc != null && this.terminate == false) {
+        // each thread takes chunks of the range in turn and iterates them without locking
+        TileRangeIterator.Chunk chunk = nextChunk();
+        final long[] gridLoc = new long[3];
+        // tiles of the chunks finished by this thread
+        long tilesCompletedInChunks = 0;
+
+        while (chunk != null && this.terminate == false) {
+            if (chunk.nextMetaGridLocation(gridLoc) == null) {
+                tilesCompletedInChunks += chunk.getTilesProcessed();
+                if (getJob() != null) {
+                    getJob().chunkDone(chunk.getIndex());
+                }
+                chunk = nextChunk();
+                continue;
+            }
 
             checkInterrupted();
             Map<String, String> fullParameters = tr.getParameters();
@@ -123,11 +147,19 @@ class SeedTask extends GWCTask {
             ConveyorTile tile = new ConveyorTile(storageBroker, layerName, tr.getGridSetId(), gridLoc,
                     tr.getMimeType(), fullParameters, null, null);
 
-            for (int fetchAttempt = 0; fetchAttempt <= tileFailureRetryCount; fetchAttempt++) {
+            // skip the layer altogether if the whole metatile is there already
+            final boolean cached = tryCache
+                    && isMetaTileCached(tr, gridLoc, metaTilingFactorX, metaTilingFactorY);
+
+            for (int fetchAttempt = 0; !cached && fetchAttempt <= tileFailureRetryCount;
+                    fetchAttempt++) {
                 try {
                     checkInterrupted();
-                    tl.seedTile(tile, tryCache);
+                    seedTile(tile, tryCache);
                     break;// success, let it go
+                } catch (InterruptedException e) {
+                    // shutting down, not a seeding failure
+                    throw e;
                 } catch (Exception e) {
                     // if GWC_SEED_RETRY_COUNT was not set then none of the settings have effect, in
                     // order to keep backwards compatibility with the old behaviour
@@ -154,7 +186,7 @@ class SeedTask extends GWCTask {
                         if (tileFailureRetryWaitTime > 0) {
                             log.trace("Waiting " + tileFailureRetryWaitTime
                                     + " before trying again");
-                            Thread.sleep(tileFailureRetryCount);
+                            Thread.sleep(tileFailureRetryWaitTime);
                         }
                     } else {
                         log.info(logMsg
@@ -168,18 +200,18 @@ class SeedTask extends GWCTask {
                 log.trace(Thread.currentThread().getName() + " seeded " + Arrays.toString(gridLoc));
             }
 
-            // final long totalTilesCompleted = trIter.getTilesProcessed();
-            // note: computing the # of tiles processed by this thread instead of by the whole group
-            // also reduces thread contention as the trIter methods are synchronized and profiler
-            // shows 16 threads block on synchronization about 40% the time
-            final long tilesCompletedByThisThread = seedCalls * metaTilingFactorX
-                    * metaTilingFactorY;
+            // note: the # of tiles processed by this thread, counted per chunk, includes the
+            // ones skipped by a discontinuous tile range so that it adds up to tilesTotal
+            final long tilesCompletedByThisThread = tilesCompletedInChunks
+                    + chunk.getTilesProcessed() + tilesDoneBeforeResume;
 
             updateStatusInfo(tl, tilesCompletedByThisThread, START_TIME);
 
             checkInterrupted();
-            seedCalls++;
-            gridLoc = trIter.nextMetaGridLocation(gridLoc);
+        }
+        if (chunk == null) {
+            // the last chunks may have been skipped as done before a resume
+            updateStatusInfo(tl, tilesCompletedInChunks + tilesDoneBeforeResume, START_TIME);
         }
 
         if (this.terminate) {
@@ -198,6 +230,51 @@ class SeedTask extends GWCTask {
         super.state = GWCTask.STATE.DONE;
     }
 
+    /**
+     * @return the next chunk of the tile range not done before the job was resumed, if it was,
+     *         counting the tiles of the ones skipped in {@link #tilesDoneBeforeResume}
+     */
+    private TileRangeIterator.Chunk nextChunk() {
+        final SeedJob job = getJob();
+        TileRangeIterator.Chunk chunk = trIter.nextChunk();
+        while (chunk != null && job != null && job.isChunkDone(chunk.getIndex())) {
+            tilesDoneBeforeResume += chunk.getTileCount();
+            chunk = trIter.nextChunk();
+        }
+        return chunk;
+    }
+
+    /**
+     * Seeds a meta tile once allowed by the concurrency limits, if any, reporting them how long
+     * the backend took and whether it failed. Tiles produced without a backend request, e.g.
+     * found cached already, don't count as a sample.
+     */
+    private void seedTile(final ConveyorTile tile, final boolean tryCache)
+            throws GeoWebCacheException, IOException, InterruptedException {
+        if (concurrencyLimit != null) {
+            concurrencyLimit.acquire();
+        }
+        boolean success = false;
+        tile.setBackendLatency(-1);
+        try {
+            if (backendLimit != null) {
+                backendLimit.acquire();
+            }
+            try {
+                tl.seedTile(tile, tryCache);
+                success = true;
+            } finally {
+                if (backendLimit != null) {
+                    backendLimit.release(tile.getBackendLatency(), success);
+                }
+            }
+        } finally {
+            if (concurrencyLimit != null) {
+                concurrencyLimit.release(tile.getBackendLatency(), success);
+            }
+        }
+    }
+
     /**
      * helper for counting the number of tiles
      * 
@@ -233,6 +310,67 @@ class SeedTask extends GWCTask {
         return count;
     }
 
+    /**
+     * Checks with a single bulk storage lookup whether all the tiles of the metatile at
+     * {@code gridLoc} are cached already, saving the layer a full cache lookup for the metatile.
+     * <p>
+     * Only done for ranges without parameters and zoom levels whose cached tiles do not expire,
+     * otherwise the layer checks the cache itself.
+     * </p>
+     */
+    private boolean isMetaTileCached(final TileRange tr, final long[] gridLoc, final int metaX,
+            final int metaY) {
+        if (tr.getParameters() != null && !tr.getParameters().isEmpty()) {
+            return false;
+        }
+        final int z = (int) gridLoc[2];
+        final int expireCache = tl.getExpireCache(z);
+        if (expireCache == GWCVars.CACHE_DISABLE_CACHE || expireCache > 0) {
+            return false;
+        }
+        final GridSubset gridSubset = tl.getGridSubset(tr.getGridSetId());
+        if (gridSubset == null || !gridSubset.shouldCacheAtZoom(z)) {
+            return false;
+        }
+        final long[] coverage = gridSubset.getCoverage(z);
+        final long[] rangeBounds = tr.rangeBounds(z);
+        final long minx = Math.max(gridLoc[0], Math.max(coverage[0], rangeBounds[0]));
+        final long miny = Math.max(gridLoc[1], Math.max(coverage[1], rangeBounds[1]));
+        final long maxx = Math.min(gridLoc[0] + metaX - 1, Math.min(coverage[2], rangeBounds[2]));
+        final long maxy = Math.min(gridLoc[1] + metaY - 1, Math.min(coverage[3], rangeBounds[3]));
+
+        int expected = 0;
+        for (long y = miny; y <= maxy; y++) {
+            for (long x = minx; x <= maxx; x++) {
+                if (tr.contains(x, y, z)) {
+                    expected++;
+                }
+            }
+        }
+        if (expected == 0) {
+            return false;
+        }
+
+        final TileRange metaTileRange = new TileRange(tr.getLayerName(), tr.getGridSetId(), z, z,
+                new long[][] { { minx, miny, maxx, maxy, z } }, tr.getMimeType(),
+                (Map<String, String>) null, Long.valueOf(-1L));
+        final int[] found = new int[1];
+        try {
+            storageBroker.stat(metaTileRange, new TileRangeVisitor() {
+                public void visit(long x, long y, int z, long size) {
+                    if (tr.contains(x, y, z)) {
+                        found[0]++;
+                    }
+                }
+            });
+        } catch (StorageException e) {
+            log.debug("Unable to look up metatile " + Arrays.toString(gridLoc) + ": "
+                    + e.getMessage());
+            return false;
+        }
+        return found[0] == expected;
+    }
+
     /**
      * Helper method to report status of thread progress.
      * 
@@ -251,11 +389,11 @@ class SeedTask extends GWCTask {
         // estimated time of completion in seconds, use a moving average over the last
         this.timeSpent = (int) (System.currentTimeMillis() - start_time) / 1000;
 
+        // the rate only accounts for the tiles done since started, not before a resume
         int threadCount = sharedThreadCount.get();
-        long timeTotal = Math.round((double) timeSpent
-                * (((double) tilesTotal / threadCount) / (double) tilesCount));
-
-        this.timeRemaining = (int) (timeTotal - timeSpent);
+        long tilesSinceStart = Math.max(1, tilesCount - tilesDoneBeforeResume);
+        long tilesRemaining = Math.max(0, tilesTotal / threadCount - tilesCount);
+        this.timeRemaining = Math.round((double) timeSpent * tilesRemaining / tilesSinceStart);
     }
 
     /**
@@ -286,10 +424,22 @@ class SeedTask extends GWCTask {
         this.sharedFailureCounter = sharedFailureCounter;
     }
 
+    /**
+     * @param concurrencyLimit
+     *            limit of in flight meta tile requests shared by the tasks of this seed request,
+     *            or {@code null}
+     * @param backendLimit
+     *            limit of in flight requests shared by all the tasks seeding layers of the same
+     *            backend, or {@code null}
+     */
+    public void setConcurrencyLimits(AdaptiveConcurrencyLimit concurrencyLimit,
+            AdaptiveConcurrencyLimit backendLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+        this.backendLimit = backendLimit;
+    }
+
     @Override
     protected void dispose() {
-        if (tl instanceof WMSLayer) {
-            ((WMSLayer) tl).cleanUpThreadLocals();
-        }
+        // do nothing
     }
 }
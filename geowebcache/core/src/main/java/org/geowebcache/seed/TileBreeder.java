@@ -18,10 +18,13 @@
  */
 package org.geowebcache.seed;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -44,18 +47,24 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.seed.GWCTask.STATE;
 import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.TileRangeIterator;
 import org.geowebcache.util.GWCVars;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 
 /**
  * Class in charge of dispatching seed/truncate tasks.
@@ -74,6 +83,15 @@ import org.springframework.context.ApplicationContextAware;
  * shared by all the threads launched as a single thread group; so if the value is {@code 10} and
  * you launch a seed task with four threads, when {@code 10} failures are reached by all or any of
  * those four threads the four threads will abort the seeding task. The default is {@code 1000}.
+ * <li>{@code GWC_SEED_ADAPTIVE}: if {@code true}, the number of meta tiles a seed task group
+ * requests to the backend at the same time starts at {@code GWC_SEED_ADAPTIVE_MIN} and adapts to
+ * the backend latency and errors, up to the number of threads requested. Defaults to
+ * {@code false}, all the threads requesting meta tiles as fast as they can;
+ * <li>{@code GWC_SEED_ADAPTIVE_MIN}: the minimum number of concurrent backend requests of a seed
+ * task group in adaptive mode. Defaults to {@code 1};
+ * <li>{@code GWC_SEED_BACKEND_LIMIT}: the maximum number of concurrent requests all the running
+ * seed tasks send to the same backend (e.g. WMS URL), whatever their layer. Defaults to {@code 0},
+ * meaning no limit.
  * </ul>
  * These environment variables can be established by any of the following ways, in order of
  * precedence:
@@ -96,16 +114,29 @@ import org.springframework.context.ApplicationContextAware;
  * {@code export GWC_SEED_ABORT_LIMIT=2000; <your usual command to run GWC here>}
  * </ol>
  * </p>
+ * <p>
+ * When a {@link #setDefaultStorageFinder(DefaultStorageFinder) storage finder} is set, seed and
+ * truncate jobs are {@link SeedJob journaled} to the {@code seed_jobs} directory of the cache, and
+ * the ones interrupted by the last shut down are resumed once the application context is
+ * refreshed. Failed jobs are listed but not resumed.
+ * </p>
  * 
  * @author Gabriel Roldan, based on Marius Suta's and Arne Kepp's SeedRestlet
  */
-public class TileBreeder implements ApplicationContextAware {
+public class TileBreeder implements ApplicationContextAware, InitializingBean,
+        ApplicationListener {
     private static final String GWC_SEED_ABORT_LIMIT = "GWC_SEED_ABORT_LIMIT";
 
     private static final String GWC_SEED_RETRY_WAIT = "GWC_SEED_RETRY_WAIT";
 
     private static final String GWC_SEED_RETRY_COUNT = "GWC_SEED_RETRY_COUNT";
 
+    private static final String GWC_SEED_ADAPTIVE = "GWC_SEED_ADAPTIVE";
+
+    private static final String GWC_SEED_ADAPTIVE_MIN = "GWC_SEED_ADAPTIVE_MIN";
+
+    private static final String GWC_SEED_BACKEND_LIMIT = "GWC_SEED_BACKEND_LIMIT";
+
     private static Log log = LogFactory.getLog(TileBreeder.class);
 
     private ThreadPoolExecutor threadPool;
@@ -130,6 +161,44 @@ public class TileBreeder implements ApplicationContextAware {
      */
     private long totalFailuresBeforeAborting = 1000;
 
+    /**
+     * Whether seed task groups adapt their number of concurrent backend requests
+     */
+    private boolean adaptiveConcurrency = false;
+
+    /**
+     * Minimum number of concurrent backend requests of a seed task group in adaptive mode
+     */
+    private int adaptiveMinConcurrency = 1;
+
+    /**
+     * Maximum number of concurrent requests to the same backend shared by all seed tasks, 0 for
+     * no limit
+     */
+    private int backendConcurrencyLimit = 0;
+
+    /**
+     * Concurrency limits shared by the seed tasks using the same backend, by backend
+     */
+    private final Map<String, AdaptiveConcurrencyLimit> backendLimits =
+        new HashMap<String, AdaptiveConcurrencyLimit>();
+
+    private DefaultStorageFinder storageFinder;
+
+    /**
+     * Where the seed jobs are journaled, {@code null} if they aren't
+     */
+    private File jobsDirectory;
+
+    private final Map<Long, SeedJob> jobs = new TreeMap<Long, SeedJob>();
+
+    private final AtomicLong jobIds = new AtomicLong();
+
+    /**
+     * Jobs read from their journal on start up, to resume once the context is refreshed
+     */
+    private final List<SeedJob> jobsToResume = new ArrayList<SeedJob>();
+
     private Map<Long, SubmittedTask> currentPool = new TreeMap<Long, SubmittedTask>();
 
     private AtomicLong currentId = new AtomicLong();
@@ -158,14 +227,131 @@ public class TileBreeder implements ApplicationContextAware {
         String retryCount = GWCVars.findEnvVar(applicationContext, GWC_SEED_RETRY_COUNT);
         String retryWait = GWCVars.findEnvVar(applicationContext, GWC_SEED_RETRY_WAIT);
         String abortLimit = GWCVars.findEnvVar(applicationContext, GWC_SEED_ABORT_LIMIT);
+        String adaptive = GWCVars.findEnvVar(applicationContext, GWC_SEED_ADAPTIVE);
+        String adaptiveMin = GWCVars.findEnvVar(applicationContext, GWC_SEED_ADAPTIVE_MIN);
+        String backendLimit = GWCVars.findEnvVar(applicationContext, GWC_SEED_BACKEND_LIMIT);
 
         tileFailureRetryCount = (int) toLong(GWC_SEED_RETRY_COUNT, retryCount, 0);
         tileFailureRetryWaitTime = toLong(GWC_SEED_RETRY_WAIT, retryWait, 100);
         totalFailuresBeforeAborting = toLong(GWC_SEED_ABORT_LIMIT, abortLimit, 1000);
+        adaptiveConcurrency = Boolean.valueOf(adaptive).booleanValue();
+        adaptiveMinConcurrency = (int) toLong(GWC_SEED_ADAPTIVE_MIN, adaptiveMin, 1);
+        backendConcurrencyLimit = (int) toLong(GWC_SEED_BACKEND_LIMIT, backendLimit, 0);
 
         checkPositive(tileFailureRetryCount, GWC_SEED_RETRY_COUNT);
         checkPositive(tileFailureRetryWaitTime, GWC_SEED_RETRY_WAIT);
         checkPositive(totalFailuresBeforeAborting, GWC_SEED_ABORT_LIMIT);
+        checkPositive(adaptiveMinConcurrency, GWC_SEED_ADAPTIVE_MIN);
+        checkPositive(backendConcurrencyLimit, GWC_SEED_BACKEND_LIMIT);
+    }
+
+    /**
+     * Reads the journals of the seed jobs that didn't finish before the last shut down, the ones
+     * to resume are started on {@link #onApplicationEvent(ApplicationEvent) context refresh}
+     * 
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() throws Exception {
+        if (storageFinder == null) {
+            return;
+        }
+        File directory = new File(storageFinder.getDefaultPath(), "seed_jobs");
+        if (!directory.exists() && !directory.mkdirs()) {
+            log.error("Unable to create the seed jobs directory " + directory
+                    + ", seed jobs won't be resumable");
+            return;
+        }
+        jobsDirectory = directory;
+        loadJobs();
+    }
+
+    /**
+     * Starts the seed jobs to resume once the application context is refreshed, rather than
+     * while it's being initialized
+     * 
+     * @see org.springframework.context.ApplicationListener#onApplicationEvent(org.springframework.context.ApplicationEvent)
+     */
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextRefreshedEvent) {
+            resumeJobs();
+        }
+    }
+
+    private void loadJobs() {
+        for (File file : SeedJob.findFailedJournals(jobsDirectory)) {
+            try {
+                registerJob(SeedJob.readFailed(file));
+            } catch (IOException e) {
+                log.error("Unable to read the failed seed job journaled in " + file + ": "
+                        + e.getMessage());
+            }
+        }
+        for (File file : SeedJob.findJournals(jobsDirectory)) {
+            try {
+                SeedJob job = SeedJob.resume(file);
+                registerJob(job);
+                synchronized (jobsToResume) {
+                    jobsToResume.add(job);
+                }
+            } catch (IOException e) {
+                log.error("Unable to resume the seed job journaled in " + file + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private void registerJob(SeedJob job) {
+        synchronized (jobIds) {
+            if (jobIds.get() < job.getId()) {
+                jobIds.set(job.getId());
+            }
+        }
+        synchronized (jobs) {
+            jobs.put(Long.valueOf(job.getId()), job);
+        }
+    }
+
+    private void resumeJobs() {
+        final List<SeedJob> toResume;
+        synchronized (jobsToResume) {
+            toResume = new ArrayList<SeedJob>(jobsToResume);
+            jobsToResume.clear();
+        }
+        for (SeedJob job : toResume) {
+            if (job.isCanceled()) {
+                continue;
+            }
+            final TileRange tr = job.getTileRange();
+            final TileLayer tl;
+            try {
+                tl = findTileLayer(tr.getLayerName());
+            } catch (GeoWebCacheException e) {
+                log.warn("Can't resume seed job " + job.getId() + ", its journal is kept until "
+                        + "the layer is available again or the job is canceled: "
+                        + e.getMessage());
+                job.suspend();
+                continue;
+            }
+            try {
+                GWCTask[] tasks;
+                if (Arrays.equals(job.getMetaTilingFactors(), tl.getMetaTilingFactors())) {
+                    tasks = createTasks(tr, tl, job.getType(), job.getThreadCount(), job
+                            .isFilterUpdate(), job);
+                    log.info("Resuming seed job " + job);
+                } else {
+                    // the journaled chunks no longer match the layer meta tiles
+                    log.info("Meta tiling of layer " + tl.getName() + " changed, restarting "
+                            + job + " from scratch");
+                    cancelJob(job.getId());
+                    tasks = createTasks(tr, tl, job.getType(), job.getThreadCount(), job
+                            .isFilterUpdate());
+                }
+                dispatchTasks(tasks);
+            } catch (GeoWebCacheException e) {
+                log.error("Unable to resume seed job " + job, e);
+                job.suspend();
+            }
+        }
     }
 
     @SuppressWarnings("serial")
@@ -219,12 +405,40 @@ public class TileBreeder implements ApplicationContextAware {
             threadCount = 1;
         }
 
-        TileRangeIterator trIter = new TileRangeIterator(tr, tl.getMetaTilingFactors());
+        SeedJob job = null;
+        if (jobsDirectory != null && SeedJob.isJournaled(tr)) {
+            job = new SeedJob(jobIds.incrementAndGet(), type, tr, threadCount, filterUpdate, tl
+                    .getMetaTilingFactors());
+            try {
+                job.createJournal(jobsDirectory);
+            } catch (IOException e) {
+                log.warn("Unable to journal seed job " + job.getId() + " in " + jobsDirectory
+                        + ", it won't be resumable: " + e.getMessage());
+            }
+        }
+        return createTasks(tr, tl, type, threadCount, filterUpdate, job);
+    }
+
+    private GWCTask[] createTasks(TileRange tr, TileLayer tl, GWCTask.TYPE type,
+            int threadCount, boolean filterUpdate, SeedJob job) throws GeoWebCacheException {
+
+        final int[] metaTilingFactors = job == null ? tl.getMetaTilingFactors() : job
+                .getMetaTilingFactors();
+        TileRangeIterator trIter = new TileRangeIterator(tr, metaTilingFactors);
 
         GWCTask[] tasks = new GWCTask[threadCount];
 
         AtomicLong failureCounter = new AtomicLong();
         AtomicInteger sharedThreadCount = new AtomicInteger();
+        AdaptiveConcurrencyLimit concurrencyLimit = null;
+        AdaptiveConcurrencyLimit backendLimit = null;
+        if (type != TYPE.TRUNCATE) {
+            if (adaptiveConcurrency && threadCount > 1) {
+                concurrencyLimit = new AdaptiveConcurrencyLimit(tl.getName() + " seeding",
+                        Math.min(adaptiveMinConcurrency, threadCount), threadCount);
+            }
+            backendLimit = getBackendLimit(tl);
+        }
         for (int i = 0; i < threadCount; i++) {
             if (type == TYPE.TRUNCATE) {
                 tasks[i] = createTruncateTask(trIter, tl, filterUpdate);
@@ -232,14 +446,54 @@ public class TileBreeder implements ApplicationContextAware {
                 SeedTask task = (SeedTask) createSeedTask(type, trIter, tl, filterUpdate);
                 task.setFailurePolicy(tileFailureRetryCount, tileFailureRetryWaitTime,
                         totalFailuresBeforeAborting, failureCounter);
+                task.setConcurrencyLimits(concurrencyLimit, backendLimit);
                 tasks[i] = task;
             }
             tasks[i].setThreadInfo(sharedThreadCount, i);
         }
 
+        if (job != null) {
+            if (type == TYPE.TRUNCATE) {
+                job.setChunkCount(1 + tr.getZoomStop() - tr.getZoomStart());
+            } else {
+                job.setChunkCount(trIter.getChunkCount());
+            }
+            for (GWCTask task : tasks) {
+                job.addTask(task);
+            }
+            synchronized (jobs) {
+                jobs.put(Long.valueOf(job.getId()), job);
+            }
+        }
         return tasks;
     }
 
+    /**
+     * @return the concurrency limit shared by the seed tasks of all the layers using the same
+     *         backend as {@code tl}, or {@code null} if there's no such limit
+     */
+    private AdaptiveConcurrencyLimit getBackendLimit(final TileLayer tl) {
+        if (backendConcurrencyLimit <= 0) {
+            return null;
+        }
+        String backend = tl.getName();
+        if (tl instanceof WMSLayer) {
+            String[] wmsUrl = ((WMSLayer) tl).getWMSurl();
+            if (wmsUrl != null && wmsUrl.length > 0) {
+                backend = Arrays.toString(wmsUrl);
+            }
+        }
+        synchronized (backendLimits) {
+            AdaptiveConcurrencyLimit limit = backendLimits.get(backend);
+            if (limit == null) {
+                limit = new AdaptiveConcurrencyLimit(backend, backendConcurrencyLimit,
+                        backendConcurrencyLimit);
+                backendLimits.put(backend, limit);
+            }
+            return limit;
+        }
+    }
+
     public void dispatchTasks(GWCTask[] tasks) {
         lock.writeLock().lock();
         try {
@@ -487,6 +741,43 @@ public class TileBreeder implements ApplicationContextAware {
         return true;
     }
 
+    /**
+     * @return the journaled seed and truncate jobs not yet finished, including the ones resumed
+     *         after a restart, and the failed ones until canceled
+     */
+    public List<SeedJob> getJobs() {
+        synchronized (jobs) {
+            for (Iterator<SeedJob> it = jobs.values().iterator(); it.hasNext();) {
+                SeedJob job = it.next();
+                if ((job.isFinished() && !job.isFailed()) || job.isCanceled()) {
+                    it.remove();
+                }
+            }
+            return new ArrayList<SeedJob>(jobs.values());
+        }
+    }
+
+    /**
+     * Terminates the tasks of a journaled job and discards its journal so that it's not resumed
+     * 
+     * @return {@code false} if there's no such job
+     */
+    public boolean cancelJob(final long jobId) {
+        SeedJob job;
+        synchronized (jobs) {
+            job = jobs.remove(Long.valueOf(jobId));
+        }
+        if (job == null) {
+            return false;
+        }
+        job.cancel();
+        return true;
+    }
+
+    public void setDefaultStorageFinder(DefaultStorageFinder storageFinder) {
+        this.storageFinder = storageFinder;
+    }
+
     public Iterable<TileLayer> getLayers() {
         return this.layerDispatcher.getLayerList();
     }
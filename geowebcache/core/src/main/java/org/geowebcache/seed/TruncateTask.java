@@ -25,6 +25,7 @@ import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.filter.request.RequestFilter;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileRange;
 
 class TruncateTask extends GWCTask {
@@ -53,7 +54,13 @@ class TruncateTask extends GWCTask {
         super.state = GWCTask.STATE.RUNNING;
         checkInterrupted();
         try {
-            storageBroker.delete(tr);
+            if (getJob() == null) {
+                storageBroker.delete(tr);
+            } else {
+                truncateByZoomLevel();
+            }
+        } catch (InterruptedException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             super.state = GWCTask.STATE.DEAD;
@@ -71,6 +78,26 @@ class TruncateTask extends GWCTask {
         }
     }
 
+    /**
+     * Truncates one zoom level at a time, recording each one in the job journal so that the ones
+     * already truncated are skipped if the job is resumed
+     */
+    private void truncateByZoomLevel() throws StorageException, InterruptedException {
+        final SeedJob job = getJob();
+        final int zoomStart = tr.getZoomStart();
+        for (int z = zoomStart; z <= tr.getZoomStop() && !terminate; z++) {
+            checkInterrupted();
+            if (job.isChunkDone(z - zoomStart)) {
+                continue;
+            }
+            TileRange levelRange = new TileRange(tr.getLayerName(), tr.getGridSetId(), z, z,
+                    new long[][] { tr.rangeBounds(z) }, tr.getMimeType(), tr.getParameters(), tr
+                            .getParametersId());
+            storageBroker.delete(levelRange);
+            job.chunkDone(z - zoomStart);
+        }
+    }
+
     /**
      * Updates any request filters
      */
@@ -0,0 +1,399 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.TileLayerDispatcherListener;
+
+/**
+ * Keeps the encoded capabilities documents of a service, so that they're generated only once
+ * until the layers or gridsets configuration changes.
+ * <p>
+ * Documents are keyed by whatever makes them differ besides the configuration, usually the base
+ * URL and vendor specific flags of the request. As some of it comes from the clients, only the
+ * {@code maxDocuments} most recently used ones are kept. Every change notified by the
+ * {@link TileLayerDispatcher} drops all the documents; a document generated while the
+ * configuration changed is served but not cached, see {@link #getGeneration()}.
+ * </p>
+ * <p>
+ * Documents are {@link #write generated} in memory as long as they fit in the {@code maxBytes}
+ * budget of the cache, and spilled straight to the response past it, so that serving a catalog
+ * too big to cache needs no more memory than a small one.
+ * </p>
+ * <p>
+ * Documents that fit are served with an {@code ETag}, answering {@code If-None-Match} requests
+ * with a {@code 304}, and gzip encoded to the clients accepting it, the compressed version being
+ * computed once too. That's the case of the response that generates the document as well as of
+ * the cached ones. Documents too big to cache are streamed as generated, without {@code ETag}
+ * nor compression.
+ * </p>
+ */
+public class CapabilitiesCache implements TileLayerDispatcherListener {
+
+    private static final Log log = LogFactory.getLog(CapabilitiesCache.class);
+
+    public static final int DEFAULT_MAX_DOCUMENTS = 32;
+
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Generates a document, see {@link CapabilitiesCache#write}
+     */
+    public interface Generator {
+        void write(PrintWriter writer);
+    }
+
+    private final Map<String, Document> documents;
+
+    private final int maxDocuments;
+
+    private final int maxBytes;
+
+    private long bytes;
+
+    private long generation;
+
+    public CapabilitiesCache(final TileLayerDispatcher tld) {
+        this(tld, DEFAULT_MAX_DOCUMENTS, DEFAULT_MAX_BYTES);
+    }
+
+    public CapabilitiesCache(final TileLayerDispatcher tld, final int maxDocuments) {
+        this(tld, maxDocuments, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxDocuments
+     *            how many documents to keep at most
+     * @param maxBytes
+     *            how many bytes the documents can take at most, bigger ones aren't cached
+     */
+    public CapabilitiesCache(final TileLayerDispatcher tld, final int maxDocuments,
+            final int maxBytes) {
+        this.documents = new LinkedHashMap<String, Document>(16, 0.75f, true);
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+        if (tld != null) {
+            tld.addListener(this);
+        }
+    }
+
+    /**
+     * @return the cached document, or {@code null} if it needs to be generated
+     */
+    public synchronized Document get(final String key) {
+        return documents.get(key);
+    }
+
+    /**
+     * @return the configuration generation to {@link #put} a document generated from now on with
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a document, unless the configuration changed since the given generation
+     *
+     * @param generation
+     *            the value of {@link #getGeneration()} before the document was generated
+     * @return the document to serve
+     */
+    public Document put(final String key, final long generation, final byte[] data,
+            final String contentType) {
+        final Document document = new Document(data, contentType);
+        synchronized (this) {
+            if (generation == this.generation && data.length <= maxBytes) {
+                Document previous = documents.put(key, document);
+                if (previous != null) {
+                    bytes -= previous.getLength();
+                }
+                bytes += data.length;
+                // drop the least recently used ones
+                Iterator<Document> eldest = documents.values().iterator();
+                while (documents.size() > maxDocuments || bytes > maxBytes) {
+                    bytes -= eldest.next().getLength();
+                    eldest.remove();
+                }
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Writes the cached document, or generates and caches it if it fits, streaming it straight
+     * to the response otherwise
+     *
+     * @return the number of bytes written
+     */
+    public int write(final String key, final HttpServletRequest request,
+            final HttpServletResponse response, final String contentType,
+            final Generator generator) throws IOException {
+
+        Document document = get(key);
+        if (document != null) {
+            return document.writeTo(request, response);
+        }
+        final long generation = getGeneration();
+        SpillingOutputStream out = new SpillingOutputStream(response, contentType, maxBytes);
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out,
+                "UTF-8")));
+        generator.write(writer);
+        writer.flush();
+        if (writer.checkError()) {
+            throw new IOException("Error writing the capabilities document");
+        }
+        byte[] data = out.getBuffered();
+        if (data == null) {
+            // too big to cache, already streamed
+            return out.getCount();
+        }
+        // served as if it was cached already, even if it's not because the configuration changed
+        return put(key, generation, data, contentType).writeTo(request, response);
+    }
+
+    /**
+     * Drops all the cached documents
+     */
+    public synchronized void invalidate() {
+        generation++;
+        if (documents.size() > 0 && log.isDebugEnabled()) {
+            log.debug("Dropping " + documents.size() + " cached capabilities documents");
+        }
+        documents.clear();
+        bytes = 0;
+    }
+
+    public void layerAdded(String layerName) {
+        invalidate();
+    }
+
+    public void layerModified(String layerName) {
+        invalidate();
+    }
+
+    public void layerRemoved(String layerName) {
+        invalidate();
+    }
+
+    public void gridSetAdded(String gridSetName) {
+        invalidate();
+    }
+
+    public void gridSetRemoved(String gridSetName) {
+        invalidate();
+    }
+
+    public void configurationReloaded() {
+        invalidate();
+    }
+
+    /**
+     * Keeps what's written in memory until it exceeds the maximum size, then writes it, and
+     * anything written afterwards, to the response
+     */
+    private static class SpillingOutputStream extends OutputStream {
+
+        private final HttpServletResponse response;
+
+        private final String contentType;
+
+        private final int maxSize;
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private OutputStream out;
+
+        private int count;
+
+        SpillingOutputStream(final HttpServletResponse response, final String contentType,
+                final int maxSize) {
+            this.response = response;
+            this.contentType = contentType;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+            spill();
+            if (out == null) {
+                buffer.write(b);
+            } else {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            spill();
+            if (out == null) {
+                buffer.write(b, off, len);
+            } else {
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        private void spill() throws IOException {
+            if (out == null && count > maxSize) {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType(contentType);
+                response.setCharacterEncoding("UTF-8");
+                out = response.getOutputStream();
+                buffer.writeTo(out);
+                buffer = null;
+            }
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the whole document, or {@code null} if it was too big and written to the
+         *         response
+         */
+        byte[] getBuffered() {
+            return buffer == null ? null : buffer.toByteArray();
+        }
+    }
+
+    /**
+     * An encoded capabilities document
+     */
+    public static final class Document {
+
+        private final byte[] data;
+
+        private final String contentType;
+
+        private final String eTag;
+
+        private volatile byte[] gzipped;
+
+        Document(final byte[] data, final String contentType) {
+            this.data = data;
+            this.contentType = contentType;
+            this.eTag = "\"" + digest(data) + "\"";
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public int getLength() {
+            return data.length;
+        }
+
+        /**
+         * Writes the document to the response, or just a {@code 304} if the client has it already
+         *
+         * @return the number of bytes written
+         */
+        public int writeTo(final HttpServletRequest request, final HttpServletResponse response)
+                throws IOException {
+            response.setHeader("ETag", eTag);
+            response.setHeader("Vary", "Accept-Encoding");
+            if (matches(request.getHeader("If-None-Match"))) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return 0;
+            }
+
+            byte[] content = data;
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0) {
+                content = getGzipped();
+                response.setHeader("Content-Encoding", "gzip");
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            response.setCharacterEncoding("UTF-8");
+            response.setContentLength(content.length);
+
+            OutputStream os = response.getOutputStream();
+            os.write(content);
+            os.flush();
+            return content.length;
+        }
+
+        private boolean matches(final String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if ("*".equals(tag) || eTag.equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private byte[] getGzipped() throws IOException {
+            byte[] compressed = gzipped;
+            if (compressed == null) {
+                // racing threads would compute the same bytes, no need to lock
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+                GZIPOutputStream gzip = new GZIPOutputStream(out);
+                gzip.write(data);
+                gzip.close();
+                compressed = out.toByteArray();
+                gzipped = compressed;
+            }
+            return compressed;
+        }
+
+        private static String digest(final byte[] data) {
+            MessageDigest md5;
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            byte[] digest = md5.digest(data);
+            StringBuilder sb = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -20,10 +20,13 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.util.Date;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.Conveyor;
 import org.geowebcache.conveyor.ConveyorTile;
@@ -140,6 +143,46 @@ public abstract class Service {
             // Do nothing...
         }
     }
+
+    /**
+     * Writes a tile generated by the service and cached, answering with a {@code 304} if the
+     * {@code If-Modified-Since} or {@code If-None-Match} headers of the request show the client has
+     * it already, as the dispatcher does for the tiles of the layers
+     * 
+     * @param lastModified
+     *            when the tile was generated
+     */
+    protected static void writeCachedTileResponse(ConveyorTile conv, long lastModified,
+            RuntimeStats stats, String mimeTypeOverride) {
+        final HttpServletRequest request = conv.servletReq;
+        final HttpServletResponse response = conv.servletResp;
+        final TileLayer layer = conv.getLayer();
+
+        response.setHeader("Last-Modified", DateUtil.formatDate(new Date(lastModified)));
+        boolean notModified = false;
+        String ifModSinceHeader = request.getHeader("If-Modified-Since");
+        if (ifModSinceHeader != null && ifModSinceHeader.length() > 0) {
+            try {
+                // the HTTP header has second precision
+                long ifModSinceSeconds = DateUtil.parseDate(ifModSinceHeader).getTime() / 1000;
+                notModified = ifModSinceSeconds >= lastModified / 1000;
+            } catch (DateParseException e) {
+                // send the whole tile
+            }
+        }
+        if (!notModified && layer.useETags()) {
+            String hexTag = Long.toHexString(lastModified);
+            notModified = hexTag.equals(request.getHeader("If-None-Match"));
+            response.setHeader("ETag", hexTag);
+        }
+
+        if (notModified) {
+            layer.setExpirationHeader(response, (int) conv.getTileIndex()[2]);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        writeTileResponse(conv, true, stats, mimeTypeOverride);
+    }
     
     
 }
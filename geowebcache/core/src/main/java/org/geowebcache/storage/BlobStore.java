@@ -40,8 +40,21 @@ public interface BlobStore {
 
     public boolean delete(TileObject obj) throws StorageException;
 
+    /**
+     * Deletes all the stored tiles in the range, notifying the listeners in batches through
+     * {@link BlobStoreListener#tilesDeleted} rather than once per tile where possible
+     */
     public boolean delete(TileRange obj) throws StorageException;
 
+    /**
+     * Looks up which tiles of the range are stored, without reading them
+     * 
+     * @param visitor
+     *            receives the coordinates and size of each stored tile in the range
+     * @return the number of stored tiles found
+     */
+    public long stat(TileRange obj, TileRangeVisitor visitor) throws StorageException;
+
     /**
      * Retrieve a blob from storage. Calls setBlob() on passed object.
      * 
@@ -11,6 +11,14 @@ public interface BlobStoreListener {
     void tileUpdated(String layerName, String gridSetId, String blobFormat, Long parametersId,
             long x, long y, int z, long blobSize, long oldSize);
 
+    /**
+     * Notifies the deletion of a batch of tiles of the same tile set and zoom level, as done by
+     * bulk deletes such as {@link BlobStore#delete(TileRange)}. The arrays hold the coordinates
+     * and size of each deleted tile and are not modified afterwards.
+     */
+    void tilesDeleted(String layerName, String gridSetId, String blobFormat, Long parametersId,
+            int z, long[] x, long[] y, long[] blobSizes);
+
     void layerDeleted(String layerName);
 
     void layerRenamed(String oldLayerName, String newLayerName);
@@ -52,6 +52,17 @@ public final class BlobStoreListenerList {
         }
     }
 
+    public void sendTilesDeleted(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, int z, long[] x, long[] y, long[] lengths) {
+
+        if (listeners.size() > 0 && x.length > 0) {
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).tilesDeleted(layerName, gridSetId, blobFormat, parametersId, z,
+                        x, y, lengths);
+            }
+        }
+    }
+
     public void sendTileDeleted(final TileObject stObj) {
         if (listeners.size() > 0) {
 
@@ -0,0 +1,525 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+
+/**
+ * Thread safe, size bounded, in-memory LRU cache of tiles the {@link StorageBroker} consults
+ * before going to the {@link BlobStore}.
+ * <p>
+ * Tiles are keyed on layer/gridset/xyz/format/parametersId and the cache is split in a number of
+ * independently locked segments, each one being an access ordered map bounded both in number of
+ * entries and total bytes. The cache registers itself as a {@link BlobStoreListener} so that
+ * stored, updated and deleted tiles, as well as deleted or renamed layers and gridsets, are
+ * evicted as soon as the blob store reports the change.
+ * </p>
+ * <p>
+ * To avoid a reader caching a tile it loaded from the blob store right before a concurrent
+ * update, callers get a {@link #stamp(TileObject) stamp} before hitting the blob store and hand
+ * it back to {@link #put(TileObject, long)}, which will refuse to cache the tile if it has been
+ * invalidated in the meantime.
+ * </p>
+ */
+public class MemoryTileCache implements BlobStoreListener {
+
+    private static Log log = LogFactory.getLog(MemoryTileCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_ENTRIES = 16 * 1024;
+
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Smaller caches use less segments, so that a segment can still hold a few big tiles
+     */
+    private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+
+    private static final int NUM_STAMPS = 1024;
+
+    private final long maxBytes;
+
+    private final int maxEntries;
+
+    private final Segment[] segments;
+
+    /**
+     * Invalidation counters for single tiles, striped on the key hash
+     */
+    private final AtomicLongArray stamps = new AtomicLongArray(NUM_STAMPS);
+
+    /**
+     * Invalidation counter for operations affecting more than one tile
+     */
+    private final AtomicLong epoch = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MemoryTileCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxBytes
+     *            maximum number of bytes of tile contents to keep in memory
+     * @param maxEntries
+     *            maximum number of tiles to keep in memory
+     */
+    public MemoryTileCache(final long maxBytes, final int maxEntries) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes shall be a positive number: " + maxBytes);
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries shall be a positive number: "
+                    + maxEntries);
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+
+        final long maxSegments = Math.min(Math.min(MAX_SEGMENTS, maxEntries), maxBytes
+                / MIN_SEGMENT_BYTES);
+        int numSegments = 1;
+        while (numSegments * 2 <= maxSegments) {
+            numSegments *= 2;
+        }
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(Math.max(1, maxBytes / numSegments), maxEntries
+                    / numSegments);
+        }
+        log.info("In memory tile cache enabled, max " + maxBytes + " bytes, max " + maxEntries
+                + " tiles");
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Looks up the tile in memory and, if found, sets its blob and creation time
+     *
+     * @return {@code true} if the tile was found in the cache
+     */
+    public boolean get(final TileObject tile) {
+        final TileKey key = new TileKey(tile);
+        final Segment segment = segmentFor(key);
+        final CachedTile cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        tile.setBlob(new ByteArrayResource(cached.data));
+        tile.setCreated(cached.created);
+        return true;
+    }
+
+    /**
+     * Returns the invalidation stamp for the given tile, to be obtained before loading it from the
+     * blob store and passed on to {@link #put(TileObject, long)}
+     */
+    public long stamp(final TileObject tile) {
+        return currentStamp(new TileKey(tile));
+    }
+
+    /**
+     * Caches the tile contents, unless the tile was invalidated after {@code stamp} was obtained
+     * or it is too big to be cached. If the tile gets cached its blob is replaced by the in-memory
+     * copy, so that the caller does not need to read it again from the blob store.
+     *
+     * @return {@code true} if the tile was cached
+     */
+    public boolean put(final TileObject tile, final long stamp) throws StorageException {
+        final Resource blob = tile.getBlob();
+        if (blob == null) {
+            return false;
+        }
+        final TileKey key = new TileKey(tile);
+        final Segment segment = segmentFor(key);
+        final long size = blob.getSize();
+        if (size <= 0 || size > segment.maxBytes) {
+            return false;
+        }
+        final byte[] data;
+        try {
+            data = read(blob, (int) size);
+        } catch (IOException e) {
+            throw new StorageException("Unable to read tile contents: " + e.getMessage());
+        }
+        final CachedTile cached = new CachedTile(data, tile.getCreated());
+
+        int evicted = 0;
+        synchronized (segment) {
+            if (currentStamp(key) != stamp) {
+                return false;
+            }
+            CachedTile previous = segment.put(key, cached);
+            if (previous != null) {
+                segment.bytes -= previous.data.length;
+            }
+            segment.bytes += data.length;
+            Iterator<CachedTile> eldest = segment.values().iterator();
+            while (segment.bytes > segment.maxBytes || segment.size() > segment.maxEntries) {
+                CachedTile removed = eldest.next();
+                eldest.remove();
+                segment.bytes -= removed.data.length;
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            evictions.addAndGet(evicted);
+        }
+        tile.setBlob(new ByteArrayResource(data));
+        return true;
+    }
+
+    /**
+     * Evicts all the cached tiles contained in the given range
+     */
+    public void invalidate(final TileRange range) {
+        final String format = range.getMimeType() == null ? null : range.getMimeType()
+                .getFormat();
+        final Long parametersId = range.getParametersId();
+        invalidateAll(new KeyFilter() {
+            public boolean accept(TileKey key) {
+                return key.layerName.equals(range.getLayerName())
+                        && key.gridSetId.equals(range.getGridSetId())
+                        && (format == null || format.equals(key.format))
+                        && (parametersId == null || parametersId.longValue() == key.parametersId)
+                        && key.z >= range.getZoomStart() && key.z <= range.getZoomStop()
+                        && range.contains(key.x, key.y, (int) key.z);
+            }
+        });
+    }
+
+    /**
+     * Evicts all the cached tiles
+     */
+    public void clear() {
+        invalidateAll(new KeyFilter() {
+            public boolean accept(TileKey key) {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return number of tiles currently cached
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return number of bytes currently cached
+     */
+    public long storageSize() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public String toString() {
+        return "MemoryTileCache[tiles: " + size() + "/" + maxEntries + ", bytes: " + storageSize()
+                + "/" + maxBytes + ", hits: " + hits.get() + ", misses: " + misses.get()
+                + ", evictions: " + evictions.get() + "]";
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStoreListener#tileStored
+     */
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize) {
+        invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId, x, y, z));
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStoreListener#tileDeleted
+     */
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize) {
+        invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId, x, y, z));
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStoreListener#tilesDeleted
+     */
+    public void tilesDeleted(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, int z, long[] x, long[] y, long[] blobSizes) {
+        for (int i = 0; i < x.length; i++) {
+            invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId, x[i], y[i], z));
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStoreListener#tileUpdated
+     */
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId, x, y, z));
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStoreListener#layerDeleted(java.lang.String)
+     */
+    public void layerDeleted(final String layerName) {
+        invalidateAll(new KeyFilter() {
+            public boolean accept(TileKey key) {
+                return key.layerName.equals(layerName);
+            }
+        });
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStoreListener#layerRenamed(java.lang.String,
+     *      java.lang.String)
+     */
+    public void layerRenamed(final String oldLayerName, final String newLayerName) {
+        invalidateAll(new KeyFilter() {
+            public boolean accept(TileKey key) {
+                return key.layerName.equals(oldLayerName) || key.layerName.equals(newLayerName);
+            }
+        });
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStoreListener#gridSubsetDeleted(java.lang.String,
+     *      java.lang.String)
+     */
+    public void gridSubsetDeleted(final String layerName, final String gridSetId) {
+        invalidateAll(new KeyFilter() {
+            public boolean accept(TileKey key) {
+                return key.layerName.equals(layerName) && key.gridSetId.equals(gridSetId);
+            }
+        });
+    }
+
+    private void invalidate(final TileKey key) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            stamps.incrementAndGet(stampIndex(key));
+            CachedTile removed = segment.remove(key);
+            if (removed != null) {
+                segment.bytes -= removed.data.length;
+            }
+        }
+    }
+
+    private void invalidateAll(final KeyFilter filter) {
+        epoch.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (Iterator<Map.Entry<TileKey, CachedTile>> it = segment.entrySet().iterator(); it
+                        .hasNext();) {
+                    Map.Entry<TileKey, CachedTile> entry = it.next();
+                    if (filter.accept(entry.getKey())) {
+                        segment.bytes -= entry.getValue().data.length;
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Both counters only grow, so their sum changes whenever any of them does
+     */
+    private long currentStamp(final TileKey key) {
+        return epoch.get() + stamps.get(stampIndex(key));
+    }
+
+    private int stampIndex(final TileKey key) {
+        return key.hash & (NUM_STAMPS - 1);
+    }
+
+    private Segment segmentFor(final TileKey key) {
+        // segments.length is a power of two, spread the hash bits before masking
+        int h = key.hash;
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static byte[] read(final Resource blob, final int size) throws IOException {
+        if (blob instanceof ByteArrayResource) {
+            byte[] contents = ((ByteArrayResource) blob).getContents();
+            if (contents != null && contents.length == size) {
+                // don't share the array with the caller, it may be reused
+                byte[] data = new byte[size];
+                System.arraycopy(contents, 0, data, 0, size);
+                return data;
+            }
+        }
+        byte[] data = new byte[size];
+        InputStream in = blob.getInputStream();
+        try {
+            new DataInputStream(in).readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static interface KeyFilter {
+        boolean accept(TileKey key);
+    }
+
+    private static final class CachedTile {
+        final byte[] data;
+
+        final long created;
+
+        CachedTile(byte[] data, long created) {
+            this.data = data;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Access ordered map holding a share of the cache, all access shall be synchronized on the
+     * segment itself
+     */
+    private static final class Segment extends LinkedHashMap<TileKey, CachedTile> {
+
+        private static final long serialVersionUID = 1L;
+
+        final long maxBytes;
+
+        final int maxEntries;
+
+        long bytes;
+
+        Segment(long maxBytes, int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+            this.maxEntries = maxEntries;
+        }
+    }
+
+    private static final class TileKey {
+        final String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final long parametersId;
+
+        final long x;
+
+        final long y;
+
+        final long z;
+
+        final int hash;
+
+        TileKey(TileObject tile) {
+            this(tile.getLayerName(), tile.getGridSetId(), tile.getBlobFormat(), tile
+                    .getParametersId(), tile.getXYZ()[0], tile.getXYZ()[1], tile.getXYZ()[2]);
+        }
+
+        TileKey(String layerName, String gridSetId, String format, Long parametersId, long x,
+                long y, long z) {
+            this(layerName, gridSetId, format, parametersId == null ? -1L : parametersId
+                    .longValue(), x, y, z);
+        }
+
+        TileKey(String layerName, String gridSetId, String format, long parametersId, long x,
+                long y, long z) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.format = format;
+            this.parametersId = parametersId;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            int h = 17;
+            h = 31 * h + layerName.hashCode();
+            h = 31 * h + gridSetId.hashCode();
+            h = 31 * h + (format == null ? 0 : format.hashCode());
+            h = 31 * h + (int) (parametersId ^ (parametersId >>> 32));
+            h = 31 * h + (int) (x ^ (x >>> 32));
+            h = 31 * h + (int) (y ^ (y >>> 32));
+            h = 31 * h + (int) z;
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey k = (TileKey) o;
+            return hash == k.hash && x == k.x && y == k.y && z == k.z
+                    && parametersId == k.parametersId && layerName.equals(k.layerName)
+                    && gridSetId.equals(k.gridSetId)
+                    && (format == null ? k.format == null : format.equals(k.format));
+        }
+    }
+}
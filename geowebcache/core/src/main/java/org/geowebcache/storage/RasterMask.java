@@ -17,68 +17,48 @@
  */
 package org.geowebcache.storage;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
-
 import org.geowebcache.grid.GridSubset;
+import org.geowebcache.util.SparseBitMatrix;
 
 public class RasterMask {
     /**
-     * By zoom level bitmasked images where every pixel represents a tile in the level's
+     * By zoom level bit masks where every bit represents a tile in the level's
      * {@link GridSubset#getCoverages() grid coverage}.
      */
-    private final BufferedImage[] byLevelMasks;
+    private final SparseBitMatrix[] byLevelMasks;
 
     private final long[][] coveredBounds;
 
     private final int maxMaskLevel;
 
-    private final int noDataValue;
-
     private long[][] fullCoverage;
 
     /**
-     * Creates a RasterMask from the given parameters with default {@code noDataValue == 0}
-     * 
-     * @param byLevelMasks
-     * @param gridCoverages
-     * @see #RasterMask(BufferedImage[], long[][], int)
-     */
-    public RasterMask(BufferedImage[] byLevelMasks, long[][] fullCoverage,
-            final long[][] coveredBounds) {
-        this(byLevelMasks, fullCoverage, coveredBounds, 0);
-    }
-
-    /**
-     * Creates a RasterMask based on a set of bitmask images and covered tile grid bounds;
+     * Creates a RasterMask based on a set of bit masks and covered tile grid bounds;
      * <p>
      * The number of zoom levels is determined by the length of the {@code gridCoverages} array. The
      * length of the {@code byLevelMasks} might be lower than the actual zoom levels, meaning the
-     * values for any zoom level for which a masking image is not provided will be interpolated from
-     * the higher resolution available one.
+     * values for any zoom level for which a mask is not provided will be interpolated from the
+     * higher resolution available one.
      * </p>
      * <p>
      * Also, note each bounding box in {@code gridCoverages} may represent a smaller area than its
-     * bitmasked image, which represents the whole tile range for the layer at a specific zoom
-     * level.
+     * mask, which represents the whole tile range for the layer at a specific zoom level.
      * </p>
      * 
      * @param byLevelMasks
+     *            the masks, with the bits set for the tiles to include, in top left origin
      * @param fullCoverage
      *            the full grid subsets coverage, needed to compute downsampled pixel locations
      * @param coveredBounds
-     *            by level bounds enclosing the area that has pixels set in the masks
-     * @param noDatavalue
-     *            raster sample value to be considered as no-data (eg, tile is not set at the pixel
-     *            location)
+     *            by level bounds enclosing the area that has bits set in the masks
      */
-    public RasterMask(BufferedImage[] byLevelMasks, long[][] fullCoverage,
-            final long[][] coveredBounds, final int noDataValue) {
+    public RasterMask(SparseBitMatrix[] byLevelMasks, long[][] fullCoverage,
+            final long[][] coveredBounds) {
         this.byLevelMasks = byLevelMasks;
         this.fullCoverage = fullCoverage;
         this.coveredBounds = coveredBounds;
         this.maxMaskLevel = byLevelMasks.length - 1;
-        this.noDataValue = noDataValue;
     }
 
     public long[][] getGridCoverages() {
@@ -131,22 +111,13 @@ public class RasterMask {
             return false;
         }
 
-        /*
-         * Use getRaster instead of getData(), getData() returns a copy
-         */
-        final Raster raster = byLevelMasks[level].getRaster();
+        final SparseBitMatrix mask = byLevelMasks[level];
 
         // Changing index to top left hand origin
         long rasx = tileX;
-        long rasy = (raster.getHeight() - 1) - tileY;
-
-        if (rasx < 0 || rasy < 0 || rasx >= raster.getWidth() || rasy >= raster.getHeight()) {
-            // coverage might include meta tiling factors but raster doesn't!
-            return false;
-        }
-
-        int sample = raster.getSample((int) rasx, (int) rasy, 0);
+        long rasy = (mask.getHeight() - 1) - tileY;
 
-        return sample != noDataValue;
+        // coverage might include meta tiling factors but the mask doesn't, get() checks the bounds
+        return mask.get(rasx, rasy);
     }
 }
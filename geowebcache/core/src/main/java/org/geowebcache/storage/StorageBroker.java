@@ -43,6 +43,8 @@ public class StorageBroker {
     
     private TransientCache transientCache;
 
+    private MemoryTileCache memoryCache;
+
     public StorageBroker(MetaStore metaStore, BlobStore blobStore) {
         this.metaStore = metaStore;
         this.blobStore = blobStore;
@@ -52,8 +54,7 @@ public class StorageBroker {
         } else {
             metaStoreEnabled = false;
         }
-        // @todo are these settings reasonable? should they be configurable?
-        transientCache = new TransientCache(100,1000);
+        transientCache = new TransientCache();
     }
 
     public void addBlobStoreListener(BlobStoreListener listener){
@@ -68,6 +69,40 @@ public class StorageBroker {
         this.verifyFileSize = verifyFileSize;
     }
 
+    /**
+     * Sets the optional in memory tile cache consulted before the blob store, {@code null} to
+     * disable it
+     */
+    public void setMemoryCache(MemoryTileCache memoryCache) {
+        if (this.memoryCache != null) {
+            blobStore.removeListener(this.memoryCache);
+        }
+        this.memoryCache = memoryCache;
+        if (memoryCache != null) {
+            blobStore.addListener(memoryCache);
+        }
+    }
+
+    public MemoryTileCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    /**
+     * Sets the cache holding the tiles of meta-tile-cache-only zoom levels, defaults to a
+     * {@link TransientCache} with {@link TransientCache#DEFAULT_MAX_TILES} tiles and
+     * {@link TransientCache#DEFAULT_MAX_STORAGE_KB} KB
+     */
+    public void setTransientCache(TransientCache transientCache) {
+        if (transientCache == null) {
+            throw new NullPointerException("transientCache");
+        }
+        this.transientCache = transientCache;
+    }
+
+    public TransientCache getTransientCache() {
+        return transientCache;
+    }
+
     /**
      * Completely eliminates the cache for the given layer.
      */
@@ -108,6 +143,16 @@ public class StorageBroker {
         return ret;
     }
 
+    /**
+     * Deletes a single tile, the memory cache is invalidated through the blob store events
+     */
+    public boolean delete(TileObject tileObj) throws StorageException {
+        if (metaStoreEnabled) {
+            metaStore.delete(tileObj);
+        }
+        return blobStore.delete(tileObj);
+    }
+
     public boolean delete(TileRange trObj) throws StorageException {
         boolean deleted;
         if (metaStoreEnabled) {
@@ -118,10 +163,27 @@ public class StorageBroker {
             }
             deleted = blobStore.delete(trObj);
         }
+        if (memoryCache != null) {
+            memoryCache.invalidate(trObj);
+        }
         return deleted;
     }
 
+    /**
+     * Looks up which tiles of the range are stored, straight from the blob store
+     * 
+     * @see BlobStore#stat(TileRange, TileRangeVisitor)
+     */
+    public long stat(TileRange trObj, TileRangeVisitor visitor) throws StorageException {
+        return blobStore.stat(trObj, visitor);
+    }
+
     public boolean get(TileObject tileObj) throws StorageException {
+        // without parameters the tile key does not depend on the metastore assigned ids
+        if (memoryCache != null && !hasParameters(tileObj) && memoryCache.get(tileObj)) {
+            return true;
+        }
+
         if (!metaStoreEnabled) {
             boolean found = getBlobOnly(tileObj);
             return found;
@@ -137,6 +199,10 @@ public class StorageBroker {
         }
 
         if (tileObj.blob_size > 0) {
+            if (memoryCache != null && hasParameters(tileObj) && memoryCache.get(tileObj)) {
+                return true;
+            }
+            final long stamp = memoryCache == null ? 0 : memoryCache.stamp(tileObj);
             Resource blob = blobStore.get(tileObj);
             if (blob == null) {
                 throw new StorageException("Blob for " + Arrays.toString(tileObj.xyz)
@@ -147,18 +213,25 @@ public class StorageBroker {
             }
 
             tileObj.blob = blob;
+            if (memoryCache != null) {
+                memoryCache.put(tileObj, stamp);
+            }
             return true;
         }
         return false;
     }
 
     private boolean getBlobOnly(TileObject tileObj) throws StorageException {
-        if (tileObj.getParameters() == null || tileObj.getParameters().size() == 0) {
+        if (!hasParameters(tileObj)) {
+            final long stamp = memoryCache == null ? 0 : memoryCache.stamp(tileObj);
             Resource blob = blobStore.get(tileObj);
             if (blob == null) {
                 return false;
             } else {
                 tileObj.blob = blob;
+                if (memoryCache != null) {
+                    memoryCache.put(tileObj, stamp);
+                }
                 return true;
             }
         } else {
@@ -167,6 +240,10 @@ public class StorageBroker {
         }
     }
 
+    private static boolean hasParameters(TileObject tileObj) {
+        return tileObj.getParameters() != null && tileObj.getParameters().size() > 0;
+    }
+
     public boolean put(TileObject tileObj) throws StorageException {
         if (!metaStoreEnabled) {
             boolean stored = putBlobOnly(tileObj);
@@ -176,10 +253,19 @@ public class StorageBroker {
         try {
             // System.out.println("Pre metastore put: " + Arrays.toString(tileObj.xyz));
             metaStore.put(tileObj);
-            // System.out.println("Pre blobstore put: " + Arrays.toString(tileObj.xyz));
-            blobStore.put(tileObj);
-            // System.out.println("Pre unlock put: " + Arrays.toString(tileObj.xyz));
-            metaStore.unlock(tileObj);
+            boolean stored = false;
+            try {
+                // System.out.println("Pre blobstore put: " + Arrays.toString(tileObj.xyz));
+                blobStore.put(tileObj);
+                stored = true;
+            } finally {
+                if (!stored) {
+                    // don't leave a row for a tile that was not saved
+                    deleteMetaQuietly(tileObj);
+                }
+                // System.out.println("Pre unlock put: " + Arrays.toString(tileObj.xyz));
+                metaStore.unlock(tileObj);
+            }
 
             return true;
 
@@ -190,6 +276,15 @@ public class StorageBroker {
         return false;
     }
 
+    private void deleteMetaQuietly(TileObject tileObj) {
+        try {
+            metaStore.delete(tileObj);
+        } catch (Exception e) {
+            log.error("Unable to delete the metastore entry of a tile that failed to save: "
+                    + e.getMessage());
+        }
+    }
+
     private boolean putBlobOnly(TileObject tileObj) {
         if (tileObj.getParameters() == null || tileObj.getParameters().size() == 0) {
             try {
@@ -210,6 +305,11 @@ public class StorageBroker {
      */
     public void destroy() {
         log.info("Destroying StorageBroker");
+        log.info(transientCache.toString());
+        if (memoryCache != null) {
+            log.info(memoryCache.toString());
+            memoryCache.clear();
+        }
     }
 
     public String getLayerMetadata(final String layerName, final String key) {
@@ -232,18 +332,13 @@ public class StorageBroker {
 
     public boolean getTransient(TileObject tile) {
         String key = computeTransientKey(tile);
-        Resource resource;
-        synchronized (transientCache) {
-            resource = transientCache.get(key);
-        }
-        tile.setBlob(resource); 
+        Resource resource = transientCache.get(key);
+        tile.setBlob(resource);
         return resource != null;
     }
 
     public void putTransient(TileObject tile) {
         String key = computeTransientKey(tile);
-        synchronized (transientCache) {
-            transientCache.put(key, tile.getBlob());
-        }
+        transientCache.put(key, tile.getBlob());
     }
 }
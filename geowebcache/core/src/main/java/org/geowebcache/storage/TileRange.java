@@ -104,6 +104,21 @@ public class TileRange {
         return false;
     }
 
+    /**
+     * @return whether the given tile bounds at zoom level {@code z} intersect the bounds of this
+     *         range, always {@code true} for a range with no bounds
+     */
+    public boolean intersects(long minx, long miny, long maxx, long maxy, int z) {
+        if (null == rangeBounds) {
+            return true;
+        }
+        if (z < getZoomStart() || z > getZoomStop()) {
+            return false;
+        }
+        long[] rB = rangeBounds(z);
+        return rB[0] <= maxx && rB[2] >= minx && rB[1] <= maxy && rB[3] >= miny;
+    }
+
     public void setParametersId(long parametersId) {
         this.parametersId = parametersId;
     }
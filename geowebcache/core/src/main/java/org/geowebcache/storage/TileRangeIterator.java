@@ -19,8 +19,28 @@ package org.geowebcache.storage;
 
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Iterates over the meta tile grid locations of a {@link TileRange}.
+ * <p>
+ * The range is split in {@link Chunk chunks}, bands of consecutive meta tile rows of a single zoom
+ * level, handed out in order by {@link #nextChunk()} with a single atomic increment. A chunk is
+ * then iterated by the thread that took it without any locking, so many threads can consume the
+ * same range without contending on it. {@link #nextMetaGridLocation(long[])} keeps the original
+ * one location at a time, synchronized, access on top of the same chunks.
+ * </p>
+ */
 public class TileRangeIterator {
 
+    /**
+     * Number of chunks a zoom level is split in, at least, if it has that many meta tile rows
+     */
+    static final int MIN_CHUNKS_PER_LEVEL = 64;
+
+    /**
+     * Number of meta tiles a chunk spans, at most, unless a single row of the level is larger
+     */
+    static final int MAX_CHUNK_META_TILES = 1024;
+
     final private TileRange tr;
 
     final private DiscontinuousTileRange dtr;
@@ -33,7 +53,22 @@ public class TileRangeIterator {
 
     private AtomicLong tilesRenderedCount = new AtomicLong();
 
-    private volatile long[] lastGridLoc;
+    /**
+     * Meta tile rows per chunk, by zoom level index
+     */
+    private final long[] chunkRows;
+
+    /**
+     * Index of the first chunk of each zoom level, plus the total number of chunks at the end
+     */
+    private final long[] firstChunk;
+
+    private final AtomicLong nextChunk = new AtomicLong();
+
+    /**
+     * Chunk being consumed by {@link #nextMetaGridLocation(long[])}
+     */
+    private Chunk sharedChunk;
 
     /**
      * Note that the bounds of the tile range must already be expanded to the meta tile factors for
@@ -52,6 +87,23 @@ public class TileRangeIterator {
         } else {
             dtr = null;
         }
+
+        final int zoomStart = tr.getZoomStart();
+        final int numLevels = Math.max(0, 1 + tr.getZoomStop() - zoomStart);
+        this.chunkRows = new long[numLevels];
+        this.firstChunk = new long[numLevels + 1];
+        for (int i = 0; i < numLevels; i++) {
+            final long[] levelBounds = tr.rangeBounds(zoomStart + i);
+            final long metaCols = (1 + levelBounds[2] - levelBounds[0] + metaX - 1) / metaX;
+            final long metaRows = (1 + levelBounds[3] - levelBounds[1] + metaY - 1) / metaY;
+            long rows = (metaRows + MIN_CHUNKS_PER_LEVEL - 1) / MIN_CHUNKS_PER_LEVEL;
+            if (metaCols > 0) {
+                rows = Math.min(rows, MAX_CHUNK_META_TILES / metaCols);
+            }
+            chunkRows[i] = Math.max(1, rows);
+            long levelChunks = metaRows <= 0 ? 0 : (metaRows + chunkRows[i] - 1) / chunkRows[i];
+            firstChunk[i + 1] = firstChunk[i] + levelChunks;
+        }
     }
 
     /**
@@ -63,6 +115,44 @@ public class TileRangeIterator {
         return tr;
     }
 
+    /**
+     * @return the number of chunks the tile range is split in
+     */
+    public long getChunkCount() {
+        return firstChunk[firstChunk.length - 1];
+    }
+
+    /**
+     * @return the number of tiles in the chunks finished so far, either included in a returned
+     *         meta tile or skipped because not contained in a {@link DiscontinuousTileRange}
+     */
+    public long getTilesProcessed() {
+        return tilesRenderedCount.get() + tilesSkippedCount.get();
+    }
+
+    /**
+     * Takes the next chunk of the tile range not yet handed out. Safe to call from any thread, the
+     * returned chunk shall be iterated by a single one though.
+     * 
+     * @return the next chunk, or {@code null} if all of them were handed out already
+     */
+    public Chunk nextChunk() {
+        final long chunk = nextChunk.getAndIncrement();
+        if (chunk >= getChunkCount()) {
+            return null;
+        }
+        int level = 0;
+        while (firstChunk[level + 1] <= chunk) {
+            level++;
+        }
+        final int z = tr.getZoomStart() + level;
+        final long[] levelBounds = tr.rangeBounds(z);
+        final long levelChunk = chunk - firstChunk[level];
+        final long minY = levelBounds[1] + levelChunk * chunkRows[level] * metaY;
+        final long maxY = Math.min(levelBounds[3], minY + chunkRows[level] * metaY - 1);
+        return new Chunk(chunk, z, levelBounds, minY, maxY);
+    }
+
     /**
      * This loops over all the possible tile locations.
      * 
@@ -73,56 +163,110 @@ public class TileRangeIterator {
      *         iterator otherwise
      */
     public synchronized long[] nextMetaGridLocation(final long[] gridLoc) {
-        long[] levelBounds;
-        long x;
-        long y;
-        int z;
-
-        // Figure out the starting point
-        if (lastGridLoc == null) {
-            z = tr.getZoomStart();
-            levelBounds = tr.rangeBounds(z);
-            x = levelBounds[0];
-            y = levelBounds[1];
+        while (true) {
+            if (sharedChunk == null) {
+                sharedChunk = nextChunk();
+                if (sharedChunk == null) {
+                    return null;
+                }
+            }
+            if (sharedChunk.nextMetaGridLocation(gridLoc) != null) {
+                return gridLoc;
+            }
+            sharedChunk = null;
+        }
+    }
 
-        } else {
-            z = (int) lastGridLoc[2];
-            levelBounds = tr.rangeBounds(z);
-            x = lastGridLoc[0] + metaX;
-            y = lastGridLoc[1];
+    /**
+     * A band of consecutive meta tile rows of a single zoom level. Not thread safe.
+     */
+    public final class Chunk {
+
+        private final long index;
+
+        private final int z;
+
+        private final long[] levelBounds;
+
+        private final long minY;
+
+        private final long maxY;
+
+        private long x;
+
+        private long y;
+
+        private long tilesRendered;
+
+        private long tilesSkipped;
+
+        private boolean done;
+
+        private Chunk(long index, int z, long[] levelBounds, long minY, long maxY) {
+            this.index = index;
+            this.z = z;
+            this.levelBounds = levelBounds;
+            this.minY = minY;
+            this.maxY = maxY;
+            this.x = levelBounds[0];
+            this.y = minY;
+        }
+
+        /**
+         * @return the position of this chunk in the order they're handed out, from {@code 0} to
+         *         {@link TileRangeIterator#getChunkCount()} exclusive
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        public int getZoomLevel() {
+            return z;
+        }
+
+        /**
+         * @return the number of tiles of this chunk processed so far
+         */
+        public long getTilesProcessed() {
+            return tilesRendered + tilesSkipped;
         }
 
-        // Loop over any remaining zoom levels
-        for (; z <= tr.getZoomStop(); z++) {
-            for (; y <= levelBounds[3]; y += metaY) {
-                for (; x <= levelBounds[2]; x += metaX) {
+        /**
+         * @return the number of tiles of this chunk, whether processed or not
+         */
+        public long getTileCount() {
+            return (1 + levelBounds[2] - levelBounds[0]) * (1 + maxY - minY);
+        }
 
+        /**
+         * @return {@code null} if there're no more meta tiles in this chunk, {@code gridLoc} set to
+         *         the next grid location otherwise
+         */
+        public long[] nextMetaGridLocation(final long[] gridLoc) {
+            for (; y <= maxY; y += metaY) {
+                while (x <= levelBounds[2]) {
                     gridLoc[0] = x;
                     gridLoc[1] = y;
                     gridLoc[2] = z;
+                    x += metaX;
 
                     int tileCount = tilesForLocation(gridLoc, levelBounds);
 
                     if (checkGridLocation(gridLoc)) {
-                        tilesRenderedCount.addAndGet(tileCount);
-                        lastGridLoc = gridLoc.clone();
+                        tilesRendered += tileCount;
                         return gridLoc;
                     }
-
-                    tilesSkippedCount.addAndGet(tileCount);
+                    tilesSkipped += tileCount;
                 }
                 x = levelBounds[0];
             }
-
-            // Get ready for the next level
-            if (z < tr.getZoomStop()) {// but be careful not to go out of index
-                levelBounds = tr.rangeBounds(z + 1);
-                x = levelBounds[0];
-                y = levelBounds[1];
+            if (!done) {
+                done = true;
+                tilesRenderedCount.addAndGet(tilesRendered);
+                tilesSkippedCount.addAndGet(tilesSkipped);
             }
+            return null;
         }
-
-        return null;
     }
 
     /**
@@ -0,0 +1,29 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+/**
+ * Receives the tiles found by {@link BlobStore#stat(TileRange, TileRangeVisitor)}
+ */
+public interface TileRangeVisitor {
+
+    /**
+     * Called once for each stored tile in the range, in no particular order
+     * 
+     * @param size
+     *            the size of the stored tile, in bytes
+     */
+    void visit(long x, long y, int z, long size);
+}
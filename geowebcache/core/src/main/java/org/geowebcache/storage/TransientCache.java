@@ -15,93 +15,227 @@
 package org.geowebcache.storage;
 
 import java.io.IOException;
-import java.lang.ref.SoftReference;
+import java.nio.channels.Channels;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 
 /**
- * Non-thread safe Resource cache. Currently in-memory only.
+ * Thread safe, in-memory cache for the tiles of meta-tile-cache-only zoom levels: the tiles of a
+ * metatile other than the requested one are kept here until they're requested once, or evicted to
+ * make room for newer ones.
+ * <p>
+ * The cache is split in a number of independently locked segments, each one holding up to its
+ * share of {@code maxTiles} and {@code maxStorageKB}, so that concurrent requests for different
+ * tiles don't contend on a single monitor.
+ * </p>
  * @author Ian Schneider <ischneider@opengeo.org>
  */
 public class TransientCache {
-    
+
+    public static final int DEFAULT_MAX_TILES = 100;
+
+    public static final int DEFAULT_MAX_STORAGE_KB = 1000;
+
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Smaller caches use less segments, so that a segment can still hold a few tiles
+     */
+    private static final long MIN_SEGMENT_STORAGE = 256 * 1024;
+
     private final int maxTiles;
-    private final int maxStorage;
-    private long currentStorage;
-    private Map<String,Resource> cache = new LinkedHashMap<String, Resource>() {
 
-        @Override
-        protected boolean removeEldestEntry(Entry<String, Resource> eldest) {
-            return removeEntries(eldest);
-        }
-        
-    };
-    
+    private final long maxStorage;
+
+    private final Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public TransientCache() {
+        this(DEFAULT_MAX_TILES, DEFAULT_MAX_STORAGE_KB);
+    }
+
     public TransientCache(int maxTiles, int maxStorageKB) {
+        if (maxTiles <= 0) {
+            throw new IllegalArgumentException("maxTiles shall be a positive number: " + maxTiles);
+        }
+        if (maxStorageKB <= 0) {
+            throw new IllegalArgumentException("maxStorageKB shall be a positive number: "
+                    + maxStorageKB);
+        }
         this.maxTiles = maxTiles;
-        this.maxStorage = maxStorageKB * 1024;
+        this.maxStorage = maxStorageKB * 1024L;
+
+        final long maxSegments = Math.min(Math.min(MAX_SEGMENTS, maxTiles), maxStorage
+                / MIN_SEGMENT_STORAGE);
+        int numSegments = 1;
+        while (numSegments * 2 <= maxSegments) {
+            numSegments *= 2;
+        }
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(maxTiles / numSegments, maxStorage / numSegments);
+        }
+    }
+
+    public int getMaxTiles() {
+        return maxTiles;
+    }
+
+    public int getMaxStorageKB() {
+        return (int) (maxStorage / 1024);
     }
-    
+
     public int size() {
-        return cache.size();
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
     }
-    
+
     public long storageSize() {
-        return currentStorage;
+        long storage = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                storage += segment.storage;
+            }
+        }
+        return storage;
+    }
+
+    /**
+     * @return number of tiles served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups for tiles not in the cache
+     */
+    public long getMissCount() {
+        return misses.get();
     }
-    
+
+    /**
+     * @return number of tiles dropped to make room for newer ones before being served
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Stores a copy of the resource contents, the resource itself can be reused by the caller
+     * afterwards
+     */
     public void put(String key, Resource r) {
-        byte[] buf = new byte[(int) r.getSize()];
-        try {
-            r.getInputStream().read(buf);
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
+        final Segment segment = segmentFor(key);
+        final long size = r.getSize();
+        if (size > segment.maxStorage) {
+            evictions.incrementAndGet();
+            return;
+        }
+        final ByteArrayResource blob = copy(r, (int) size);
+
+        int evicted = 0;
+        synchronized (segment) {
+            Resource previous = segment.put(key, blob);
+            if (previous != null) {
+                segment.storage -= previous.getSize();
+            }
+            segment.storage += size;
+            Iterator<Resource> eldest = segment.values().iterator();
+            while (segment.storage > segment.maxStorage || segment.size() > segment.maxTiles) {
+                Resource removed = eldest.next();
+                eldest.remove();
+                segment.storage -= removed.getSize();
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            evictions.addAndGet(evicted);
         }
-        ByteArrayResource blob = new ByteArrayResource(buf);
-        currentStorage += r.getSize();
-        cache.put(key, blob);
     }
-    
+
+    /**
+     * Returns and removes the resource stored under the given key, if any
+     */
     public Resource get(String key) {
-        Resource cached = cache.get(key);
-        if (cached != null) {
-            cache.remove(key);
-            currentStorage -= cached.getSize();
+        final Segment segment = segmentFor(key);
+        Resource cached;
+        synchronized (segment) {
+            cached = segment.remove(key);
+            if (cached != null) {
+                segment.storage -= cached.getSize();
+            }
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
         }
         return cached;
     }
-    
-    /**
-     * Loop through elements, removing and recompute currentStorage size
-     */
-    private void clean() {
-        // iterator returns items in order added so oldest items are first
-        Iterator<Resource> items = cache.values().iterator();
-        long storage = currentStorage;
-        while (items.hasNext()) {
-            Resource r = items.next();
-            storage -= r.getSize();
-            if (storage < maxStorage) {
-                break;
-            } else {
-                items.remove();
+
+    public String toString() {
+        return "TransientCache[tiles: " + size() + "/" + maxTiles + ", bytes: " + storageSize()
+                + "/" + maxStorage + ", served: " + hits.get() + ", missed: " + misses.get()
+                + ", evicted before use: " + evictions.get() + "]";
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static ByteArrayResource copy(Resource r, int size) {
+        if (r instanceof ByteArrayResource) {
+            byte[] contents = ((ByteArrayResource) r).getContents();
+            if (contents != null && contents.length == size) {
+                byte[] data = new byte[size];
+                System.arraycopy(contents, 0, data, 0, size);
+                return new ByteArrayResource(data);
             }
         }
-        currentStorage = storage;
+        ByteArrayResource blob = new ByteArrayResource(size);
+        try {
+            r.transferTo(Channels.newChannel(blob.getOutputStream()));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return blob;
     }
-    
-    private boolean removeEntries(Entry<String, Resource> eldest) {
-        boolean remove = false;
-        // not sure if we can do both at the same time?
-        if (currentStorage > maxStorage) {
-            clean();
-        } else if (cache.size() > maxTiles) {
-            remove = true;
+
+    /**
+     * Insertion ordered map holding a share of the cache, all access shall be synchronized on the
+     * segment itself
+     */
+    private static final class Segment extends LinkedHashMap<String, Resource> {
+
+        private static final long serialVersionUID = 1L;
+
+        final int maxTiles;
+
+        final long maxStorage;
+
+        long storage;
+
+        Segment(int maxTiles, long maxStorage) {
+            this.maxTiles = maxTiles;
+            this.maxStorage = maxStorage;
         }
-        return remove;
     }
 }
@@ -0,0 +1,154 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeVisitor;
+import org.geowebcache.storage.blobstore.file.BundleBlobStore;
+
+/**
+ * A {@link BlobStore} handing over each operation to the store configured for the layer it
+ * applies to, or to the default store for the layers not configured otherwise. Allows to keep,
+ * for example, the big seeded layers in a {@link BundleBlobStore} while the rest of the layers
+ * stay in the regular file store.
+ * <p>
+ * Listeners are registered with all the stores, so they get the events of all the layers.
+ * </p>
+ */
+public class LayerRoutingBlobStore implements BlobStore {
+
+    private final BlobStore defaultStore;
+
+    private Map<String, BlobStore> layerStores = new HashMap<String, BlobStore>();
+
+    public LayerRoutingBlobStore(BlobStore defaultStore) {
+        this.defaultStore = defaultStore;
+    }
+
+    /**
+     * @param layerStores
+     *            the stores to use for each layer, by layer name
+     */
+    public void setLayerStores(Map<String, BlobStore> layerStores) {
+        this.layerStores = new HashMap<String, BlobStore>(layerStores);
+    }
+
+    /**
+     * @return the store the operations on the given layer are handed over to
+     */
+    public BlobStore getStore(String layerName) {
+        BlobStore store = layerStores.get(layerName);
+        return store == null ? defaultStore : store;
+    }
+
+    public boolean delete(String layerName) throws StorageException {
+        return getStore(layerName).delete(layerName);
+    }
+
+    public boolean deleteByGridsetId(String layerName, String gridSetId) throws StorageException {
+        return getStore(layerName).deleteByGridsetId(layerName, gridSetId);
+    }
+
+    public boolean delete(TileObject obj) throws StorageException {
+        return getStore(obj.getLayerName()).delete(obj);
+    }
+
+    public boolean delete(TileRange obj) throws StorageException {
+        return getStore(obj.getLayerName()).delete(obj);
+    }
+
+    public long stat(TileRange obj, TileRangeVisitor visitor) throws StorageException {
+        return getStore(obj.getLayerName()).stat(obj, visitor);
+    }
+
+    public Resource get(TileObject obj) throws StorageException {
+        return getStore(obj.getLayerName()).get(obj);
+    }
+
+    public void put(TileObject obj) throws StorageException {
+        getStore(obj.getLayerName()).put(obj);
+    }
+
+    public void clear() throws StorageException {
+        for (BlobStore store : stores()) {
+            store.clear();
+        }
+    }
+
+    public void destroy() {
+        for (BlobStore store : stores()) {
+            store.destroy();
+        }
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        for (BlobStore store : stores()) {
+            store.addListener(listener);
+        }
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        boolean removed = false;
+        for (BlobStore store : stores()) {
+            removed |= store.removeListener(listener);
+        }
+        return removed;
+    }
+
+    /**
+     * Renames the layer in its store. The new name shall be handled by the same store, otherwise
+     * the renamed layer contents would no longer be reachable.
+     */
+    public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
+        BlobStore store = getStore(oldLayerName);
+        if (store != getStore(newLayerName)) {
+            throw new StorageException("Can't rename layer " + oldLayerName + " to "
+                    + newLayerName + ", they're configured to use different blob stores");
+        }
+        return store.rename(oldLayerName, newLayerName);
+    }
+
+    public String getLayerMetadata(String layerName, String key) {
+        return getStore(layerName).getLayerMetadata(layerName, key);
+    }
+
+    public void putLayerMetadata(String layerName, String key, String value) {
+        getStore(layerName).putLayerMetadata(layerName, key, value);
+    }
+
+    /**
+     * @return the distinct stores in use
+     */
+    private List<BlobStore> stores() {
+        List<BlobStore> stores = new ArrayList<BlobStore>();
+        stores.add(defaultStore);
+        for (BlobStore store : layerStores.values()) {
+            if (!stores.contains(store)) {
+                stores.add(store);
+            }
+        }
+        return stores;
+    }
+}
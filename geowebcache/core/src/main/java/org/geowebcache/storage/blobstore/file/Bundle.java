@@ -0,0 +1,421 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.geowebcache.io.Resource;
+
+/**
+ * A single file holding the tiles of a square block of a zoom level, see {@link BundleBlobStore}.
+ * <p>
+ * The file starts with a fixed size header and index, followed by the tile contents in the order
+ * they were written:
+ * <ul>
+ * <li>header: magic number and format version, block size and a reserved int, number of bytes
+ * taken by overwritten or deleted tiles (long)</li>
+ * <li>index: {@code blockSize * blockSize} entries in row major order, each one holding the offset
+ * (long), length (int, 0 if there's no tile) and creation time (long) of a tile</li>
+ * <li>tile contents</li>
+ * </ul>
+ * Tile contents are only ever appended, overwriting or deleting a tile leaves its former contents
+ * as garbage until the bundle is {@link #compact() compacted}.
+ * </p>
+ * <p>
+ * Reads take a shared lock and use positional reads, so they run concurrently, while writes take
+ * an exclusive lock. Once the bundle is {@link #close() closed} all the operations throw
+ * {@link ClosedChannelException}, and the caller shall open the bundle again.
+ * </p>
+ */
+final class Bundle {
+
+    static final int MAGIC = 0x47574342; // "GWCB"
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 24;
+
+    static final int ENTRY_SIZE = 20;
+
+    private static final int GARBAGE_OFFSET = 16;
+
+    /**
+     * Bundles are compacted once garbage takes half the file and at least this many bytes
+     */
+    static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+
+    final File file;
+
+    final int blockSize;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private long garbage;
+
+    private boolean closed;
+
+    private Bundle(File file, int blockSize) {
+        this.file = file;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Opens the bundle file, creating it if it does not exist and {@code create} is {@code true}
+     *
+     * @return the bundle, or {@code null} if the file does not exist and {@code create} is
+     *         {@code false}
+     */
+    static Bundle open(File file, int blockSize, boolean create) throws IOException {
+        if (!file.exists()) {
+            if (!create) {
+                return null;
+            }
+            File parent = file.getParentFile();
+            if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+                throw new IOException("Unable to create directory " + parent.getAbsolutePath());
+            }
+        }
+        Bundle bundle = new Bundle(file, blockSize);
+        bundle.openFile();
+        return bundle;
+    }
+
+    private void openFile() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(indexEnd());
+                header.putInt(MAGIC).putInt(VERSION).putInt(blockSize).putInt(0).putLong(0);
+                header.clear();
+                writeFully(channel, header, 0);
+                garbage = 0;
+            } else {
+                ByteBuffer header = readFully(channel, ByteBuffer.allocate(HEADER_SIZE), 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                        || header.getInt(8) != blockSize) {
+                    throw new IOException(file.getAbsolutePath()
+                            + " is not a tile bundle or has an incompatible format");
+                }
+                garbage = header.getLong(GARBAGE_OFFSET);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the contents of the tile at {@code index}, or {@code null} if there's no such tile
+     * @param created
+     *            if not {@code null}, receives the creation time of the tile
+     */
+    byte[] read(final int index, final long[] created) throws IOException {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            ByteBuffer entry = readFully(channel, ByteBuffer.allocate(ENTRY_SIZE),
+                    entryOffset(index));
+            int length = entry.getInt(8);
+            if (length == 0) {
+                return null;
+            }
+            if (created != null) {
+                created[0] = entry.getLong(12);
+            }
+            byte[] data = new byte[length];
+            readFully(channel, ByteBuffer.wrap(data), entry.getLong(0));
+            return data;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the tile contents and points the tile index entry to them
+     *
+     * @return the length of the tile contents replaced, {@code 0} if there was no tile
+     */
+    int write(final int index, final Resource contents, final long created) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            final long entryOffset = entryOffset(index);
+            ByteBuffer entry = readFully(channel, ByteBuffer.allocate(ENTRY_SIZE), entryOffset);
+            final int previous = entry.getInt(8);
+
+            final long offset = channel.size();
+            channel.position(offset);
+            contents.transferTo(channel);
+            final long length = channel.position() - offset;
+
+            entry.clear();
+            entry.putLong(0, offset).putInt(8, (int) length).putLong(12, created);
+            writeFully(channel, entry, entryOffset);
+            if (previous > 0) {
+                addGarbage(previous);
+            }
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the tiles at the given indexes from the index
+     *
+     * @return the length of each removed tile, {@code 0} for the ones that did not exist
+     */
+    int[] delete(final int[] indexes, final int count) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            final int[] lengths = new int[count];
+            final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            long freed = 0;
+            for (int i = 0; i < count; i++) {
+                final long entryOffset = entryOffset(indexes[i]);
+                entry.clear();
+                readFully(channel, entry, entryOffset);
+                lengths[i] = entry.getInt(8);
+                if (lengths[i] > 0) {
+                    entry.clear();
+                    entry.putLong(0, 0).putInt(8, 0).putLong(12, 0);
+                    writeFully(channel, entry, entryOffset);
+                    freed += lengths[i];
+                }
+            }
+            if (freed > 0) {
+                addGarbage(freed);
+            }
+            return lengths;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the lengths of all the tiles in the bundle, in index order, {@code 0} for the
+     *         missing ones
+     */
+    int[] lengths() throws IOException {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            final int entries = blockSize * blockSize;
+            ByteBuffer index = readFully(channel, ByteBuffer.allocate(entries * ENTRY_SIZE),
+                    HEADER_SIZE);
+            int[] lengths = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                lengths[i] = index.getInt(i * ENTRY_SIZE + 8);
+            }
+            return lengths;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether enough of the file is taken by garbage to be worth {@link #compact()
+     *         compacting}
+     */
+    boolean needsCompaction() throws IOException {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            return garbage >= MIN_COMPACTION_GARBAGE && garbage * 2 > channel.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the bundle file without the contents of overwritten and deleted tiles
+     */
+    void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            final File compacted = new File(file.getParentFile(), file.getName() + ".compacting");
+            final int entries = blockSize * blockSize;
+            final ByteBuffer index = readFully(channel, ByteBuffer.allocate(indexEnd()), 0);
+            index.putLong(GARBAGE_OFFSET, 0);
+
+            RandomAccessFile target = new RandomAccessFile(compacted, "rw");
+            boolean written = false;
+            try {
+                FileChannel out = target.getChannel();
+                out.truncate(0);
+                long position = indexEnd();
+                for (int i = 0; i < entries; i++) {
+                    final int entry = HEADER_SIZE + i * ENTRY_SIZE;
+                    final int length = index.getInt(entry + 8);
+                    if (length == 0) {
+                        continue;
+                    }
+                    final long offset = index.getLong(entry);
+                    long copied = 0;
+                    while (copied < length) {
+                        long transferred = channel.transferTo(offset + copied, length - copied,
+                                out.position(position + copied));
+                        if (transferred <= 0) {
+                            // the index entry points past the end of the file
+                            throw new IOException("Unexpected end of tile bundle "
+                                    + file.getAbsolutePath());
+                        }
+                        copied += transferred;
+                    }
+                    index.putLong(entry, position);
+                    position += length;
+                }
+                index.clear();
+                writeFully(out, index, 0);
+                out.force(false);
+                written = true;
+            } finally {
+                target.close();
+                if (!written) {
+                    compacted.delete();
+                }
+            }
+
+            channel.close();
+            raf.close();
+            if (!file.delete() || !compacted.renameTo(file)) {
+                closed = true;
+                throw new IOException("Unable to replace " + file.getAbsolutePath()
+                        + " with its compacted version " + compacted.getAbsolutePath());
+            }
+            openFile();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes and deletes the bundle file if it holds no tile, atomically with respect to the
+     * writes, which fail with {@link ClosedChannelException} afterwards and so get to create a new
+     * bundle
+     *
+     * @return whether the bundle was empty, and thus closed
+     */
+    boolean deleteIfEmpty() throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            final int[] lengths = lengths();
+            for (int i = 0; i < lengths.length; i++) {
+                if (lengths[i] > 0) {
+                    return false;
+                }
+            }
+            closed = true;
+            channel.close();
+            raf.close();
+            if (!file.delete()) {
+                throw new IOException("Unable to delete empty bundle " + file.getAbsolutePath());
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the size of the bundle file, in bytes
+     */
+    long size() throws IOException {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            return channel.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.readLock().lock();
+        try {
+            return closed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                channel.close();
+                raf.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addGarbage(long bytes) throws IOException {
+        garbage += bytes;
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, garbage);
+        writeFully(channel, buffer, GARBAGE_OFFSET);
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private int indexEnd() {
+        return HEADER_SIZE + blockSize * blockSize * ENTRY_SIZE;
+    }
+
+    private long entryOffset(int index) {
+        return HEADER_SIZE + (long) index * ENTRY_SIZE;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of tile bundle");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
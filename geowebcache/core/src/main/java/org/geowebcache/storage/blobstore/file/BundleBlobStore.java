@@ -0,0 +1,739 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeVisitor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * A {@link BlobStore} packing the tiles into bundle files instead of storing one file per tile.
+ * <p>
+ * Each bundle holds a square block of up to {@link #BUNDLE_SIZE} by {@link #BUNDLE_SIZE} tiles of a
+ * zoom level, along with an index of their offsets, lengths and creation times (see
+ * {@link Bundle}). Bundles are laid out as
+ * {@code <root>/<layer>/<gridset>_<zoom>[_<parametersId>]/<bundleX>_<bundleY>.<extension>.bundle},
+ * which keeps the number of files and inodes several orders of magnitude below the one of
+ * {@link FileBlobStore} for large caches, and turns reading or writing a tile into a single
+ * positional read or an append to an already open file.
+ * </p>
+ * <p>
+ * Up to {@link #setMaxOpenBundles(int) maxOpenBundles} bundles are kept open, the least recently
+ * used ones are closed beyond that. Overwritten and deleted tiles leave garbage in their bundles,
+ * which are compacted once garbage takes more than half of the file, either by the range delete
+ * leaving them so or by a background pass over the open bundles every
+ * {@link #setCompactionInterval(long) compactionInterval} seconds. Bundles left with no tiles by a
+ * range delete are removed.
+ * </p>
+ * <p>
+ * Layer metadata is stored the same way as {@link FileBlobStore} does.
+ * </p>
+ */
+public class BundleBlobStore implements BlobStore {
+
+    private static Log log = LogFactory.getLog(BundleBlobStore.class);
+
+    /**
+     * Width and height, in tiles, of the bundles for the zoom levels with enough tiles
+     */
+    public static final int BUNDLE_SIZE = 128;
+
+    public static final String BUNDLE_EXTENSION = ".bundle";
+
+    public static final int DEFAULT_MAX_OPEN_BUNDLES = 256;
+
+    public static final long DEFAULT_COMPACTION_INTERVAL = 300;
+
+    private final String path;
+
+    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    private final OpenBundles openBundles = new OpenBundles();
+
+    private final ScheduledExecutorService compactionService;
+
+    private ScheduledFuture<?> compactionTask;
+
+    public BundleBlobStore(DefaultStorageFinder defStoreFinder) throws ConfigurationException {
+        this(new File(defStoreFinder.getDefaultPath(), "_gwc_bundles_").getAbsolutePath(), true);
+    }
+
+    public BundleBlobStore(String rootPath) throws StorageException {
+        this(rootPath, false);
+        File fh = new File(path);
+        if (!fh.exists() || !fh.isDirectory() || !fh.canWrite()) {
+            throw new StorageException(path + " is not writable directory.");
+        }
+    }
+
+    private BundleBlobStore(String rootPath, boolean create) {
+        this.path = rootPath;
+        if (create) {
+            new File(rootPath).mkdirs();
+        }
+        CustomizableThreadFactory tf;
+        tf = new CustomizableThreadFactory("GWC BundleStore compaction thread-");
+        tf.setDaemon(true);
+        tf.setThreadPriority(Thread.MIN_PRIORITY);
+        compactionService = Executors.newSingleThreadScheduledExecutor(tf);
+        setCompactionInterval(DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    /**
+     * Maximum number of bundle files kept open at any time, defaults to
+     * {@link #DEFAULT_MAX_OPEN_BUNDLES}
+     */
+    public void setMaxOpenBundles(int maxOpenBundles) {
+        if (maxOpenBundles <= 0) {
+            throw new IllegalArgumentException("maxOpenBundles shall be a positive number: "
+                    + maxOpenBundles);
+        }
+        synchronized (openBundles) {
+            openBundles.maxOpen = maxOpenBundles;
+        }
+    }
+
+    /**
+     * Seconds between the passes compacting the open bundles mostly taken by garbage, defaults to
+     * {@link #DEFAULT_COMPACTION_INTERVAL}, {@code 0} disables them
+     */
+    public synchronized void setCompactionInterval(long compactionInterval) {
+        if (compactionInterval < 0) {
+            throw new IllegalArgumentException("compactionInterval shall be a positive number: "
+                    + compactionInterval);
+        }
+        if (compactionTask != null) {
+            compactionTask.cancel(false);
+            compactionTask = null;
+        }
+        if (compactionInterval > 0) {
+            compactionTask = compactionService.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    compactOpenBundles();
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Compacts the open bundles in which garbage takes more than half of the file. Bundles closed
+     * in the meantime are skipped, they'll be compacted once written or range deleted again.
+     */
+    public void compactOpenBundles() {
+        final List<Bundle> bundles;
+        synchronized (openBundles) {
+            bundles = new ArrayList<Bundle>(openBundles.values());
+        }
+        for (Bundle bundle : bundles) {
+            try {
+                if (!bundle.isClosed() && bundle.needsCompaction()) {
+                    log.debug("Compacting " + bundle.file.getAbsolutePath());
+                    bundle.compact();
+                }
+            } catch (ClosedChannelException closed) {
+                // closed by another thread in the meantime
+            } catch (IOException e) {
+                log.warn("Error compacting bundle " + bundle.file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the block size of the bundles of the given zoom level, so that the lower zoom levels
+     *         do not get oversized indexes
+     */
+    static int blockSize(long zoomLevel) {
+        return zoomLevel >= 6 ? BUNDLE_SIZE : 2 << zoomLevel;
+    }
+
+    public Resource get(final TileObject stObj) throws StorageException {
+        final long[] xyz = stObj.getXYZ();
+        final File file = bundleFile(stObj);
+        final int blockSize = blockSize(xyz[2]);
+        final int index = tileIndex(xyz[0], xyz[1], blockSize);
+        final long[] created = new long[1];
+        byte[] contents;
+        try {
+            Bundle bundle = acquire(file, blockSize, false);
+            if (bundle == null) {
+                return null;
+            }
+            try {
+                contents = bundle.read(index, created);
+            } catch (ClosedChannelException closed) {
+                // closed by another thread in the meantime, open it again
+                bundle = acquire(file, blockSize, false);
+                contents = bundle == null ? null : bundle.read(index, created);
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + file.getAbsolutePath());
+        }
+        if (contents == null) {
+            return null;
+        }
+        if (0L == stObj.getCreated()) {
+            stObj.setCreated(created[0]);
+        }
+        return new ByteArrayResource(contents);
+    }
+
+    public void put(final TileObject stObj) throws StorageException {
+        final long[] xyz = stObj.getXYZ();
+        final File file = bundleFile(stObj);
+        final int blockSize = blockSize(xyz[2]);
+        final int index = tileIndex(xyz[0], xyz[1], blockSize);
+        final long created = System.currentTimeMillis();
+        int oldSize;
+        try {
+            Bundle bundle = acquire(file, blockSize, true);
+            try {
+                oldSize = bundle.write(index, stObj.getBlob(), created);
+            } catch (ClosedChannelException closed) {
+                oldSize = acquire(file, blockSize, true).write(index, stObj.getBlob(), created);
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + file.getAbsolutePath());
+        }
+        stObj.setCreated(created);
+        /*
+         * This is important because listeners may be tracking tile existence
+         */
+        if (oldSize > 0) {
+            listeners.sendTileUpdated(stObj, oldSize);
+        } else {
+            listeners.sendTileStored(stObj);
+        }
+    }
+
+    public boolean delete(final TileObject stObj) throws StorageException {
+        final long[] xyz = stObj.getXYZ();
+        final File file = bundleFile(stObj);
+        final int blockSize = blockSize(xyz[2]);
+        final int[] index = { tileIndex(xyz[0], xyz[1], blockSize) };
+        int length;
+        try {
+            Bundle bundle = acquire(file, blockSize, false);
+            if (bundle == null) {
+                return false;
+            }
+            try {
+                length = bundle.delete(index, 1)[0];
+            } catch (ClosedChannelException closed) {
+                bundle = acquire(file, blockSize, false);
+                length = bundle == null ? 0 : bundle.delete(index, 1)[0];
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + file.getAbsolutePath());
+        }
+        if (length == 0) {
+            log.trace("delete unexistant tile " + stObj);
+            return false;
+        }
+        stObj.setBlobSize(length);
+        listeners.sendTileDeleted(stObj);
+        return true;
+    }
+
+    /**
+     * Deletes the tiles in the range bundle by bundle, notifying the listeners once per bundle
+     * through {@link BlobStoreListener#tilesDeleted}. Bundles left empty are removed, and the ones
+     * left mostly with garbage are compacted.
+     * <p>
+     * If the range has no {@link TileRange#getParametersId() parameters id} the tiles are deleted
+     * for all the parameter combinations.
+     * </p>
+     *
+     * @see org.geowebcache.storage.BlobStore#delete(org.geowebcache.storage.TileRange)
+     */
+    public boolean delete(final TileRange trObj) throws StorageException {
+        long count = scan(trObj, true, null);
+        log.info("Truncated " + count + " tiles");
+        return true;
+    }
+
+    /**
+     * Reads the index of each bundle intersecting the range, skipping the other ones.
+     *
+     * @see org.geowebcache.storage.BlobStore#stat(TileRange, TileRangeVisitor)
+     */
+    public long stat(final TileRange trObj, final TileRangeVisitor visitor)
+            throws StorageException {
+        return scan(trObj, false, visitor);
+    }
+
+    private long scan(final TileRange trObj, final boolean delete, final TileRangeVisitor visitor)
+            throws StorageException {
+        if (trObj.getGridSetId() == null) {
+            throw new StorageException("Specifying the grid set id is currently mandatory.");
+        }
+        final File layerPath = getLayerPath(trObj.getLayerName());
+        if (!layerPath.isDirectory()) {
+            return 0;
+        }
+
+        final String layerName = trObj.getLayerName();
+        final String gridSetId = trObj.getGridSetId();
+        final String blobFormat = trObj.getMimeType().getFormat();
+        final String suffix = "." + trObj.getMimeType().getFileExtension() + BUNDLE_EXTENSION;
+        final String zoomDirPrefix = FilePathGenerator.filteredGridSetId(gridSetId) + "_";
+        final boolean allZoomLevels = trObj.getZoomStart() == -1 && trObj.getZoomStop() == -1;
+
+        long count = 0;
+        final String[] zoomDirNames = layerPath.list();
+        for (int i = 0; zoomDirNames != null && i < zoomDirNames.length; i++) {
+            final String zoomDirName = zoomDirNames[i];
+            if (!zoomDirName.startsWith(zoomDirPrefix)) {
+                continue;
+            }
+            // <gridsetPrefix>_<zLevel>[_<parametersId>]
+            final int zoomLevel;
+            final Long parametersId;
+            try {
+                String zoomSuffix = zoomDirName.substring(zoomDirPrefix.length());
+                int sep = zoomSuffix.indexOf('_');
+                zoomLevel = Integer.parseInt(sep == -1 ? zoomSuffix : zoomSuffix.substring(0, sep));
+                parametersId = sep == -1 ? null : Long.valueOf(Long.parseLong(zoomSuffix
+                        .substring(sep + 1), 16));
+            } catch (NumberFormatException e) {
+                // some other gridset sharing the prefix
+                continue;
+            }
+            if (!allZoomLevels
+                    && (zoomLevel < trObj.getZoomStart() || zoomLevel > trObj.getZoomStop())) {
+                continue;
+            }
+            if (trObj.getParametersId() != null) {
+                long requested = trObj.getParametersId().longValue();
+                long found = parametersId == null ? -1L : parametersId.longValue();
+                if (requested != found) {
+                    continue;
+                }
+            }
+
+            final File zoomDir = new File(layerPath, zoomDirName);
+            final int blockSize = blockSize(zoomLevel);
+            final String[] bundleNames = zoomDir.list();
+            for (int j = 0; bundleNames != null && j < bundleNames.length; j++) {
+                final String bundleName = bundleNames[j];
+                if (!bundleName.endsWith(suffix)) {
+                    continue;
+                }
+                // <bundleX>_<bundleY>.<extension>.bundle
+                final int sep = bundleName.indexOf('_');
+                final long minx, miny;
+                try {
+                    minx = Long.parseLong(bundleName.substring(0, sep)) * blockSize;
+                    miny = Long.parseLong(bundleName.substring(sep + 1, bundleName.length()
+                            - suffix.length()))
+                            * blockSize;
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                if (!trObj.intersects(minx, miny, minx + blockSize - 1, miny + blockSize - 1,
+                        zoomLevel)) {
+                    continue;
+                }
+                final File file = new File(zoomDir, bundleName);
+                try {
+                    count += scanBundle(trObj, file, blockSize, minx, miny, zoomLevel, delete,
+                            visitor, layerName, gridSetId, blobFormat, parametersId);
+                } catch (IOException e) {
+                    throw new StorageException(e.getMessage() + " for " + file.getAbsolutePath());
+                }
+            }
+
+            if (delete) {
+                // Try deleting the zoom directory (will be done only if the directory is empty)
+                zoomDir.delete();
+            }
+        }
+        return count;
+    }
+
+    private long scanBundle(final TileRange trObj, final File file, final int blockSize,
+            final long minx, final long miny, final int zoomLevel, final boolean delete,
+            final TileRangeVisitor visitor, final String layerName, final String gridSetId,
+            final String blobFormat, final Long parametersId) throws IOException {
+
+        Bundle bundle = acquire(file, blockSize, false);
+        if (bundle == null) {
+            return 0;
+        }
+        int[] lengths;
+        try {
+            lengths = bundle.lengths();
+        } catch (ClosedChannelException closed) {
+            bundle = acquire(file, blockSize, false);
+            if (bundle == null) {
+                return 0;
+            }
+            lengths = bundle.lengths();
+        }
+
+        int found = 0;
+        int[] indexes = new int[lengths.length];
+        int remaining = 0;
+        for (int index = 0; index < lengths.length; index++) {
+            if (lengths[index] == 0) {
+                continue;
+            }
+            final long x = minx + index % blockSize;
+            final long y = miny + index / blockSize;
+            if (!trObj.contains(x, y, zoomLevel)) {
+                remaining++;
+                continue;
+            }
+            indexes[found++] = index;
+        }
+        if (found == 0) {
+            return 0;
+        }
+        if (delete) {
+            try {
+                lengths = bundle.delete(indexes, found);
+            } catch (ClosedChannelException closed) {
+                bundle = acquire(file, blockSize, false);
+                if (bundle == null) {
+                    return 0;
+                }
+                lengths = bundle.delete(indexes, found);
+            }
+        } else {
+            int[] foundLengths = new int[found];
+            for (int i = 0; i < found; i++) {
+                foundLengths[i] = lengths[indexes[i]];
+            }
+            lengths = foundLengths;
+        }
+
+        int visited = 0;
+        long[] xs = new long[found];
+        long[] ys = new long[found];
+        long[] sizes = new long[found];
+        for (int i = 0; i < found; i++) {
+            if (lengths[i] == 0) {
+                // deleted concurrently
+                continue;
+            }
+            xs[visited] = minx + indexes[i] % blockSize;
+            ys[visited] = miny + indexes[i] / blockSize;
+            sizes[visited] = lengths[i];
+            if (visitor != null) {
+                visitor.visit(xs[visited], ys[visited], zoomLevel, sizes[visited]);
+            }
+            visited++;
+        }
+
+        if (delete) {
+            if (visited > 0) {
+                if (visited < found) {
+                    xs = copyOf(xs, visited);
+                    ys = copyOf(ys, visited);
+                    sizes = copyOf(sizes, visited);
+                }
+                listeners.sendTilesDeleted(layerName, gridSetId, blobFormat, parametersId,
+                        zoomLevel, xs, ys, sizes);
+            }
+            // checked and deleted under the bundle write lock, a concurrent put either lands
+            // before and keeps it, or finds it closed and creates it again
+            if (remaining == 0 && deleteIfEmpty(bundle)) {
+                openBundles.remove(file, bundle);
+            } else if (!bundle.isClosed() && bundle.needsCompaction()) {
+                log.debug("Compacting " + file.getAbsolutePath());
+                bundle.compact();
+            }
+        }
+        return visited;
+    }
+
+    private static boolean deleteIfEmpty(final Bundle bundle) throws IOException {
+        try {
+            return bundle.deleteIfEmpty();
+        } catch (ClosedChannelException closed) {
+            // closed by another thread in the meantime, it'll be found empty next time
+            return false;
+        }
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#delete(java.lang.String)
+     */
+    public boolean delete(final String layerName) throws StorageException {
+        final File layerPath = getLayerPath(layerName);
+        if (!layerPath.exists() || !layerPath.canWrite()) {
+            log.info(layerPath + " does not exist or is not writable");
+            return false;
+        }
+        openBundles.closeAll(layerPath);
+        try {
+            FileUtils.deleteDirectory(layerPath);
+        } catch (IOException e) {
+            throw new StorageException("Unable to delete " + layerPath.getAbsolutePath() + ": "
+                    + e.getMessage());
+        }
+        listeners.sendLayerDeleted(layerName);
+        return true;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#deleteByGridsetId(java.lang.String, java.lang.String)
+     */
+    public boolean deleteByGridsetId(final String layerName, final String gridSetId)
+            throws StorageException {
+        final File layerPath = getLayerPath(layerName);
+        if (!layerPath.exists() || !layerPath.canWrite()) {
+            log.info(layerPath + " does not exist or is not writable");
+            return false;
+        }
+        final String filteredGridSetId = FilePathGenerator.filteredGridSetId(gridSetId);
+        final File[] gridSubsetCaches = layerPath.listFiles();
+        for (int i = 0; gridSubsetCaches != null && i < gridSubsetCaches.length; i++) {
+            final File gridSubsetCache = gridSubsetCaches[i];
+            if (!gridSubsetCache.isDirectory()
+                    || !gridSubsetCache.getName().startsWith(filteredGridSetId)) {
+                continue;
+            }
+            openBundles.closeAll(gridSubsetCache);
+            try {
+                FileUtils.deleteDirectory(gridSubsetCache);
+            } catch (IOException e) {
+                throw new StorageException("Unable to delete "
+                        + gridSubsetCache.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+        listeners.sendGridSubsetDeleted(layerName, gridSetId);
+        return true;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#rename(java.lang.String, java.lang.String)
+     */
+    public boolean rename(final String oldLayerName, final String newLayerName)
+            throws StorageException {
+        final File oldLayerPath = getLayerPath(oldLayerName);
+        final File newLayerPath = getLayerPath(newLayerName);
+
+        if (newLayerPath.exists()) {
+            throw new StorageException("Can't rename layer directory " + oldLayerPath + " to "
+                    + newLayerPath + ". Target directory already exists");
+        }
+        if (!oldLayerPath.exists()) {
+            listeners.sendLayerRenamed(oldLayerName, newLayerName);
+            return true;
+        }
+        if (!oldLayerPath.canWrite()) {
+            log.info(oldLayerPath + " is not writable");
+            return false;
+        }
+        openBundles.closeAll(oldLayerPath);
+        if (!oldLayerPath.renameTo(newLayerPath)) {
+            throw new StorageException("Couldn't rename layer directory " + oldLayerPath + " to "
+                    + newLayerPath);
+        }
+        listeners.sendLayerRenamed(oldLayerName, newLayerName);
+        return true;
+    }
+
+    public void clear() throws StorageException {
+        throw new StorageException("Not implemented yet!");
+    }
+
+    /**
+     * Destroy method for Spring, stops the compaction passes and closes all the open bundles
+     */
+    public void destroy() {
+        compactionService.shutdownNow();
+        openBundles.closeAll(null);
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#getLayerMetadata(java.lang.String, java.lang.String)
+     */
+    public String getLayerMetadata(final String layerName, final String key) {
+        return FileBlobStore.getLayerMetadata(getMetadataFile(layerName), key);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#putLayerMetadata(java.lang.String, java.lang.String,
+     *      java.lang.String)
+     */
+    public void putLayerMetadata(final String layerName, final String key, final String value) {
+        FileBlobStore.putLayerMetadata(getMetadataFile(layerName), key, value);
+    }
+
+    private File getMetadataFile(final String layerName) {
+        return new File(getLayerPath(layerName), "metadata.properties");
+    }
+
+    private File getLayerPath(String layerName) {
+        return new File(path, FilePathGenerator.filteredLayerName(layerName));
+    }
+
+    /**
+     * @return the index of the tile inside its bundle
+     */
+    private static int tileIndex(long x, long y, int blockSize) {
+        return (int) ((y % blockSize) * blockSize + (x % blockSize));
+    }
+
+    private File bundleFile(final TileObject stObj) {
+        final MimeType mimeType;
+        try {
+            mimeType = MimeType.createFromFormat(stObj.getBlobFormat());
+        } catch (MimeException me) {
+            log.error(me.getMessage());
+            throw new RuntimeException(me);
+        }
+        final long[] xyz = stObj.getXYZ();
+        final int blockSize = blockSize(xyz[2]);
+        final long parametersId = stObj.getParametersId();
+
+        StringBuilder name = new StringBuilder(FilePathGenerator.gridsetZoomLevelDir(stObj
+                .getGridSetId(), xyz[2]));
+        if (parametersId != -1L) {
+            name.append('_').append(Long.toHexString(parametersId));
+        }
+        File zoomDir = new File(getLayerPath(stObj.getLayerName()), name.toString());
+
+        name.setLength(0);
+        name.append(xyz[0] / blockSize).append('_').append(xyz[1] / blockSize);
+        name.append('.').append(mimeType.getFileExtension()).append(BUNDLE_EXTENSION);
+        return new File(zoomDir, name.toString());
+    }
+
+    /**
+     * @return the open bundle for the given file, opening it if needed, or {@code null} if it does
+     *         not exist and {@code create} is {@code false}
+     */
+    private Bundle acquire(final File file, final int blockSize, final boolean create)
+            throws IOException {
+        synchronized (openBundles) {
+            Bundle bundle = openBundles.get(file);
+            if (bundle == null || bundle.isClosed()) {
+                bundle = Bundle.open(file, blockSize, create);
+                if (bundle != null) {
+                    openBundles.put(file, bundle);
+                }
+            }
+            return bundle;
+        }
+    }
+
+    /**
+     * Least recently used open bundles, closing the eldest ones beyond the maximum. Callers
+     * synchronize on the map itself.
+     */
+    private static final class OpenBundles extends LinkedHashMap<File, Bundle> {
+
+        private static final long serialVersionUID = 1L;
+
+        int maxOpen = DEFAULT_MAX_OPEN_BUNDLES;
+
+        OpenBundles() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Bundle> eldest) {
+            if (size() > maxOpen) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Forgets the bundle if still the open one for the file
+         */
+        synchronized void remove(File file, Bundle bundle) {
+            if (get(file) == bundle) {
+                remove(file);
+            }
+        }
+
+        /**
+         * Closes the open bundles under the given directory, or all of them if {@code null}
+         */
+        void closeAll(File directory) {
+            final String prefix = directory == null ? null : directory.getAbsolutePath()
+                    + File.separator;
+            List<Bundle> closing = new ArrayList<Bundle>();
+            synchronized (this) {
+                for (Iterator<Map.Entry<File, Bundle>> it = entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<File, Bundle> entry = it.next();
+                    if (prefix == null || entry.getKey().getAbsolutePath().startsWith(prefix)) {
+                        closing.add(entry.getValue());
+                        it.remove();
+                    }
+                }
+            }
+            for (Bundle bundle : closing) {
+                closeQuietly(bundle);
+            }
+        }
+
+        private static void closeQuietly(Bundle bundle) {
+            if (bundle == null) {
+                return;
+            }
+            try {
+                bundle.close();
+            } catch (IOException e) {
+                log.warn("Error closing bundle " + bundle.file.getAbsolutePath(), e);
+            }
+        }
+    }
+}
@@ -46,6 +46,7 @@ import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeVisitor;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
@@ -58,6 +59,12 @@ public class FileBlobStore implements BlobStore {
 
     public static final int BUFFER_SIZE = 32768;
 
+    /**
+     * Ranges with up to this many tiles are looked up tile by tile rather than listing their
+     * directories
+     */
+    private static final int MAX_TILES_STAT_ONE_BY_ONE = 256;
+
     private final File stagingArea;
 
     private final String path;
@@ -319,69 +326,256 @@ public class FileBlobStore implements BlobStore {
         return ret;
     }
 
+    /**
+     * Deletes the tiles in the range with a single listing of each zoom level and intermediate
+     * directory, skipping the intermediate directories that fall outside of the range bounds.
+     * Listeners are notified once per intermediate directory through
+     * {@link BlobStoreListener#tilesDeleted}.
+     * <p>
+     * If the range has no {@link TileRange#getParametersId() parameters id} the tiles are deleted
+     * for all the parameter combinations.
+     * </p>
+     * 
+     * @see org.geowebcache.storage.BlobStore#delete(org.geowebcache.storage.TileRange)
+     */
     public boolean delete(TileRange trObj) throws StorageException {
-        int count = 0;
+        long count = scan(trObj, true, null);
+        log.info("Truncated " + count + " tiles");
+        return true;
+    }
 
-        String prefix = path + File.separator
-                + FilePathGenerator.filteredLayerName(trObj.getLayerName());
+    /**
+     * Small ranges (e.g. a metatile) are looked up tile by tile, bigger ones with a single listing
+     * of each zoom level and intermediate directory, skipping the intermediate directories that
+     * fall outside of the range bounds.
+     * <p>
+     * If the range has no {@link TileRange#getParametersId() parameters id} the tiles are looked
+     * up for all the parameter combinations.
+     * </p>
+     * 
+     * @see org.geowebcache.storage.BlobStore#stat(TileRange, TileRangeVisitor)
+     */
+    public long stat(final TileRange trObj, final TileRangeVisitor visitor)
+            throws StorageException {
+        if (trObj.getParametersId() != null && countTiles(trObj) <= MAX_TILES_STAT_ONE_BY_ONE) {
+            return statOneByOne(trObj, visitor);
+        }
+        return scan(trObj, false, visitor);
+    }
 
-        final File layerPath = new File(prefix);
+    /**
+     * @return number of tiles in the range bounds, or {@code Long.MAX_VALUE} if unbounded
+     */
+    private static long countTiles(TileRange trObj) {
+        if (trObj.getZoomStart() < 0) {
+            return Long.MAX_VALUE;
+        }
+        long count = 0;
+        for (int z = trObj.getZoomStart(); z <= trObj.getZoomStop(); z++) {
+            final long[] bounds;
+            try {
+                bounds = trObj.rangeBounds(z);
+            } catch (RuntimeException unbounded) {
+                return Long.MAX_VALUE;
+            }
+            count += (bounds[2] - bounds[0] + 1) * (bounds[3] - bounds[1] + 1);
+            if (count > MAX_TILES_STAT_ONE_BY_ONE) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private long statOneByOne(final TileRange trObj, final TileRangeVisitor visitor) {
+        final long parametersId = trObj.getParametersId().longValue();
+        final long[] xyz = new long[3];
+        long count = 0;
+        for (int z = trObj.getZoomStart(); z <= trObj.getZoomStop(); z++) {
+            final long[] bounds = trObj.rangeBounds(z);
+            xyz[2] = z;
+            for (long y = bounds[1]; y <= bounds[3]; y++) {
+                for (long x = bounds[0]; x <= bounds[2]; x++) {
+                    if (!trObj.contains(x, y, z)) {
+                        continue;
+                    }
+                    xyz[0] = x;
+                    xyz[1] = y;
+                    File tile = FilePathGenerator.tilePath(path, trObj.getLayerName(), xyz,
+                            trObj.getGridSetId(), trObj.getMimeType(), parametersId);
+                    // File.length() returns 0 if the file does not exist, saves a call to exists()
+                    long length = tile.length();
+                    if (length > 0) {
+                        visitor.visit(x, y, z, length);
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
 
+    /**
+     * Walks the zoom level and intermediate directories of the range, either deleting the tiles in
+     * it or reporting them to the visitor
+     * 
+     * @return the number of tiles deleted or visited
+     */
+    private long scan(final TileRange trObj, final boolean delete, final TileRangeVisitor visitor)
+            throws StorageException {
+        if (trObj.getGridSetId() == null) {
+            throw new StorageException("Specifying the grid set id is currently mandatory.");
+        }
+        final File layerPath = getLayerPath(trObj.getLayerName());
         if (!layerPath.exists()) {
-            return true;
+            return 0;
         }
-        if (!layerPath.isDirectory() || !layerPath.canWrite()) {
-            throw new StorageException(prefix + " does is not a directory or is not writable.");
+        if (!layerPath.isDirectory() || (delete && !layerPath.canWrite())) {
+            throw new StorageException(layerPath + " is not a directory or is not writable.");
         }
-        
-        final FilePathFilter tileFinder = new FilePathFilter(trObj);
 
         final String layerName = trObj.getLayerName();
         final String gridSetId = trObj.getGridSetId();
         final String blobFormat = trObj.getMimeType().getFormat();
-        // FRD trObj.getParametersId();
-        final Long parametersId = trObj.getParametersId();
-
-        File[] srsZoomDirs = layerPath.listFiles(tileFinder);
-
-        final String gridsetPrefix = FilePathGenerator.filteredGridSetId(gridSetId);
-        for (File srsZoomParamId : srsZoomDirs) {
-            int zoomLevel = FilePathGenerator.findZoomLevel(gridsetPrefix, srsZoomParamId.getName());
-            File[] intermediates = srsZoomParamId.listFiles(tileFinder);
-
-            for (File imd : intermediates) {
-                File[] tiles = imd.listFiles(tileFinder);
-                long length;
-
-                for (File tile : tiles) {
-                    length = tile.length();
-                    boolean deleted = tile.delete();
-                    if (deleted) {
-                        String[] coords = tile.getName().split("\\.")[0].split("_");
-                        long x = Long.parseLong(coords[0]);
-                        long y = Long.parseLong(coords[1]);
-                        listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId,
-                                x, y, zoomLevel, length);
-                        count++;
-                    }
+        final String extension = "." + trObj.getMimeType().getFileExtension();
+        final String zoomDirPrefix = FilePathGenerator.filteredGridSetId(gridSetId) + "_";
+        final boolean allZoomLevels = trObj.getZoomStart() == -1 && trObj.getZoomStop() == -1;
+
+        long count = 0;
+        final String[] zoomDirNames = layerPath.list();
+        for (int i = 0; zoomDirNames != null && i < zoomDirNames.length; i++) {
+            final String zoomDirName = zoomDirNames[i];
+            if (!zoomDirName.startsWith(zoomDirPrefix)) {
+                continue;
+            }
+            // <gridsetPrefix>_<zLevel>[_<parametersId>]
+            final int zoomLevel;
+            final Long parametersId;
+            try {
+                String suffix = zoomDirName.substring(zoomDirPrefix.length());
+                int sep = suffix.indexOf('_');
+                zoomLevel = Integer.parseInt(sep == -1 ? suffix : suffix.substring(0, sep));
+                parametersId = sep == -1 ? null : Long.valueOf(Long.parseLong(suffix
+                        .substring(sep + 1), 16));
+            } catch (NumberFormatException e) {
+                // some other gridset sharing the prefix
+                continue;
+            }
+            if (!allZoomLevels
+                    && (zoomLevel < trObj.getZoomStart() || zoomLevel > trObj.getZoomStop())) {
+                continue;
+            }
+            if (trObj.getParametersId() != null) {
+                long requested = trObj.getParametersId().longValue();
+                long found = parametersId == null ? -1L : parametersId.longValue();
+                if (requested != found) {
+                    continue;
                 }
+            }
 
-                // Try deleting the directory (will be done only if the directory is empty)
-                if (imd.delete()) {
-                    // listeners.sendDirectoryDeleted(layerName);
+            final File zoomDir = new File(layerPath, zoomDirName);
+            final long blockSize = 2L << (zoomLevel / 2);
+            final String[] intermediateNames = zoomDir.list();
+            for (int j = 0; intermediateNames != null && j < intermediateNames.length; j++) {
+                final String intermediateName = intermediateNames[j];
+                if (!intersects(trObj, intermediateName, blockSize, zoomLevel)) {
+                    continue;
+                }
+                final File intermediate = new File(zoomDir, intermediateName);
+                final String[] tileNames = intermediate.list();
+                if (tileNames == null) {
+                    continue;
+                }
+                int found = 0;
+                long[] xs = new long[tileNames.length];
+                long[] ys = new long[tileNames.length];
+                long[] sizes = new long[tileNames.length];
+                for (int k = 0; k < tileNames.length; k++) {
+                    final String tileName = tileNames[k];
+                    // <x>_<y>.<extension>
+                    if (!tileName.regionMatches(true, tileName.length() - extension.length(),
+                            extension, 0, extension.length())) {
+                        continue;
+                    }
+                    final int sep = tileName.indexOf('_');
+                    if (sep == -1) {
+                        continue;
+                    }
+                    final long x, y;
+                    try {
+                        x = Long.parseLong(tileName.substring(0, sep));
+                        y = Long.parseLong(tileName.substring(sep + 1, tileName.length()
+                                - extension.length()));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    if (!trObj.contains(x, y, zoomLevel)) {
+                        continue;
+                    }
+                    final File tile = new File(intermediate, tileName);
+                    final long length = tile.length();
+                    if (delete ? !tile.delete() : length <= 0) {
+                        continue;
+                    }
+                    if (visitor != null) {
+                        visitor.visit(x, y, zoomLevel, length);
+                    }
+                    xs[found] = x;
+                    ys[found] = y;
+                    sizes[found] = length;
+                    found++;
+                }
+                count += found;
+
+                if (delete) {
+                    if (found > 0) {
+                        if (found < xs.length) {
+                            xs = copyOf(xs, found);
+                            ys = copyOf(ys, found);
+                            sizes = copyOf(sizes, found);
+                        }
+                        listeners.sendTilesDeleted(layerName, gridSetId, blobFormat,
+                                parametersId, zoomLevel, xs, ys, sizes);
+                    }
+                    // Try deleting the directory (will be done only if the directory is empty)
+                    intermediate.delete();
                 }
             }
 
-            // Try deleting the zoom directory (will be done only if the directory is empty)
-            if (srsZoomParamId.delete()) {
-                count++;
-                // listeners.sendDirectoryDeleted(layerName);
+            if (delete) {
+                // Try deleting the zoom directory (will be done only if the directory is empty)
+                zoomDir.delete();
             }
         }
+        return count;
+    }
 
-        log.info("Truncated " + count + " tiles");
+    /**
+     * @return whether the intermediate directory, holding a {@code blockSize * blockSize} block of
+     *         tiles, may contain tiles of the range
+     */
+    private static boolean intersects(TileRange trObj, String intermediateName, long blockSize,
+            int zoomLevel) {
+        // <x / blockSize>_<y / blockSize>
+        final int sep = intermediateName.indexOf('_');
+        if (sep == -1) {
+            return true;
+        }
+        final long blockX, blockY;
+        try {
+            blockX = Long.parseLong(intermediateName.substring(0, sep));
+            blockY = Long.parseLong(intermediateName.substring(sep + 1));
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        final long minx = blockX * blockSize;
+        final long miny = blockY * blockSize;
+        return trObj.intersects(minx, miny, minx + blockSize - 1, miny + blockSize - 1, zoomLevel);
+    }
 
-        return true;
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
     }
 
     public Resource get(TileObject stObj) throws StorageException {
@@ -515,7 +709,23 @@ public class FileBlobStore implements BlobStore {
      * @see org.geowebcache.storage.BlobStore#getLayerMetadata(java.lang.String, java.lang.String)
      */
     public String getLayerMetadata(final String layerName, final String key) {
-        Properties metadata = getLayerMetadata(layerName);
+        return getLayerMetadata(getMetadataFile(layerName), key);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#putLayerMetadata(java.lang.String, java.lang.String,
+     *      java.lang.String)
+     */
+    public void putLayerMetadata(final String layerName, final String key, final String value) {
+        putLayerMetadata(getMetadataFile(layerName), key, value);
+    }
+
+    /**
+     * Looks up a layer metadata value in the given properties file, shared with the other file
+     * system based blob stores
+     */
+    static String getLayerMetadata(final File metadataFile, final String key) {
+        Properties metadata = loadLayerMetadata(metadataFile);
         String value = metadata.getProperty(key);
         if (value != null) {
             try {
@@ -528,11 +738,11 @@ public class FileBlobStore implements BlobStore {
     }
 
     /**
-     * @see org.geowebcache.storage.BlobStore#putLayerMetadata(java.lang.String, java.lang.String,
-     *      java.lang.String)
+     * Stores a layer metadata value in the given properties file, shared with the other file
+     * system based blob stores
      */
-    public void putLayerMetadata(final String layerName, final String key, final String value) {
-        Properties metadata = getLayerMetadata(layerName);
+    static void putLayerMetadata(final File metadataFile, final String key, final String value) {
+        Properties metadata = loadLayerMetadata(metadataFile);
         if (null == value) {
             metadata.remove(key);
         } else {
@@ -543,8 +753,6 @@ public class FileBlobStore implements BlobStore {
             }
         }
 
-        final File metadataFile = getMetadataFile(layerName);
-
         final String lockObj = metadataFile.getAbsolutePath().intern();
         synchronized (lockObj) {
             OutputStream out;
@@ -571,8 +779,7 @@ public class FileBlobStore implements BlobStore {
         }
     }
 
-    private Properties getLayerMetadata(final String layerName) {
-        final File metadataFile = getMetadataFile(layerName);
+    private static Properties loadLayerMetadata(final File metadataFile) {
         Properties properties = new Properties();
         final String lockObj = metadataFile.getAbsolutePath().intern();
         synchronized (lockObj) {
@@ -31,44 +31,129 @@ import java.util.TreeMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.TileLayerDispatcherListener;
 import org.geowebcache.storage.StorageException;
 
+/**
+ * Translates layer names, formats, gridset ids and parameters to the ids of the metastore tables,
+ * keeping the most recently used ones in memory.
+ * <p>
+ * Lookups of cached ids only hold the lock of a bounded LRU map for a moment. Ids not cached are
+ * looked up, or inserted, in the database one at a time per table, so that concurrent requests
+ * for a new value don't race inserting it twice.
+ * </p>
+ */
 class JDBCMBIdCache {
     private static Log log = LogFactory
             .getLog(org.geowebcache.storage.metastore.jdbc.JDBCMBIdCache.class);
 
+    /** Minimum number of formats kept in memory */
     public static int MAX_FORMATS = 50;
 
+    /**
+     * Minimum number of layers kept in memory, twice the number of configured layers are kept if
+     * larger
+     */
     public static int MAX_LAYERS = 100;
 
+    /**
+     * Minimum number of parameter combinations kept in memory, twice the number of configured
+     * layers are kept if larger
+     */
     public static int MAX_PARAMETERS = 100;
 
+    /** Minimum number of gridsets kept in memory */
     public static int MAX_GRIDSETS = 50;
 
-    private final Map<String, Long> formatsCache;
+    private final JDBCMBLRUCache<String, Long> formatsCache;
 
-    private final Map<String, Long> layersCache;
+    private final JDBCMBLRUCache<String, Long> layersCache;
 
-    private final Map<String, Long> serializedParametersCache;
+    private final JDBCMBLRUCache<Map<String, String>, Long> parametersCache;
 
-    private final Map<Map<String, String>, Long> parametersCache;
+    private final JDBCMBLRUCache<String, Long> gridSetsCache;
 
-    private final Map<String, Long> gridSetsCache;
+    /** Held while loading an id missing from the cache, one per table */
+    private final Object formatsLoadLock = new Object();
+
+    private final Object layersLoadLock = new Object();
+
+    private final Object parametersLoadLock = new Object();
+
+    private final Object gridSetsLoadLock = new Object();
+
+    private volatile TileLayerDispatcher layerDispatcher;
 
     private final JDBCMBWrapper wrpr;
 
     protected JDBCMBIdCache(JDBCMBWrapper wrpr) {
-        formatsCache = new HashMap<String, Long>();
-        layersCache = new HashMap<String, Long>();
-        parametersCache = new HashMap<Map<String, String>, Long>();
-        serializedParametersCache = new HashMap<String, Long>();
-        gridSetsCache = new HashMap<String, Long>();
+        formatsCache = new JDBCMBLRUCache<String, Long>(MAX_FORMATS);
+        layersCache = new JDBCMBLRUCache<String, Long>(MAX_LAYERS);
+        parametersCache = new JDBCMBLRUCache<Map<String, String>, Long>(MAX_PARAMETERS);
+        gridSetsCache = new JDBCMBLRUCache<String, Long>(MAX_GRIDSETS);
 
         this.wrpr = wrpr;
     }
 
-    private Long getOrInsert(String key, Map<String, Long> map, int maxSize, String table)
-            throws StorageException {
+    /**
+     * Sizes the layer and parameter caches after the number of configured layers, checked again
+     * each time layers are added, removed or reloaded
+     */
+    void setTileLayerDispatcher(TileLayerDispatcher layerDispatcher) {
+        this.layerDispatcher = layerDispatcher;
+        if (layerDispatcher == null) {
+            return;
+        }
+        resize();
+        layerDispatcher.addListener(new TileLayerDispatcherListener() {
+            public void layerAdded(String layerName) {
+                resize();
+            }
+
+            public void layerRemoved(String layerName) {
+                resize();
+            }
+
+            public void configurationReloaded() {
+                resize();
+            }
+
+            public void layerModified(String layerName) {
+                // same number of layers
+            }
+
+            public void gridSetAdded(String gridSetName) {
+                // not sized after gridsets
+            }
+
+            public void gridSetRemoved(String gridSetName) {
+                // not sized after gridsets
+            }
+        });
+    }
+
+    private void resize() {
+        final TileLayerDispatcher dispatcher = layerDispatcher;
+        if (dispatcher == null) {
+            return;
+        }
+        final int layerCount;
+        try {
+            layerCount = dispatcher.getLayerCount();
+        } catch (RuntimeException e) {
+            log.debug("Can't count the layers to size the id caches: " + e.getMessage());
+            return;
+        }
+        final int layers = Math.max(MAX_LAYERS, 2 * layerCount);
+        if (layers != layersCache.getMaxSize()) {
+            log.debug("Keeping up to " + layers + " layer and parameter ids in memory");
+            layersCache.setMaxSize(layers);
+            parametersCache.setMaxSize(Math.max(MAX_PARAMETERS, 2 * layerCount));
+        }
+    }
+
+    private Long getOrInsert(String key, String table) throws StorageException {
         if (key.length() > 254) {
             throw new StorageException("Value is too big for table " + table + ":" + key);
         }
@@ -83,15 +168,25 @@ class JDBCMBIdCache {
             log.error("Error on Select or Insert: " + se.getMessage());
         }
 
-        /** Keep the result for later */
-        if (res != null) {
-            if (map.size() > maxSize)
-                map.clear();
+        return res;
+    }
 
-            map.put(key, res);
+    private Long getId(String key, JDBCMBLRUCache<String, Long> cache, Object loadLock,
+            String table) throws StorageException {
+        Long ret = cache.get(key);
+        if (ret == null) {
+            synchronized (loadLock) {
+                ret = cache.get(key);
+                if (ret == null) {
+                    ret = getOrInsert(key, table);
+                    /** Keep the result for later */
+                    if (ret != null) {
+                        cache.put(key, ret);
+                    }
+                }
+            }
         }
-
-        return res;
+        return ret;
     }
 
     /**
@@ -156,41 +251,34 @@ class JDBCMBIdCache {
     }
 
     protected Long getFormatId(String format) throws StorageException {
-        synchronized (this.formatsCache) {
-            Long ret = formatsCache.get(format);
-            if (ret == null)
-                ret = getOrInsert(format, formatsCache, MAX_FORMATS, "FORMATS");
-
-            return ret;
-        }
+        return getId(format, formatsCache, formatsLoadLock, "FORMATS");
     }
 
     protected Long getLayerId(String layer) throws StorageException {
-        synchronized (this.layersCache) {
-            Long ret = layersCache.get(layer);
-            if (ret == null)
-                ret = getOrInsert(layer, layersCache, MAX_LAYERS, "LAYERS");
-
-            return ret;
-        }
+        return getId(layer, layersCache, layersLoadLock, "LAYERS");
     }
 
+    /**
+     * The parameters are only serialized to look them up in the database, cached ids are found by
+     * the parameters map itself
+     */
     protected long getParametersId(Map<String, String> parameteres) throws StorageException {
         if (parameteres == null || parameteres.size() == 0) {
             return -1L;
         }
-        synchronized (this.parametersCache) {
-            Long ret = parametersCache.get(parameteres);
-            if (ret == null) {
-                String serializedParameters;
-                serializedParameters = marshall(parameteres);
-                ret = getOrInsert(serializedParameters, serializedParametersCache, MAX_PARAMETERS,
-                        "PARAMETERS");
-                parametersCache.put(new HashMap<String, String>(parameteres), ret);
+        Long ret = parametersCache.get(parameteres);
+        if (ret == null) {
+            synchronized (parametersLoadLock) {
+                ret = parametersCache.get(parameteres);
+                if (ret == null) {
+                    ret = getOrInsert(marshall(parameteres), "PARAMETERS");
+                    if (ret != null) {
+                        parametersCache.put(new HashMap<String, String>(parameteres), ret);
+                    }
+                }
             }
-
-            return ret;
         }
+        return ret;
     }
 
     private String marshall(Map<String, String> parameters) {
@@ -203,20 +291,13 @@ class JDBCMBIdCache {
     }
 
     protected Long getGridSetsId(String gridSetId) throws StorageException {
-        synchronized (this.gridSetsCache) {
-            Long ret = gridSetsCache.get(gridSetId);
-            if (ret == null)
-                ret = getOrInsert(gridSetId, gridSetsCache, MAX_GRIDSETS, "GRIDSETS");
-
-            return ret;
-        }
+        return getId(gridSetId, gridSetsCache, gridSetsLoadLock, "GRIDSETS");
     }
 
-    public synchronized void clear() {
+    public void clear() {
         this.formatsCache.clear();
         this.gridSetsCache.clear();
         this.layersCache.clear();
         this.parametersCache.clear();
-        this.serializedParametersCache.clear();
     }
 }
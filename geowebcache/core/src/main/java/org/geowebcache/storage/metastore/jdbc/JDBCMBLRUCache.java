@@ -0,0 +1,124 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.metastore.jdbc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe map holding up to {@code maxSize} entries, evicting the least recently used ones.
+ * <p>
+ * All methods hold the lock for a constant time only, callers are expected to load the missing
+ * values without holding it, between {@link #startLoad(Object)} and
+ * {@link #endLoad(Object, Object, Object)} so that a value loaded while the key is
+ * {@link #remove(Object) removed} isn't cached.
+ * </p>
+ */
+class JDBCMBLRUCache<K, V> {
+
+    private final Map<K, V> map;
+
+    private int maxSize;
+
+    /**
+     * Loads in progress by key, dropped when the key is removed as the value loaded may be stale
+     */
+    private final Map<K, Object> loads = new HashMap<K, Object>();
+
+    JDBCMBLRUCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > JDBCMBLRUCache.this.maxSize;
+            }
+        };
+    }
+
+    synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+        if (maxSize > 0) {
+            map.put(key, value);
+        }
+    }
+
+    synchronized V remove(K key) {
+        loads.remove(key);
+        return map.remove(key);
+    }
+
+    synchronized void clear() {
+        loads.clear();
+        map.clear();
+    }
+
+    /**
+     * Marks the start of loading the value of a key missing from the cache
+     * 
+     * @return the token to pass to {@link #endLoad(Object, Object, Object)} once loaded
+     */
+    synchronized Object startLoad(K key) {
+        final Object token = new Object();
+        loads.put(key, token);
+        return token;
+    }
+
+    /**
+     * Caches the value loaded since {@link #startLoad(Object)}, unless the key was removed, or
+     * started loading again, meanwhile. To be called whatever the outcome of the load.
+     * 
+     * @param value
+     *            the value loaded, {@code null} if none
+     * @return whether the value was cached
+     */
+    synchronized boolean endLoad(K key, Object token, V value) {
+        if (loads.get(key) != token) {
+            return false;
+        }
+        loads.remove(key);
+        if (value == null || maxSize <= 0) {
+            return false;
+        }
+        map.put(key, value);
+        return true;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the capacity, evicting the least recently used entries if it shrinks
+     */
+    synchronized void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+        Iterator<K> keys = map.keySet().iterator();
+        for (int i = map.size(); i > maxSize; i--) {
+            keys.next();
+            keys.remove();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.metastore.jdbc;
+
+import org.geowebcache.storage.TileObject;
+
+/**
+ * Identifies a tile by its layer, gridset, format, parameters and position
+ */
+final class JDBCMBTileKey {
+    final long layerId;
+
+    final long gridSetIdId;
+
+    final long formatId;
+
+    final long parametersId;
+
+    final long x;
+
+    final long y;
+
+    final long z;
+
+    JDBCMBTileKey(TileObject stObj) {
+        final long[] xyz = stObj.getXYZ();
+        this.layerId = stObj.getLayerId();
+        this.gridSetIdId = stObj.getGridSetIdId();
+        this.formatId = stObj.getFormatId();
+        this.parametersId = stObj.getParametersId();
+        this.x = xyz[0];
+        this.y = xyz[1];
+        this.z = xyz[2];
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof JDBCMBTileKey)) {
+            return false;
+        }
+        JDBCMBTileKey t = (JDBCMBTileKey) o;
+        return x == t.x && y == t.y && z == t.z && layerId == t.layerId
+                && gridSetIdId == t.gridSetIdId && formatId == t.formatId
+                && parametersId == t.parametersId;
+    }
+
+    public int hashCode() {
+        long h = 17;
+        h = 31 * h + x;
+        h = 31 * h + y;
+        h = 31 * h + z;
+        h = 31 * h + layerId;
+        h = 31 * h + gridSetIdId;
+        h = 31 * h + formatId;
+        h = 31 * h + parametersId;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.metastore.jdbc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.TileObject;
+
+/**
+ * The tiles being stored by this JVM, between {@link JDBCMetaBackend#put(TileObject)} and
+ * {@link JDBCMetaBackend#unlock(TileObject)}.
+ * <p>
+ * Requests finding one of these tiles locked wait here to be notified when it's unlocked, instead
+ * of querying the database every {@code lockRetryDelay} milliseconds. The LOCK column of the
+ * tiles table is still what protects the tiles stored by other processes sharing the database,
+ * and those are still polled for.
+ * </p>
+ */
+class JDBCMBTileLocks {
+
+    private static Log log = LogFactory.getLog(JDBCMBTileLocks.class);
+
+    private final Map<JDBCMBTileKey, TileLock> locks = new HashMap<JDBCMBTileKey, TileLock>();
+
+    /**
+     * Marks the tile as being stored. Calls must be paired with {@link #unlock(TileObject)}, the
+     * lock is held until every thread storing the tile unlocks it.
+     */
+    void lock(final TileObject stObj) {
+        final JDBCMBTileKey key = new JDBCMBTileKey(stObj);
+        synchronized (locks) {
+            TileLock lock = locks.get(key);
+            if (lock == null) {
+                lock = new TileLock(System.currentTimeMillis());
+                locks.put(key, lock);
+            }
+            lock.holders++;
+        }
+    }
+
+    /**
+     * Releases the lock taken by {@link #lock(TileObject)}, waking up the threads waiting for the
+     * tile
+     */
+    void unlock(final TileObject stObj) {
+        final JDBCMBTileKey key = new JDBCMBTileKey(stObj);
+        final TileLock lock;
+        synchronized (locks) {
+            lock = locks.get(key);
+            if (lock == null || --lock.holders > 0) {
+                return;
+            }
+            locks.remove(key);
+        }
+        lock.release();
+    }
+
+    /**
+     * Waits for the tile to be unlocked, if locked by this JVM. Locks older than
+     * {@code lockTimeout} milliseconds are dropped, as the database does.
+     *
+     * @return {@code false} if the tile is not locked by this JVM, so it's either unlocked
+     *         already or being stored by another process
+     */
+    boolean await(final TileObject stObj, final long lockTimeout) throws InterruptedException {
+        final JDBCMBTileKey key = new JDBCMBTileKey(stObj);
+        final TileLock lock;
+        synchronized (locks) {
+            lock = locks.get(key);
+        }
+        if (lock == null) {
+            return false;
+        }
+        if (!lock.await(lock.lockedSince + lockTimeout)) {
+            synchronized (locks) {
+                if (locks.get(key) == lock) {
+                    log.warn("Lock exceeded (" + lockTimeout + "ms) for " + stObj
+                            + ", no longer waiting for it.");
+                    locks.remove(key);
+                }
+            }
+            lock.release();
+        }
+        return true;
+    }
+
+    /**
+     * Number of tiles currently locked
+     */
+    int size() {
+        synchronized (locks) {
+            return locks.size();
+        }
+    }
+
+    private static final class TileLock {
+        final long lockedSince;
+
+        /**
+         * Number of threads storing the tile, guarded by the locks map
+         */
+        int holders;
+
+        private boolean released;
+
+        TileLock(long lockedSince) {
+            this.lockedSince = lockedSince;
+        }
+
+        synchronized void release() {
+            released = true;
+            notifyAll();
+        }
+
+        /**
+         * @return whether the lock was released before {@code deadline}
+         */
+        synchronized boolean await(long deadline) throws InterruptedException {
+            long remaining;
+            while (!released && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            return released;
+        }
+    }
+}
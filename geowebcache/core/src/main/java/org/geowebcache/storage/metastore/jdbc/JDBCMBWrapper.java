@@ -28,6 +28,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.Arrays;
+import java.util.List;
 
 import javax.sql.DataSource;
 
@@ -591,6 +592,96 @@ class JDBCMBWrapper {
 
     }
 
+    /**
+     * Writes the given tiles, unlocked, replacing any existing row for them. All the deletes are
+     * sent as a single JDBC batch and so are the inserts, in a single transaction.
+     * <p>
+     * Does not use {@code MERGE} since its key does not match the rows with no parameters id.
+     * </p>
+     */
+    public void putTiles(List<TileObject> tiles) throws SQLException {
+        if (tiles.isEmpty()) {
+            return;
+        }
+        final Connection conn = getConnection();
+        PreparedStatement deleteNoParams = null;
+        PreparedStatement deleteParams = null;
+        PreparedStatement insert = null;
+        try {
+            conn.setAutoCommit(false);
+            insert = conn.prepareStatement("INSERT INTO "
+                    + "TILES(LAYER_ID,X,Y,Z,GRIDSET_ID,FORMAT_ID,PARAMETERS_ID,BLOB_SIZE,LOCK,CREATED) "
+                    + "VALUES(?,?,?,?,?,?,?,?,NULL,?)");
+            for (TileObject stObj : tiles) {
+                final long[] xyz = stObj.getXYZ();
+                final PreparedStatement delete;
+                if (stObj.getParametersId() == -1L) {
+                    if (deleteNoParams == null) {
+                        deleteNoParams = conn.prepareStatement("DELETE FROM TILES WHERE "
+                                + " LAYER_ID = ? AND X = ? AND Y = ? AND Z = ? AND GRIDSET_ID = ? "
+                                + " AND FORMAT_ID = ? AND PARAMETERS_ID IS NULL");
+                    }
+                    delete = deleteNoParams;
+                } else {
+                    if (deleteParams == null) {
+                        deleteParams = conn.prepareStatement("DELETE FROM TILES WHERE "
+                                + " LAYER_ID = ? AND X = ? AND Y = ? AND Z = ? AND GRIDSET_ID = ? "
+                                + " AND FORMAT_ID = ? AND PARAMETERS_ID = ?");
+                    }
+                    delete = deleteParams;
+                    delete.setLong(7, stObj.getParametersId());
+                }
+                delete.setLong(1, stObj.getLayerId());
+                delete.setLong(2, xyz[0]);
+                delete.setLong(3, xyz[1]);
+                delete.setLong(4, xyz[2]);
+                delete.setLong(5, stObj.getGridSetIdId());
+                delete.setLong(6, stObj.getFormatId());
+                delete.addBatch();
+
+                insert.setLong(1, stObj.getLayerId());
+                insert.setLong(2, xyz[0]);
+                insert.setLong(3, xyz[1]);
+                insert.setLong(4, xyz[2]);
+                insert.setLong(5, stObj.getGridSetIdId());
+                insert.setLong(6, stObj.getFormatId());
+                if (stObj.getParametersId() == -1L) {
+                    insert.setNull(7, java.sql.Types.BIGINT);
+                } else {
+                    insert.setLong(7, stObj.getParametersId());
+                }
+                insert.setInt(8, stObj.getBlobSize());
+                insert.setLong(9, stObj.getCreated());
+                insert.addBatch();
+            }
+            if (deleteNoParams != null) {
+                deleteNoParams.executeBatch();
+            }
+            if (deleteParams != null) {
+                deleteParams.executeBatch();
+            }
+            insert.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException rollbackError) {
+                log.debug("Rollback failed: " + rollbackError.getMessage());
+            }
+            throw e;
+        } finally {
+            close(deleteNoParams);
+            close(deleteParams);
+            close(insert);
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                log.debug("Unable to restore auto commit: " + e.getMessage());
+            }
+            close(conn);
+        }
+    }
+
     public boolean unlockTile(TileObject stObj) throws SQLException {
 
         String query = null;
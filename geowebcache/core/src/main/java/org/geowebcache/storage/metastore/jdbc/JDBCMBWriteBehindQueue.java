@@ -0,0 +1,501 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.metastore.jdbc;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.StorageObject;
+import org.geowebcache.storage.TileObject;
+
+/**
+ * Keeps the tile rows written through {@link JDBCMetaBackend#put(TileObject)} and
+ * {@link JDBCMetaBackend#unlock(TileObject)} in memory, and writes them to the database in
+ * batches from a background thread, instead of issuing a delete, a merge and an update for every
+ * single tile.
+ * <p>
+ * A tile being stored stays locked in memory only, so that other requests for it in this JVM wait
+ * for it as they would for the database lock. Once unlocked it's queued for writing, a request for
+ * it before the batch is written writes just that tile. Batches are written once {@code batchSize} tiles are queued, or every
+ * {@code flushInterval} milliseconds otherwise. Threads unlocking tiles while {@code maxPending}
+ * tiles are queued write the batch themselves, which bounds the memory used when the database
+ * can't keep up.
+ * </p>
+ * <p>
+ * A batch the database refuses is logged and dropped rather than retried, so that a bad row can't
+ * keep the queue from draining; the tiles in it have no row, and will be requested from the
+ * backend again. The same goes for the tiles queued when the JVM dies, though the queue is flushed
+ * on shutdown through {@link #destroy()}, or a shutdown hook if the application context isn't
+ * closed.
+ * </p>
+ */
+class JDBCMBWriteBehindQueue {
+
+    private static Log log = LogFactory.getLog(JDBCMBWriteBehindQueue.class);
+
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    static final int DEFAULT_MAX_PENDING = 10000;
+
+    static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    /**
+     * Orders the batches by layer and gridset, then by tile, so that the inserts hit the tiles
+     * index in order
+     */
+    private static final Comparator<PendingTile> BATCH_ORDER = new Comparator<PendingTile>() {
+        public int compare(PendingTile o1, PendingTile o2) {
+            int c = compare(o1.layerId, o2.layerId);
+            if (c == 0) {
+                c = compare(o1.gridSetIdId, o2.gridSetIdId);
+            }
+            if (c == 0) {
+                c = compare(o1.formatId, o2.formatId);
+            }
+            if (c == 0) {
+                c = compare(o1.parametersId, o2.parametersId);
+            }
+            if (c == 0) {
+                c = compare(o1.z, o2.z);
+            }
+            if (c == 0) {
+                c = compare(o1.y, o2.y);
+            }
+            if (c == 0) {
+                c = compare(o1.x, o2.x);
+            }
+            return c;
+        }
+
+        private int compare(long l1, long l2) {
+            return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+        }
+    };
+
+    private final JDBCMBWrapper wrpr;
+
+    /**
+     * Guards {@link #pending} and {@link #queued}, and is used to wake up the flusher thread
+     */
+    private final Object monitor = new Object();
+
+    private final Map<PendingTile, PendingTile> pending = new HashMap<PendingTile, PendingTile>();
+
+    /**
+     * Number of unlocked tiles in {@link #pending}
+     */
+    private int queued;
+
+    /**
+     * Held while writing a batch, so that batches are written one at a time
+     */
+    private final Object flushLock = new Object();
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    private volatile int maxPending = DEFAULT_MAX_PENDING;
+
+    private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    private volatile boolean stopped;
+
+    private long written;
+
+    private long dropped;
+
+    private final Thread flusher;
+
+    /**
+     * Writes the queued tiles if the JVM stops without {@link #destroy()} being called
+     */
+    final Thread shutdownHook;
+
+    JDBCMBWriteBehindQueue(JDBCMBWrapper wrpr) {
+        this.wrpr = wrpr;
+        this.flusher = new Thread("GWC metastore write-behind") {
+            public void run() {
+                runFlusher();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+
+        this.shutdownHook = new Thread("GWC metastore write-behind shutdown") {
+            public void run() {
+                shutdown();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    void setMaxPending(int maxPending) {
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    void setFlushInterval(long flushInterval) {
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
+    /**
+     * Locks the tile in memory until {@link #unlock(TileObject)} is called for it
+     */
+    void lock(final TileObject stObj) {
+        PendingTile tile = new PendingTile(stObj);
+        tile.lockedSince = System.currentTimeMillis();
+        synchronized (monitor) {
+            PendingTile previous = pending.put(tile, tile);
+            if (previous != null && previous.lockedSince == 0) {
+                queued--;
+            }
+        }
+    }
+
+    /**
+     * Queues the tile for writing
+     *
+     * @return {@code false} if the tile was not locked through {@link #lock(TileObject)}
+     */
+    boolean unlock(final TileObject stObj) throws SQLException {
+        final PendingTile key = new PendingTile(stObj);
+        final int queuedNow;
+        synchronized (monitor) {
+            PendingTile tile = pending.get(key);
+            if (tile == null || tile.lockedSince == 0) {
+                return false;
+            }
+            tile.blobSize = stObj.getBlobSize();
+            tile.created = stObj.getCreated() > 0 ? stObj.getCreated() : System
+                    .currentTimeMillis();
+            tile.lockedSince = 0;
+            queuedNow = ++queued;
+            if (queuedNow >= batchSize && queuedNow < maxPending) {
+                monitor.notifyAll();
+            }
+        }
+        if (queuedNow >= maxPending) {
+            try {
+                flush();
+            } catch (SQLException e) {
+                // don't let the queue grow past the limit, the tile will be requested again
+                remove(stObj);
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up the tile among the locked ones, setting its status to
+     * {@link StorageObject.Status#LOCK LOCK} or {@link StorageObject.Status#EXPIRED_LOCK
+     * EXPIRED_LOCK} if found. A queued tile is written first, so that its row, and row id, can be
+     * read from the database.
+     *
+     * @return whether the tile is locked
+     */
+    boolean get(final TileObject stObj, final long lockTimeout) throws SQLException {
+        final PendingTile key = new PendingTile(stObj);
+        synchronized (monitor) {
+            PendingTile tile = pending.get(key);
+            if (tile == null) {
+                return false;
+            }
+            if (tile.lockedSince != 0) {
+                long diff = System.currentTimeMillis() - tile.lockedSince;
+                if (diff > lockTimeout) {
+                    log.warn("Lock exceeded (" + diff + "ms) for " + stObj + ", clearing tile.");
+                    pending.remove(tile);
+                    stObj.setStatus(StorageObject.Status.EXPIRED_LOCK);
+                } else {
+                    stObj.setStatus(StorageObject.Status.LOCK);
+                }
+                return true;
+            }
+        }
+        flush(stObj);
+        return false;
+    }
+
+    /**
+     * Writes the tile if queued, without waiting for the rest of the queue
+     */
+    void flush(final TileObject stObj) throws SQLException {
+        synchronized (flushLock) {
+            final PendingTile tile;
+            synchronized (monitor) {
+                tile = pending.get(new PendingTile(stObj));
+                if (tile == null || tile.lockedSince != 0) {
+                    return;
+                }
+            }
+            write(Collections.singletonList(tile));
+        }
+    }
+
+    /**
+     * Drops the tile if pending and deletes its row, waiting for a batch being written that may
+     * contain it
+     */
+    void delete(final TileObject stObj) throws SQLException {
+        synchronized (flushLock) {
+            remove(stObj);
+            wrpr.deleteTile(stObj);
+        }
+    }
+
+    /**
+     * Drops the tile if pending, whether locked or not
+     */
+    void remove(final TileObject stObj) {
+        synchronized (monitor) {
+            PendingTile tile = pending.remove(new PendingTile(stObj));
+            if (tile != null && tile.lockedSince == 0) {
+                queued--;
+            }
+        }
+    }
+
+    /**
+     * Writes all the queued tiles, in batches of {@code batchSize}. Tiles queued while writing may
+     * or may not be written. Batches failing to be written are dropped, the first failure is
+     * rethrown once all the batches have been tried.
+     */
+    void flush() throws SQLException {
+        synchronized (flushLock) {
+            final List<PendingTile> batch;
+            synchronized (monitor) {
+                if (queued == 0) {
+                    return;
+                }
+                batch = new ArrayList<PendingTile>(queued);
+                for (PendingTile tile : pending.values()) {
+                    if (tile.lockedSince == 0) {
+                        batch.add(tile);
+                    }
+                }
+            }
+            Collections.sort(batch, BATCH_ORDER);
+
+            final int size = batchSize;
+            SQLException failure = null;
+            for (int from = 0; from < batch.size(); from += size) {
+                try {
+                    write(batch.subList(from, Math.min(batch.size(), from + size)));
+                } catch (SQLException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Writes the tiles and takes them off the queue, or drops them if the database refuses them,
+     * as retrying the same batch would likely fail again and keep the queue from draining
+     */
+    private void write(final List<PendingTile> chunk) throws SQLException {
+        final List<TileObject> tiles = new ArrayList<TileObject>(chunk.size());
+        for (PendingTile tile : chunk) {
+            tiles.add(tile.toTileObject());
+        }
+        SQLException failure = null;
+        try {
+            wrpr.putTiles(tiles);
+        } catch (SQLException e) {
+            failure = e;
+            log.error("Failed to write " + chunk.size()
+                    + " metastore tiles, dropping them, they'll be requested again: "
+                    + e.getMessage());
+        } catch (RuntimeException e) {
+            failure = new SQLException(e.getMessage());
+            failure.initCause(e);
+            log.error("Failed to write " + chunk.size()
+                    + " metastore tiles, dropping them, they'll be requested again", e);
+        }
+
+        synchronized (monitor) {
+            for (PendingTile tile : chunk) {
+                // unless stored again in the meantime
+                if (pending.get(tile) == tile) {
+                    pending.remove(tile);
+                    queued--;
+                }
+            }
+            if (failure == null) {
+                written += chunk.size();
+            } else {
+                dropped += chunk.size();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the background thread, writing the queued tiles
+     */
+    void destroy() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // the JVM is shutting down, the hook is running or about to
+        }
+        shutdown();
+    }
+
+    private void shutdown() {
+        synchronized (monitor) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            monitor.notifyAll();
+        }
+        try {
+            flusher.join(10000);
+            if (flusher.isAlive()) {
+                flusher.interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (SQLException e) {
+            log.error("Failed to write the pending metastore tiles on shutdown: " + e.getMessage());
+        }
+        log.info("Metastore write-behind queue stopped: " + this);
+    }
+
+    public String toString() {
+        synchronized (monitor) {
+            return "JDBCMBWriteBehindQueue[pending: " + pending.size() + ", queued: " + queued
+                    + ", written: " + written + ", dropped: " + dropped + "]";
+        }
+    }
+
+    private void runFlusher() {
+        while (!stopped) {
+            synchronized (monitor) {
+                if (queued < batchSize && !stopped) {
+                    try {
+                        monitor.wait(flushInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            if (stopped) {
+                return;
+            }
+            try {
+                flush();
+            } catch (SQLException e) {
+                // already logged, the failed batches are dropped
+            } catch (RuntimeException e) {
+                log.error("Failed to write metastore tiles", e);
+            }
+        }
+    }
+
+    /**
+     * A tile row not yet written, identified by its layer, gridset, format, parameters and
+     * position
+     */
+    private static final class PendingTile {
+        final long layerId;
+
+        final long gridSetIdId;
+
+        final long formatId;
+
+        final long parametersId;
+
+        final long x;
+
+        final long y;
+
+        final long z;
+
+        int blobSize;
+
+        long created;
+
+        /**
+         * When the tile was locked, {@code 0} once unlocked
+         */
+        long lockedSince;
+
+        PendingTile(TileObject stObj) {
+            final long[] xyz = stObj.getXYZ();
+            this.layerId = stObj.getLayerId();
+            this.gridSetIdId = stObj.getGridSetIdId();
+            this.formatId = stObj.getFormatId();
+            this.parametersId = stObj.getParametersId();
+            this.x = xyz[0];
+            this.y = xyz[1];
+            this.z = xyz[2];
+        }
+
+        TileObject toTileObject() {
+            TileObject stObj = TileObject.createQueryTileObject(null, new long[] { x, y, z },
+                    null, null, null);
+            stObj.setLayerId(layerId);
+            stObj.setGridSetIdId(gridSetIdId);
+            stObj.setFormatId(formatId);
+            stObj.setParamtersId(parametersId);
+            stObj.setBlobSize(blobSize);
+            stObj.setCreated(created);
+            return stObj;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingTile)) {
+                return false;
+            }
+            PendingTile t = (PendingTile) o;
+            return x == t.x && y == t.y && z == t.z && layerId == t.layerId
+                    && gridSetIdId == t.gridSetIdId && formatId == t.formatId
+                    && parametersId == t.parametersId;
+        }
+
+        public int hashCode() {
+            long h = 17;
+            h = 31 * h + x;
+            h = 31 * h + y;
+            h = 31 * h + z;
+            h = 31 * h + layerId;
+            h = 31 * h + gridSetIdId;
+            h = 31 * h + formatId;
+            h = 31 * h + parametersId;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
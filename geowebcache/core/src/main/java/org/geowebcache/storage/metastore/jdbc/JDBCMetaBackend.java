@@ -22,6 +22,7 @@ import java.sql.SQLException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.storage.BlobStore;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.storage.MetaStore;
@@ -47,8 +48,23 @@ public class JDBCMetaBackend implements MetaStore {
     /** Delay before trying a lock again, in ms **/
     private long lockRetryDelay = 50;
 
+    /** The tiles being stored by this JVM, waited for instead of polling the database */
+    private final JDBCMBTileLocks tileLocks = new JDBCMBTileLocks();
+
+    /** Id, size and creation time of the recently requested tiles, disabled by default */
+    private final JDBCMBLRUCache<JDBCMBTileKey, long[]> tileRows = new JDBCMBLRUCache<JDBCMBTileKey, long[]>(
+            0);
+
     private boolean enabled = true;
 
+    /** Queue of tile rows to be written in batches, if write-behind is enabled */
+    private volatile JDBCMBWriteBehindQueue writeBehind;
+
+    private int writeBehindBatchSize = JDBCMBWriteBehindQueue.DEFAULT_BATCH_SIZE;
+
+    private int writeBehindMaxPending = JDBCMBWriteBehindQueue.DEFAULT_MAX_PENDING;
+
+    private long writeBehindFlushInterval = JDBCMBWriteBehindQueue.DEFAULT_FLUSH_INTERVAL;
 
     /**
      * Use the constructor with the DefaultStorageFinder instead.
@@ -164,6 +180,8 @@ public class JDBCMetaBackend implements MetaStore {
     public boolean delete(String layerName) throws StorageException {
         long layerId = idCache.getLayerId(layerName);
         try {
+            flushWriteBehind();
+            tileRows.clear();
             wrpr.deleteLayer(layerId);
             return true;
         } catch (SQLException se) {
@@ -178,6 +196,8 @@ public class JDBCMetaBackend implements MetaStore {
         long layerId = idCache.getLayerId(layerName);
         long gridSetId = idCache.getGridSetsId(gridsetName);
         try {
+            flushWriteBehind();
+            tileRows.clear();
             wrpr.deleteLayerGridSubset(layerId, gridSetId);
             return true;
         } catch (SQLException se) {
@@ -195,8 +215,10 @@ public class JDBCMetaBackend implements MetaStore {
 
         long layerId = idCache.getLayerId(oldLayerName);
         try {
+            flushWriteBehind();
             wrpr.renameLayer(layerId, newLayerName);
             idCache.clear();
+            tileRows.clear();
             return true;
         } catch (SQLException se) {
             log.error("Failed to rename layer '" + oldLayerName + "' to '" + newLayerName + "'", se);
@@ -208,11 +230,18 @@ public class JDBCMetaBackend implements MetaStore {
     public boolean delete(TileObject stObj) throws StorageException {
         stObj.setLayerId(idCache.getLayerId(stObj.getLayerName()));
         stObj.setFormatId(idCache.getFormatId(stObj.getBlobFormat()));
+        stObj.setGridSetIdId(idCache.getGridSetsId(stObj.getGridSetId()));
         long parametersId = idCache.getParametersId(stObj.getParameters());
         stObj.setParamtersId(parametersId);
 
         try {
-            wrpr.deleteTile(stObj);
+            tileRows.remove(new JDBCMBTileKey(stObj));
+            final JDBCMBWriteBehindQueue queue = writeBehind;
+            if (queue != null) {
+                queue.delete(stObj);
+            } else {
+                wrpr.deleteTile(stObj);
+            }
             return true;
         } catch (SQLException se) {
             log.error("Failed to get tile: " + se.getMessage());
@@ -236,6 +265,12 @@ public class JDBCMetaBackend implements MetaStore {
         }
         long gridSetIdId = idCache.getGridSetsId(trObj.getGridSetId());
 
+        try {
+            flushWriteBehind();
+        } catch (SQLException se) {
+            log.error("Failed to write pending tiles before deleting range: " + se.getMessage());
+        }
+        tileRows.clear();
         for (int zoomLevel = trObj.getZoomStart(); zoomLevel <= trObj.getZoomStop(); zoomLevel++) {
             wrpr.deleteRange(blobStore, trObj, zoomLevel, layerId, formatId, parametersId,
                     gridSetIdId);
@@ -250,34 +285,77 @@ public class JDBCMetaBackend implements MetaStore {
         stObj.setGridSetIdId(idCache.getGridSetsId(stObj.getGridSetId()));
         stObj.setParamtersId(idCache.getParametersId(stObj.getParameters()));
 
+        final JDBCMBTileKey key = tileRows.getMaxSize() > 0 ? new JDBCMBTileKey(stObj) : null;
+        if (key != null) {
+            final long[] row = tileRows.get(key);
+            if (row != null) {
+                stObj.setId(row[0]);
+                stObj.setBlobSize((int) row[1]);
+                stObj.setCreated(row[2]);
+                stObj.setStatus(Status.HIT);
+                return true;
+            }
+        }
+
+        // a put and unlock of the tile while reading it drops the load, not to cache a stale row
+        final Object load = key == null ? null : tileRows.startLoad(key);
+        long[] row = null;
         try {
 
-            boolean response = wrpr.getTile(stObj);
+            boolean response = getTile(stObj);
             while (stObj.getStatus().equals(Status.LOCK)) {
-                try {
+                // wait to be notified if stored by this JVM, poll the database otherwise
+                if (!tileLocks.await(stObj, wrpr.lockTimeout)) {
                     Thread.sleep(lockRetryDelay);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
                 }
 
-                response = wrpr.getTile(stObj);
+                response = getTile(stObj);
             }
 
+            if (response) {
+                row = new long[] { stObj.getId(), stObj.getBlobSize(), stObj.getCreated() };
+            }
             return response;
 
         } catch (SQLException se) {
             log.error("Failed to get tile: " + se.getMessage());
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for the lock on " + stObj);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (key != null) {
+                tileRows.endLoad(key, load, row);
+            }
         }
 
         return false;
     }
 
+    private boolean getTile(TileObject stObj) throws SQLException {
+        final JDBCMBWriteBehindQueue queue = writeBehind;
+        if (queue != null && queue.get(stObj, wrpr.lockTimeout)) {
+            // locked in memory
+            return false;
+        }
+        return wrpr.getTile(stObj);
+    }
+
     public void put(TileObject stObj) throws StorageException {
         stObj.setLayerId(idCache.getLayerId(stObj.getLayerName()));
         stObj.setFormatId(idCache.getFormatId(stObj.getBlobFormat()));
         stObj.setGridSetIdId(idCache.getGridSetsId(stObj.getGridSetId()));
         stObj.setParamtersId(idCache.getParametersId(stObj.getParameters()));
 
+        tileLocks.lock(stObj);
+        tileRows.remove(new JDBCMBTileKey(stObj));
+
+        final JDBCMBWriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            // the row is written once unlocked
+            queue.lock(stObj);
+            return;
+        }
+
         try {
             wrpr.deleteTile(stObj);
         } catch (SQLException se) {
@@ -293,9 +371,17 @@ public class JDBCMetaBackend implements MetaStore {
 
     public boolean unlock(TileObject stObj) throws StorageException {
         try {
+            final JDBCMBWriteBehindQueue queue = writeBehind;
+            if (queue != null && queue.unlock(stObj)) {
+                return true;
+            }
             return wrpr.unlockTile(stObj);
         } catch (SQLException se) {
             log.error("Failed to unlock tile: " + se.getMessage());
+        } finally {
+            tileLocks.unlock(stObj);
+            // drops any concurrent get of the row being replaced, see get(TileObject)
+            tileRows.remove(new JDBCMBTileKey(stObj));
         }
 
         return false;
@@ -313,6 +399,7 @@ public class JDBCMetaBackend implements MetaStore {
     }
 
     public void destroy() {
+        setWriteBehind(false);
         if (this.wrpr != null) {
             wrpr.destroy();
         }
@@ -323,8 +410,95 @@ public class JDBCMetaBackend implements MetaStore {
         wrpr.lockTimeout = lockTimeout;
     }
 
+    /**
+     * Number of tile rows (id, size and creation time) to keep in memory, so that the most
+     * requested tiles don't need a query. {@code 0}, the default, disables the cache.
+     * <p>
+     * Only tiles stored and deleted through this instance update the cache, don't enable it if
+     * other processes share the database.
+     * </p>
+     */
+    public void setTileRowCacheSize(int tileRowCacheSize) {
+        tileRows.setMaxSize(tileRowCacheSize);
+    }
+
+    /**
+     * Sizes the layer and parameter id caches after the number of layers the dispatcher knows of
+     */
+    public void setTileLayerDispatcher(TileLayerDispatcher tileLayerDispatcher) {
+        if (idCache != null) {
+            idCache.setTileLayerDispatcher(tileLayerDispatcher);
+        }
+    }
+
+    /**
+     * Delay between checks of a tile locked by another process sharing the database. Tiles locked
+     * by this JVM are waited for without polling.
+     */
     public void setLockRetryDelay(long lockRetryDelay) {
         this.lockRetryDelay = lockRetryDelay;
     }
 
+    /**
+     * Enables or disables write-behind: instead of a delete, a merge and an update per tile, the
+     * rows for the stored tiles are kept in memory and written in batches, see
+     * {@link JDBCMBWriteBehindQueue}. Other instances sharing the same database won't see the
+     * tiles being stored as locked, and tiles not yet written when the JVM stops are lost (and will
+     * be requested again).
+     */
+    public synchronized void setWriteBehind(boolean writeBehind) {
+        if (!enabled) {
+            return;
+        }
+        if (writeBehind && this.writeBehind == null) {
+            JDBCMBWriteBehindQueue queue = new JDBCMBWriteBehindQueue(wrpr);
+            queue.setBatchSize(writeBehindBatchSize);
+            queue.setMaxPending(writeBehindMaxPending);
+            queue.setFlushInterval(writeBehindFlushInterval);
+            this.writeBehind = queue;
+        } else if (!writeBehind && this.writeBehind != null) {
+            JDBCMBWriteBehindQueue queue = this.writeBehind;
+            this.writeBehind = null;
+            queue.destroy();
+        }
+    }
+
+    /**
+     * Number of tiles written per batch when write-behind is enabled
+     */
+    public synchronized void setWriteBehindBatchSize(int batchSize) {
+        this.writeBehindBatchSize = batchSize;
+        if (writeBehind != null) {
+            writeBehind.setBatchSize(batchSize);
+        }
+    }
+
+    /**
+     * Maximum number of tiles waiting to be written when write-behind is enabled, beyond which the
+     * threads storing tiles write them themselves
+     */
+    public synchronized void setWriteBehindMaxPending(int maxPending) {
+        this.writeBehindMaxPending = maxPending;
+        if (writeBehind != null) {
+            writeBehind.setMaxPending(maxPending);
+        }
+    }
+
+    /**
+     * Maximum time in milliseconds a tile waits to be written when write-behind is enabled
+     */
+    public synchronized void setWriteBehindFlushInterval(long flushInterval) {
+        this.writeBehindFlushInterval = flushInterval;
+        if (writeBehind != null) {
+            writeBehind.setFlushInterval(flushInterval);
+        }
+    }
+
+    private void flushWriteBehind() throws SQLException {
+        final JDBCMBWriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            queue.flush();
+        }
+    }
+
 }
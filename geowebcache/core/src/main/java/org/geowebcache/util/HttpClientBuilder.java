@@ -25,9 +25,10 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.params.HttpClientParams;
 
 /**
  * Builder class for HttpClients
@@ -130,9 +131,37 @@ public class HttpClientBuilder {
      */
     public HttpClient buildClient() {
         HttpClient httpClient = new HttpClient();
-        HttpConnectionParams params = httpClient.getHttpConnectionManager().getParams();
-        params.setConnectionTimeout(backendTimeoutMillis);
-        params.setSoTimeout(backendTimeoutMillis);
+        if (backendTimeoutMillis != null) {
+            // the client owns its connection manager, so the connect timeout can be set on it
+            httpClient.getHttpConnectionManager().getParams().setConnectionTimeout(
+                    backendTimeoutMillis);
+        }
+        return buildClient(httpClient);
+    }
+
+    /**
+     * uses the configuration of this builder to generate a HttpClient that obtains its connections
+     * from the given (possibly shared) connection manager.
+     * <p>
+     * The read timeout is set on the client only. The connect timeout is a setting of the
+     * connection manager, which is left untouched as it may be shared by clients with different
+     * timeouts: it's up to its owner to set it.
+     * </p>
+     * 
+     * @param connectionManager
+     *            the connection manager the generated client shall use
+     * @return the generated HttpClient
+     */
+    public HttpClient buildClient(HttpConnectionManager connectionManager) {
+        return buildClient(new HttpClient(connectionManager));
+    }
+
+    private HttpClient buildClient(HttpClient httpClient) {
+        if (backendTimeoutMillis != null) {
+            HttpClientParams params = httpClient.getParams();
+            params.setSoTimeout(backendTimeoutMillis);
+            params.setConnectionManagerTimeout(backendTimeoutMillis);
+        }
 
         if (authscope != null && httpcredentials != null) {
             httpClient.getState().setCredentials(authscope, httpcredentials);
@@ -0,0 +1,226 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.util;
+
+/**
+ * A matrix of bits, typically one per tile of a zoom level, stored as a quadtree whose leaves are
+ * blocks of 64 x 64 bits.
+ * <p>
+ * Blocks and quadrants with no bit set take no memory, and the ones with all the bits set are
+ * collapsed into a shared marker, so the memory needed depends on the length of the edges of the
+ * set areas rather than on the size of the matrix, which can go well past the
+ * {@code Integer.MAX_VALUE} bits a single array or image can hold.
+ * </p>
+ * <p>
+ * Writes are not synchronized. Once populated the matrix can be read by any number of threads
+ * without locking, as long as it's handed over to them in a thread safe way.
+ * </p>
+ */
+public class SparseBitMatrix {
+
+    private static final int LEAF_SHIFT = 6;
+
+    private static final int LEAF_SIZE = 1 << LEAF_SHIFT;
+
+    /**
+     * Stands for a quadrant or block with all the bits set, empty ones are {@code null}
+     */
+    private static final Object FULL = new Object();
+
+    private final long width;
+
+    private final long height;
+
+    /**
+     * Number of quadtree levels above the blocks
+     */
+    private final int depth;
+
+    private Object root;
+
+    public SparseBitMatrix(final long width, final long height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Invalid matrix size: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        int depth = 0;
+        while (((long) LEAF_SIZE << depth) < Math.max(width, height)) {
+            depth++;
+        }
+        this.depth = depth;
+    }
+
+    public long getWidth() {
+        return width;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    /**
+     * @return whether the bit is set, {@code false} if outside of the matrix
+     */
+    public boolean get(final long x, final long y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return false;
+        }
+        Object node = root;
+        for (int level = depth; level > 0; level--) {
+            if (node == null || node == FULL) {
+                return node == FULL;
+            }
+            final int shift = LEAF_SHIFT + level - 1;
+            final int child = (int) (((y >> shift) & 1) << 1 | ((x >> shift) & 1));
+            node = ((Object[]) node)[child];
+        }
+        if (node == null || node == FULL) {
+            return node == FULL;
+        }
+        final long row = ((long[]) node)[(int) (y & (LEAF_SIZE - 1))];
+        return ((row >>> (x & (LEAF_SIZE - 1))) & 1) != 0;
+    }
+
+    public void set(final long x, final long y) {
+        set(x, y, x, y);
+    }
+
+    /**
+     * Sets all the bits in the rectangle, bounds included, the parts outside of the matrix are
+     * ignored
+     */
+    public void set(final long minX, final long minY, final long maxX, final long maxY) {
+        final long x0 = Math.max(0, minX);
+        final long y0 = Math.max(0, minY);
+        final long x1 = Math.min(width - 1, maxX);
+        final long y1 = Math.min(height - 1, maxY);
+        if (x0 <= x1 && y0 <= y1) {
+            root = fill(root, depth, 0, 0, x0, y0, x1, y1);
+        }
+    }
+
+    /**
+     * @return whether any bit is set in the rectangle, bounds included
+     */
+    public boolean any(final long minX, final long minY, final long maxX, final long maxY) {
+        final long x0 = Math.max(0, minX);
+        final long y0 = Math.max(0, minY);
+        final long x1 = Math.min(width - 1, maxX);
+        final long y1 = Math.min(height - 1, maxY);
+        if (x0 > x1 || y0 > y1) {
+            return false;
+        }
+        return any(root, depth, 0, 0, x0, y0, x1, y1);
+    }
+
+    /**
+     * @return whether no bit is set at all
+     */
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    private static Object fill(final Object node, final int level, final long originX,
+            final long originY, final long minX, final long minY, final long maxX,
+            final long maxY) {
+        if (node == FULL) {
+            return FULL;
+        }
+        final long side = (long) LEAF_SIZE << level;
+        final long x0 = Math.max(minX, originX);
+        final long y0 = Math.max(minY, originY);
+        final long x1 = Math.min(maxX, originX + side - 1);
+        final long y1 = Math.min(maxY, originY + side - 1);
+        if (x0 > x1 || y0 > y1) {
+            return node;
+        }
+        if (x0 == originX && y0 == originY && x1 == originX + side - 1
+                && y1 == originY + side - 1) {
+            return FULL;
+        }
+
+        if (level == 0) {
+            final long[] rows = node == null ? new long[LEAF_SIZE] : (long[]) node;
+            final long mask = rowMask((int) (x0 - originX), (int) (x1 - originX));
+            boolean full = true;
+            for (int r = 0; r < LEAF_SIZE; r++) {
+                if (r >= y0 - originY && r <= y1 - originY) {
+                    rows[r] |= mask;
+                }
+                full &= rows[r] == -1L;
+            }
+            return full ? FULL : rows;
+        }
+
+        final Object[] children = node == null ? new Object[4] : (Object[]) node;
+        final long half = side >> 1;
+        boolean full = true;
+        for (int i = 0; i < 4; i++) {
+            children[i] = fill(children[i], level - 1, originX + (i & 1) * half, originY
+                    + (i >> 1) * half, x0, y0, x1, y1);
+            full &= children[i] == FULL;
+        }
+        return full ? FULL : children;
+    }
+
+    private static boolean any(final Object node, final int level, final long originX,
+            final long originY, final long minX, final long minY, final long maxX,
+            final long maxY) {
+        if (node == null) {
+            return false;
+        }
+        final long side = (long) LEAF_SIZE << level;
+        final long x0 = Math.max(minX, originX);
+        final long y0 = Math.max(minY, originY);
+        final long x1 = Math.min(maxX, originX + side - 1);
+        final long y1 = Math.min(maxY, originY + side - 1);
+        if (x0 > x1 || y0 > y1) {
+            return false;
+        }
+        if (node == FULL) {
+            return true;
+        }
+
+        if (level == 0) {
+            final long[] rows = (long[]) node;
+            final long mask = rowMask((int) (x0 - originX), (int) (x1 - originX));
+            for (long y = y0; y <= y1; y++) {
+                if ((rows[(int) (y - originY)] & mask) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        final Object[] children = (Object[]) node;
+        final long half = side >> 1;
+        for (int i = 0; i < 4; i++) {
+            if (any(children[i], level - 1, originX + (i & 1) * half, originY + (i >> 1) * half,
+                    x0, y0, x1, y1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a mask with the bits from {@code from} to {@code to} set, both included
+     */
+    private static long rowMask(final int from, final int to) {
+        final long upTo = to == LEAF_SIZE - 1 ? -1L : (1L << (to + 1)) - 1;
+        return upTo & (-1L << from);
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.FileResource;
+
+/**
+ * Compares serving cached tile files the way {@link GeoWebCacheDispatcher} used to (diagnostic
+ * headers computed for every tile, file copied through {@link Channels#newChannel(OutputStream)})
+ * against the current path (no diagnostic headers, single write through a pooled scratch buffer).
+ * The sendfile path is not measured since it depends on the servlet container.
+ * <p>
+ * Not run as part of the build (see the surefire excludes), run it manually with
+ * {@code mvn -Dtest=GeoWebCacheDispatcherPerfTest test}
+ * </p>
+ */
+public class GeoWebCacheDispatcherPerfTest extends TestCase {
+
+    private static final int NUM_TILES = 64;
+
+    private static final int TILE_SIZE = 20 * 1024;
+
+    private static final int REQUESTS = 100000;
+
+    private File dir;
+
+    private FileResource[] tiles;
+
+    private GridSubset gridSubset;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("dispatcherPerf", "");
+        dir.delete();
+        dir.mkdirs();
+        Random random = new Random(1);
+        tiles = new FileResource[NUM_TILES];
+        byte[] contents = new byte[TILE_SIZE];
+        for (int i = 0; i < NUM_TILES; i++) {
+            random.nextBytes(contents);
+            File file = new File(dir, i + ".png");
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(contents);
+            out.close();
+            tiles[i] = new FileResource(file);
+        }
+        GridSetBroker gridSetBroker = new GridSetBroker(true, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    public void testServeFileTiles() throws Exception {
+        // warm up
+        runLegacy(REQUESTS / 10);
+        runCurrent(REQUESTS / 10);
+
+        long legacy = runLegacy(REQUESTS);
+        long current = runCurrent(REQUESTS);
+
+        System.out.println(REQUESTS + " requests for " + TILE_SIZE + " bytes tiles. Legacy: "
+                + legacy + "ms (" + (REQUESTS * 1000L / Math.max(1, legacy))
+                + " req/s), current: " + current + "ms ("
+                + (REQUESTS * 1000L / Math.max(1, current)) + " req/s)");
+    }
+
+    private long runLegacy(int requests) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        long[] index = new long[3];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            FileResource tile = tiles[i % NUM_TILES];
+            index[0] = i % 4;
+            index[1] = i % 2;
+            index[2] = 1;
+            out.headers += Arrays.toString(index).length();
+            out.headers += gridSubset.boundsFromIndex(index).toString().length();
+            out.headers += gridSubset.getName().length();
+            out.headers += gridSubset.getSRS().toString().length();
+            tile.transferTo(Channels.newChannel(out));
+        }
+        long time = System.currentTimeMillis() - start;
+        assertEquals((long) requests * TILE_SIZE, out.count);
+        return time;
+    }
+
+    private long runCurrent(int requests) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        long[] index = new long[3];
+        byte[] buffer = new byte[64 * 1024];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            FileResource tile = tiles[i % NUM_TILES];
+            index[0] = i % 4;
+            index[1] = i % 2;
+            index[2] = 1;
+            out.headers += Arrays.toString(index).length();
+            tile.transferTo(out, buffer);
+        }
+        long time = System.currentTimeMillis() - start;
+        assertEquals((long) requests * TILE_SIZE, out.count);
+        return time;
+    }
+
+    /**
+     * Stands for the servlet output stream, discards the contents
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        long headers;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
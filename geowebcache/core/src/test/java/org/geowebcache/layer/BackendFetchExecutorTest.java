@@ -0,0 +1,137 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.service.HttpErrorCodeException;
+
+public class BackendFetchExecutorTest extends TestCase {
+
+    private BackendFetchExecutor executor;
+
+    protected void tearDown() throws Exception {
+        if (executor != null) {
+            executor.destroy();
+        }
+    }
+
+    public void testExecute() throws Exception {
+        executor = new BackendFetchExecutor(2, 2);
+        String result = executor.execute("layer", null, "backend", new Callable<String>() {
+            public String call() throws Exception {
+                return Thread.currentThread().getName();
+            }
+        });
+        assertTrue(result.startsWith("GWC backend fetch"));
+        assertEquals(1, executor.getExecutedCount());
+    }
+
+    public void testFailure() throws Exception {
+        executor = new BackendFetchExecutor(2, 2);
+        try {
+            executor.execute("layer", null, "backend", new Callable<String>() {
+                public String call() throws Exception {
+                    throw new GeoWebCacheException("backend down");
+                }
+            });
+            fail("Expected GeoWebCacheException");
+        } catch (GeoWebCacheException e) {
+            assertEquals("backend down", e.getMessage());
+        }
+    }
+
+    public void testTimeout() throws Exception {
+        executor = new BackendFetchExecutor(2, 2);
+        assertEquals(BackendFetchExecutor.DEFAULT_MAX_WAIT_SECONDS, executor.getMaxWaitSeconds());
+        try {
+            executor.setMaxWaitSeconds(120);
+            fail("Expected IllegalArgumentException, request threads can't wait that long");
+        } catch (IllegalArgumentException e) {
+            assertEquals(BackendFetchExecutor.DEFAULT_MAX_WAIT_SECONDS, executor
+                    .getMaxWaitSeconds());
+        }
+
+        executor.setMaxWaitSeconds(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute("layer", null, "backend", new Callable<String>() {
+                public String call() throws Exception {
+                    release.await();
+                    return "late";
+                }
+            });
+            fail("Expected HttpErrorCodeException");
+        } catch (HttpErrorCodeException e) {
+            assertEquals(503, e.getErrorCode());
+        } finally {
+            release.countDown();
+        }
+        assertEquals(1, executor.getTimedOutCount());
+    }
+
+    public void testLayerLimit() throws Exception {
+        executor = new BackendFetchExecutor(4, 4);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread blocked = new Thread() {
+            public void run() {
+                try {
+                    executor.execute("layer", Integer.valueOf(1), "backend", new Callable<String>() {
+                        public String call() throws Exception {
+                            started.countDown();
+                            release.await();
+                            return "done";
+                        }
+                    });
+                } catch (GeoWebCacheException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        blocked.start();
+        started.await();
+        try {
+            executor.execute("layer", Integer.valueOf(1), "backend", new Callable<String>() {
+                public String call() throws Exception {
+                    return "not run";
+                }
+            });
+            fail("Expected 503 error");
+        } catch (HttpErrorCodeException e) {
+            assertEquals(503, e.getErrorCode());
+        }
+        // other layers are not affected
+        assertEquals("other", executor.execute("other", null, "backend", new Callable<String>() {
+            public String call() throws Exception {
+                return "other";
+            }
+        }));
+        assertEquals(1, executor.getRejectedCount());
+
+        release.countDown();
+        blocked.join();
+        assertEquals("again", executor.execute("layer", Integer.valueOf(1), "backend",
+                new Callable<String>() {
+                    public String call() throws Exception {
+                        return "again";
+                    }
+                }));
+    }
+}
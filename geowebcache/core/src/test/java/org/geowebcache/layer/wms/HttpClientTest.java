@@ -76,4 +76,42 @@ public class HttpClientTest extends TestCase {
         }
        
     }
-}
\ No newline at end of file
+
+    public void testPooledClientReuse() throws Exception {
+        WMSHttpHelper helper = new WMSHttpHelper("username", "password", null);
+        helper.setMaxConnectionsPerHost(4);
+
+        URL url1 = new URL("http://localhost:8080/geoserver/wms?");
+        URL url2 = new URL("http://localhost:8080/geoserver/gwc/service/wms?");
+        URL url3 = new URL("http://otherhost:8080/geoserver/wms?");
+
+        HttpClient client1 = helper.getHttpClient(url1, 120);
+        assertSame(client1, helper.getHttpClient(url2, 120));
+        HttpClient client3 = helper.getHttpClient(url3, 120);
+        assertNotSame(client1, client3);
+        // all clients share the same connection pool
+        assertSame(client1.getHttpConnectionManager(), client3.getHttpConnectionManager());
+        assertEquals(4, client1.getHttpConnectionManager().getParams()
+                .getDefaultMaxConnectionsPerHost());
+        assertNotNull(client1.getState().getCredentials(
+                new AuthScope(url1.getHost(), url1.getPort())));
+
+        // timeouts are per client, clients with another timeout use their own pool
+        assertEquals(120 * 1000, client1.getParams().getSoTimeout());
+        assertEquals(120 * 1000, client1.getHttpConnectionManager().getParams()
+                .getConnectionTimeout());
+        HttpClient client4 = helper.getHttpClient(url1, 30);
+        assertNotSame(client1.getHttpConnectionManager(), client4.getHttpConnectionManager());
+        assertEquals(30 * 1000, client4.getParams().getSoTimeout());
+        assertEquals(30 * 1000, client4.getHttpConnectionManager().getParams()
+                .getConnectionTimeout());
+        assertEquals(120 * 1000, client1.getParams().getSoTimeout());
+
+        helper.dispose();
+        HttpClient afterDispose = helper.getHttpClient(url1, 120);
+        assertNotSame(client1, afterDispose);
+        assertNotSame(client1.getHttpConnectionManager(),
+                afterDispose.getHttpConnectionManager());
+        helper.dispose();
+    }
+}
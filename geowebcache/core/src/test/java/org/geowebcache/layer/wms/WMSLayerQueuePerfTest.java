@@ -0,0 +1,213 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import static org.geowebcache.TestHelpers.createWMSLayer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.layer.GridLocObj;
+
+/**
+ * Compares the throughput of the {@link WMSLayer} metatile queue against the single layer lock
+ * plus striped conditions implementation it replaced, with many threads asking for a small set of
+ * hot metatiles.
+ * <p>
+ * Not run as part of the build (see the surefire excludes), run it manually with
+ * {@code mvn -Dtest=WMSLayerQueuePerfTest test}
+ * </p>
+ */
+public class WMSLayerQueuePerfTest extends TestCase {
+
+    private static final int TOTAL_REQUESTS = 256000;
+
+    private static final int NUM_METATILES = 256;
+
+    /**
+     * Simulated backend time for a cache miss, in nanoseconds
+     */
+    private static final long MISS_WORK_NANOS = 5000;
+
+    private interface MetaTileQueue {
+        GridLocObj key(long[] metaGridLoc);
+
+        boolean acquire(GridLocObj glo);
+
+        void release(GridLocObj glo);
+    }
+
+    public void testQueue8Threads() throws Exception {
+        compare(8);
+    }
+
+    public void testQueue32Threads() throws Exception {
+        compare(32);
+    }
+
+    public void testQueue128Threads() throws Exception {
+        compare(128);
+    }
+
+    private void compare(final int numThreads) throws Exception {
+        // warm up
+        run(new LegacyQueue(32), numThreads);
+        run(newLayerQueue(), numThreads);
+
+        long legacy = run(new LegacyQueue(32), numThreads);
+        long current = run(newLayerQueue(), numThreads);
+
+        long total = TOTAL_REQUESTS;
+        System.out.println(numThreads + " threads, " + total + " requests over " + NUM_METATILES
+                + " metatiles. Layer lock + conditions: " + legacy + "ms ("
+                + (total * 1000 / Math.max(1, legacy)) + " req/s), single flight: " + current
+                + "ms (" + (total * 1000 / Math.max(1, current)) + " req/s)");
+    }
+
+    private MetaTileQueue newLayerQueue() {
+        final WMSLayer layer = createWMSLayer("image/png");
+        return new MetaTileQueue() {
+            public GridLocObj key(long[] metaGridLoc) {
+                return new GridLocObj(metaGridLoc);
+            }
+
+            public boolean acquire(GridLocObj glo) {
+                return layer.waitForQueue(glo);
+            }
+
+            public void release(GridLocObj glo) {
+                layer.removeFromQueue(glo);
+            }
+        };
+    }
+
+    private long run(final MetaTileQueue queue, final int numThreads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final int requestsPerThread = TOTAL_REQUESTS / numThreads;
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int t = 0; t < numThreads; t++) {
+            final long seed = t;
+            results.add(executor.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    Random random = new Random(seed);
+                    long misses = 0;
+                    start.await();
+                    for (int i = 0; i < requestsPerThread; i++) {
+                        int metaTile = random.nextInt(NUM_METATILES);
+                        GridLocObj glo = queue.key(new long[] { 3 * metaTile, 0, 10 });
+                        if (queue.acquire(glo)) {
+                            try {
+                                misses++;
+                                spin(MISS_WORK_NANOS);
+                            } finally {
+                                queue.release(glo);
+                            }
+                        }
+                    }
+                    return misses;
+                }
+            }));
+        }
+        long time = System.currentTimeMillis();
+        start.countDown();
+        for (Future<Long> result : results) {
+            result.get();
+        }
+        time = System.currentTimeMillis() - time;
+        executor.shutdown();
+        return time;
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // busy wait, the backend is working
+        }
+    }
+
+    /**
+     * The locking scheme {@link WMSLayer} used before: one lock for the whole layer, a map of the
+     * metatiles in process and a fixed number of conditions shared by all metatiles
+     */
+    private static class LegacyQueue implements MetaTileQueue {
+
+        private final Lock layerLock = new ReentrantLock();
+
+        private final Condition[] gridLocConds;
+
+        private final HashMap<GridLocObj, Boolean> procQueue = new HashMap<GridLocObj, Boolean>();
+
+        LegacyQueue(int concurrency) {
+            gridLocConds = new Condition[concurrency];
+            for (int i = 0; i < gridLocConds.length; i++) {
+                gridLocConds[i] = layerLock.newCondition();
+            }
+        }
+
+        public GridLocObj key(long[] metaGridLoc) {
+            return new GridLocObj(metaGridLoc, gridLocConds.length);
+        }
+
+        public boolean acquire(GridLocObj glo) {
+            boolean hasWaited = false;
+            while (true) {
+                layerLock.lock();
+                try {
+                    if (procQueue.containsKey(glo)) {
+                        hasWaited = true;
+                        gridLocConds[glo.hashCode()].await();
+                    } else {
+                        procQueue.put(glo, true);
+                        // the old code re-checked the cache while holding the metatile, count
+                        // the wait as a hit the same way the new queue does
+                        if (hasWaited) {
+                            procQueue.remove(glo);
+                            gridLocConds[glo.hashCode()].signalAll();
+                            return false;
+                        }
+                        return true;
+                    }
+                } catch (InterruptedException ie) {
+                    // ignore
+                } finally {
+                    layerLock.unlock();
+                }
+            }
+        }
+
+        public void release(GridLocObj glo) {
+            layerLock.lock();
+            try {
+                procQueue.remove(glo);
+                gridLocConds[glo.hashCode()].signalAll();
+            } finally {
+                layerLock.unlock();
+            }
+        }
+    }
+}
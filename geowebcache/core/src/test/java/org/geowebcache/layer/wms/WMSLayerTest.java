@@ -56,9 +56,14 @@ import org.easymock.IAnswer;
 import org.geowebcache.grid.*;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.layer.BackendFetchExecutor;
+import org.geowebcache.layer.GridLocObj;
+import org.geowebcache.layer.TileResponseReceiver;
 import org.geowebcache.seed.GWCTask;
 import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.service.HttpErrorCodeException;
 import org.geowebcache.storage.*;
 
 /**
@@ -107,6 +112,116 @@ public class WMSLayerTest extends TestCase {
         verify(mockStorageBroker);
     }
 
+    /**
+     * The requested tile is encoded and stored first, the rest of the metatile being encoded in
+     * parallel afterwards, and all of them are stored by the time the request returns
+     */
+    public void testMetaTileEncodedRequestedTileFirst() throws Exception {
+        WMSLayer layer = createWMSLayer("image/png");
+        layer.setSourceHelper(new MockWMSSourceHelper());
+
+        final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+        final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
+        expect(mockStorageBroker.put((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                assertTrue(tile.getBlob().getSize() > 0);
+                stored.add(Arrays.toString(tile.getXYZ()));
+                return true;
+            }
+        }).anyTimes();
+        replay(mockStorageBroker);
+
+        // the middle tile of a 3x3 metatile fully within the gridset coverage
+        long[] gridLoc = { 55, 40, 6 };
+        MimeType mimeType = layer.getMimeTypes().get(0);
+        String gridSetId = gridSetBroker.WORLD_EPSG4326.getName();
+        ConveyorTile tile = new ConveyorTile(mockStorageBroker, layer.getName(), gridSetId,
+                gridLoc, mimeType, null, new MockHttpServletRequest(),
+                new MockHttpServletResponse());
+
+        layer.seedTile(tile, false);
+
+        assertNotNull(tile.getBlob());
+        assertTrue(tile.getBlob().getSize() > 0);
+        assertEquals(9, stored.size());
+        assertEquals(Arrays.toString(gridLoc), stored.get(0));
+        Set<String> distinct = new HashSet<String>(stored);
+        assertEquals(9, distinct.size());
+        for (long x = 54; x <= 56; x++) {
+            for (long y = 39; y <= 41; y++) {
+                assertTrue(distinct.contains(Arrays.toString(new long[] { x, y, 6 })));
+            }
+        }
+        verify(mockStorageBroker);
+    }
+
+    /**
+     * A backend request outliving its timed out request saves the tiles but doesn't touch the
+     * response, which was answered with a 503 error already
+     */
+    public void testBackendFetchTimeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        WMSLayer layer = createWMSLayer("image/png");
+        layer.setSourceHelper(new MockWMSSourceHelper() {
+            @Override
+            protected void makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+                    Map<String, String> wmsParams, String expectedMimeType, Resource target)
+                    throws GeoWebCacheException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new GeoWebCacheException(e);
+                }
+                super.makeRequest(tileRespRecv, layer, wmsParams, expectedMimeType, target);
+            }
+        });
+
+        final CountDownLatch saved = new CountDownLatch(9);
+        final StorageBroker mockStorageBroker = EasyMock.createNiceMock(StorageBroker.class);
+        expect(mockStorageBroker.put((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                saved.countDown();
+                return true;
+            }
+        }).anyTimes();
+        replay(mockStorageBroker);
+
+        final List<String> headers = Collections.synchronizedList(new ArrayList<String>());
+        MockHttpServletResponse servletResp = new MockHttpServletResponse() {
+            @Override
+            public void setHeader(String name, String value) {
+                headers.add(name);
+                super.setHeader(name, value);
+            }
+        };
+        ConveyorTile tile = new ConveyorTile(mockStorageBroker, layer.getName(),
+                gridSetBroker.WORLD_EPSG4326.getName(), new long[] { 55, 40, 6 }, layer
+                        .getMimeTypes().get(0), null, new MockHttpServletRequest(), servletResp);
+        BackendFetchExecutor executor = new BackendFetchExecutor(2, 2);
+        executor.setMaxWaitSeconds(1);
+        tile.setBackendFetchExecutor(executor);
+        try {
+            try {
+                layer.getTile(tile);
+                fail("Expected HttpErrorCodeException");
+            } catch (HttpErrorCodeException e) {
+                assertEquals(503, e.getErrorCode());
+            } finally {
+                release.countDown();
+            }
+            assertTrue(saved.await(10, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, executor.getActiveCount());
+            assertTrue(headers.toString(), headers.isEmpty());
+        } finally {
+            executor.destroy();
+        }
+    }
+
     public void testMinMaxCacheSeedTile() throws Exception {
         WMSLayer tl = createWMSLayer("image/png", 5, 6);
         
@@ -125,6 +240,63 @@ public class WMSLayerTest extends TestCase {
         assertEquals(218, mock.storagePutCounter.get());
     }
 
+    public void testSingleFlightQueue() throws Exception {
+        final WMSLayer layer = createWMSLayer("image/png");
+        final GridLocObj metaGlo = new GridLocObj(new long[] { 3, 3, 2 });
+
+        // the first thread to ask for the metatile takes it over
+        assertTrue(layer.waitForQueue(metaGlo));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // a second request for the same metatile waits for the first one to complete
+            Future<Boolean> sameMetaTile = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return layer.waitForQueue(new GridLocObj(new long[] { 3, 3, 2 }));
+                }
+            });
+            // whilst other metatiles are not held back
+            Future<Boolean> otherMetaTile = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    GridLocObj other = new GridLocObj(new long[] { 6, 3, 2 });
+                    boolean acquired = layer.waitForQueue(other);
+                    layer.removeFromQueue(other);
+                    return acquired;
+                }
+            });
+            assertTrue(otherMetaTile.get(5, TimeUnit.SECONDS));
+            try {
+                sameMetaTile.get(200, TimeUnit.MILLISECONDS);
+                fail("Expected the request for the same metatile to wait");
+            } catch (TimeoutException expected) {
+                // ok
+            }
+
+            layer.removeFromQueue(metaGlo);
+            // woken up, but did not take over the metatile, should look in the cache instead
+            assertFalse(sameMetaTile.get(5, TimeUnit.SECONDS));
+
+            // the layer lock waits for the in flight requests and keeps new ones out
+            assertTrue(layer.waitForQueue(metaGlo));
+            Future<?> layerLock = executor.submit(new Runnable() {
+                public void run() {
+                    layer.acquireLayerLock();
+                    layer.releaseLayerLock();
+                }
+            });
+            try {
+                layerLock.get(200, TimeUnit.MILLISECONDS);
+                fail("Expected the layer lock to wait for the request in flight");
+            } catch (TimeoutException expected) {
+                // ok
+            }
+            layer.removeFromQueue(metaGlo);
+            layerLock.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     //ignore to fix the build until the failing assertion is worked out
     public void _testMinMaxCacheGetTile() throws Exception {
         WMSLayer tl = createWMSLayer("image/png", 5, 6);
@@ -0,0 +1,121 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.mime;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.ByteArrayResource.SeekableImageOutputStream;
+import org.geowebcache.io.FileResource;
+
+public class ImageWriterPoolTest extends TestCase {
+
+    public void testWriterReuse() throws Exception {
+        ImageWriterPool pool = new ImageWriterPool(2);
+
+        ImageWriter writer = pool.acquire("png");
+        pool.release("png", writer, true);
+        assertEquals(1, pool.getIdleCount("png"));
+        assertSame(writer, pool.acquire("png"));
+        assertEquals(0, pool.getIdleCount("png"));
+
+        ImageWriter other = pool.acquire("png");
+        assertNotSame(writer, other);
+        pool.release("png", writer, true);
+        pool.release("png", other, true);
+        pool.release("png", pool.acquire("png"), false);
+        assertEquals(1, pool.getIdleCount("png"));
+
+        try {
+            pool.acquire("not-a-format");
+            fail("Expected IIOException");
+        } catch (IIOException e) {
+            // expected
+        }
+    }
+
+    public void testWriteByteArrayResource() throws Exception {
+        ImageWriterPool pool = new ImageWriterPool(2);
+        BufferedImage image = createImage();
+        ByteArrayResource target = new ByteArrayResource(16);
+        for (int i = 0; i < 3; i++) {
+            // the same writer and a reused target buffer each time
+            target.truncate();
+            pool.write(image, "png", null, target);
+            assertImage(ImageIO.read(new ByteArrayInputStream(target.getContents())));
+        }
+        assertEquals(1, pool.getIdleCount("png"));
+
+        pool.write(image, "jpeg", null, target);
+        BufferedImage jpeg = ImageIO.read(new ByteArrayInputStream(target.getContents()));
+        assertEquals(64, jpeg.getWidth());
+    }
+
+    public void testWriteFileResource() throws Exception {
+        File file = File.createTempFile("tile", ".png");
+        try {
+            new ImageWriterPool(2).write(createImage(), "png", null, new FileResource(file));
+            assertImage(ImageIO.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testSeekableImageOutputStream() throws Exception {
+        ByteArrayResource resource = new ByteArrayResource(2);
+        SeekableImageOutputStream out = resource.getImageOutputStream();
+        out.writeInt(0);
+        out.write("abc".getBytes());
+        out.seek(0);
+        out.writeInt(3);
+        out.seek(out.length());
+        out.write('d');
+        out.close();
+
+        byte[] contents = resource.getContents();
+        assertEquals(8, contents.length);
+        assertEquals(3, contents[3]);
+        assertEquals("abcd", new String(contents, 4, 4));
+    }
+
+    private BufferedImage createImage() {
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 32, 32);
+        g.setColor(Color.BLUE);
+        g.fillRect(32, 0, 32, 32);
+        g.dispose();
+        return image;
+    }
+
+    private void assertImage(BufferedImage image) {
+        assertNotNull(image);
+        assertEquals(64, image.getWidth());
+        assertEquals(32, image.getHeight());
+        assertEquals(Color.RED.getRGB(), image.getRGB(10, 10));
+        assertEquals(Color.BLUE.getRGB(), image.getRGB(50, 10));
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import junit.framework.TestCase;
+
+public class AdaptiveConcurrencyLimitTest extends TestCase {
+
+    public void testFixedLimit() throws Exception {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", 2, 2);
+        limit.acquire();
+        limit.acquire();
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    limit.acquire();
+                } catch (InterruptedException e) {
+                    // test fails below
+                }
+            }
+        };
+        waiter.start();
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+        assertEquals(2, limit.getInFlight());
+
+        limit.release(10000, false);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertEquals(2, limit.getInFlight());
+        // a fixed limit doesn't adapt
+        assertEquals(2, limit.getLimit());
+    }
+
+    public void testNoBackendRequest() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", 1, 4);
+        // tiles found cached don't count, nor set a baseline real requests look slow against
+        for (int i = 0; i < 10; i++) {
+            limit.acquire();
+            limit.release(-1, true);
+        }
+        assertEquals(1, limit.getLimit());
+        assertEquals(0, limit.getInFlight());
+
+        limit.acquire();
+        limit.release(100, true);
+        assertEquals(2, limit.getLimit());
+        roundTrip(limit, 2, 150, true);
+        assertEquals(2, limit.getLimit());
+    }
+
+    public void testAdditiveIncrease() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", 1, 4);
+        assertEquals(1, limit.getLimit());
+
+        limit.acquire();
+        limit.release(10, true);
+        assertEquals(2, limit.getLimit());
+
+        // about a round of requests raises the limit by one
+        roundTrip(limit, 2, 10, true);
+        assertEquals(2, limit.getLimit());
+        roundTrip(limit, 2, 10, true);
+        assertEquals(3, limit.getLimit());
+
+        for (int i = 0; i < 10; i++) {
+            roundTrip(limit, limit.getLimit(), 10, true);
+        }
+        assertEquals(4, limit.getLimit());
+    }
+
+    public void testMultiplicativeDecrease() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", 2, 8);
+        for (int i = 0; i < 20; i++) {
+            roundTrip(limit, limit.getLimit(), 10, true);
+        }
+        assertEquals(8, limit.getLimit());
+
+        // slow responses from the same round only count once
+        roundTrip(limit, 8, 100, true);
+        assertEquals(6, limit.getLimit());
+
+        // an error, once the backend had time to answer to the lower concurrency
+        Thread.sleep(20);
+        roundTrip(limit, 1, 10, false);
+        assertEquals(4, limit.getLimit());
+
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(20);
+            roundTrip(limit, 1, 10, false);
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    private void roundTrip(AdaptiveConcurrencyLimit limit, int requests, long latency,
+            boolean success) throws InterruptedException {
+        for (int i = 0; i < requests; i++) {
+            limit.acquire();
+        }
+        for (int i = 0; i < requests; i++) {
+            limit.release(latency, success);
+        }
+    }
+}
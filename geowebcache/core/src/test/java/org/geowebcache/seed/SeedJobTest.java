@@ -0,0 +1,175 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.seed.GWCTask.STATE;
+import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.TileRange;
+
+public class SeedJobTest extends TestCase {
+
+    private File directory;
+
+    private TileRange tileRange;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("seedjobs", "");
+        directory.delete();
+        directory.mkdir();
+
+        long[][] rangeBounds = { { 0, 0, 1, 1, 2 }, { 0, 0, 3, 2, 3 } };
+        tileRange = new TileRange("topp:states", "EPSG:4326", 2, 3, rangeBounds, ImageMime.png,
+                Collections.singletonMap("STYLES", "population"), Long.valueOf(7));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testResume() throws Exception {
+        SeedJob job = new SeedJob(3, TYPE.SEED, tileRange, 4, true, new int[] { 2, 3 });
+        job.setChunkCount(10);
+        job.createJournal(directory);
+        job.chunkDone(0);
+        job.chunkDone(2);
+        job.chunkDone(1);
+        job.chunkDone(5);
+        assertEquals(3, job.getWatermark());
+
+        List<File> journals = SeedJob.findJournals(directory);
+        assertEquals(1, journals.size());
+
+        SeedJob resumed = SeedJob.resume(journals.get(0));
+        assertTrue(resumed.isResumed());
+        assertEquals(3, resumed.getId());
+        assertEquals(TYPE.SEED, resumed.getType());
+        assertEquals(4, resumed.getThreadCount());
+        assertTrue(resumed.isFilterUpdate());
+        assertTrue(Arrays.equals(new int[] { 2, 3 }, resumed.getMetaTilingFactors()));
+        assertEquals(3, resumed.getWatermark());
+        assertTrue(resumed.isChunkDone(2));
+        assertFalse(resumed.isChunkDone(3));
+        assertTrue(resumed.isChunkDone(5));
+
+        TileRange tr = resumed.getTileRange();
+        assertEquals(tileRange.getLayerName(), tr.getLayerName());
+        assertEquals(tileRange.getGridSetId(), tr.getGridSetId());
+        assertEquals(tileRange.getMimeType(), tr.getMimeType());
+        assertEquals(tileRange.getParameters(), tr.getParameters());
+        assertEquals(tileRange.getParametersId(), tr.getParametersId());
+        assertEquals(2, tr.getZoomStart());
+        assertEquals(3, tr.getZoomStop());
+        assertTrue(Arrays.equals(tileRange.rangeBounds(3), tr.rangeBounds(3)));
+
+        // the resumed journal keeps recording progress
+        resumed.chunkDone(3);
+        resumed.chunkDone(4);
+        SeedJob resumedAgain = SeedJob.resume(journals.get(0));
+        assertEquals(6, resumedAgain.getWatermark());
+        resumedAgain.cancel();
+        resumed.cancel();
+        assertFalse(journals.get(0).exists());
+    }
+
+    public void testJournalDeletedWhenDone() throws Exception {
+        SeedJob job = new SeedJob(1, TYPE.TRUNCATE, tileRange, 1, false, new int[] { 1, 1 });
+        job.createJournal(directory);
+        GWCTask task1 = new MockTask();
+        GWCTask task2 = new MockTask();
+        job.addTask(task1);
+        job.addTask(task2);
+
+        task1.state = STATE.DONE;
+        job.taskFinished(task1);
+        assertFalse(job.isFinished());
+        task2.state = STATE.DONE;
+        job.taskFinished(task2);
+        assertTrue(job.isFinished());
+        assertEquals(0, SeedJob.findJournals(directory).size());
+    }
+
+    public void testJournalKeptWhenInterrupted() throws Exception {
+        SeedJob job = new SeedJob(1, TYPE.SEED, tileRange, 1, false, new int[] { 1, 1 });
+        job.createJournal(directory);
+        GWCTask task = new MockTask() {
+            @Override
+            protected void doActionInternal() throws InterruptedException {
+                state = STATE.DEAD;
+                throw new InterruptedException();
+            }
+        };
+        job.addTask(task);
+
+        try {
+            task.doAction();
+            fail("Expected InterruptedException");
+        } catch (InterruptedException e) {
+            assertTrue(task.isInterrupted());
+        }
+        assertTrue(job.isFinished());
+        assertFalse(job.isFailed());
+        assertEquals(1, SeedJob.findJournals(directory).size());
+    }
+
+    public void testFailedJobNotResumed() throws Exception {
+        SeedJob job = new SeedJob(1, TYPE.SEED, tileRange, 1, false, new int[] { 1, 1 });
+        job.createJournal(directory);
+        job.chunkDone(0);
+        GWCTask task = new MockTask();
+        job.addTask(task);
+
+        // e.g. aborted after too many errors
+        task.state = STATE.DEAD;
+        job.taskFinished(task);
+        assertTrue(job.isFinished());
+        assertTrue(job.isFailed());
+        assertEquals(0, SeedJob.findJournals(directory).size());
+
+        List<File> failed = SeedJob.findFailedJournals(directory);
+        assertEquals(1, failed.size());
+        SeedJob read = SeedJob.readFailed(failed.get(0));
+        assertEquals(1, read.getId());
+        assertTrue(read.isFailed());
+        assertTrue(read.isChunkDone(0));
+
+        read.cancel();
+        assertEquals(0, SeedJob.findFailedJournals(directory).size());
+    }
+
+    private static class MockTask extends GWCTask {
+        @Override
+        protected void doActionInternal() throws InterruptedException {
+            //
+        }
+
+        @Override
+        protected void dispose() {
+            //
+        }
+    }
+}
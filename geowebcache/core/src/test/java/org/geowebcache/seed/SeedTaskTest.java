@@ -53,6 +53,7 @@ import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.TileRangeIterator;
+import org.geowebcache.storage.TileRangeVisitor;
 import org.geowebcache.util.MockWMSSourceHelper;
 
 /**
@@ -127,6 +128,8 @@ public class SeedTaskTest extends TestCase {
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
         expect(mockStorageBroker.put((TileObject) anyObject())).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.stat((TileRange) anyObject(), (TileRangeVisitor) anyObject()))
+                .andReturn(0L).anyTimes();
         replay(mockStorageBroker);
 
         boolean reseed = false;
@@ -205,6 +208,8 @@ public class SeedTaskTest extends TestCase {
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
         expect(mockStorageBroker.put((TileObject) anyObject())).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.stat((TileRange) anyObject(), (TileRangeVisitor) anyObject()))
+                .andReturn(0L).anyTimes();
         replay(mockStorageBroker);
 
         boolean reseed = false;
@@ -271,6 +276,8 @@ public class SeedTaskTest extends TestCase {
         };
         expect(mockStorageBroker.put(capture(storedObjects))).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.stat((TileRange) anyObject(), (TileRangeVisitor) anyObject()))
+                .andReturn(0L).anyTimes();
         replay(mockStorageBroker);
 
         TileRange tr = TileBreeder.createTileRange(req, tl);
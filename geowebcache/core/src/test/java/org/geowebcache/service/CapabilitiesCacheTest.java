@@ -0,0 +1,154 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.geowebcache.config.Configuration;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.layer.TileLayerDispatcher;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+public class CapabilitiesCacheTest extends TestCase {
+
+    private static final byte[] DOCUMENT = "<Capabilities/>".getBytes();
+
+    private TileLayerDispatcher tld;
+
+    private CapabilitiesCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        tld = new TileLayerDispatcher(new GridSetBroker(false, false),
+                new ArrayList<Configuration>());
+        cache = new CapabilitiesCache(tld, 2);
+    }
+
+    public void testInvalidatedByDispatcher() throws Exception {
+        cache.put("a", cache.getGeneration(), DOCUMENT, "text/xml");
+        assertNotNull(cache.get("a"));
+
+        Configuration config = EasyMock.createNiceMock(Configuration.class);
+        EasyMock.expect(config.getIdentifier()).andReturn("mock");
+        EasyMock.replay(config);
+        tld.addConfiguration(config);
+        assertNull(cache.get("a"));
+    }
+
+    public void testStaleDocumentNotCached() throws Exception {
+        long generation = cache.getGeneration();
+        // configuration changes while the document is generated
+        cache.layerModified("topp:states");
+        CapabilitiesCache.Document document = cache.put("a", generation, DOCUMENT, "text/xml");
+        assertNotNull(document);
+        assertNull(cache.get("a"));
+    }
+
+    public void testBounded() throws Exception {
+        long generation = cache.getGeneration();
+        cache.put("a", generation, DOCUMENT, "text/xml");
+        cache.put("b", generation, DOCUMENT, "text/xml");
+        cache.get("a");
+        cache.put("c", generation, DOCUMENT, "text/xml");
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    public void testStreamed() throws Exception {
+        final int[] generated = new int[1];
+        CapabilitiesCache.Generator generator = new CapabilitiesCache.Generator() {
+            public void write(PrintWriter writer) {
+                generated[0]++;
+                writer.append("<Capabilities>");
+                for (int i = 0; i < 100; i++) {
+                    writer.append("<Layer/>");
+                }
+                writer.append("</Capabilities>");
+            }
+        };
+        final int length = "<Capabilities></Capabilities>".length() + 100 * "<Layer/>".length();
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertEquals(length, cache.write("a", new MockHttpServletRequest(), response, "text/xml",
+                generator));
+        assertEquals(length, response.getOutputStreamContent().length());
+        assertEquals(1, generated[0]);
+        assertEquals(length, cache.get("a").getLength());
+        // the response that generated the document is served like the cached ones
+        final String eTag = response.getHeader("ETag");
+        assertEquals(cache.get("a").getETag(), eTag);
+
+        response = new MockHttpServletResponse();
+        assertEquals(length, cache.write("a", new MockHttpServletRequest(), response, "text/xml",
+                generator));
+        assertEquals(1, generated[0]);
+        assertEquals(eTag, response.getHeader("ETag"));
+
+        // a client that has the document gets a 304, even when it's generated again
+        cache.invalidate();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("If-None-Match", eTag);
+        response = new MockHttpServletResponse();
+        assertEquals(0, cache.write("a", request, response, "text/xml", generator));
+        assertEquals(2, generated[0]);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatusCode());
+
+        // too big to cache, still served
+        cache = new CapabilitiesCache(tld, 2, length - 1);
+        response = new MockHttpServletResponse();
+        assertEquals(length, cache.write("a", new MockHttpServletRequest(), response, "text/xml",
+                generator));
+        assertEquals(length, response.getOutputStreamContent().length());
+        assertEquals(HttpServletResponse.SC_OK, response.getStatusCode());
+        assertNull(response.getHeader("ETag"));
+        assertNull(cache.get("a"));
+    }
+
+    public void testConditionalRequests() throws Exception {
+        CapabilitiesCache.Document document = cache.put("a", cache.getGeneration(), DOCUMENT,
+                "text/xml");
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertEquals(DOCUMENT.length, document.writeTo(new MockHttpServletRequest(), response));
+        assertEquals(HttpServletResponse.SC_OK, response.getStatusCode());
+        assertEquals("<Capabilities/>", response.getOutputStreamContent());
+        final String eTag = response.getHeader("ETag");
+        assertEquals(document.getETag(), eTag);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("If-None-Match", "\"other\", " + eTag);
+        response = new MockHttpServletResponse();
+        assertEquals(0, document.writeTo(request, response));
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatusCode());
+        assertEquals("", response.getOutputStreamContent());
+
+        request = new MockHttpServletRequest();
+        request.addHeader("If-None-Match", "\"other\"");
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+        response = new MockHttpServletResponse();
+        assertTrue(document.writeTo(request, response) > 0);
+        assertEquals(HttpServletResponse.SC_OK, response.getStatusCode());
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+    }
+}
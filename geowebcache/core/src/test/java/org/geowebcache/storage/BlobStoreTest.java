@@ -19,6 +19,7 @@ package org.geowebcache.storage;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,6 +27,7 @@ import junit.framework.TestCase;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.easymock.Capture;
 import org.easymock.classextension.EasyMock;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
@@ -179,6 +181,61 @@ public class BlobStoreTest extends TestCase {
         assertNull(res);
     }
 
+    public void testTileRangeStatAndBatchedDelete() throws Exception {
+        FileBlobStore fbs = setup();
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        MimeType mime = ImageMime.png;
+        SRS srs = SRS.getEPSG4326();
+        String layerName = "statLayer";
+        int zoomLevel = 7;
+        int x = 25;
+        int y = 6;
+
+        for (int i = 0; i < 6; i++) {
+            long[] xyz = { x + i, y, zoomLevel };
+            fbs.put(TileObject.createCompleteTileObject(layerName, xyz, srs.toString(),
+                    mime.getFormat(), null, bytes));
+        }
+
+        long[][] rangeBounds = { { x + 1, y, x + 3, y + 1, zoomLevel } };
+        TileRange trObj = new TileRange(layerName, srs.toString(), zoomLevel, zoomLevel,
+                rangeBounds, mime, (Map<String, String>) null, Long.valueOf(-1L));
+
+        final long[] visited = new long[2];
+        TileRangeVisitor visitor = new TileRangeVisitor() {
+            public void visit(long x, long y, int z, long size) {
+                visited[0]++;
+                visited[1] += size;
+            }
+        };
+        assertEquals(3, fbs.stat(trObj, visitor));
+        assertEquals(3, visited[0]);
+        assertEquals(3 * bytes.getSize(), visited[1]);
+
+        // all the deleted tiles are in the same intermediate directory, a single event is expected
+        Capture<long[]> deletedX = new Capture<long[]>();
+        BlobStoreListener listener = EasyMock.createMock(BlobStoreListener.class);
+        listener.tilesDeleted(EasyMock.eq(layerName), EasyMock.eq(srs.toString()),
+                EasyMock.eq(mime.getFormat()), (Long) EasyMock.isNull(), EasyMock.eq(zoomLevel),
+                EasyMock.capture(deletedX), EasyMock.aryEq(new long[] { y, y, y }),
+                (long[]) EasyMock.anyObject());
+        EasyMock.replay(listener);
+        fbs.addListener(listener);
+
+        fbs.delete(trObj);
+        EasyMock.verify(listener);
+        long[] xs = deletedX.getValue();
+        Arrays.sort(xs);
+        assertTrue(Arrays.equals(new long[] { x + 1, x + 2, x + 3 }, xs));
+
+        assertEquals(0, fbs.stat(trObj, visitor));
+        // the tiles outside of the range are kept
+        long[][] layerBounds = { { 0, 0, 100, 100, zoomLevel } };
+        TileRange all = new TileRange(layerName, srs.toString(), zoomLevel, zoomLevel,
+                layerBounds, mime, (Map<String, String>) null, Long.valueOf(-1L));
+        assertEquals(3, fbs.stat(all, visitor));
+    }
+
     public void testRenameLayer() throws Exception {
         FileBlobStore fbs = setup();
         Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
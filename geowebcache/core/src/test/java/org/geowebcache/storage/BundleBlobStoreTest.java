@@ -0,0 +1,286 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.easymock.Capture;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.grid.SRS;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.blobstore.file.BundleBlobStore;
+
+public class BundleBlobStoreTest extends TestCase {
+
+    private File root;
+
+    private BundleBlobStore store;
+
+    protected void setUp() throws Exception {
+        root = new File(StorageBrokerTest.findTempDir() + File.separator + "gwcTestBundles");
+        if (root.exists()) {
+            FileUtils.deleteDirectory(root);
+        }
+        root.mkdirs();
+        store = new BundleBlobStore(root.getAbsolutePath());
+    }
+
+    protected void tearDown() throws Exception {
+        store.destroy();
+        FileUtils.deleteQuietly(root);
+    }
+
+    public void testPutGetDelete() throws Exception {
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        long[] xyz = { 130L, 2L, 8L };
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("a", "x");
+        TileObject to = TileObject.createCompleteTileObject("test:layer", xyz, "EPSG:4326",
+                "image/png", parameters, bytes);
+        to.setParamtersId(12L);
+
+        BlobStoreListener listener = EasyMock.createMock(BlobStoreListener.class);
+        listener.tileStored("test:layer", "EPSG:4326", "image/png", Long.valueOf(12L), 130L, 2L,
+                8, (int) bytes.getSize());
+        listener.tileUpdated("test:layer", "EPSG:4326", "image/png", Long.valueOf(12L), 130L,
+                2L, 8, 3, bytes.getSize());
+        listener.tileDeleted("test:layer", "EPSG:4326", "image/png", Long.valueOf(12L), 130L,
+                2L, 8, 3);
+        EasyMock.replay(listener);
+        store.addListener(listener);
+
+        store.put(to);
+        // a single bundle file for the block of tiles
+        assertTrue(new File(root, "test_layer/EPSG_4326_08_c/1_0.png.bundle").exists());
+
+        TileObject query = TileObject.createQueryTileObject("test:layer", xyz, "EPSG:4326",
+                "image/png", parameters);
+        query.setParamtersId(12L);
+        Resource resp = store.get(query);
+        assertNotNull(resp);
+        assertTrue(query.getCreated() > 0);
+        InputStream is = bytes.getInputStream();
+        InputStream is2 = resp.getInputStream();
+        try {
+            assertTrue(IOUtils.contentEquals(is, is2));
+        } finally {
+            is.close();
+            is2.close();
+        }
+
+        // other tiles of the same bundle do not exist
+        TileObject other = TileObject.createQueryTileObject("test:layer", new long[] { 131L, 2L,
+                8L }, "EPSG:4326", "image/png", parameters);
+        other.setParamtersId(12L);
+        assertNull(store.get(other));
+
+        // overwrite
+        TileObject updated = TileObject.createCompleteTileObject("test:layer", xyz, "EPSG:4326",
+                "image/png", parameters, new ByteArrayResource("abc".getBytes()));
+        updated.setParamtersId(12L);
+        store.put(updated);
+        assertEquals(3, store.get(query).getSize());
+
+        assertTrue(store.delete(query));
+        assertNull(store.get(query));
+        assertFalse(store.delete(query));
+        EasyMock.verify(listener);
+    }
+
+    public void testTileRangeStatAndDelete() throws Exception {
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        MimeType mime = ImageMime.png;
+        SRS srs = SRS.getEPSG4326();
+        String layerName = "statLayer";
+        int zoomLevel = 7;
+        // spans two bundles
+        int x = 125;
+        int y = 6;
+
+        for (int i = 0; i < 6; i++) {
+            long[] xyz = { x + i, y, zoomLevel };
+            store.put(TileObject.createCompleteTileObject(layerName, xyz, srs.toString(), mime
+                    .getFormat(), null, bytes));
+        }
+
+        long[][] rangeBounds = { { x + 1, y, x + 3, y + 1, zoomLevel } };
+        TileRange trObj = new TileRange(layerName, srs.toString(), zoomLevel, zoomLevel,
+                rangeBounds, mime, (Map<String, String>) null, Long.valueOf(-1L));
+
+        final long[] visited = new long[2];
+        TileRangeVisitor visitor = new TileRangeVisitor() {
+            public void visit(long x, long y, int z, long size) {
+                visited[0]++;
+                visited[1] += size;
+            }
+        };
+        assertEquals(3, store.stat(trObj, visitor));
+        assertEquals(3, visited[0]);
+        assertEquals(3 * bytes.getSize(), visited[1]);
+
+        // one event per bundle
+        Capture<long[]> deletedX = new Capture<long[]>();
+        BlobStoreListener listener = EasyMock.createMock(BlobStoreListener.class);
+        listener.tilesDeleted(EasyMock.eq(layerName), EasyMock.eq(srs.toString()),
+                EasyMock.eq(mime.getFormat()), (Long) EasyMock.isNull(), EasyMock.eq(zoomLevel),
+                EasyMock.aryEq(new long[] { x + 1, x + 2 }), EasyMock.aryEq(new long[] { y, y }),
+                EasyMock.aryEq(new long[] { bytes.getSize(), bytes.getSize() }));
+        listener.tilesDeleted(EasyMock.eq(layerName), EasyMock.eq(srs.toString()),
+                EasyMock.eq(mime.getFormat()), (Long) EasyMock.isNull(), EasyMock.eq(zoomLevel),
+                EasyMock.capture(deletedX), EasyMock.aryEq(new long[] { y }),
+                EasyMock.aryEq(new long[] { bytes.getSize() }));
+        EasyMock.replay(listener);
+        store.addListener(listener);
+
+        store.delete(trObj);
+        EasyMock.verify(listener);
+        store.removeListener(listener);
+        assertTrue(Arrays.equals(new long[] { x + 3 }, deletedX.getValue()));
+
+        assertEquals(0, store.stat(trObj, visitor));
+        // the tiles outside of the range are kept
+        long[][] layerBounds = { { 0, 0, 300, 100, zoomLevel } };
+        TileRange all = new TileRange(layerName, srs.toString(), zoomLevel, zoomLevel,
+                layerBounds, mime, (Map<String, String>) null, Long.valueOf(-1L));
+        assertEquals(3, store.stat(all, visitor));
+
+        // bundles left empty are removed
+        File zoomDir = new File(root, "statLayer/EPSG_4326_07");
+        assertEquals(2, zoomDir.list().length);
+        store.delete(all);
+        assertFalse(zoomDir.exists());
+    }
+
+    public void testCompaction() throws Exception {
+        MimeType mime = ImageMime.png;
+        String layerName = "compactLayer";
+        long[] xyz = { 10L, 10L, 7L };
+        byte[] big = new byte[512 * 1024];
+        for (int i = 0; i < 4; i++) {
+            Arrays.fill(big, (byte) i);
+            store.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", mime
+                    .getFormat(), null, new ByteArrayResource(big)));
+        }
+        long[] other = { 11L, 10L, 7L };
+        store.put(TileObject.createCompleteTileObject(layerName, other, "EPSG:4326", mime
+                .getFormat(), null, new ByteArrayResource("small".getBytes())));
+
+        File bundle = new File(root, "compactLayer/EPSG_4326_07/0_0.png.bundle");
+        final long before = bundle.length();
+        assertTrue(before > 4 * big.length);
+
+        long[][] bounds = { { 11, 10, 11, 10, 7 } };
+        store.delete(new TileRange(layerName, "EPSG:4326", 7, 7, bounds, mime,
+                (Map<String, String>) null, Long.valueOf(-1L)));
+
+        // the overwritten contents are gone, the last ones are kept
+        assertEquals(before - 3 * big.length - "small".length(), bundle.length());
+        TileObject query = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326", mime
+                .getFormat(), null);
+        Resource resource = store.get(query);
+        assertEquals(big.length, resource.getSize());
+        InputStream in = resource.getInputStream();
+        try {
+            assertTrue(IOUtils.contentEquals(new ByteArrayResource(big).getInputStream(), in));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testCompactOpenBundles() throws Exception {
+        MimeType mime = ImageMime.png;
+        String layerName = "compactLayer";
+        long[] xyz = { 10L, 10L, 7L };
+        byte[] big = new byte[512 * 1024];
+        for (int i = 0; i < 4; i++) {
+            Arrays.fill(big, (byte) i);
+            store.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", mime
+                    .getFormat(), null, new ByteArrayResource(big)));
+        }
+        File bundle = new File(root, "compactLayer/EPSG_4326_07/0_0.png.bundle");
+        final long before = bundle.length();
+
+        // what the scheduled pass does, no range delete involved
+        store.compactOpenBundles();
+
+        assertEquals(before - 3 * big.length, bundle.length());
+        TileObject query = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326", mime
+                .getFormat(), null);
+        assertEquals(big.length, store.get(query).getSize());
+    }
+
+    /**
+     * An index entry pointing past the end of the file fails the compaction instead of looping
+     */
+    public void testCompactTruncatedBundle() throws Exception {
+        MimeType mime = ImageMime.png;
+        String layerName = "compactLayer";
+        long[] xyz = { 10L, 10L, 7L };
+        byte[] big = new byte[512 * 1024];
+        for (int i = 0; i < 4; i++) {
+            Arrays.fill(big, (byte) i);
+            store.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", mime
+                    .getFormat(), null, new ByteArrayResource(big)));
+        }
+        final File bundle = new File(root, "compactLayer/EPSG_4326_07/0_0.png.bundle");
+        final long truncated = bundle.length() - 1024;
+        RandomAccessFile raf = new RandomAccessFile(bundle, "rw");
+        try {
+            raf.setLength(truncated);
+        } finally {
+            raf.close();
+        }
+
+        Thread compaction = new Thread() {
+            public void run() {
+                store.compactOpenBundles();
+            }
+        };
+        compaction.setDaemon(true);
+        compaction.start();
+        compaction.join(10000);
+        assertFalse("compaction did not end", compaction.isAlive());
+
+        assertEquals(truncated, bundle.length());
+        assertFalse(new File(bundle.getParentFile(), bundle.getName() + ".compacting").exists());
+    }
+
+    public void testLayerMetadataAndRename() throws Exception {
+        store.putLayerMetadata("layer", "key", "value 1");
+        assertEquals("value 1", store.getLayerMetadata("layer", "key"));
+
+        store.put(TileObject.createCompleteTileObject("layer", new long[] { 1, 1, 2 },
+                "EPSG:4326", "image/png", null, new ByteArrayResource("abc".getBytes())));
+        assertTrue(store.rename("layer", "renamed"));
+        assertEquals("value 1", store.getLayerMetadata("renamed", "key"));
+        assertNotNull(store.get(TileObject.createQueryTileObject("renamed",
+                new long[] { 1, 1, 2 }, "EPSG:4326", "image/png", null)));
+
+        assertTrue(store.delete("renamed"));
+        assertFalse(new File(root, "renamed").exists());
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+public class MemoryTileCacheTest extends TestCase {
+
+    private static final String LAYER = "test:layer";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private static final String FORMAT = ImageMime.png.getFormat();
+
+    public void testHitMiss() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(1024, 16);
+
+        TileObject query = query(1, 2, 3);
+        assertFalse(cache.get(query));
+        assertEquals(1, cache.getMissCount());
+
+        TileObject tile = tile(1, 2, 3, "tile contents");
+        tile.setCreated(1000);
+        assertTrue(cache.put(tile, cache.stamp(tile)));
+        assertEquals(1, cache.size());
+        assertEquals("tile contents".length(), cache.storageSize());
+
+        query = query(1, 2, 3);
+        assertTrue(cache.get(query));
+        assertEquals("tile contents", contents(query));
+        assertEquals(1000, query.getCreated());
+        assertEquals(1, cache.getHitCount());
+
+        // different format, different tile
+        query = TileObject.createQueryTileObject(LAYER, new long[] { 1, 2, 3 }, GRIDSET,
+                ImageMime.jpeg.getFormat(), null);
+        assertFalse(cache.get(query));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    public void testEvictionByEntries() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024, 4);
+        for (int i = 0; i < 100; i++) {
+            TileObject tile = tile(i, 0, 5, "tile " + i);
+            cache.put(tile, cache.stamp(tile));
+        }
+        assertTrue(cache.size() <= 4);
+        assertEquals(100 - cache.size(), cache.getEvictionCount());
+    }
+
+    public void testEvictionByBytes() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(100, 1000);
+        for (int i = 0; i < 100; i++) {
+            TileObject tile = tile(i, 0, 5, "0123456789");
+            cache.put(tile, cache.stamp(tile));
+        }
+        assertTrue(cache.storageSize() <= 100);
+        assertTrue(cache.getEvictionCount() > 0);
+
+        // too big to ever be cached
+        TileObject big = tile(0, 0, 0, new String(new char[200]));
+        assertFalse(cache.put(big, cache.stamp(big)));
+    }
+
+    public void testStaleStamp() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(1024, 16);
+        TileObject tile = tile(1, 2, 3, "old contents");
+        long stamp = cache.stamp(tile);
+        // tile updated while the old version was being read
+        cache.tileUpdated(LAYER, GRIDSET, FORMAT, null, 1, 2, 3, 12, 12);
+        assertFalse(cache.put(tile, stamp));
+        assertFalse(cache.get(query(1, 2, 3)));
+    }
+
+    public void testInvalidation() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024, 1000);
+        for (int i = 0; i < 10; i++) {
+            TileObject tile = tile(i, 0, 5, "tile " + i);
+            cache.put(tile, cache.stamp(tile));
+        }
+        cache.tileDeleted(LAYER, GRIDSET, FORMAT, null, 0, 0, 5, 6);
+        assertFalse(cache.get(query(0, 0, 5)));
+        assertTrue(cache.get(query(1, 0, 5)));
+
+        cache.tileStored(LAYER, GRIDSET, FORMAT, null, 1, 0, 5, 6);
+        assertFalse(cache.get(query(1, 0, 5)));
+
+        long[][] bounds = new long[6][];
+        bounds[5] = new long[] { 2, 0, 4, 0, 5 };
+        cache.invalidate(new TileRange(LAYER, GRIDSET, 5, 5, bounds, ImageMime.png,
+                (Map<String, String>) null));
+        assertFalse(cache.get(query(3, 0, 5)));
+        assertTrue(cache.get(query(5, 0, 5)));
+        assertEquals(5, cache.size());
+
+        cache.gridSubsetDeleted(LAYER, "EPSG:900913");
+        assertEquals(5, cache.size());
+        cache.layerRenamed(LAYER, "renamed");
+        assertEquals(0, cache.size());
+    }
+
+    public void testStorageBroker() throws Exception {
+        File dir = new File(StorageBrokerTest.findTempDir() + File.separator
+                + "gwcTestMemoryCache");
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        try {
+            FileBlobStore blobStore = new FileBlobStore(dir.getAbsolutePath());
+            StorageBroker broker = new StorageBroker(null, blobStore);
+            MemoryTileCache cache = new MemoryTileCache(1024 * 1024, 1000);
+            broker.setMemoryCache(cache);
+
+            broker.put(tile(1, 1, 1, "first"));
+
+            TileObject query = query(1, 1, 1);
+            assertTrue(broker.get(query));
+            assertEquals("first", contents(query));
+            assertEquals(0, cache.getHitCount());
+            assertEquals(1, cache.size());
+
+            query = query(1, 1, 1);
+            assertTrue(broker.get(query));
+            assertEquals("first", contents(query));
+            assertEquals(1, cache.getHitCount());
+
+            // the blob store events keep the cache consistent
+            broker.put(tile(1, 1, 1, "second"));
+            assertEquals(0, cache.size());
+            query = query(1, 1, 1);
+            assertTrue(broker.get(query));
+            assertEquals("second", contents(query));
+
+            broker.delete(LAYER);
+            assertEquals(0, cache.size());
+            assertFalse(broker.get(query(1, 1, 1)));
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static TileObject query(long x, long y, long z) {
+        return TileObject.createQueryTileObject(LAYER, new long[] { x, y, z }, GRIDSET, FORMAT,
+                null);
+    }
+
+    private static TileObject tile(long x, long y, long z, String contents) {
+        return TileObject.createCompleteTileObject(LAYER, new long[] { x, y, z }, GRIDSET, FORMAT,
+                null, new ByteArrayResource(contents.getBytes()));
+    }
+
+    private static String contents(TileObject tile) throws Exception {
+        InputStream in = tile.getBlob().getInputStream();
+        try {
+            return IOUtils.toString(in);
+        } finally {
+            in.close();
+        }
+    }
+}
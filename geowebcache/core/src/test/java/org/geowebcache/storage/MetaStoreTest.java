@@ -155,9 +155,140 @@ public class MetaStoreTest extends TestCase {
 
     }
 
+    public void testWriteBehind() throws Exception {
+        final String layerName = "writeBehindLayer";
+        final String gridSetId = "EPSG:4326";
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("a", "x");
+        Resource bytes = new ByteArrayResource("Test 1 2 3".getBytes());
+
+        JDBCMetaBackend ms = (JDBCMetaBackend) setup();
+        ms.setWriteBehindFlushInterval(60000);
+        ms.setWriteBehind(true);
+        ms.setLockTimeout(100);
+        ms.setLockRetryDelay(10);
+
+        TileObject to = TileObject.createCompleteTileObject(layerName, new long[] { 1L, 2L, 3L },
+                gridSetId, "jpeg", parameters, bytes);
+        ms.put(to);
+        ms.unlock(to);
+        // requesting it before the batch is due writes it
+        TileObject query = TileObject.createQueryTileObject(layerName,
+                new long[] { 1L, 2L, 3L }, gridSetId, "jpeg", parameters);
+        assertTrue(ms.get(query));
+        assertEquals(bytes.getSize(), query.getBlobSize());
+        assertTrue(query.getId() > 0);
+
+        // deleting a queued tile drops it
+        TileObject deleted = TileObject.createCompleteTileObject(layerName, new long[] { 3L, 2L,
+                3L }, gridSetId, "jpeg", parameters, bytes);
+        ms.put(deleted);
+        ms.unlock(deleted);
+        ms.delete(TileObject.createQueryTileObject(layerName, new long[] { 3L, 2L, 3L },
+                gridSetId, "jpeg", parameters));
+        assertFalse(ms.get(TileObject.createQueryTileObject(layerName, new long[] { 3L, 2L, 3L },
+                gridSetId, "jpeg", parameters)));
+
+        // never unlocked, the lock expires
+        TileObject locked = TileObject.createCompleteTileObject(layerName, new long[] { 2L, 2L,
+                3L }, gridSetId, "jpeg", parameters, bytes);
+        ms.put(locked);
+        TileObject lockedQuery = TileObject.createQueryTileObject(layerName, new long[] { 2L,
+                2L, 3L }, gridSetId, "jpeg", parameters);
+        assertFalse(ms.get(lockedQuery));
+        assertEquals(StorageObject.Status.EXPIRED_LOCK, lockedQuery.getStatus());
+
+        // disabling write-behind (as destroy() does) writes the queued tiles
+        ms.setWriteBehind(false);
+        query = TileObject.createQueryTileObject(layerName, new long[] { 1L, 2L, 3L }, gridSetId,
+                "jpeg", parameters);
+        assertTrue(ms.get(query));
+        assertEquals(bytes.getSize(), query.getBlobSize());
+        assertTrue(query.getId() > 0);
+        ms.destroy();
+    }
+
+    public void testLockWait() throws Exception {
+        final String layerName = "lockWaitLayer";
+        final Resource bytes = new ByteArrayResource("Test 1 2 3".getBytes());
+
+        final JDBCMetaBackend ms = (JDBCMetaBackend) setup();
+        // would make the waiting request fail the test if it polled the database
+        ms.setLockRetryDelay(60000);
+
+        TileObject to = TileObject.createCompleteTileObject(layerName, new long[] { 1L, 2L, 3L },
+                "EPSG:4326", "jpeg", null, bytes);
+        ms.put(to);
+
+        final TileObject query = TileObject.createQueryTileObject(layerName, new long[] { 1L,
+                2L, 3L }, "EPSG:4326", "jpeg", null);
+        final boolean[] found = new boolean[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    found[0] = ms.get(query);
+                } catch (StorageException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(200);
+        assertTrue(waiter.isAlive());
+
+        ms.unlock(to);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertTrue(found[0]);
+        assertEquals(bytes.getSize(), query.getBlobSize());
+        ms.destroy();
+    }
+
+    public void testTileRowCache() throws Exception {
+        final String layerName = "rowCacheLayer";
+        final long[] xyz = { 1L, 2L, 3L };
+
+        JDBCMetaBackend ms = (JDBCMetaBackend) setup();
+        ms.setTileRowCacheSize(10);
+
+        TileObject to = TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", "jpeg",
+                null, new ByteArrayResource("Test 1 2 3".getBytes()));
+        ms.put(to);
+        ms.unlock(to);
+        TileObject query = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326", "jpeg",
+                null);
+        assertTrue(ms.get(query));
+        final long id = query.getId();
+
+        // deleted behind its back, the cached row is still served
+        JDBCMetaBackend other = (JDBCMetaBackend) open();
+        assertTrue(other.delete(query));
+        query = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326", "jpeg", null);
+        assertTrue(ms.get(query));
+        assertEquals(id, query.getId());
+        assertEquals(10, query.getBlobSize());
+
+        // storing the tile again replaces the cached row
+        to = TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", "jpeg", null,
+                new ByteArrayResource("abc".getBytes()));
+        ms.put(to);
+        ms.unlock(to);
+        query = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326", "jpeg", null);
+        assertTrue(ms.get(query));
+        assertEquals(3, query.getBlobSize());
+
+        assertTrue(ms.delete(query));
+        query = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326", "jpeg", null);
+        assertFalse(ms.get(query));
+        ms.destroy();
+    }
+
     public MetaStore setup() throws Exception {
         StorageBrokerTest.deleteDb(TEST_DB_NAME);
-        
+        return open();
+    }
+
+    private MetaStore open() throws Exception {
         return new JDBCMetaBackend("org.h2.Driver", 
                 "jdbc:h2:file:" + StorageBrokerTest.findTempDir() 
                 + File.separator +TEST_DB_NAME + ";TRACE_LEVEL_FILE=0",
@@ -4,6 +4,7 @@ import java.io.File;
 
 import junit.framework.TestCase;
 
+import org.easymock.classextension.EasyMock;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.storage.blobstore.file.FileBlobStore;
@@ -68,6 +69,28 @@ public class StorageBrokerTest extends TestCase {
                 + THREAD_COUNT + " threads in parallel" );
     }
     
+    /**
+     * A tile the blob store fails to save is removed from the metastore and unlocked
+     */
+    public void testPutBlobFailureUnlocks() throws Exception {
+        TileObject tile = TileObject.createCompleteTileObject("test", new long[] { 1, 2, 3 },
+                "EPSG:4326", "image/png", null, new ByteArrayResource(new byte[10]));
+
+        MetaStore metaStore = EasyMock.createMock(MetaStore.class);
+        EasyMock.expect(metaStore.enabled()).andReturn(true);
+        metaStore.put(tile);
+        EasyMock.expect(metaStore.delete(tile)).andReturn(true);
+        EasyMock.expect(metaStore.unlock(tile)).andReturn(true);
+        BlobStore blobStore = EasyMock.createMock(BlobStore.class);
+        blobStore.put(tile);
+        EasyMock.expectLastCall().andThrow(new StorageException("disk full"));
+        EasyMock.replay(metaStore, blobStore);
+
+        StorageBroker sb = new StorageBroker(metaStore, blobStore);
+        assertFalse(sb.put(tile));
+        EasyMock.verify(metaStore, blobStore);
+    }
+
     private StorageBroker resetAndPrepBasicTestDb() throws Exception {
         System.out.println("Deleting old test database.");
         deleteDb(TEST_DB_NAME);
@@ -7,8 +7,12 @@ import static org.easymock.classextension.EasyMock.replay;
 import static org.easymock.classextension.EasyMock.verify;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -153,6 +157,73 @@ public class TileRangeIteratorTest extends TestCase {
         assertEquals(expected, tilesProcessed);
     }
 
+    /**
+     * Threads taking chunks of the range iterate each meta tile exactly once
+     */
+    public void testChunksMultiThreadedMetaTiling() throws Exception {
+        final int zoomStart = gridSubSet.getZoomStart();
+        final int zoomStop = gridSubSet.getZoomStop();
+        final int[] metaTilingFactors = { 3, 2 };
+        final TileRange tileRange = new TileRange("layer", "gridset", zoomStart, zoomStop,
+                gridCoverages, mimeType, parameters);
+        final TileRangeIterator tri = new TileRangeIterator(tileRange, metaTilingFactors);
+        assertTrue(tri.getChunkCount() > zoomStop - zoomStart);
+
+        final int nThreads = 32;
+        final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+        final ExecutorService executorService = Executors.newFixedThreadPool(nThreads);
+        Collection<Callable<Long>> tasks = new ArrayList<Callable<Long>>(nThreads);
+        for (int taskN = 0; taskN < nThreads; taskN++) {
+            tasks.add(new Callable<Long>() {
+                public Long call() throws Exception {
+                    long nprocessed = 0;
+                    long[] gridLoc = new long[3];
+                    TileRangeIterator.Chunk chunk;
+                    while ((chunk = tri.nextChunk()) != null) {
+                        while (chunk.nextMetaGridLocation(gridLoc) != null) {
+                            assertTrue(seen.add(Arrays.toString(gridLoc)));
+                            ++nprocessed;
+                        }
+                    }
+                    return Long.valueOf(nprocessed);
+                }
+            });
+        }
+        List<Future<Long>> values = executorService.invokeAll(tasks);
+        executorService.shutdown();
+
+        long expected = countMetaTiles(gridCoverages, zoomStart, zoomStop, metaTilingFactors);
+        assertEquals(expected, sumValues(values));
+        assertEquals(countMetaTiles(gridCoverages, zoomStart, zoomStop, new int[] { 1, 1 }), tri
+                .getTilesProcessed());
+    }
+
+    /**
+     * The tile counts of the chunks, as used to account for the ones skipped when resuming a seed
+     * job, add up to the tiles in the range
+     */
+    public void testChunkTileCount() throws Exception {
+        final int zoomStart = gridSubSet.getZoomStart();
+        final int zoomStop = gridSubSet.getZoomStop();
+        final int[] metaTilingFactors = { 3, 2 };
+        final TileRange tileRange = new TileRange("layer", "gridset", zoomStart, zoomStop,
+                gridCoverages, mimeType, parameters);
+        final TileRangeIterator tri = new TileRangeIterator(tileRange, metaTilingFactors);
+
+        long total = 0;
+        long[] gridLoc = new long[3];
+        TileRangeIterator.Chunk chunk;
+        while ((chunk = tri.nextChunk()) != null) {
+            final long tileCount = chunk.getTileCount();
+            while (chunk.nextMetaGridLocation(gridLoc) != null) {
+                //
+            }
+            assertEquals(chunk.getTilesProcessed(), tileCount);
+            total += tileCount;
+        }
+        assertEquals(countMetaTiles(gridCoverages, zoomStart, zoomStop, new int[] { 1, 1 }), total);
+    }
+
     /**
      * 
      */
@@ -0,0 +1,112 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.FileResource;
+import org.geowebcache.io.Resource;
+
+public class TransientCacheTest extends TestCase {
+
+    public void testServedOnce() throws Exception {
+        TransientCache cache = new TransientCache(10, 10);
+        ByteArrayResource buffer = new ByteArrayResource("tile".getBytes());
+        cache.put("a", buffer);
+        // the caller reuses its buffer, the cached copy shall not change
+        buffer.getContents()[0] = 'x';
+
+        assertEquals(1, cache.size());
+        assertEquals(4, cache.storageSize());
+        Resource cached = cache.get("a");
+        assertEquals("tile", new String(((ByteArrayResource) cached).getContents()));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.storageSize());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testCopyFile() throws Exception {
+        File file = File.createTempFile("transient", ".png");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write("file tile".getBytes());
+            out.close();
+            TransientCache cache = new TransientCache(10, 10);
+            cache.put("a", new FileResource(file));
+            Resource cached = cache.get("a");
+            assertEquals("file tile", new String(((ByteArrayResource) cached).getContents()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testEviction() throws Exception {
+        TransientCache cache = new TransientCache(5, 1);
+        for (int i = 0; i < 20; i++) {
+            cache.put(String.valueOf(i), new ByteArrayResource(new byte[100]));
+        }
+        assertEquals(5, cache.size());
+        assertEquals(15, cache.getEvictionCount());
+        // oldest ones are gone
+        assertNull(cache.get("0"));
+        assertNotNull(cache.get("19"));
+
+        cache = new TransientCache(100, 1);
+        for (int i = 0; i < 20; i++) {
+            cache.put(String.valueOf(i), new ByteArrayResource(new byte[100]));
+        }
+        assertTrue(cache.storageSize() <= 1024);
+        assertEquals(20 - cache.size(), cache.getEvictionCount());
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final TransientCache cache = new TransientCache(100000, 100000);
+        final int numThreads = 8;
+        final int tilesPerThread = 1000;
+        final AtomicInteger served = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            final int thread = t;
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < tilesPerThread; i++) {
+                            cache.put(thread + "/" + i, new ByteArrayResource(new byte[10]));
+                        }
+                        for (int i = 0; i < tilesPerThread; i++) {
+                            if (cache.get(thread + "/" + i) != null) {
+                                served.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(numThreads * tilesPerThread, served.get());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.storageSize());
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.metastore.jdbc;
+
+import junit.framework.TestCase;
+
+public class JDBCMBLRUCacheTest extends TestCase {
+
+    public void testEviction() {
+        JDBCMBLRUCache<String, String> cache = new JDBCMBLRUCache<String, String>(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+        // b is the least recently used
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+
+        cache.setMaxSize(1);
+        assertEquals(1, cache.size());
+        assertEquals("3", cache.get("c"));
+    }
+
+    public void testLoad() {
+        JDBCMBLRUCache<String, String> cache = new JDBCMBLRUCache<String, String>(10);
+        Object load = cache.startLoad("a");
+        assertTrue(cache.endLoad("a", load, "1"));
+        assertEquals("1", cache.get("a"));
+
+        // nothing found, nothing cached
+        load = cache.startLoad("b");
+        assertFalse(cache.endLoad("b", load, null));
+        assertNull(cache.get("b"));
+    }
+
+    /**
+     * A value loaded while the key is removed, e.g. a tile row read while the tile is stored
+     * again, may be stale and is not cached
+     */
+    public void testLoadRemoved() {
+        JDBCMBLRUCache<String, String> cache = new JDBCMBLRUCache<String, String>(10);
+        Object load = cache.startLoad("a");
+        cache.remove("a");
+        assertFalse(cache.endLoad("a", load, "stale"));
+        assertNull(cache.get("a"));
+
+        load = cache.startLoad("a");
+        cache.clear();
+        assertFalse(cache.endLoad("a", load, "stale"));
+        assertNull(cache.get("a"));
+
+        // only the last of concurrent loads is cached
+        Object first = cache.startLoad("a");
+        Object second = cache.startLoad("a");
+        assertFalse(cache.endLoad("a", first, "1"));
+        assertTrue(cache.endLoad("a", second, "2"));
+        assertEquals("2", cache.get("a"));
+    }
+}
@@ -41,6 +41,10 @@ public class JDBCMBWrapperPerfTest extends TestCase {
 
     private int NUM_THREADS;
 
+    private boolean USE_WRITE_BEHIND;
+
+    private JDBCMBWriteBehindQueue writeBehind;
+
     @Override
     public void setUp() throws Exception {
         directory = new File("target/" + getClass().getSimpleName());
@@ -52,6 +56,9 @@ public class JDBCMBWrapperPerfTest extends TestCase {
 
     @Override
     public void tearDown() {
+        if (writeBehind != null) {
+            writeBehind.destroy();
+        }
         if (jdbcWrapper != null) {
             jdbcWrapper.destroy();
         }
@@ -112,6 +119,20 @@ public class JDBCMBWrapperPerfTest extends TestCase {
         putTiles();
     }
 
+    public void testSingleThreadWriteBehind() throws Exception {
+        USE_CONNECTION_POOLING = true;
+        USE_WRITE_BEHIND = true;
+        NUM_THREADS = 1;
+        putTiles();
+    }
+
+    public void testMultiThreadWriteBehind() throws Exception {
+        USE_CONNECTION_POOLING = true;
+        USE_WRITE_BEHIND = true;
+        NUM_THREADS = 5;
+        putTiles();
+    }
+
     private void putTiles() throws Exception {
 
         final int numThreads = NUM_THREADS;
@@ -142,7 +163,8 @@ public class JDBCMBWrapperPerfTest extends TestCase {
         }
         System.out.println("\nInserting " + NUM_TILES_PER_THREAD * numThreads
                 + " tiles spread over " + numThreads + " threads.\nConnection pooling: "
-                + USE_CONNECTION_POOLING + ". Old style put: " + USE_DELETE_PUT_UNLOCK);
+                + USE_CONNECTION_POOLING + ". Old style put: " + USE_DELETE_PUT_UNLOCK
+                + ". Write-behind: " + USE_WRITE_BEHIND);
 
         List<Future<Long>> results = executorService.invokeAll(tasks);
 
@@ -150,6 +172,12 @@ public class JDBCMBWrapperPerfTest extends TestCase {
         for (Future<Long> result : results) {
             totalTime += result.get().longValue();
         }
+        if (USE_WRITE_BEHIND) {
+            // account for the tiles still waiting to be written
+            long t = System.currentTimeMillis();
+            writeBehind.flush();
+            totalTime += numThreads * (System.currentTimeMillis() - t);
+        }
         System.out.println("****Inserted " + NUM_TILES_PER_THREAD * numThreads + " tiles in "
                 + (totalTime / numThreads / 1000) + "s. ("
                 + (NUM_TILES_PER_THREAD * numThreads / (totalTime / numThreads / 1000))
@@ -172,6 +200,16 @@ public class JDBCMBWrapperPerfTest extends TestCase {
     private long insertTile(TileObject stObj) throws Exception {
         long t = System.currentTimeMillis();
         JDBCMBWrapper wrapper = getJdbcWrapper();
+        if (USE_WRITE_BEHIND) {
+            synchronized (this) {
+                if (writeBehind == null) {
+                    writeBehind = new JDBCMBWriteBehindQueue(wrapper);
+                }
+            }
+            writeBehind.lock(stObj);
+            writeBehind.unlock(stObj);
+            return System.currentTimeMillis() - t;
+        }
         if (USE_DELETE_PUT_UNLOCK) {
             wrapper.deleteTile(stObj);
         }
@@ -0,0 +1,89 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.metastore.jdbc;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.util.FileUtils;
+
+public class JDBCMBWriteBehindQueueTest extends TestCase {
+
+    private File directory;
+
+    private JDBCMBWrapper wrapper;
+
+    private JDBCMBWriteBehindQueue queue;
+
+    @Override
+    public void setUp() throws Exception {
+        directory = new File("target/" + getClass().getSimpleName());
+        if (directory.exists()) {
+            FileUtils.rmFileCacheDir(directory, null);
+        }
+        directory.mkdirs();
+        String jdbcURL = "jdbc:h2:" + new File(directory, "h2db").toURI().toURL().toExternalForm();
+        wrapper = new JDBCMBWrapper("org.h2.Driver", jdbcURL, "sa", null, true, 5);
+        queue = new JDBCMBWriteBehindQueue(wrapper);
+    }
+
+    @Override
+    public void tearDown() {
+        if (queue != null) {
+            queue.destroy();
+        }
+        if (wrapper != null) {
+            wrapper.destroy();
+        }
+        FileUtils.rmFileCacheDir(directory, null);
+    }
+
+    /**
+     * The shutdown hook writes the queued tiles when the JVM stops without destroy() being called
+     */
+    public void testShutdownHookWritesQueuedTiles() throws Exception {
+        queue.setBatchSize(1000);
+        queue.setFlushInterval(60000);
+        for (long x = 0; x < 3; x++) {
+            TileObject tile = tile(x);
+            queue.lock(tile);
+            assertTrue(queue.unlock(tile));
+        }
+        for (long x = 0; x < 3; x++) {
+            assertFalse(wrapper.getTile(tile(x)));
+        }
+
+        queue.shutdownHook.run();
+
+        for (long x = 0; x < 3; x++) {
+            TileObject query = tile(x);
+            assertTrue(wrapper.getTile(query));
+            assertEquals(10, query.getBlobSize());
+        }
+    }
+
+    private TileObject tile(long x) {
+        TileObject tile = TileObject.createCompleteTileObject("layer", new long[] { x, 0, 3 },
+                "EPSG:4326", "image/png", null, new ByteArrayResource(new byte[10]));
+        tile.setLayerId(1);
+        tile.setGridSetIdId(1);
+        tile.setFormatId(1);
+        tile.setParamtersId(-1);
+        return tile;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.util;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SparseBitMatrixTest extends TestCase {
+
+    public void testAgainstReference() {
+        final int width = 200;
+        final int height = 150;
+        boolean[][] reference = new boolean[width][height];
+        SparseBitMatrix mat = new SparseBitMatrix(width, height);
+        assertTrue(mat.isEmpty());
+
+        Random random = new Random(42);
+        for (int i = 0; i < 40; i++) {
+            int x0 = random.nextInt(width);
+            int y0 = random.nextInt(height);
+            int x1 = x0 + random.nextInt(80) - 10;
+            int y1 = y0 + random.nextInt(80) - 10;
+            mat.set(x0, y0, x1, y1);
+            for (int x = Math.max(0, x0); x <= Math.min(width - 1, x1); x++) {
+                for (int y = Math.max(0, y0); y <= Math.min(height - 1, y1); y++) {
+                    reference[x][y] = true;
+                }
+            }
+        }
+        for (int i = 0; i < 300; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            mat.set(x, y);
+            reference[x][y] = true;
+        }
+
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                assertEquals(x + "," + y, reference[x][y], mat.get(x, y));
+            }
+        }
+        assertFalse(mat.get(-1, 0));
+        assertFalse(mat.get(width, 0));
+
+        for (int i = 0; i < 500; i++) {
+            int x0 = random.nextInt(width + 20) - 10;
+            int y0 = random.nextInt(height + 20) - 10;
+            int x1 = x0 + random.nextInt(12);
+            int y1 = y0 + random.nextInt(12);
+            boolean expected = false;
+            for (int x = Math.max(0, x0); x <= Math.min(width - 1, x1); x++) {
+                for (int y = Math.max(0, y0); y <= Math.min(height - 1, y1); y++) {
+                    expected |= reference[x][y];
+                }
+            }
+            assertEquals(expected, mat.any(x0, y0, x1, y1));
+        }
+    }
+
+    public void testHuge() {
+        // 2^21 x 2^20 bits, the number of tiles of level 20 of a world wide EPSG:4326 gridset
+        final long width = 1L << 21;
+        final long height = 1L << 20;
+        SparseBitMatrix mat = new SparseBitMatrix(width, height);
+        mat.set(0, 0, width / 2 - 1, height - 1);
+        mat.set(width - 1, height - 1);
+
+        assertTrue(mat.get(0, 0));
+        assertTrue(mat.get(width / 2 - 1, height / 2));
+        assertFalse(mat.get(width / 2, height / 2));
+        assertTrue(mat.get(width - 1, height - 1));
+        assertFalse(mat.get(width - 2, height - 1));
+        assertTrue(mat.any(width / 2, 0, width - 1, height - 1));
+        assertFalse(mat.any(width / 2, 0, width - 2, height - 1));
+    }
+}
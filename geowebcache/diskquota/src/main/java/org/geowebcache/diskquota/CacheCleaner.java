@@ -18,6 +18,8 @@
 package org.geowebcache.diskquota;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -43,6 +45,12 @@ public class CacheCleaner implements DisposableBean {
 
     private static final Log log = LogFactory.getLog(CacheCleaner.class);
 
+    /**
+     * Number of pages to expire looked up, and then marked as truncated, in a single quota store
+     * call
+     */
+    static final int EXPIRATION_BATCH_SIZE = 32;
+
     private final TileBreeder tileBreeder;
 
     private final QuotaStore pageStore;
@@ -170,17 +178,18 @@ public class CacheCleaner implements DisposableBean {
                 return;
             }
 
-            TilePage tilePage = null;
+            List<TilePage> tilePages;
             if (ExpirationPolicy.LFU.equals(expirationPolicy)) {
-                tilePage = pageStore.getLeastFrequentlyUsedPage(layerNames);
+                tilePages = pageStore.getLeastFrequentlyUsedPages(layerNames,
+                        EXPIRATION_BATCH_SIZE);
             } else if (ExpirationPolicy.LRU.equals(expirationPolicy)) {
-                tilePage = pageStore.getLeastRecentlyUsedPage(layerNames);
+                tilePages = pageStore.getLeastRecentlyUsedPages(layerNames, EXPIRATION_BATCH_SIZE);
             } else {
                 throw new IllegalStateException("Unrecognized expiration policy: "
                         + expirationPolicy);
             }
 
-            if (tilePage == null) {
+            if (tilePages.isEmpty()) {
                 limit = quotaResolver.getLimit();
                 Quota usedQuota = quotaResolver.getUsed();
                 if (excess.getBytes().compareTo(BigInteger.ZERO) > 0) {
@@ -190,20 +199,48 @@ public class CacheCleaner implements DisposableBean {
                 }
                 return;
             }
-            if (log.isDebugEnabled()) {
-                log.debug("Expiring tile page " + tilePage + " based on the global "
-                        + expirationPolicy + " expiration policy");
-            }
-            if (shutDown || Thread.currentThread().isInterrupted()) {
-                throw new InterruptedException();
-            }
 
-            expirePage(tilePage);
+            expirePages(tilePages, expirationPolicy, quotaResolver);
+        }
+    }
+
+    /**
+     * Truncates the pages in order until the quota is reached back, then marks the truncated ones
+     * as such all at once
+     */
+    private void expirePages(final List<TilePage> tilePages,
+            final ExpirationPolicy expirationPolicy, final QuotaResolver quotaResolver)
+            throws InterruptedException {
+
+        final List<TilePage> truncated = new ArrayList<TilePage>(tilePages.size());
+        try {
+            for (TilePage tilePage : tilePages) {
+                if (shutDown || Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Expiring tile page " + tilePage + " based on the global "
+                            + expirationPolicy + " expiration policy");
+                }
+                if (!expirePage(tilePage)) {
+                    return;
+                }
+                truncated.add(tilePage);
 
+                Quota excess = quotaResolver.getUsed().difference(quotaResolver.getLimit());
+                if (excess.getBytes().compareTo(BigInteger.ZERO) <= 0) {
+                    return;
+                }
+            }
+        } finally {
+            pageStore.setTruncated(truncated);
         }
     }
 
-    private void expirePage(TilePage tilePage) throws InterruptedException {
+    /**
+     * @return {@code false} if the truncate task was interrupted
+     */
+    private boolean expirePage(TilePage tilePage) throws InterruptedException {
         final String tileSetId = tilePage.getTileSetId();
         final TileSet tileSet = pageStore.getTileSetById(tileSetId);
         final String layerName = tileSet.getLayerName();
@@ -233,13 +270,13 @@ public class CacheCleaner implements DisposableBean {
         // truncate synchronously. We're already inside the interested thread
         try {
             truncateTask.doAction();
-            pageStore.setTruncated(tilePage);
         } catch (InterruptedException e) {
             log.debug("Truncate task interrupted");
-            return;
+            return false;
         } catch (GeoWebCacheException e) {
             throw new RuntimeException(e);
         }
+        return true;
     }
 
     // FRD , Long parameterId
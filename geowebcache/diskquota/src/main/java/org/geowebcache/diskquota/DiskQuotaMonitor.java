@@ -344,7 +344,8 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
 
     /**
      * Launches a background task to traverse the cache and compute the disk usage of each layer
-     * that has no {@link LayerQuota#getUsedQuota() used quota} already loaded.
+     * that has no {@link LayerQuota#getUsedQuota() used quota} already loaded, or whose previous
+     * traversal was interrupted before finishing, in which case it's resumed.
      * 
      * @return
      * @throws InterruptedException
@@ -358,18 +359,25 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
         } catch (ConfigurationException e) {
             throw new RuntimeException(e);
         }
+        final int parallelism = quotaConfig.getMaxConcurrentCleanUps().intValue();
         cacheInfoBuilder = new LayerCacheInfoBuilder(cacheRoot, cleanUpExecutorService,
-                quotaUsageMonitor);
+                parallelism, quotaStore);
 
         for (String layerName : tileLayerDispatcher.getLayerNames()) {
 
             Quota usedQuota = quotaStore.getUsedQuotaByLayerName(layerName);
-            if (usedQuota.getBytes().compareTo(BigInteger.ZERO) > 0) {
+            final boolean hasUsedQuota = usedQuota.getBytes().compareTo(BigInteger.ZERO) > 0;
+            if (hasUsedQuota && !cacheInfoBuilder.isScanUnfinished(layerName)) {
                 log.debug("Using saved quota information for layer " + layerName + ": "
                         + usedQuota.toNiceString());
             } else {
-                log.debug(layerName + " has no saved used quota information,"
-                        + "traversing layer cache to compute its disk usage.");
+                if (hasUsedQuota) {
+                    log.info("Resuming the interrupted traversal of the " + layerName
+                            + " layer cache, " + usedQuota.toNiceString() + " accounted so far");
+                } else {
+                    log.debug(layerName + " has no saved used quota information,"
+                            + "traversing layer cache to compute its disk usage.");
+                }
                 TileLayer tileLayer;
                 try {
                     tileLayer = tileLayerDispatcher.getTileLayer(layerName);
@@ -377,7 +385,7 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
                     e.printStackTrace();
                     continue;
                 }
-                cacheInfoBuilder.buildCacheInfo(tileLayer);
+                cacheInfoBuilder.buildCacheInfo(tileLayer, hasUsedQuota);
             }
         }
         return cacheInfoBuilder;
@@ -17,8 +17,13 @@
  */
 package org.geowebcache.diskquota;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,10 +35,10 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
-import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.geowebcache.diskquota.storage.LayerQuota;
+import org.geowebcache.diskquota.storage.PagePyramid;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
 import org.geowebcache.diskquota.storage.Quota;
 import org.geowebcache.diskquota.storage.TilePage;
 import org.geowebcache.diskquota.storage.TileSet;
@@ -42,10 +47,22 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.blobstore.file.FilePathGenerator;
-import org.geowebcache.util.FileUtils;
 
 /**
  * Gathers information about the cache of a layer, such as its size and available {@link TilePage}s.
+ * <p>
+ * The cache of a layer is split by the intermediate directories of each zoom level, that a number
+ * of {@link DirectoryVisitor workers} pick one at a time, so that the deepest zoom levels are
+ * scanned in parallel too. The tile counts and sizes of each directory are aggregated by tile page
+ * and saved to the {@link QuotaStore} at once, and the directory is then recorded in a
+ * {@link #CHECKPOINT_FILE_NAME checkpoint file} at the root of the layer cache, so that a scan
+ * interrupted by a shutdown is resumed where it stopped.
+ * </p>
+ * <p>
+ * The quota store records each directory in the same transaction as its tile counts, so that a
+ * directory saved right before a crash, but missing from the checkpoint, is scanned again on
+ * resume but not counted twice.
+ * </p>
  * 
  * @author groldan
  */
@@ -53,37 +70,51 @@ final class LayerCacheInfoBuilder {
 
     private static final Log log = LogFactory.getLog(LayerCacheInfoBuilder.class);
 
+    /**
+     * Name of the file recording the directories of a layer cache already accounted for
+     */
+    static final String CHECKPOINT_FILE_NAME = "diskquota_scan.checkpoint";
+
     private final File rootCacheDir;
 
     private final ExecutorService threadPool;
 
-    private final Map<String, List<Future<ZoomLevelVisitor.Stats>>> perLayerRunningTasks;
+    private final int parallelism;
 
-    private final QuotaUpdatesMonitor quotaUsageMonitor;
+    private final Map<String, List<Future<DirectoryVisitor.Stats>>> perLayerRunningTasks;
 
+    private final QuotaStore quotaStore;
+
+    /**
+     * @param parallelism
+     *            number of directories of a single layer scanned at the same time
+     */
     public LayerCacheInfoBuilder(final File rootCacheDir, final ExecutorService threadPool,
-            QuotaUpdatesMonitor quotaUsageMonitor) {
+            final int parallelism, final QuotaStore quotaStore) {
         this.rootCacheDir = rootCacheDir;
         this.threadPool = threadPool;
-        this.quotaUsageMonitor = quotaUsageMonitor;
-        this.perLayerRunningTasks = new HashMap<String, List<Future<ZoomLevelVisitor.Stats>>>();
+        this.parallelism = Math.max(1, parallelism);
+        this.quotaStore = quotaStore;
+        this.perLayerRunningTasks = new HashMap<String, List<Future<DirectoryVisitor.Stats>>>();
     }
 
     /**
-     * Asynchronously collects cache usage information for the given {@code tileLayer} into the
-     * given {@code layerQuota} by using the provided {@link ExecutorService} at construction time.
-     * <p>
-     * This method discards any {@link LayerQuota#getUsedQuota() used quota} information available
-     * for {@code layerQuota} and updates it by collecting the usage information for the layer.
-     * </p>
-     * <p>
-     * In addition to collecting the cache usage information for the layer, the {@code layerQuota}'s
-     * {@link ExpirationPolicy expiration policy} will be given the opportunity to gather any
-     * additional information by calling the
-     * {@link ExpirationPolicy#createInfoFor(LayerQuota, String, long[], File)
-     * createInforFor(layerQuota, gridSetId, tileXYZ, file)} method for each available tile on the
-     * layer's cache.
-     * </p>
+     * @return whether a cache scan for the layer was started but didn't finish, and hence its used
+     *         quota is only partially known
+     */
+    public boolean isScanUnfinished(final String layerName) {
+        return ScanCheckpoint.isUnfinished(checkpointFile(layerName));
+    }
+
+    private File checkpointFile(final String layerName) {
+        final String layerDirName = FilePathGenerator.filteredLayerName(layerName);
+        return new File(new File(rootCacheDir, layerDirName), CHECKPOINT_FILE_NAME);
+    }
+
+    /**
+     * Asynchronously collects cache usage information for the given {@code tileLayer} by using the
+     * provided {@link ExecutorService} at construction time, adding the size and tile count of
+     * every tile page found to the {@link QuotaStore}.
      * <p>
      * Note the cache information gathering is performed asynchronously and hence this method
      * returns immediately. To check whether the information collect for a given layer has finished
@@ -91,8 +122,13 @@ final class LayerCacheInfoBuilder {
      * </p>
      * 
      * @param tileLayer
+     * @param resume
+     *            whether to skip the directories already accounted for by an
+     *            {@link #isScanUnfinished(String) unfinished} scan, or start from scratch
+     * @throws InterruptedException
      */
-    public void buildCacheInfo(final TileLayer tileLayer) {
+    public void buildCacheInfo(final TileLayer tileLayer, final boolean resume)
+            throws InterruptedException {
 
         final String layerName = tileLayer.getName();
         final String layerDirName = FilePathGenerator.filteredLayerName(layerName);
@@ -103,8 +139,18 @@ final class LayerCacheInfoBuilder {
             return;
         }
 
-        perLayerRunningTasks.put(layerName, new ArrayList<Future<ZoomLevelVisitor.Stats>>());
+        if (!resume) {
+            quotaStore.clearScannedDirectories(layerName);
+        }
+        final ScanCheckpoint checkpoint = new ScanCheckpoint(checkpointFile(layerName));
+        try {
+            checkpoint.open(resume);
+        } catch (IOException e) {
+            log.error("Can't open the disk quota scan checkpoint " + checkpoint
+                    + ", scanning the cache of " + layerName + " without it", e);
+        }
 
+        final List<ZoomLevelDir> zoomLevelDirs = new ArrayList<ZoomLevelDir>();
         final Set<TileSet> onDiskTileSets = findOnDiskTileSets(tileLayer, layerDir);
 
         for (TileSet tileSet : onDiskTileSets) {
@@ -114,6 +160,8 @@ final class LayerCacheInfoBuilder {
             final GridSubset gs = tileLayer.getGridSubset(gridSetId);
             final int zoomStart = gs.getZoomStart();
             final int zoomStop = gs.getZoomStop();
+            final PagePyramid pagePyramid = new PagePyramid(gs.getCoverages(), zoomStart,
+                    zoomStop);
 
             for (int zoomLevel = zoomStart; zoomLevel <= zoomStop; zoomLevel++) {
                 String gridsetZLevelParamsDirName;
@@ -125,23 +173,26 @@ final class LayerCacheInfoBuilder {
                 final File gridsetZLevelDir = new File(layerDir, gridsetZLevelParamsDirName);
 
                 if (gridsetZLevelDir.exists()) {
-                    ZoomLevelVisitor cacheInfoBuilder;
-                    cacheInfoBuilder = new ZoomLevelVisitor(layerName, gridsetZLevelDir, gridSetId,
-                            zoomLevel, parametersId, quotaUsageMonitor);
-
-                    Future<ZoomLevelVisitor.Stats> cacheTask;
-                    cacheTask = threadPool.submit(cacheInfoBuilder);
-
-                    perLayerRunningTasks.get(layerName).add(cacheTask);
-                    log.debug("Submitted background task to gather cache info for '" + layerName
-                            + "'/" + gridSetId + "/" + zoomLevel);
+                    // computed here as the pyramid is then shared by the workers
+                    pagePyramid.getPageInfo(zoomLevel);
+                    zoomLevelDirs.add(new ZoomLevelDir(gridsetZLevelDir, gridSetId, zoomLevel,
+                            parametersId, pagePyramid));
                 }
             }
         }
+
+        final LayerScan scan = new LayerScan(layerName, zoomLevelDirs, checkpoint, quotaStore,
+                parallelism);
+        final List<Future<DirectoryVisitor.Stats>> tasks = new ArrayList<Future<DirectoryVisitor.Stats>>();
+        perLayerRunningTasks.put(layerName, tasks);
+        for (int i = 0; i < parallelism; i++) {
+            tasks.add(threadPool.submit(new DirectoryVisitor(scan, quotaStore)));
+        }
+        log.debug("Submitted " + parallelism + " background tasks to gather cache info for '"
+                + layerName + "' in " + zoomLevelDirs.size() + " zoom level directories");
     }
 
     private Set<TileSet> findOnDiskTileSets(final TileLayer tileLayer, final File layerDir) {
-
         final String layerName = tileLayer.getName();
         final Set<String> griSetNames = tileLayer.getGridSubsets();
         Set<TileSet> foundTileSets = new HashSet<TileSet>();
@@ -177,27 +228,174 @@ final class LayerCacheInfoBuilder {
     }
 
     /**
-     * Builds the cache information for a single layer/gridsetId/parametersId/zoomLevel combo
+     * A zoom level directory of a layer/gridsetId/parametersId combo
+     */
+    private static final class ZoomLevelDir {
+        final File dir;
+
+        final String gridSetId;
+
+        final int zoomLevel;
+
+        final Long parametersId;
+
+        final PagePyramid pagePyramid;
+
+        ZoomLevelDir(File dir, String gridSetId, int zoomLevel, Long parametersId,
+                PagePyramid pagePyramid) {
+            this.dir = dir;
+            this.gridSetId = gridSetId;
+            this.zoomLevel = zoomLevel;
+            this.parametersId = parametersId;
+            this.pagePyramid = pagePyramid;
+        }
+    }
+
+    /**
+     * A directory to scan, either one of the intermediate directories of a zoom level, scanned
+     * recursively, or the zoom level directory itself for the tiles directly in it
+     */
+    private static final class ScanDirectory {
+        final ZoomLevelDir zoomLevelDir;
+
+        final File dir;
+
+        final boolean recursive;
+
+        /**
+         * Path relative to the layer directory, as recorded in the checkpoint
+         */
+        final String key;
+
+        ScanDirectory(ZoomLevelDir zoomLevelDir, File dir, boolean recursive, String key) {
+            this.zoomLevelDir = zoomLevelDir;
+            this.dir = dir;
+            this.recursive = recursive;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Hands out the directories of a layer cache to scan, listing one zoom level directory at a
+     * time, and marks the checkpoint complete once all the workers finished
+     */
+    private static final class LayerScan {
+        final String layerName;
+
+        private final Iterator<ZoomLevelDir> zoomLevelDirs;
+
+        private final ScanCheckpoint checkpoint;
+
+        private final QuotaStore quotaStore;
+
+        private ZoomLevelDir current;
+
+        private String[] currentNames;
+
+        private int currentIndex;
+
+        private int runningWorkers;
+
+        private boolean canceled;
+
+        LayerScan(String layerName, List<ZoomLevelDir> zoomLevelDirs, ScanCheckpoint checkpoint,
+                QuotaStore quotaStore, int numWorkers) {
+            this.layerName = layerName;
+            this.zoomLevelDirs = zoomLevelDirs.iterator();
+            this.checkpoint = checkpoint;
+            this.quotaStore = quotaStore;
+            this.runningWorkers = numWorkers;
+        }
+
+        /**
+         * @return the next directory not yet accounted for, or {@code null} if there are no more
+         */
+        synchronized ScanDirectory next() {
+            while (true) {
+                if (current == null) {
+                    if (!zoomLevelDirs.hasNext()) {
+                        return null;
+                    }
+                    current = zoomLevelDirs.next();
+                    currentNames = current.dir.list();
+                    currentIndex = 0;
+                    if (currentNames == null) {
+                        current = null;
+                        continue;
+                    }
+                    String key = current.dir.getName();
+                    if (!checkpoint.isDone(key)) {
+                        return new ScanDirectory(current, current.dir, false, key);
+                    }
+                }
+                while (currentIndex < currentNames.length) {
+                    String name = currentNames[currentIndex++];
+                    String key = current.dir.getName() + "/" + name;
+                    File dir = new File(current.dir, name);
+                    if (dir.isDirectory() && !checkpoint.isDone(key)) {
+                        return new ScanDirectory(current, dir, true, key);
+                    }
+                }
+                current = null;
+                currentNames = null;
+            }
+        }
+
+        void done(ScanDirectory directory) {
+            checkpoint.done(directory.key);
+        }
+
+        /**
+         * Called by each worker when it's done, either because there are no more directories or
+         * because it was canceled
+         */
+        synchronized void workerFinished(boolean canceled) {
+            this.canceled |= canceled;
+            if (--runningWorkers == 0) {
+                if (this.canceled) {
+                    checkpoint.close();
+                } else {
+                    checkpoint.complete();
+                    try {
+                        quotaStore.clearScannedDirectories(layerName);
+                    } catch (InterruptedException e) {
+                        log.debug("Interrupted clearing the directories scanned for "
+                                + layerName + ", they'll be cleared by the next scan");
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes directories from a {@link LayerScan} until there are no more, adding the tiles found
+     * to the quota store by tile page
      * 
      * @author groldan
      * 
      */
-    private static final class ZoomLevelVisitor implements FileFilter,
-            Callable<ZoomLevelVisitor.Stats> {
+    private static final class DirectoryVisitor implements FileFilter,
+            Callable<DirectoryVisitor.Stats> {
 
-        private final String gridSetId;
+        private final LayerScan scan;
 
-        private int tileZ;
-
-        private final File zoomLevelPath;
+        private final QuotaStore quotaStore;
 
         private Stats stats;
 
-        private final QuotaUpdatesMonitor quotaUsageMonitor;
+        /**
+         * Aggregated tile counts and sizes of the directory being scanned, by blob format
+         */
+        private final Map<String, TileSetUpdate> updates = new HashMap<String, TileSetUpdate>();
+
+        private final Map<String, String> formatsByExtension = new HashMap<String, String>();
+
+        private final int[] pageIndexTarget = new int[3];
 
-        private final String layerName;
+        private final StringBuilder pageKeyTarget = new StringBuilder(128);
 
-        private final Long parametersId;
+        private ScanDirectory directory;
 
         private static class Stats {
             long runTimeMillis;
@@ -207,15 +405,21 @@ final class LayerCacheInfoBuilder {
             Quota collectedQuota = new Quota();
         }
 
-        public ZoomLevelVisitor(final String layerName, final File zoomLevelPath,
-                final String gridsetId, final int zoomLevel, Long parametersId,
-                final QuotaUpdatesMonitor quotaUsageMonitor) {
-            this.layerName = layerName;
-            this.zoomLevelPath = zoomLevelPath;
-            this.gridSetId = gridsetId;
-            this.parametersId = parametersId;
-            this.quotaUsageMonitor = quotaUsageMonitor;
-            this.tileZ = zoomLevel;
+        private static class TileSetUpdate {
+            final TileSet tileSet;
+
+            long bytes;
+
+            final Map<String, PageStatsPayload> pages = new HashMap<String, PageStatsPayload>();
+
+            TileSetUpdate(TileSet tileSet) {
+                this.tileSet = tileSet;
+            }
+        }
+
+        public DirectoryVisitor(final LayerScan scan, final QuotaStore quotaStore) {
+            this.scan = scan;
+            this.quotaStore = quotaStore;
             this.stats = new Stats();
         }
 
@@ -223,64 +427,149 @@ final class LayerCacheInfoBuilder {
          * @see java.util.concurrent.Callable#call()
          */
         public Stats call() throws Exception {
-            final String zLevelKey = layerName + "'/" + gridSetId + "/paramId:"
-                    + (parametersId == null ? "default" : parametersId) + "/zlevel:" + tileZ;
+            final String layerName = scan.layerName;
+            boolean canceled = true;
             try {
-                log.debug("Gathering cache information for '" + zLevelKey);
-                stats.numTiles = 0L;
-                stats.runTimeMillis = 0L;
+                log.debug("Gathering cache information for '" + layerName + "'");
                 long runTime = System.currentTimeMillis();
-                FileUtils.traverseDepth(zoomLevelPath, this);
+                while ((directory = scan.next()) != null) {
+                    visit(directory.dir, directory.recursive);
+                    commit();
+                    scan.done(directory);
+                }
                 runTime = System.currentTimeMillis() - runTime;
                 stats.runTimeMillis = runTime;
+                canceled = false;
             } catch (TraversalCanceledException cancel) {
-                log.debug("Gathering cache information for " + zLevelKey + " was canceled.");
+                log.debug("Gathering cache information for " + layerName + " was canceled.");
+                return null;
+            } catch (InterruptedException cancel) {
+                log.debug("Gathering cache information for " + layerName + " was canceled.");
                 return null;
             } catch (Exception e) {
                 e.printStackTrace();
                 throw (e);
+            } finally {
+                scan.workerFinished(canceled);
             }
-            log.debug("Cache information for " + zLevelKey + " collected in " + stats.runTimeMillis
-                    / 1000D + "s. Counted " + stats.numTiles + " tiles for a storage space of "
-                    + stats.collectedQuota.toNiceString());
+            log.debug("Cache information for '" + layerName + "' collected in "
+                    + stats.runTimeMillis / 1000D + "s. Counted " + stats.numTiles
+                    + " tiles for a storage space of " + stats.collectedQuota.toNiceString());
             return stats;
         }
 
+        private void visit(final File dir, final boolean recursive) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new TraversalCanceledException();
+            }
+            log.trace("Processing files in " + dir.getAbsolutePath());
+            // Use dir.list() instead of dir.listFiles() to avoid the simultaneous creation of
+            // thousands of File objects
+            final String[] fileNames = dir.list();
+            if (fileNames == null) {
+                return;
+            }
+            for (String fileName : fileNames) {
+                File file = new File(dir, fileName);
+                if (file.isDirectory()) {
+                    if (recursive) {
+                        visit(file, true);
+                    }
+                } else {
+                    accept(file);
+                }
+            }
+        }
+
         /**
+         * Adds the tile to the aggregated updates of its page
+         * 
          * @see java.io.FileFilter#accept(java.io.File)
          */
         public boolean accept(final File file) {
-            // if (Thread.interrupted()) {
-            // throw new TraversalCanceledException();
-            // }
-            if (file.isDirectory()) {
-                log.trace("Processing files in " + file.getAbsolutePath());
-                return true;
+            final String name = file.getName();
+            final int coordSepIdx = name.lastIndexOf('_');
+            final int dotIdx = name.lastIndexOf('.');
+            if (coordSepIdx <= 0 || dotIdx < coordSepIdx) {
+                log.debug("Ignoring non tile file " + file.getAbsolutePath());
+                return false;
+            }
+            final String blobFormat = formatFor(name.substring(dotIdx + 1));
+            final long x;
+            final long y;
+            try {
+                x = Long.parseLong(name.substring(0, coordSepIdx));
+                y = Long.parseLong(name.substring(1 + coordSepIdx, dotIdx));
+            } catch (NumberFormatException e) {
+                log.debug("Ignoring non tile file " + file.getAbsolutePath());
+                return false;
+            }
+            if (blobFormat == null) {
+                return false;
             }
 
-            final long length = file.length();
+            final ZoomLevelDir zoomLevelDir = directory.zoomLevelDir;
+            TileSetUpdate update = updates.get(blobFormat);
+            if (update == null) {
+                update = new TileSetUpdate(new TileSet(scan.layerName, zoomLevelDir.gridSetId,
+                        blobFormat, zoomLevelDir.parametersId));
+                updates.put(blobFormat, update);
+            }
+            final int zoomLevel = zoomLevelDir.zoomLevel;
+            zoomLevelDir.pagePyramid.pageIndexForTile(x, y, zoomLevel, pageIndexTarget);
+            pageKeyTarget.setLength(0);
+            final String tileSetId = update.tileSet.getId();
+            TilePage.computeId(tileSetId, pageIndexTarget[0], pageIndexTarget[1], zoomLevel,
+                    pageKeyTarget);
+            final String pageKey = pageKeyTarget.toString();
+            PageStatsPayload payload = update.pages.get(pageKey);
+            if (payload == null) {
+                payload = new PageStatsPayload(new TilePage(tileSetId, pageIndexTarget[0],
+                        pageIndexTarget[1], zoomLevel));
+                update.pages.put(pageKey, payload);
+            }
+            payload.setNumTiles(payload.getNumTiles() + 1);
 
-            // we know path is a direct child of processingDir and represents a tile file...
-            final String path = file.getPath();
+            final long length = file.length();
+            update.bytes += length;
+            stats.numTiles++;
+            stats.collectedQuota.addBytes(length);
+            return true;
+        }
 
-            final int fileNameIdx = 1 + path.lastIndexOf(File.separatorChar);
-            final int coordSepIdx = path.lastIndexOf('_');
-            final int dotIdx = path.lastIndexOf('.');
-            final String extension = FilenameUtils.getExtension(file.getName());
-            String blobFormat;
+        private String formatFor(final String extension) {
+            if (formatsByExtension.containsKey(extension)) {
+                return formatsByExtension.get(extension);
+            }
+            String blobFormat = null;
             try {
                 blobFormat = MimeType.createFromExtension(extension).getFormat();
             } catch (MimeException e) {
-                throw new RuntimeException(e);
+                log.debug("Ignoring files with unknown extension " + extension);
             }
-            final long x = Long.valueOf(path.substring(fileNameIdx, coordSepIdx));
-            final long y = Long.valueOf(path.substring(1 + coordSepIdx, dotIdx));
+            formatsByExtension.put(extension, blobFormat);
+            return blobFormat;
+        }
 
-            this.quotaUsageMonitor.tileStored(layerName, gridSetId, blobFormat, parametersId, x, y,
-                    (int) tileZ, length);
-            stats.numTiles++;
-            stats.collectedQuota.addBytes(length);
-            return true;
+        /**
+         * Saves the aggregated tile counts and sizes of the directory just scanned, unless an
+         * interrupted scan saved them already
+         */
+        private void commit() throws InterruptedException {
+            Map<TileSet, Quota> quotaDiffs = new HashMap<TileSet, Quota>();
+            List<PageStatsPayload> tileCountDiffs = new ArrayList<PageStatsPayload>();
+            for (TileSetUpdate update : updates.values()) {
+                Quota quota = new Quota();
+                quota.setBytes(update.bytes);
+                quotaDiffs.put(update.tileSet, quota);
+                tileCountDiffs.addAll(update.pages.values());
+            }
+            updates.clear();
+            if (!quotaStore.addScannedDirectory(scan.layerName, directory.key, quotaDiffs,
+                    tileCountDiffs)) {
+                log.debug(directory.key + " of " + scan.layerName
+                        + " was accounted for already by an interrupted scan");
+            }
         }
 
         /**
@@ -296,6 +585,119 @@ final class LayerCacheInfoBuilder {
         }
     }
 
+    /**
+     * Records the directories of a layer cache already accounted for in the quota store, one per
+     * line, and whether the scan completed
+     */
+    static final class ScanCheckpoint {
+
+        private static final String COMPLETE = "#complete";
+
+        private final File file;
+
+        private final Set<String> done = new HashSet<String>();
+
+        private Writer writer;
+
+        ScanCheckpoint(File file) {
+            this.file = file;
+        }
+
+        /**
+         * @return whether the checkpoint file exists and was not marked complete
+         */
+        static boolean isUnfinished(File file) {
+            if (!file.exists()) {
+                return false;
+            }
+            try {
+                String last = null;
+                BufferedReader reader = new BufferedReader(new FileReader(file));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        last = line;
+                    }
+                } finally {
+                    reader.close();
+                }
+                return !COMPLETE.equals(last);
+            } catch (IOException e) {
+                log.warn("Can't read the disk quota scan checkpoint " + file, e);
+                return false;
+            }
+        }
+
+        /**
+         * Loads the directories already done if resuming, or discards them otherwise, and opens
+         * the file to record the new ones
+         */
+        synchronized void open(boolean resume) throws IOException {
+            done.clear();
+            if (resume && file.exists()) {
+                BufferedReader reader = new BufferedReader(new FileReader(file));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.length() > 0 && !COMPLETE.equals(line)) {
+                            done.add(line);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+                log.info("Resuming disk quota scan skipping " + done.size()
+                        + " directories already accounted for, as recorded in " + file);
+            }
+            writer = new FileWriter(file, resume);
+        }
+
+        synchronized boolean isDone(String key) {
+            return done.contains(key);
+        }
+
+        synchronized void done(String key) {
+            done.add(key);
+            write(key);
+        }
+
+        synchronized void complete() {
+            write(COMPLETE);
+            close();
+        }
+
+        synchronized void close() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    log.debug("Error closing " + file, e);
+                }
+                writer = null;
+            }
+        }
+
+        private void write(String line) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.write(line);
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException e) {
+                log.warn("Can't write the disk quota scan checkpoint " + file
+                        + ", a restart will scan the whole layer cache again", e);
+                close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return file.getAbsolutePath();
+        }
+    }
+
     /**
      * Returns whether cache information is still being gathered for the layer named after
      * {@code layerName}.
@@ -305,14 +707,14 @@ final class LayerCacheInfoBuilder {
      */
     public boolean isRunning(String layerName) {
         try {
-            List<Future<ZoomLevelVisitor.Stats>> layerTasks = perLayerRunningTasks.get(layerName);
+            List<Future<DirectoryVisitor.Stats>> layerTasks = perLayerRunningTasks.get(layerName);
             if (layerTasks == null) {
                 return false;
             }
 
             int numRunning = 0;
-            Future<ZoomLevelVisitor.Stats> future;
-            for (Iterator<Future<ZoomLevelVisitor.Stats>> it = layerTasks.iterator(); it.hasNext();) {
+            Future<DirectoryVisitor.Stats> future;
+            for (Iterator<Future<DirectoryVisitor.Stats>> it = layerTasks.iterator(); it.hasNext();) {
                 future = it.next();
                 if (future.isDone()) {
                     it.remove();
@@ -14,6 +14,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.diskquota.storage.PagePyramid;
 import org.geowebcache.diskquota.storage.PageStatsPayload;
 import org.geowebcache.diskquota.storage.Quota;
 import org.geowebcache.diskquota.storage.TilePage;
@@ -60,7 +61,7 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
      */
     private static class TimedQuotaUpdate {
 
-        private final TilePageCalculator tpc;
+        private final PagePyramid pagePyramid;
 
         private final TileSet tileSet;
 
@@ -75,64 +76,105 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
         private int numAggregations;
 
         /**
-         * Tracks accumulated quota difference per TileSet
+         * Tracks accumulated quota difference per TileSet, in bytes
          */
-        private Quota accumQuotaDiff;
+        private long accumBytesDiff;
 
         /**
-         * Tracks accumulated number of tiles per TilePage id
+         * Holds the accumulated difference in the unlikely case it doesn't fit in a long
          */
-        private Map<String, PageStatsPayload> tilePages;
+        private Quota accumQuotaOverflow;
 
-        private StringBuilder pageIdTarget;
+        /**
+         * Tracks accumulated number of tiles per page
+         */
+        private Map<PageKey, PageStatsPayload> tilePages;
+
+        /**
+         * Reused to look up the page of each tile, a new key is only created for new pages
+         */
+        private final PageKey pageKeyTarget;
 
         private int[] pageIndexTarget;
 
         public TimedQuotaUpdate(TileSet tileSet, TilePageCalculator tpc) {
             this.tileSet = tileSet;
-            this.tpc = tpc;
+            // the pyramid only lives as long as the aggregated updates, a couple seconds at most
+            this.pagePyramid = tpc.getPagePyramid(tileSet);
             this.creationTime = System.currentTimeMillis();
-            tilePages = new HashMap<String, PageStatsPayload>();
+            tilePages = new HashMap<PageKey, PageStatsPayload>();
             pageIndexTarget = new int[3];
-            pageIdTarget = new StringBuilder(128);
-            accumQuotaDiff = new Quota();
+            pageKeyTarget = new PageKey();
         }
 
         public void add(QuotaUpdate quotaUpdate) {
             final String tileSetId = tileSet.getId();
 
             long size = quotaUpdate.getSize();
-            this.accumQuotaDiff.addBytes(quotaUpdate.getSize());
+            addBytes(size);
 
-            long[] tileIndex = quotaUpdate.getTileIndex();
-            tpc.pageIndexForTile(tileSet, tileIndex, pageIndexTarget);
+            final int tileCountDiff = size > 0 ? 1 : -1;
+            long[][] tileIndexes = quotaUpdate.getTileIndexes();
+            if (tileIndexes == null) {
+                addTile(tileSetId, quotaUpdate.getTileIndex(), tileCountDiff);
+            } else {
+                for (long[] tileIndex : tileIndexes) {
+                    addTile(tileSetId, tileIndex, tileCountDiff);
+                }
+            }
+
+            ++numAggregations;
+        }
+
+        private void addBytes(final long size) {
+            final long sum = accumBytesDiff + size;
+            if (((accumBytesDiff ^ sum) & (size ^ sum)) < 0) {
+                // overflow, move what we have so far to the arbitrary precision quota
+                if (accumQuotaOverflow == null) {
+                    accumQuotaOverflow = new Quota();
+                }
+                accumQuotaOverflow.addBytes(accumBytesDiff);
+                accumBytesDiff = size;
+            } else {
+                accumBytesDiff = sum;
+            }
+        }
+
+        private void addTile(final String tileSetId, final long[] tileIndex,
+                final int tileCountDiff) {
+            pagePyramid.pageIndexForTile(tileIndex[0], tileIndex[1], (int) tileIndex[2],
+                    pageIndexTarget);
             int pageX = pageIndexTarget[0];
             int pageY = pageIndexTarget[1];
             byte pageZ = (byte) pageIndexTarget[2];
-            pageIdTarget.setLength(0);
-            TilePage.computeId(tileSetId, pageX, pageY, pageZ, pageIdTarget);
-            String pageIdForTile = pageIdTarget.toString();
+            pageKeyTarget.set(pageX, pageY, pageZ);
 
-            final int tileCountDiff = size > 0 ? 1 : -1;
-            PageStatsPayload payload = tilePages.get(pageIdForTile);
+            PageStatsPayload payload = tilePages.get(pageKeyTarget);
             if (payload == null) {
                 TilePage page;
                 page = new TilePage(tileSetId, pageX, pageY, pageZ);
                 payload = new PageStatsPayload(page);
-                tilePages.put(pageIdForTile, payload);
+                tilePages.put(new PageKey().set(pageX, pageY, pageZ), payload);
             }
             int previousCount = payload.getNumTiles();
             payload.setNumTiles(previousCount + tileCountDiff);
-
-            ++numAggregations;
         }
 
         public TileSet getTileSet() {
             return tileSet;
         }
 
+        public boolean isQuotaDifferenceZero() {
+            return accumBytesDiff == 0 && (accumQuotaOverflow == null || accumQuotaOverflow
+                    .getBytes().signum() == 0);
+        }
+
         public Quota getAccummulatedQuotaDifference() {
-            return accumQuotaDiff;
+            Quota quota = new Quota(BigInteger.valueOf(accumBytesDiff));
+            if (accumQuotaOverflow != null) {
+                quota.add(accumQuotaOverflow);
+            }
+            return quota;
         }
 
         public Collection<PageStatsPayload> getAccummulatedTilePageCounts() {
@@ -145,13 +187,45 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
             sb.append(tileSet);
             sb.append(numAggregations).append(" aggregated updates, ");
             sb.append(tilePages.size()).append(" different pages, ");
-            sb.append("accum quota diff: ").append(accumQuotaDiff.toNiceString());
+            sb.append("accum quota diff: ").append(getAccummulatedQuotaDifference().toNiceString());
             sb.append(", created ").append((System.currentTimeMillis() - creationTime))
                     .append("ms ago").append(']');
             return sb.toString();
         }
     }
 
+    /**
+     * Identifies a page within a {@link TimedQuotaUpdate}'s tile set
+     */
+    private static final class PageKey {
+        private int x;
+
+        private int y;
+
+        private byte z;
+
+        PageKey set(int x, int y, byte z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PageKey)) {
+                return false;
+            }
+            PageKey k = (PageKey) o;
+            return x == k.x && y == k.y && z == k.z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * (31 * 17 + x) + y) * 31 + z;
+        }
+    }
+
     public QueuedQuotaUpdatesConsumer(QuotaStore quotaStore, BlockingQueue<QuotaUpdate> queue) {
         Assert.notNull(quotaStore, "quotaStore can't be null");
         Assert.notNull(queue, "queue can't be null");
@@ -302,16 +376,17 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
 
     private void commit(final TimedQuotaUpdate aggregatedUpadte) throws InterruptedException {
         final TileSet tileSet = aggregatedUpadte.getTileSet();
+        if (aggregatedUpadte.isQuotaDifferenceZero()
+                && aggregatedUpadte.getAccummulatedTilePageCounts().size() == 0) {
+            return;
+        }
+        // the quota is only turned into arbitrary precision here, once per commit
         final Quota quotaDiff = aggregatedUpadte.getAccummulatedQuotaDifference();
 
         Collection<PageStatsPayload> tileCountDiffs;
         tileCountDiffs = new ArrayList<PageStatsPayload>(
                 aggregatedUpadte.getAccummulatedTilePageCounts());
 
-        if (quotaDiff.getBytes().compareTo(BigInteger.ZERO) == 0 && tileCountDiffs.size() == 0) {
-            return;
-        }
-
         quotaStore.addToQuotaAndTileCounts(tileSet, quotaDiff, tileCountDiffs);
     }
 }
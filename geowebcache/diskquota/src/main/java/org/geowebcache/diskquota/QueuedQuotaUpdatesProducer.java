@@ -22,6 +22,7 @@ import java.util.concurrent.BlockingQueue;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.diskquota.storage.BDBQuotaStore;
+import org.geowebcache.diskquota.storage.TileSet;
 import org.geowebcache.storage.BlobStoreListener;
 import org.geowebcache.storage.StorageBroker;
 import org.springframework.util.Assert;
@@ -103,6 +104,29 @@ class QueuedQuotaUpdatesProducer implements BlobStoreListener {
                 x, y, z });
     }
 
+    /**
+     * Queues a single update for the whole batch
+     * 
+     * @see org.geowebcache.storage.BlobStoreListener#tilesDeleted
+     */
+    public void tilesDeleted(final String layerName, final String gridSetId,
+            final String blobFormat, final Long parametersId, final int z, final long[] x,
+            final long[] y, final long[] blobSizes) {
+
+        if (x.length == 0 || cancelled(layerName)) {
+            return;
+        }
+        final int blockSize = quotaConfig.getDiskBlockSize();
+        long actualSizeFreed = 0;
+        long[][] tileIndexes = new long[x.length][];
+        for (int i = 0; i < x.length; i++) {
+            actualSizeFreed -= blockSize * (int) Math.ceil((double) blobSizes[i] / blockSize);
+            tileIndexes[i] = new long[] { x[i], y[i], z };
+        }
+        TileSet tileSet = new TileSet(layerName, gridSetId, blobFormat, parametersId);
+        enqueue(layerName, new QuotaUpdate(tileSet, actualSizeFreed, tileIndexes));
+    }
+
     /**
      * 
      * @see org.geowebcache.storage.BlobStoreListener#tileUpdated
@@ -164,6 +188,10 @@ class QueuedQuotaUpdatesProducer implements BlobStoreListener {
         }
         QuotaUpdate payload = new QuotaUpdate(layerName, gridSetId, blobFormat, parametersId,
                 amount, tileIndex);
+        enqueue(layerName, payload);
+    }
+
+    private void enqueue(String layerName, QuotaUpdate payload) {
         try {
             this.queuedUpdates.put(payload);
         } catch (InterruptedException e) {
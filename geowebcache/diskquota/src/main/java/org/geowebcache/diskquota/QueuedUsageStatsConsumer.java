@@ -1,23 +1,17 @@
 package org.geowebcache.diskquota;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.diskquota.storage.PageStatsPayload;
-import org.geowebcache.diskquota.storage.TilePage;
-import org.geowebcache.diskquota.storage.TilePageCalculator;
-import org.geowebcache.diskquota.storage.TileSet;
 import org.springframework.util.Assert;
 
 /**
+ * Periodically drains the page hits counted by the {@link QueuedUsageStatsProducer} into the
+ * quota store.
  * 
  * @author groldan
  * 
@@ -34,63 +28,40 @@ public class QueuedUsageStatsConsumer implements Callable<Long>, Serializable {
     private static final long DEFAULT_SYNC_TIMEOUT = 10000;
 
     /**
-     * Default number of per TileSet aggregated quota updates before ensuring they're synchronized
-     * back to the store, regardless of whether the timeout expired for the TileSet
+     * Number of aggregated page usage stats before ensuring they're synchronized back to the
+     * store, regardless of whether the timeout expired
      */
     private static final int MAX_AGGREGATES_BEFORE_COMMIT = 3000;
 
-    private final QuotaStore quotaStore;
-
-    private final BlockingQueue<UsageStats> usageStatsQueue;
+    /**
+     * Milliseconds between checks of the number of aggregated page usage stats
+     */
+    private static final long POLL_INTERVAL = 500;
 
-    private final TilePageCalculator tilePageCalculator;
+    private final QuotaStore quotaStore;
 
-    private final TimedUsageUpdate aggregatedPendingUpdates;
+    private final UsageStatsTable usageStats;
 
     /**
-     * 
-     * @author groldan
-     * 
+     * tracks the last time the aggregated updates were committed
      */
-    private static class TimedUsageUpdate {
-        /**
-         * Tracks aggregated usage stats per {@link TilePage#getId() pageId} until committed
-         */
-        private final Map<String, PageStatsPayload> pages;
-
-        /**
-         * tracks the last time the aggregated updates for a given tile set were committed
-         */
-        private long lastCommitTime;
-
-        /**
-         * tracks how many requests for the same tile page this aggregated stats is made of
-         */
-        private int numAggregations;
-
-        public TimedUsageUpdate() {
-            this.pages = new HashMap<String, PageStatsPayload>();
-            this.lastCommitTime = System.currentTimeMillis();
-            numAggregations = 0;
-        }
-    }
+    private long lastCommitTime;
+
+    private long lastDroppedCount;
 
     /**
      * 
      * @param quotaStore
-     * @param queue
+     * @param usageStats
      */
-    public QueuedUsageStatsConsumer(final QuotaStore quotaStore,
-            final BlockingQueue<UsageStats> queue, final TilePageCalculator tilePageCalculator) {
+    public QueuedUsageStatsConsumer(final QuotaStore quotaStore, final UsageStatsTable usageStats) {
 
         Assert.notNull(quotaStore, "quotaStore can't be null");
-        Assert.notNull(queue, "queue can't be null");
-        Assert.notNull(tilePageCalculator, "tilePageCalculator can't be null");
+        Assert.notNull(usageStats, "usageStats can't be null");
 
         this.quotaStore = quotaStore;
-        this.usageStatsQueue = queue;
-        this.tilePageCalculator = tilePageCalculator;
-        aggregatedPendingUpdates = new TimedUsageUpdate();
+        this.usageStats = usageStats;
+        this.lastCommitTime = System.currentTimeMillis();
     }
 
     /**
@@ -105,26 +76,8 @@ public class QueuedUsageStatsConsumer implements Callable<Long>, Serializable {
             }
 
             try {
-                /*
-                 * do not wait for more than 5 seconds for data to become available on the queue
-                 */
-                UsageStats requestedTile;
-                requestedTile = usageStatsQueue.poll(DEFAULT_SYNC_TIMEOUT, TimeUnit.MILLISECONDS);
-                if (requestedTile == null) {
-                    /*
-                     * poll timed out, nothing new, check there are no pending aggregated updates
-                     * for too long if we're idle
-                     */
-                    if (aggregatedPendingUpdates.pages.size() > 0) {
-                        commit();
-                    }
-
-                } else {
-                    /*
-                     * perform an aggregated update in case we're really busy
-                     */
-                    performAggregatedUpdate(requestedTile);
-                }
+                Thread.sleep(POLL_INTERVAL);
+                checkAggregatedTimeout();
             } catch (InterruptedException e) {
                 log.info("Shutting down quota update background task due to interrupted exception");
                 break;
@@ -141,67 +94,18 @@ public class QueuedUsageStatsConsumer implements Callable<Long>, Serializable {
         return null;
     }
 
-    private final int[] pageIndexTarget = new int[3];
-
-    private final StringBuilder pageIdTarget = new StringBuilder(128);
-
-    /**
-     * 
-     * @param requestedTile
-     *            represents a single tile that was requested and for which its tile page needs to
-     *            be looked up and updated
-     * @throws InterruptedException
-     */
-    private void performAggregatedUpdate(final UsageStats requestedTile)
-            throws InterruptedException {
-
-        final TileSet tileSet = requestedTile.getTileSet();
-        final String tileSetId = tileSet.getId();
-        final long[] tileIndex = requestedTile.getTileIndex();
-
-        tilePageCalculator.pageIndexForTile(tileSet, tileIndex, pageIndexTarget);
-        final int pageX = pageIndexTarget[0];
-        final int pageY = pageIndexTarget[1];
-        final byte pageZ = (byte) pageIndexTarget[2];
-
-        pageIdTarget.setLength(0);
-        TilePage.computeId(tileSetId, pageX, pageY, pageZ, pageIdTarget);
-        final String pageKeyForTile = pageIdTarget.toString();
-
-        PageStatsPayload timedUpdate = aggregatedPendingUpdates.pages.get(pageKeyForTile);
-        if (timedUpdate == null) {
-            /*
-             * it is the first one for this tile set, lets start the aggregated updates on it
-             */
-            timedUpdate = new PageStatsPayload(new TilePage(tileSetId, pageX, pageY, pageZ));
-
-            aggregatedPendingUpdates.pages.put(pageKeyForTile, timedUpdate);
-        } else {
-            timedUpdate.setNumHits(timedUpdate.getNumHits() + 1);
-        }
-        timedUpdate.setNumHits(timedUpdate.getNumHits() + 1);
-        timedUpdate.setLastAccessTime(System.currentTimeMillis());
-        aggregatedPendingUpdates.numAggregations++;
-
-        /*
-         * now make sure we're not waiting for too long before committing
-         */
-        checkAggregatedTimeout();
-    }
-
     /**
-     * Makes sure the given cached updates are held for too long before synchronizing with the
-     * store, either because it's been held for too long, or because too many updates have happened
-     * on it since the last time it was saved to the store.
+     * Makes sure the aggregated updates are not held for too long before synchronizing with the
+     * store, either because it's been held for too long, or because too many pages were hit since
+     * the last time they were saved to the store.
      */
     private void checkAggregatedTimeout() {
 
         final long currTime = System.currentTimeMillis();
-        final long creationTime = aggregatedPendingUpdates.lastCommitTime;
 
-        boolean timeout = currTime - creationTime >= DEFAULT_SYNC_TIMEOUT;
+        boolean timeout = currTime - lastCommitTime >= DEFAULT_SYNC_TIMEOUT;
 
-        final int numAggregations = aggregatedPendingUpdates.numAggregations;
+        final int numAggregations = usageStats.size();
         boolean tooManyPendingCommits = numAggregations >= MAX_AGGREGATES_BEFORE_COMMIT;
 
         if (timeout || tooManyPendingCommits) {
@@ -217,11 +121,17 @@ public class QueuedUsageStatsConsumer implements Callable<Long>, Serializable {
     }
 
     private void commit() {
-        Collection<PageStatsPayload> pendingCommits;
-        pendingCommits = new ArrayList<PageStatsPayload>(aggregatedPendingUpdates.pages.values());
-        quotaStore.addHitsAndSetAccesTime(pendingCommits);
-        aggregatedPendingUpdates.lastCommitTime = System.currentTimeMillis();
-        aggregatedPendingUpdates.numAggregations = 0;
-        aggregatedPendingUpdates.pages.clear();
+        Collection<PageStatsPayload> pendingCommits = usageStats.drain();
+        if (pendingCommits.size() > 0) {
+            quotaStore.addHitsAndSetAccesTime(pendingCommits);
+        }
+        lastCommitTime = System.currentTimeMillis();
+
+        final long droppedCount = usageStats.getDroppedCount();
+        if (droppedCount > lastDroppedCount) {
+            log.info("Dropped " + (droppedCount - lastDroppedCount)
+                    + " tile usage samples as the usage stats table was full");
+            lastDroppedCount = droppedCount;
+        }
     }
 }
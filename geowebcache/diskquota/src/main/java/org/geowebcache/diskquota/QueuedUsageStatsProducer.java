@@ -1,35 +1,52 @@
 package org.geowebcache.diskquota;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.conveyor.ConveyorTile;
-import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.diskquota.storage.PagePyramid;
+import org.geowebcache.diskquota.storage.PagePyramid.PageLevelInfo;
+import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerListener;
 import org.springframework.util.Assert;
 
 /**
- * 
+ * Counts the hits on each tile page in a {@link UsageStatsTable} for the
+ * {@link QueuedUsageStatsConsumer} to save them to the quota store.
  * <p>
  * This {@link TileLayerListener} is thread safe and can be called by any thread requesting a tile
- * from a {@link TileLayer}
+ * from a {@link TileLayer}. It never blocks the requesting thread, and only allocates when a page
+ * is hit for the first time since the stats were last saved.
  * 
  * @author groldan
  * 
  */
 public class QueuedUsageStatsProducer implements TileLayerListener {
 
-    private static final Log log = LogFactory.getLog(QueuedQuotaUpdatesProducer.class);
+    private static final Log log = LogFactory.getLog(QueuedUsageStatsProducer.class);
 
-    private final BlockingQueue<UsageStats> usageStatsQueue;
+    /**
+     * Page pyramids are dropped when more than this many grid subsets were seen, as layers get
+     * reconfigured
+     */
+    private static final int MAX_PAGE_PYRAMIDS = 1000;
+
+    private final UsageStatsTable usageStats;
+
+    /**
+     * Page pyramids by grid subset instance, so that a layer changing its grid subsets gets new
+     * ones
+     */
+    private final ConcurrentMap<GridSubset, PagePyramid> pagePyramids = new ConcurrentHashMap<GridSubset, PagePyramid>();
 
     private volatile boolean cancelled;
 
-    public QueuedUsageStatsProducer(BlockingQueue<UsageStats> usageStatsQueue) {
-        Assert.notNull(usageStatsQueue, "usageStatsQueue can't be null");
-        this.usageStatsQueue = usageStatsQueue;
+    public QueuedUsageStatsProducer(UsageStatsTable usageStats) {
+        Assert.notNull(usageStats, "usageStats can't be null");
+        this.usageStats = usageStats;
     }
 
     /**
@@ -40,25 +57,47 @@ public class QueuedUsageStatsProducer implements TileLayerListener {
         if (cancelled(layerName)) {
             return;
         }
-        String gridsetId = tile.getGridSetId();
-        String blobFormat = tile.getMimeType().getFormat();
-        Long parametersId;
-        {
-            long paramsId = tile.getParametersId();
-            parametersId = paramsId == -1 ? null : Long.valueOf(paramsId);
+        final String gridsetId = tile.getGridSetId();
+        final GridSubset gridSubset = layer.getGridSubset(gridsetId);
+        if (gridSubset == null) {
+            return;
         }
-        TileSet tileSet = new TileSet(layerName, gridsetId, blobFormat, parametersId);
-        long[] tileIndex = tile.getTileIndex().clone();
-        UsageStats usageLog = new UsageStats(tileSet, tileIndex);
-        try {
-            usageStatsQueue.put(usageLog);
-        } catch (InterruptedException e) {
-            if (cancelled(layerName)) {
-                return;
+        final PagePyramid pagePyramid = getPagePyramid(gridSubset);
+        final long[] tileIndex = tile.getTileIndex();
+        final int zoomLevel = (int) tileIndex[2];
+        if (zoomLevel < pagePyramid.getZoomStart() || zoomLevel > pagePyramid.getZoomStop()) {
+            return;
+        }
+        final PageLevelInfo levelInfo = pagePyramid.getPageInfo(zoomLevel);
+        final int pageX = (int) ((tileIndex[0] - levelInfo.coverageMinX) / levelInfo.tilesPerPageX);
+        final int pageY = (int) ((tileIndex[1] - levelInfo.coverageMinY) / levelInfo.tilesPerPageY);
+
+        usageStats.hit(layerName, gridsetId, tile.getMimeType().getFormat(), tile
+                .getParametersId(), pageX, pageY, zoomLevel, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the page pyramid of the grid subset with the info of all its levels computed, so that
+     * it's only read once shared by the requesting threads
+     */
+    private PagePyramid getPagePyramid(final GridSubset gridSubset) {
+        PagePyramid pagePyramid = pagePyramids.get(gridSubset);
+        if (pagePyramid == null) {
+            int zoomStart = gridSubset.getZoomStart();
+            int zoomStop = gridSubset.getZoomStop();
+            pagePyramid = new PagePyramid(gridSubset.getCoverages(), zoomStart, zoomStop);
+            for (int level = zoomStart; level <= zoomStop; level++) {
+                pagePyramid.getPageInfo(level);
+            }
+            if (pagePyramids.size() >= MAX_PAGE_PYRAMIDS) {
+                pagePyramids.clear();
+            }
+            PagePyramid existing = pagePyramids.putIfAbsent(gridSubset, pagePyramid);
+            if (existing != null) {
+                pagePyramid = existing;
             }
-            log.info("Quota usage stats gathering for " + layerName
-                    + " abruptly interrupted on thread " + Thread.currentThread().getName());
         }
+        return pagePyramid;
     }
 
     public void setCancelled(boolean cancelled) {
@@ -2,6 +2,7 @@ package org.geowebcache.diskquota;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Future;
 
@@ -59,6 +60,34 @@ public interface QuotaStore {
     public abstract void addToQuotaAndTileCounts(final TileSet tileSet, final Quota quotaDiff,
             final Collection<PageStatsPayload> tileCountDiffs) throws InterruptedException;
 
+    /**
+     * Adds the quota and tile counts found by a cache scan in a directory of the layer cache, as
+     * {@link #addToQuotaAndTileCounts} does for each tile set, and records the directory as
+     * scanned in the same transaction. Nothing is added if the directory was recorded already, so
+     * a scan resumed after a crash doesn't count a directory twice.
+     * 
+     * @param directory
+     *            path of the directory relative to the layer cache
+     * @param quotaDiffs
+     *            bytes found by tile set
+     * @param tileCountDiffs
+     *            tiles found by page, the pages belonging to the tile sets in {@code quotaDiffs}
+     * @return {@code false} if the directory was recorded already and nothing was added
+     * @throws InterruptedException
+     */
+    public abstract boolean addScannedDirectory(final String layerName, final String directory,
+            final Map<TileSet, Quota> quotaDiffs,
+            final Collection<PageStatsPayload> tileCountDiffs) throws InterruptedException;
+
+    /**
+     * Forgets the directories recorded by {@link #addScannedDirectory} for the layer, once its
+     * cache scan completed or before starting it over
+     * 
+     * @throws InterruptedException
+     */
+    public abstract void clearScannedDirectories(final String layerName)
+            throws InterruptedException;
+
     /**
      * Asynchronously updates (or set if not exists) the
      * {@link PageStats#getFrequencyOfUsePerMinute()} and
@@ -88,8 +117,39 @@ public interface QuotaStore {
     public abstract TilePage getLeastRecentlyUsedPage(final Set<String> layerNames)
             throws InterruptedException;
 
+    /**
+     * @param layerNames
+     * @param maxPages
+     *            maximum number of pages to return
+     * @return up to {@code maxPages} pages of the given layers with tiles, the least frequently
+     *         used first
+     * @throws InterruptedException
+     */
+    public abstract List<TilePage> getLeastFrequentlyUsedPages(final Set<String> layerNames,
+            final int maxPages) throws InterruptedException;
+
+    /**
+     * @param layerNames
+     * @param maxPages
+     *            maximum number of pages to return
+     * @return up to {@code maxPages} pages of the given layers with tiles, the least recently used
+     *         first
+     * @throws InterruptedException
+     */
+    public abstract List<TilePage> getLeastRecentlyUsedPages(final Set<String> layerNames,
+            final int maxPages) throws InterruptedException;
+
     public abstract PageStats setTruncated(final TilePage tilePage) throws InterruptedException;
 
+    /**
+     * Marks all the given pages as truncated in a single transaction
+     * 
+     * @param tilePages
+     * @throws InterruptedException
+     */
+    public abstract void setTruncated(final Collection<TilePage> tilePages)
+            throws InterruptedException;
+
     public abstract void deleteGridSubset(String layerName, String gridSetId);
 
 }
\ No newline at end of file
@@ -10,6 +10,8 @@ public class QuotaUpdate {
 
     private long[] tileIndex;
 
+    private long[][] tileIndexes;
+
     /**
      * 
      * @param layerName
@@ -32,6 +34,19 @@ public class QuotaUpdate {
         this.tileIndex = tileIndex;
     }
 
+    /**
+     * Creates an update for a batch of tiles, all of them added if {@code quotaUpdateSize} is
+     * positive, or removed if negative
+     * 
+     * @param quotaUpdateSize
+     *            bytes to add or subtract from a quota for the whole batch
+     */
+    public QuotaUpdate(TileSet tileset, long quotaUpdateSize, long[][] tileIndexes) {
+        this.tileSet = tileset;
+        this.size = quotaUpdateSize;
+        this.tileIndexes = tileIndexes;
+    }
+
     public TileSet getTileSet() {
         return tileSet;
     }
@@ -48,6 +63,14 @@ public class QuotaUpdate {
         return tileIndex;
     }
 
+    /**
+     * @return the tile indexes of a batch update, or {@code null} if this update is for the single
+     *         {@link #getTileIndex() tile index}
+     */
+    public long[][] getTileIndexes() {
+        return tileIndexes;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder("[").append(tileSet.toString()).append(", ").append(size)
@@ -1,14 +1,11 @@
 package org.geowebcache.diskquota;
 
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.geowebcache.diskquota.storage.TilePageCalculator;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.layer.TileLayerListener;
@@ -22,33 +19,35 @@ public class UsageStatsMonitor {
     private static final CustomizableThreadFactory tf = new CustomizableThreadFactory(
             "GWC DiskQuota Usage Stats Gathering Thread-");
 
+    /**
+     * Number of tile pages whose hits can be counted in between the consumer runs
+     */
+    private static final int USAGE_STATS_TABLE_SIZE = 16384;
+
     private final QuotaStore quotaStore;
 
     private final TileLayerDispatcher tileLayerDispatcher;
 
-    private final TilePageCalculator tilePageCalculator;
-
     /**
      * Single threaded executor service for the {@link #usageStatsConsumer}
      */
     private ExecutorService executorService;
 
     /**
-     * Queue shared by the stats producer and the consumer
+     * Page hit counters shared by the stats producer and the consumer
      */
-    private BlockingQueue<UsageStats> sharedQueue;
+    private UsageStatsTable usageStats;
 
     /**
      * Listens to all {@link TileLayer layers}
      * {@link TileLayerListener#tileRequested(TileLayer, org.geowebcache.conveyor.ConveyorTile)
-     * tileRequested} events and puts usage statistics on the {@link #sharedQueue} for the consumer
-     * to save them to the {@link #quotaStore}
+     * tileRequested} events and counts the page hits on {@link #usageStats} for the consumer to
+     * save them to the {@link #quotaStore}
      */
     private QueuedUsageStatsProducer usageStatsProducer;
 
     /**
-     * Task that constantly polls the {@link #sharedQueue} for usage statistics payload objects and
-     * aggregates them to be saved to the {@link #quotaStore} for the LRU and LFU
+     * Task that periodically drains the {@link #usageStats} page hits to be saved to the {@link #quotaStore} for the LRU and LFU
      * {@link ExpirationPolicy expiration policies}
      */
     private QueuedUsageStatsConsumer usageStatsConsumer;
@@ -61,19 +60,17 @@ public class UsageStatsMonitor {
 
         this.quotaStore = quotaStore;
         this.tileLayerDispatcher = tileLayerDispatcher;
-        this.tilePageCalculator = quotaStore.getTilePageCalculator();
     }
 
     public void startUp() {
         executorService = Executors.newSingleThreadExecutor(tf);
 
-        sharedQueue = new LinkedBlockingQueue<UsageStats>(1000);
+        usageStats = new UsageStatsTable(USAGE_STATS_TABLE_SIZE);
 
-        usageStatsConsumer = new QueuedUsageStatsConsumer(quotaStore, sharedQueue,
-                tilePageCalculator);
+        usageStatsConsumer = new QueuedUsageStatsConsumer(quotaStore, usageStats);
         executorService.submit(usageStatsConsumer);
 
-        usageStatsProducer = new QueuedUsageStatsProducer(sharedQueue);
+        usageStatsProducer = new QueuedUsageStatsProducer(usageStats);
         Iterable<TileLayer> allLayers = tileLayerDispatcher.getLayerList();
         for (TileLayer layer : allLayers) {
             layer.addLayerListener(usageStatsProducer);
@@ -143,7 +140,7 @@ public class UsageStatsMonitor {
         } else {
             executorService.shutdown();
         }
-        sharedQueue = null;
+        usageStats = null;
     }
 
 }
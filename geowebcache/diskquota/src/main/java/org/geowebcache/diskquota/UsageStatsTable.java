@@ -0,0 +1,272 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.TilePage;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.springframework.util.Assert;
+
+/**
+ * Fixed size table of tile page hit counters, coalescing the tile requests by tile set and page
+ * until {@link #drain() drained} into {@link PageStatsPayload}s for the quota store.
+ * <p>
+ * {@link #hit} never blocks: counters are open addressed slots of atomic arrays, and only the
+ * first hit on a page since the last drain allocates its key. When no free slot is found close to
+ * the page's hash, or the table is three quarters full, the hit is dropped and
+ * {@link #getDroppedCount() counted} instead of waiting for the consumer to catch up.
+ * </p>
+ * <p>
+ * Hits are recorded in the current of two generations of the table; draining, which must happen
+ * on a single thread, swaps them and waits for the threads still updating the old one to finish,
+ * so no hit is lost across a drain.
+ * </p>
+ */
+public class UsageStatsTable {
+
+    /**
+     * Number of slots looked at for a page before dropping a hit
+     */
+    private static final int MAX_PROBES = 8;
+
+    private final int maxEntries;
+
+    private volatile Generation current;
+
+    /**
+     * The empty generation to swap in on the next drain, only used by the draining thread
+     */
+    private Generation spare;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            number of slots, rounded up to a power of two
+     */
+    public UsageStatsTable(final int capacity) {
+        Assert.isTrue(capacity > 0, "capacity shall be > 0");
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.maxEntries = size - size / 4;
+        this.current = new Generation(size);
+        this.spare = new Generation(size);
+    }
+
+    /**
+     * Adds a hit to the given tile page
+     *
+     * @param parametersId
+     *            the tile set parameters id, {@code -1} if none
+     * @param accessTime
+     *            request time in milliseconds
+     * @return {@code false} if the hit was dropped because the table is full
+     */
+    public boolean hit(final String layerName, final String gridSetId, final String blobFormat,
+            final long parametersId, final int pageX, final int pageY, final int zoomLevel,
+            final long accessTime) {
+
+        final int hash = hash(layerName, gridSetId, blobFormat, parametersId, pageX, pageY,
+                zoomLevel);
+        while (true) {
+            final Generation gen = current;
+            gen.writers.incrementAndGet();
+            try {
+                if (gen != current) {
+                    // drained meanwhile, retry on the new generation
+                    continue;
+                }
+                if (gen.hit(hash, layerName, gridSetId, blobFormat, parametersId, pageX, pageY,
+                        zoomLevel, accessTime)) {
+                    return true;
+                }
+                dropped.incrementAndGet();
+                return false;
+            } finally {
+                gen.writers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the hits recorded since the last call and empties the table. Not thread safe, shall
+     * be called by a single consumer thread.
+     */
+    public List<PageStatsPayload> drain() {
+        final Generation drained = current;
+        current = spare;
+        while (drained.writers.get() > 0) {
+            Thread.yield();
+        }
+
+        final List<PageStatsPayload> payloads = new ArrayList<PageStatsPayload>(drained.size
+                .get());
+        final StringBuilder tileSetId = new StringBuilder(128);
+        final int length = drained.keys.length();
+        for (int i = 0; i < length; i++) {
+            final PageKey key = drained.keys.get(i);
+            if (key == null) {
+                continue;
+            }
+            final long hits = drained.hits.get(i);
+            if (hits > 0) {
+                tileSetId.setLength(0);
+                TileSet.computeId(key.layerName, key.gridSetId, key.blobFormat,
+                        key.parametersId == -1 ? null : Long.valueOf(key.parametersId), tileSetId);
+                TilePage page = new TilePage(tileSetId.toString(), key.pageX, key.pageY,
+                        key.zoomLevel);
+                PageStatsPayload payload = new PageStatsPayload(page);
+                payload.setNumHits((int) Math.min(hits, Integer.MAX_VALUE));
+                payload.setLastAccessTime(drained.accessTimes.get(i));
+                payloads.add(payload);
+            }
+            drained.keys.set(i, null);
+            drained.hits.set(i, 0);
+            drained.accessTimes.set(i, 0);
+        }
+        drained.size.set(0);
+        spare = drained;
+        return payloads;
+    }
+
+    /**
+     * @return the number of pages with hits not yet drained
+     */
+    public int size() {
+        return current.size.get();
+    }
+
+    /**
+     * @return the number of hits dropped so far because the table was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static int hash(final String layerName, final String gridSetId,
+            final String blobFormat, final long parametersId, final int pageX, final int pageY,
+            final int zoomLevel) {
+        int h = layerName.hashCode();
+        h = 31 * h + gridSetId.hashCode();
+        h = 31 * h + blobFormat.hashCode();
+        h = 31 * h + (int) (parametersId ^ (parametersId >>> 32));
+        h = 31 * h + pageX;
+        h = 31 * h + pageY;
+        h = 31 * h + zoomLevel;
+        // spread the low bits, slots are picked by masking
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private final class Generation {
+
+        final AtomicReferenceArray<PageKey> keys;
+
+        final AtomicLongArray hits;
+
+        final AtomicLongArray accessTimes;
+
+        final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * Number of threads currently recording a hit on this generation
+         */
+        final AtomicInteger writers = new AtomicInteger();
+
+        private final int mask;
+
+        Generation(final int capacity) {
+            this.keys = new AtomicReferenceArray<PageKey>(capacity);
+            this.hits = new AtomicLongArray(capacity);
+            this.accessTimes = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+        }
+
+        boolean hit(final int hash, final String layerName, final String gridSetId,
+                final String blobFormat, final long parametersId, final int pageX,
+                final int pageY, final int zoomLevel, final long accessTime) {
+
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                final int slot = (hash + probe) & mask;
+                PageKey key = keys.get(slot);
+                if (key == null) {
+                    if (size.incrementAndGet() > maxEntries) {
+                        size.decrementAndGet();
+                        return false;
+                    }
+                    PageKey newKey = new PageKey(layerName, gridSetId, blobFormat, parametersId,
+                            pageX, pageY, zoomLevel);
+                    if (keys.compareAndSet(slot, null, newKey)) {
+                        key = newKey;
+                    } else {
+                        // taken by another thread, which may be counting the same page
+                        size.decrementAndGet();
+                        key = keys.get(slot);
+                    }
+                }
+                if (key.matches(layerName, gridSetId, blobFormat, parametersId, pageX, pageY,
+                        zoomLevel)) {
+                    hits.incrementAndGet(slot);
+                    accessTimes.set(slot, accessTime);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class PageKey {
+        final String layerName;
+
+        final String gridSetId;
+
+        final String blobFormat;
+
+        final long parametersId;
+
+        final int pageX;
+
+        final int pageY;
+
+        final int zoomLevel;
+
+        PageKey(String layerName, String gridSetId, String blobFormat, long parametersId,
+                int pageX, int pageY, int zoomLevel) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.blobFormat = blobFormat;
+            this.parametersId = parametersId;
+            this.pageX = pageX;
+            this.pageY = pageY;
+            this.zoomLevel = zoomLevel;
+        }
+
+        boolean matches(String layerName, String gridSetId, String blobFormat,
+                long parametersId, int pageX, int pageY, int zoomLevel) {
+            return this.pageX == pageX && this.pageY == pageY && this.zoomLevel == zoomLevel
+                    && this.parametersId == parametersId && this.layerName.equals(layerName)
+                    && this.gridSetId.equals(gridSetId) && this.blobFormat.equals(blobFormat);
+        }
+    }
+}
@@ -3,9 +3,9 @@ package org.geowebcache.diskquota.storage;
 import static org.geowebcache.diskquota.DiskQuotaMonitor.GWC_DISKQUOTA_DISABLED;
 
 import java.io.File;
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -67,12 +67,18 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
 
     private SecondaryIndex<Long, Long, PageStats> pageStatsByPageId;
 
-    private SecondaryIndex<Float, Long, PageStats> pageStatsByLRU;
+    private SecondaryIndex<ExpirationKey, Long, PageStats> pageStatsByTileSetLRU;
 
-    private SecondaryIndex<Float, Long, PageStats> pageStatsByLFU;
+    private SecondaryIndex<ExpirationKey, Long, PageStats> pageStatsByTileSetLFU;
 
     private SecondaryIndex<String, Integer, Quota> usedQuotaByTileSetId;
 
+    private PrimaryIndex<String, ScannedDirectory> scannedDirectoryById;
+
+    private SecondaryIndex<String, String, ScannedDirectory> scannedDirectoriesByLayer;
+
+    private PrimaryIndex<String, CompletedMigration> completedMigrationByName;
+
     private volatile boolean open;
 
     private boolean diskQuotaEnabled;
@@ -125,6 +131,8 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
 
             deleteStaleLayersAndCreateMissingTileSets();
 
+            issueSync(new IndexPageStatsByTileSet());
+
             log.info("Berkeley DB JE Disk Quota page store configured at "
                     + storeDirectory.getAbsolutePath());
         } catch (RuntimeException e) {
@@ -174,12 +182,19 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
         pageByKey = entityStore.getSecondaryIndex(pageById, String.class, "page_key");
         pagesByTileSetId = entityStore.getSecondaryIndex(pageById, String.class, "tileset_id_fk");
         tileSetsByLayer = entityStore.getSecondaryIndex(tileSetById, String.class, "layer");
-        pageStatsByLRU = entityStore.getSecondaryIndex(pageStatsById, Float.class, "LRU");
-        pageStatsByLFU = entityStore.getSecondaryIndex(pageStatsById, Float.class, "LFU");
+        pageStatsByTileSetLRU = entityStore.getSecondaryIndex(pageStatsById,
+                ExpirationKey.class, "tileset_LRU");
+        pageStatsByTileSetLFU = entityStore.getSecondaryIndex(pageStatsById,
+                ExpirationKey.class, "tileset_LFU");
         usedQuotaByTileSetId = entityStore.getSecondaryIndex(usedQuotaById, String.class,
                 "tileset_id");
         pageStatsByPageId = entityStore.getSecondaryIndex(pageStatsById, Long.class,
                 "page_stats_by_page_id");
+        scannedDirectoryById = entityStore.getPrimaryIndex(String.class, ScannedDirectory.class);
+        scannedDirectoriesByLayer = entityStore.getSecondaryIndex(scannedDirectoryById,
+                String.class, "scanned_layer");
+        completedMigrationByName = entityStore.getPrimaryIndex(String.class,
+                CompletedMigration.class);
 
     }
 
@@ -233,6 +248,81 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
 
     }
 
+    /**
+     * Sets the tile set id of the page stats stored before the per tile set expiration indexes
+     * existed, so that their pages can be expired. Each batch is committed on its own, the last
+     * one along with a {@link CompletedMigration} marker: an interrupted run is resumed at the
+     * next start up, skipping the page stats already indexed, and a completed one isn't run again.
+     */
+    private class IndexPageStatsByTileSet implements Callable<Void> {
+
+        private static final String NAME = "page_stats_by_tileset";
+
+        private static final int BATCH_SIZE = 1000;
+
+        public Void call() throws Exception {
+            if (completedMigrationByName.contains(NAME)) {
+                return null;
+            }
+            final boolean hasPageStats = !isEmpty(pageStatsById.keys());
+            if (hasPageStats) {
+                log.info("Indexing disk quota page stats by tile set, this is done only once...");
+            }
+            long indexed = 0;
+            Long lastId = null;
+            boolean done = false;
+            while (!done) {
+                final Transaction transaction = entityStore.getEnvironment().beginTransaction(
+                        null, null);
+                EntityCursor<PageStats> cursor = pageStatsById.entities(transaction, lastId,
+                        lastId == null, null, false, null);
+                try {
+                    PageStats pageStats;
+                    int count = 0;
+                    while (count < BATCH_SIZE && (pageStats = cursor.next()) != null) {
+                        count++;
+                        lastId = Long.valueOf(pageStats.getId());
+                        if (pageStats.getTileSetId() != null) {
+                            continue;
+                        }
+                        TilePage page = pageById.get(transaction, pageStats.getPageId(),
+                                LockMode.DEFAULT);
+                        if (page != null) {
+                            pageStats.setTileSetId(page.getTileSetId());
+                            cursor.update(pageStats);
+                            indexed++;
+                        }
+                    }
+                    done = count < BATCH_SIZE;
+                    cursor.close();
+                    cursor = null;
+                    if (done) {
+                        completedMigrationByName.put(transaction, new CompletedMigration(NAME));
+                    }
+                    transaction.commit();
+                } catch (RuntimeException e) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    transaction.abort();
+                    throw e;
+                }
+            }
+            if (hasPageStats) {
+                log.info("Indexed " + indexed + " page stats by tile set");
+            }
+            return null;
+        }
+
+        private boolean isEmpty(EntityCursor<?> cursor) {
+            try {
+                return cursor.first() == null;
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * @see org.geowebcache.diskquota.QuotaStore#createLayer(java.lang.String)
      */
@@ -408,6 +498,7 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
             } finally {
                 tileSets.close();
             }
+            scannedDirectoriesByLayer.delete(transaction, layerName);
         }
 
     }
@@ -547,6 +638,7 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
                             PageStats pageStats = pageStatsByPageId.get(oldPageId);
                             if (pageStats != null) {
                                 pageStats.setPageId(newPage.getId());
+                                pageStats.setTileSetId(newTileSetId);
                                 pageStatsById.putNoReturn(transaction, pageStats);
                             }
                         }
@@ -685,38 +777,7 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
         public Void call() throws Exception {
             final Transaction tx = entityStore.getEnvironment().beginTransaction(null, null);
             try {
-                TileSet storedTileset = getOrCreateTileSet(tx, tileSet);
-                // increase the tileset used quota
-                addToUsedQuota(tx, storedTileset, quotaDiff);
-
-                // and each page's fillFactor for lru/lfu expiration
-                if (tileCountDiffs.size() > 0) {
-                    TilePage page;
-                    String pageKey;
-                    for (PageStatsPayload payload : tileCountDiffs) {
-                        page = payload.getPage();
-                        pageKey = page.getKey();
-                        PageStats pageStats;
-
-                        TilePage storedPage = pageByKey.get(tx, pageKey, LockMode.DEFAULT);
-                        if (null == storedPage) {
-                            pageById.put(tx, page);
-                            storedPage = page;
-                            pageStats = new PageStats(storedPage.getId());
-                            // pageStatsById.put(tx, pageStats);
-                        } else {
-                            pageStats = pageStatsByPageId.get(tx, storedPage.getId(), null);
-                        }
-
-                        final byte level = page.getZoomLevel();
-                        final BigInteger tilesPerPage = tilePageCalculator.getTilesPerPage(tileSet,
-                                level);
-                        final int tilesAdded = payload.getNumTiles();
-
-                        pageStats.addTiles(tilesAdded, tilesPerPage);
-                        pageStatsById.putNoReturn(tx, pageStats);
-                    }
-                }
+                call(tx);
                 tx.commit();
                 return null;
             } catch (RuntimeException e) {
@@ -726,6 +787,41 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
             }
         }
 
+        public void call(final Transaction tx) {
+            TileSet storedTileset = getOrCreateTileSet(tx, tileSet);
+            // increase the tileset used quota
+            addToUsedQuota(tx, storedTileset, quotaDiff);
+
+            // and each page's fillFactor for lru/lfu expiration
+            if (tileCountDiffs.size() > 0) {
+                final PagePyramid pagePyramid = tilePageCalculator.getPagePyramid(tileSet);
+                TilePage page;
+                String pageKey;
+                for (PageStatsPayload payload : tileCountDiffs) {
+                    page = payload.getPage();
+                    pageKey = page.getKey();
+                    PageStats pageStats;
+
+                    TilePage storedPage = pageByKey.get(tx, pageKey, LockMode.DEFAULT);
+                    if (null == storedPage) {
+                        pageById.put(tx, page);
+                        storedPage = page;
+                        pageStats = new PageStats(storedPage);
+                        // pageStatsById.put(tx, pageStats);
+                    } else {
+                        pageStats = getPageStats(tx, storedPage);
+                    }
+
+                    final byte level = page.getZoomLevel();
+                    final long tilesPerPage = pagePyramid.getPageInfo(level).tilesPerPage;
+                    final int tilesAdded = payload.getNumTiles();
+
+                    pageStats.addTiles(tilesAdded, tilesPerPage);
+                    pageStatsById.putNoReturn(tx, pageStats);
+                }
+            }
+        }
+
         private void addToUsedQuota(final Transaction tx, final TileSet tileSet,
                 final Quota quotaDiff) {
             Quota usedQuota = usedQuotaByTileSetId.get(tx, tileSet.getId(), LockMode.DEFAULT);
@@ -740,6 +836,94 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
 
     }
 
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#addScannedDirectory(java.lang.String,
+     *      java.lang.String, java.util.Map, java.util.Collection)
+     */
+    public boolean addScannedDirectory(final String layerName, final String directory,
+            final Map<TileSet, Quota> quotaDiffs,
+            final Collection<PageStatsPayload> tileCountDiffs) throws InterruptedException {
+        return issueSync(
+                new AddScannedDirectory(layerName, directory, quotaDiffs, tileCountDiffs))
+                .booleanValue();
+    }
+
+    private class AddScannedDirectory implements Callable<Boolean> {
+
+        private final ScannedDirectory directory;
+
+        private final Map<TileSet, Quota> quotaDiffs;
+
+        private final Collection<PageStatsPayload> tileCountDiffs;
+
+        public AddScannedDirectory(final String layerName, final String directory,
+                final Map<TileSet, Quota> quotaDiffs,
+                final Collection<PageStatsPayload> tileCountDiffs) {
+            this.directory = new ScannedDirectory(layerName, directory);
+            this.quotaDiffs = quotaDiffs;
+            this.tileCountDiffs = tileCountDiffs;
+        }
+
+        public Boolean call() throws Exception {
+            final Transaction tx = entityStore.getEnvironment().beginTransaction(null, null);
+            try {
+                if (null != scannedDirectoryById.get(tx, directory.getId(), LockMode.RMW)) {
+                    tx.abort();
+                    return Boolean.FALSE;
+                }
+                for (Map.Entry<TileSet, Quota> quotaDiff : quotaDiffs.entrySet()) {
+                    final TileSet tileSet = quotaDiff.getKey();
+                    final String tileSetId = tileSet.getId();
+                    List<PageStatsPayload> pages = new ArrayList<PageStatsPayload>();
+                    for (PageStatsPayload payload : tileCountDiffs) {
+                        if (tileSetId.equals(payload.getPage().getTileSetId())) {
+                            pages.add(payload);
+                        }
+                    }
+                    new AddToQuotaAndTileCounts(tileSet, quotaDiff.getValue(), pages).call(tx);
+                }
+                scannedDirectoryById.putNoReturn(tx, directory);
+                tx.commit();
+                return Boolean.TRUE;
+            } catch (RuntimeException e) {
+                tx.abort();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#clearScannedDirectories(java.lang.String)
+     */
+    public void clearScannedDirectories(final String layerName) throws InterruptedException {
+        issueSync(new Callable<Void>() {
+
+            public Void call() throws Exception {
+                final Transaction tx = entityStore.getEnvironment().beginTransaction(null, null);
+                try {
+                    scannedDirectoriesByLayer.delete(tx, layerName);
+                    tx.commit();
+                } catch (RuntimeException e) {
+                    tx.abort();
+                    throw e;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Loads the stats of a stored page, setting their tile set if they were stored before it was
+     * kept
+     */
+    private PageStats getPageStats(final Transaction tx, final TilePage storedPage) {
+        PageStats pageStats = pageStatsByPageId.get(tx, storedPage.getId(), null);
+        if (pageStats != null && pageStats.getTileSetId() == null) {
+            pageStats.setTileSetId(storedPage.getTileSetId());
+        }
+        return pageStats;
+    }
+
     /**
      * @see org.geowebcache.diskquota.QuotaStore#addHitsAndSetAccesTime(java.util.Collection)
      */
@@ -783,9 +967,9 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
                     if (storedPage == null) {
                         pageById.put(tx, page);
                         storedPage = page;
-                        pageStats = new PageStats(storedPage.getId());
+                        pageStats = new PageStats(storedPage);
                     } else {
-                        pageStats = pageStatsByPageId.get(tx, storedPage.getId(), null);
+                        pageStats = getPageStats(tx, storedPage);
                     }
 
                     final int addedHits = payload.getNumHits();
@@ -810,12 +994,7 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
      */
     public TilePage getLeastFrequentlyUsedPage(final Set<String> layerNames)
             throws InterruptedException {
-
-        SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex = pageStatsByLFU;
-        TilePage nextToExpire = issueSync(new FindPageToExpireByLayer(expirationPolicyIndex,
-                layerNames));
-
-        return nextToExpire;
+        return first(getLeastFrequentlyUsedPages(layerNames, 1));
     }
 
     /**
@@ -823,30 +1002,52 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
      */
     public TilePage getLeastRecentlyUsedPage(final Set<String> layerNames)
             throws InterruptedException {
-        SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex = pageStatsByLRU;
-        TilePage nextToExpire = issueSync(new FindPageToExpireByLayer(expirationPolicyIndex,
-                layerNames));
+        return first(getLeastRecentlyUsedPages(layerNames, 1));
+    }
+
+    private TilePage first(List<TilePage> pages) {
+        return pages.isEmpty() ? null : pages.get(0);
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getLeastFrequentlyUsedPages(java.util.Set, int)
+     */
+    public List<TilePage> getLeastFrequentlyUsedPages(final Set<String> layerNames,
+            final int maxPages) throws InterruptedException {
+        return issueSync(new FindPagesToExpireByLayer(false, layerNames, maxPages));
+    }
 
-        return nextToExpire;
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getLeastRecentlyUsedPages(java.util.Set, int)
+     */
+    public List<TilePage> getLeastRecentlyUsedPages(final Set<String> layerNames,
+            final int maxPages) throws InterruptedException {
+        return issueSync(new FindPagesToExpireByLayer(true, layerNames, maxPages));
     }
 
     /**
-     * @param expirationPolicyIndex
-     * @param layerNames
-     * @return
+     * Finds the next pages to expire for a set of layers by merging the heads of the per tile set
+     * expiration indexes of their tile sets, each page found costs a single index lookup no matter
+     * how many pages other layers have.
      */
-    private class FindPageToExpireByLayer implements Callable<TilePage> {
-        private final SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex;
+    private class FindPagesToExpireByLayer implements Callable<List<TilePage>> {
+        private final boolean leastRecentlyUsed;
 
         private final Set<String> layerNames;
 
-        public FindPageToExpireByLayer(
-                SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex, Set<String> layerNames) {
-            this.expirationPolicyIndex = expirationPolicyIndex;
+        private final int maxPages;
+
+        public FindPagesToExpireByLayer(final boolean leastRecentlyUsed,
+                final Set<String> layerNames, final int maxPages) {
+            this.leastRecentlyUsed = leastRecentlyUsed;
             this.layerNames = layerNames;
+            this.maxPages = maxPages;
         }
 
-        public TilePage call() throws Exception {
+        public List<TilePage> call() throws Exception {
+            final SecondaryIndex<ExpirationKey, Long, PageStats> expirationPolicyIndex;
+            expirationPolicyIndex = leastRecentlyUsed ? pageStatsByTileSetLRU
+                    : pageStatsByTileSetLFU;
 
             // find out the tilesets for the requested layers
             final Set<String> tileSetIds = new HashSet<String>();
@@ -863,57 +1064,97 @@ public class BDBQuotaStore implements QuotaStore, InitializingBean, DisposableBe
                 }
             }
 
-            TilePage nextToExpire = null;
-            // find out the LRU page that matches a requested tileset
-            final EntityCursor<PageStats> pageStatsCursor = expirationPolicyIndex.entities();
-
+            final List<TilePage> nextToExpire = new ArrayList<TilePage>();
+            final List<EntityCursor<PageStats>> cursors = new ArrayList<EntityCursor<PageStats>>(
+                    tileSetIds.size());
             try {
-                String tileSetId;
-                long pageId;
-                PageStats pageStats;
-                while ((pageStats = pageStatsCursor.next()) != null) {
-                    if (pageStats.getFillFactor() > 0) {
-                        pageId = pageStats.getPageId();
-                        TilePage tilePage = pageById.get(pageId);
-                        tileSetId = tilePage.getTileSetId();
-                        if (tileSetIds.contains(tileSetId)) {
-                            nextToExpire = tilePage;
-                            break;
+                // the next page to expire of each tileset
+                final List<PageStats> heads = new ArrayList<PageStats>(tileSetIds.size());
+                for (String tileSetId : tileSetIds) {
+                    EntityCursor<PageStats> cursor = expirationPolicyIndex.entities(null,
+                            ExpirationKey.first(tileSetId), true, ExpirationKey.last(tileSetId),
+                            true, null);
+                    cursors.add(cursor);
+                    heads.add(cursor.next());
+                }
+
+                while (nextToExpire.size() < maxPages) {
+                    int next = -1;
+                    for (int i = 0; i < heads.size(); i++) {
+                        PageStats head = heads.get(i);
+                        if (head != null
+                                && (next == -1 || expirationValue(head) < expirationValue(heads
+                                        .get(next)))) {
+                            next = i;
                         }
                     }
+                    if (next == -1) {
+                        break;
+                    }
+                    TilePage tilePage = pageById.get(heads.get(next).getPageId());
+                    if (tilePage != null) {
+                        nextToExpire.add(tilePage);
+                    }
+                    heads.set(next, cursors.get(next).next());
                 }
             } finally {
-                pageStatsCursor.close();
+                for (EntityCursor<PageStats> cursor : cursors) {
+                    cursor.close();
+                }
             }
 
             return nextToExpire;
         }
+
+        private double expirationValue(PageStats pageStats) {
+            return leastRecentlyUsed ? pageStats.getLastAccessTimeMinutes() : pageStats
+                    .getFrequencyOfUsePerMinute();
+        }
     }
 
     /**
      * @see org.geowebcache.diskquota.QuotaStore#setTruncated(org.geowebcache.diskquota.storage.TilePage)
      */
     public PageStats setTruncated(final TilePage tilePage) throws InterruptedException {
-        return issueSync(new TruncatePage(tilePage));
+        List<PageStats> truncated = issueSync(new TruncatePages(Collections
+                .singletonList(tilePage)));
+        return truncated.get(0);
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#setTruncated(java.util.Collection)
+     */
+    public void setTruncated(final Collection<TilePage> tilePages) throws InterruptedException {
+        if (!tilePages.isEmpty()) {
+            issueSync(new TruncatePages(tilePages));
+        }
     }
 
-    private class TruncatePage implements Callable<PageStats> {
-        private final TilePage tilePage;
+    /**
+     * Sets the fill factor of the pages to zero in a single transaction, taking them out of the
+     * expiration indexes
+     */
+    private class TruncatePages implements Callable<List<PageStats>> {
+        private final Collection<TilePage> tilePages;
 
-        public TruncatePage(TilePage tilePage) {
-            this.tilePage = tilePage;
+        public TruncatePages(Collection<TilePage> tilePages) {
+            this.tilePages = tilePages;
         }
 
-        public PageStats call() throws Exception {
+        public List<PageStats> call() throws Exception {
+            List<PageStats> truncated = new ArrayList<PageStats>(tilePages.size());
             Transaction tx = entityStore.getEnvironment().beginTransaction(null, null);
             try {
-                PageStats pageStats = pageStatsByPageId.get(tx, tilePage.getId(), null);
-                if (pageStats != null) {
-                    pageStats.setFillFactor(0f);
-                    pageStatsById.putNoReturn(tx, pageStats);
+                for (TilePage tilePage : tilePages) {
+                    PageStats pageStats = pageStatsByPageId.get(tx, tilePage.getId(), null);
+                    if (pageStats != null) {
+                        pageStats.setFillFactor(0f);
+                        pageStatsById.putNoReturn(tx, pageStats);
+                    }
+                    truncated.add(pageStats);
                 }
                 tx.commit();
-                return pageStats;
+                return truncated;
             } catch (Exception e) {
                 tx.abort();
                 throw e;
@@ -0,0 +1,37 @@
+package org.geowebcache.diskquota.storage;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * A one time migration of the page store that ran to completion, stored in the same transaction
+ * as its last changes so that an interrupted migration is resumed the next time the store is open
+ */
+@Entity
+public class CompletedMigration {
+
+    @PrimaryKey
+    private String name;
+
+    CompletedMigration() {
+        // empty constructor, needed by runtime code optimizers and reflection
+    }
+
+    /**
+     * @param name
+     *            name of the migration, non null
+     */
+    public CompletedMigration(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[").append(name).append("]")
+                .toString();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota.storage;
+
+import com.sleepycat.persist.model.KeyField;
+import com.sleepycat.persist.model.Persistent;
+
+/**
+ * Composite {@link PageStats} secondary key sorting the pages of each tile set by an expiration
+ * policy value (last access time or frequency of use), so that the next page to expire for a
+ * tile set is the first one in its key range.
+ * <p>
+ * Values are never negative, the range of a tile set is {@code [tileSetId, 0]} to
+ * {@code [tileSetId, +Infinity]}.
+ * </p>
+ */
+@Persistent
+public class ExpirationKey {
+
+    @KeyField(1)
+    private String tileSetId;
+
+    @KeyField(2)
+    private double value;
+
+    ExpirationKey() {
+        //
+    }
+
+    public ExpirationKey(String tileSetId, double value) {
+        this.tileSetId = tileSetId;
+        this.value = value;
+    }
+
+    /**
+     * @return the lowest key of the given tile set
+     */
+    public static ExpirationKey first(String tileSetId) {
+        return new ExpirationKey(tileSetId, 0d);
+    }
+
+    /**
+     * @return the highest key of the given tile set
+     */
+    public static ExpirationKey last(String tileSetId) {
+        return new ExpirationKey(tileSetId, Double.POSITIVE_INFINITY);
+    }
+
+    public String getTileSetId() {
+        return tileSetId;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ExpirationKey)) {
+            return false;
+        }
+        ExpirationKey k = (ExpirationKey) o;
+        return value == k.value && tileSetId.equals(k.tileSetId);
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(value);
+        return 17 * tileSetId.hashCode() + (int) (bits ^ (bits >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "[" + tileSetId + ", " + value + "]";
+    }
+}
@@ -17,7 +17,6 @@
  */
 package org.geowebcache.diskquota.storage;
 
-import java.math.BigInteger;
 import java.text.NumberFormat;
 import java.util.Locale;
 import java.util.Map;
@@ -30,12 +29,14 @@ import org.springframework.util.Assert;
 /**
  * Pyramid of tile pages for a given {@link GridSubset}
  * <p>
- * This is a support class for {@link TilePageCalculator}, hence package visible.
+ * This is a support class for {@link TilePageCalculator}, public so that callers computing the
+ * pages of many tiles of the same tile set can reuse the one returned by
+ * {@link TilePageCalculator#getPagePyramid(TileSet)}. Instances are not thread safe.
  * </p>
  * 
  * @author groldan
  */
-class PagePyramid {
+public class PagePyramid {
 
     /**
      * {@code [level][numTilesPerPageX, numTilesPerPageY, numPagesX, numPagesY]}
@@ -58,7 +59,7 @@ class PagePyramid {
 
         public final int tilesPerPageY;
 
-        public final BigInteger tilesPerPage;
+        public final long tilesPerPage;
 
         public final long coverageMinX;
 
@@ -74,8 +75,7 @@ class PagePyramid {
             this.pagesY = pagesY;
             this.tilesPerPageX = tilesPerPageX;
             this.tilesPerPageY = tilesPerPageY;
-            this.tilesPerPage = BigInteger.valueOf(tilesPerPageX).multiply(
-                    BigInteger.valueOf(tilesPerPageY));
+            this.tilesPerPage = tilesPerPageX * (long) tilesPerPageY;
             this.coverageMinX = coverageMinX;
             this.coverageMinY = coverageMinY;
             this.coverageMaxX = coverageMaxX;
@@ -1,9 +1,7 @@
 package org.geowebcache.diskquota.storage;
 
 import java.io.Serializable;
-import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.math.RoundingMode;
 
 import com.sleepycat.persist.model.DeleteAction;
 import com.sleepycat.persist.model.Entity;
@@ -11,7 +9,10 @@ import com.sleepycat.persist.model.PrimaryKey;
 import com.sleepycat.persist.model.Relationship;
 import com.sleepycat.persist.model.SecondaryKey;
 
-@Entity
+/**
+ * Version 1 added the tile set id and the per tile set expiration keys
+ */
+@Entity(version = 1)
 public class PageStats implements Serializable {
 
     /**
@@ -40,6 +41,26 @@ public class PageStats implements Serializable {
     @SecondaryKey(name = "fill_factor", relate = Relationship.MANY_TO_ONE)
     private float fillFactor;
 
+    /**
+     * Id of the tile set of the page, {@code null} for stats stored before the expiration keys
+     * were added and not yet updated
+     */
+    private String tileSetId;
+
+    /**
+     * Page position in its tile set's LRU order, {@code null} (not indexed) if the page has no
+     * tiles
+     */
+    @SecondaryKey(name = "tileset_LRU", relate = Relationship.MANY_TO_ONE)
+    private ExpirationKey tileSetLRU;
+
+    /**
+     * Page position in its tile set's LFU order, {@code null} (not indexed) if the page has no
+     * tiles
+     */
+    @SecondaryKey(name = "tileset_LFU", relate = Relationship.MANY_TO_ONE)
+    private ExpirationKey tileSetLFU;
+
     private BigInteger numHits;
 
     PageStats() {
@@ -56,6 +77,7 @@ public class PageStats implements Serializable {
 
     PageStats(TilePage page) {
         this(page.getId());
+        setTileSetId(page.getTileSetId());
     }
 
     public void addHitsAndAccessTime(final long addedHits, int lastAccessTimeMinutes,
@@ -71,34 +93,53 @@ public class PageStats implements Serializable {
             fillFactor = Float.MIN_VALUE;
         }
 
-        this.numHits = this.numHits.add(BigInteger.valueOf(addedHits));
-        BigDecimal age = new BigDecimal(1 + lastAccessTimeMinutes - creationTimeMinutes);
+        final long hits = add(getNumHits(), addedHits);
+        this.numHits = BigInteger.valueOf(hits);
+        final double age = 1 + lastAccessTimeMinutes - creationTimeMinutes;
 
-        this.frequencyOfUse = new BigDecimal(this.numHits).divide(age, 7, RoundingMode.CEILING)
-                .multiply(new BigDecimal(fillFactor)).floatValue();
+        this.frequencyOfUse = (float) (hits / age * fillFactor);
 
         this.lastAccessTimeMinutes = lastAccessTimeMinutes;
+        updateExpirationKeys();
     }
 
-    public void addTiles(long numTiles, BigInteger maxTiles) {
+    public void addTiles(long numTiles, long maxTiles) {
         if (fillFactor == 1.0f && numTiles >= 0) {
             return;
         }
         if (fillFactor == 0.0f && numTiles <= 0) {
             return;
         }
-        // trading some computational overhead by storage savings here...
-        BigDecimal currFillFactor = new BigDecimal(fillFactor);
-        BigDecimal addedTiles = new BigDecimal(numTiles);
-        BigDecimal addedFillFactor = addedTiles.divide(new BigDecimal(maxTiles), 7,
-                RoundingMode.CEILING);
-        currFillFactor = currFillFactor.add(addedFillFactor);
-        this.fillFactor = currFillFactor.floatValue();
-        if (fillFactor > 1f) {
+        double currFillFactor = fillFactor + (double) numTiles / maxTiles;
+        if (currFillFactor > 1d) {
             fillFactor = 1f;
-        } else if (fillFactor < 0f) {
+        } else if (currFillFactor < 0d) {
             fillFactor = 0f;
+        } else {
+            fillFactor = (float) currFillFactor;
+        }
+        updateExpirationKeys();
+    }
+
+    /**
+     * @return the number of hits, or {@code Long.MAX_VALUE} if larger
+     */
+    public long getNumHits() {
+        if (numHits == null) {
+            return 0;
+        }
+        return numHits.bitLength() < 64 ? numHits.longValue() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Adds up the hits, saturating at {@code Long.MAX_VALUE} instead of overflowing
+     */
+    private static long add(final long hits, final long addedHits) {
+        final long sum = hits + addedHits;
+        if (((hits ^ sum) & (addedHits ^ sum)) < 0) {
+            return hits < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
         }
+        return sum;
     }
 
     public float getFillFactor() {
@@ -107,6 +148,7 @@ public class PageStats implements Serializable {
 
     public void setFillFactor(float fillFactor) {
         this.fillFactor = fillFactor;
+        updateExpirationKeys();
     }
 
     public int getLastAccessTimeMinutes() {
@@ -115,6 +157,11 @@ public class PageStats implements Serializable {
 
     public void setLastAccessMinutes(int lastAccessMinutes) {
         this.lastAccessTimeMinutes = lastAccessMinutes;
+        updateExpirationKeys();
+    }
+
+    public long getId() {
+        return id;
     }
 
     public long getPageId() {
@@ -131,6 +178,30 @@ public class PageStats implements Serializable {
 
     public void setFrequencyOfUsePerMinute(float lfuHotnes) {
         this.frequencyOfUse = lfuHotnes;
+        updateExpirationKeys();
+    }
+
+    public String getTileSetId() {
+        return tileSetId;
+    }
+
+    public void setTileSetId(String tileSetId) {
+        this.tileSetId = tileSetId;
+        updateExpirationKeys();
+    }
+
+    /**
+     * Keeps the per tile set expiration keys in sync with the stats. Pages with no tiles, or no
+     * known tile set, are left out of the expiration indexes as there's nothing to expire
+     */
+    private void updateExpirationKeys() {
+        if (tileSetId == null || fillFactor <= 0f) {
+            tileSetLRU = null;
+            tileSetLFU = null;
+        } else {
+            tileSetLRU = new ExpirationKey(tileSetId, Math.max(0, lastAccessTimeMinutes));
+            tileSetLFU = new ExpirationKey(tileSetId, Math.max(0f, frequencyOfUse));
+        }
     }
 
     @Override
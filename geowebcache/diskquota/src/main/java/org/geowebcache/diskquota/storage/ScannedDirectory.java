@@ -0,0 +1,53 @@
+package org.geowebcache.diskquota.storage;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+import com.sleepycat.persist.model.Relationship;
+import com.sleepycat.persist.model.SecondaryKey;
+
+/**
+ * A directory of a layer cache whose tiles were added to the quota store by a cache scan, stored
+ * in the same transaction as the tile counts so that a resumed scan never adds them twice
+ */
+@Entity
+public class ScannedDirectory {
+
+    @PrimaryKey
+    private String key;
+
+    @SecondaryKey(name = "scanned_layer", relate = Relationship.MANY_TO_ONE)
+    private String layerName;
+
+    ScannedDirectory() {
+        // empty constructor, needed by runtime code optimizers and reflection
+    }
+
+    /**
+     * @param layerName
+     *            layer name, non null
+     * @param directory
+     *            path of the directory relative to the layer cache, non null
+     */
+    public ScannedDirectory(String layerName, String directory) {
+        this.layerName = layerName;
+        this.key = computeId(layerName, directory);
+    }
+
+    public static String computeId(String layerName, String directory) {
+        return layerName + '#' + directory;
+    }
+
+    public String getId() {
+        return key;
+    }
+
+    public String getLayerName() {
+        return layerName;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[").append(key).append("]")
+                .toString();
+    }
+}
@@ -1,6 +1,5 @@
 package org.geowebcache.diskquota.storage;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -47,15 +46,20 @@ public class TilePageCalculator {
         return pageIndexTarget;
     }
 
-    private PagePyramid getPagePyramid(TileSet tileSet) {
+    /**
+     * Returns a new page pyramid for the tile set. Callers computing the pages of many tiles of the
+     * same tile set may hold on to it and use
+     * {@link PagePyramid#pageIndexForTile(long, long, int, int[])} directly.
+     */
+    public PagePyramid getPagePyramid(TileSet tileSet) {
         PagePyramid pagePyramid = newPagePyramid(tileSet);
         return pagePyramid;
     }
 
-    public BigInteger getTilesPerPage(TileSet tileSet, int zoomLevel) {
+    public long getTilesPerPage(TileSet tileSet, int zoomLevel) {
         PagePyramid pagePyramid = getPagePyramid(tileSet);
         PageLevelInfo pageInfo = pagePyramid.getPageInfo(zoomLevel);
-        BigInteger tilesPerPage = pageInfo.tilesPerPage;
+        long tilesPerPage = pageInfo.tilesPerPage;
         return tilesPerPage;
     }
 
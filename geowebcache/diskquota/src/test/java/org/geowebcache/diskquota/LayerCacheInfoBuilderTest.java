@@ -17,21 +17,41 @@
  */
 package org.geowebcache.diskquota;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.TestCase;
 
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.grid.GridSet;
+import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+import org.geowebcache.util.FileUtils;
 
 public class LayerCacheInfoBuilderTest extends TestCase {
 
@@ -43,73 +63,221 @@ public class LayerCacheInfoBuilderTest extends TestCase {
 
     private ExecutorService threadPool;
 
-    public void testFake() {
+    private QuotaStore quotaStore;
 
+    /**
+     * Tile counts and quota added to the quota store
+     */
+    private AtomicLong storedTiles = new AtomicLong();
+
+    private AtomicLong storedBytes = new AtomicLong();
+
+    /**
+     * Directories recorded by the quota store
+     */
+    private Set<String> scannedDirectories = Collections.synchronizedSet(new HashSet<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        File target = new File("target");
+        if (!target.exists() || !target.isDirectory() || !target.canWrite()) {
+            throw new IllegalStateException("Can't set up tests, " + target.getAbsolutePath()
+                    + " is not a writable directory");
+        }
+        rootCacheDir = new File(target, getClass().getSimpleName());
+        FileUtils.rmFileCacheDir(rootCacheDir, null);
+        rootCacheDir.mkdirs();
+
+        threadPool = Executors.newFixedThreadPool(4);
+
+        quotaStore = EasyMock.createNiceMock(QuotaStore.class);
+        quotaStore.addScannedDirectory((String) EasyMock.anyObject(), (String) EasyMock
+                .anyObject(), (Map<TileSet, Quota>) EasyMock.anyObject(),
+                (Collection<PageStatsPayload>) EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Boolean>() {
+            @SuppressWarnings("unchecked")
+            public Boolean answer() throws Throwable {
+                Object[] args = EasyMock.getCurrentArguments();
+                if (!scannedDirectories.add(args[0] + "#" + args[1])) {
+                    return Boolean.FALSE;
+                }
+                for (Map.Entry<TileSet, Quota> diff : ((Map<TileSet, Quota>) args[2]).entrySet()) {
+                    assertEquals("image/png", diff.getKey().getBlobFormat());
+                    storedBytes.addAndGet(diff.getValue().getBytes().longValue());
+                }
+                for (PageStatsPayload payload : (Collection<PageStatsPayload>) args[3]) {
+                    storedTiles.addAndGet(payload.getNumTiles());
+                }
+                return Boolean.TRUE;
+            }
+        }).anyTimes();
+        quotaStore.clearScannedDirectories((String) EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                String prefix = EasyMock.getCurrentArguments()[0] + "#";
+                synchronized (scannedDirectories) {
+                    for (Iterator<String> it = scannedDirectories.iterator(); it.hasNext();) {
+                        if (it.next().startsWith(prefix)) {
+                            it.remove();
+                        }
+                    }
+                }
+                return null;
+            }
+        }).anyTimes();
+        EasyMock.replay(quotaStore);
+
+        infoBuilder = new LayerCacheInfoBuilder(rootCacheDir, threadPool, 4, quotaStore);
     }
 
-    /*
-     * TODO fix tests /*
-     * 
-     * @Override protected void setUp() throws Exception { File target = new File("target"); if
-     * (!target.exists() || !target.isDirectory() || !target.canWrite()) { throw new
-     * IllegalStateException("Can't set up tests, " + target.getAbsolutePath() +
-     * " is not a writable directory"); }
-     * 
-     * rootCacheDir = new File(target, getClass().getSimpleName());
-     * FileUtils.rmFileCacheDir(rootCacheDir, null); rootCacheDir.mkdirs();
-     * 
-     * threadPool = Executors.newSingleThreadExecutor();
-     * 
-     * infoBuilder = new LayerCacheInfoBuilder(rootCacheDir, threadPool); }
-     * 
-     * @Override protected void tearDown() throws Exception { if (threadPool != null) {
-     * threadPool.shutdownNow(); } if (rootCacheDir != null) {
-     * FileUtils.rmFileCacheDir(rootCacheDir, null); } }
-     * 
-     * public void testBuildCacheInfo() throws MimeException, IOException, InterruptedException {
-     * 
-     * final String layerName = "MockLayer"; TileLayer mockLayer =
-     * EasyMock.createMock(TileLayer.class);
-     * EasyMock.expect(mockLayer.getName()).andReturn(layerName).anyTimes(); GridSet gridSet = new
-     * GridSetBroker(false, false).WORLD_EPSG4326; GridSubset gridSubset =
-     * GridSubsetFactory.createGridSubSet(gridSet); EasyMock.expect(mockLayer.getGridSubsets())
-     * .andReturn( new Hashtable<String, GridSubset>(Collections.singletonMap( gridSubset.getName(),
-     * gridSubset))).anyTimes(); EasyMock.replay(mockLayer);
-     * 
-     * final String gridSetId = gridSubset.getName(); final LayerQuota layerQuota = new
-     * LayerQuota(layerName, "MockPolicy"); final int numFiles = 10; final int fileSize =
-     * this.blockSize + 1;
-     * 
-     * ExpirationPolicy mockPolicy = EasyMock.createMock(ExpirationPolicy.class);
-     * 
-     * mockPolicy.createTileInfo(EasyMock.eq(layerQuota), EasyMock.eq(gridSetId),
-     * EasyMock.anyLong(), EasyMock.anyLong(), EasyMock.anyInt());
-     * EasyMock.expectLastCall().times(numFiles); EasyMock.replay(mockPolicy);
-     * 
-     * mockSeed(mockLayer, numFiles, fileSize);
-     * 
-     * layerQuota.setExpirationPolicy(mockPolicy);
-     * 
-     * infoBuilder.buildCacheInfo(mockLayer, layerQuota);
-     * 
-     * // be careful and don't wait more than 30s long startTime = System.currentTimeMillis(); long
-     * ellapsedTime = 0; while (infoBuilder.isRunning(layerName)) { Thread.sleep(500); ellapsedTime
-     * = System.currentTimeMillis() - startTime; if (ellapsedTime > 30000) {
-     * fail(LayerCacheInfoBuilder.class.getSimpleName() +
-     * ".buildCacheInfo was running for too long, aborting test!"); } } EasyMock.verify(mockLayer);
-     * EasyMock.verify(mockPolicy);
-     * 
-     * // was layer used quota updated? final int blockFileSize = (int) Math.ceil((double) fileSize
-     * / this.blockSize) this.blockSize; final long expectedCacheSize = numFiles * blockFileSize;
-     * 
-     * Quota expectedUsedQuota = new Quota(expectedCacheSize, StorageUnit.B);
-     * 
-     * Quota usedQuota = layerQuota.getUsedQuota();
-     * 
-     * assertTrue(usedQuota.getBytes().longValue() > 0);
-     * 
-     * assertEquals(0L, usedQuota.difference(expectedUsedQuota).getBytes().longValue()); }
+    @Override
+    protected void tearDown() throws Exception {
+        if (threadPool != null) {
+            threadPool.shutdownNow();
+        }
+        if (rootCacheDir != null) {
+            FileUtils.rmFileCacheDir(rootCacheDir, null);
+        }
+    }
+
+    public void testBuildCacheInfo() throws Exception {
+        final TileLayer mockLayer = mockLayer("MockLayer");
+        final int numFiles = 50;
+        final int fileSize = this.blockSize + 1;
+        mockSeed(mockLayer, numFiles, fileSize);
+
+        infoBuilder.buildCacheInfo(mockLayer, false);
+        waitFor("MockLayer");
+
+        assertEquals(numFiles, storedTiles.get());
+        assertEquals(numFiles * (long) fileSize, storedBytes.get());
+        assertFalse(infoBuilder.isScanUnfinished("MockLayer"));
+    }
+
+    public void testResumeCacheInfo() throws Exception {
+        final TileLayer mockLayer = mockLayer("MockLayer");
+        final int numFiles = 50;
+        final int fileSize = 100;
+        mockSeed(mockLayer, numFiles, fileSize);
+
+        infoBuilder.buildCacheInfo(mockLayer, false);
+        waitFor("MockLayer");
+        assertEquals(numFiles, storedTiles.get());
+
+        // simulate a scan stopped after accounting for the first directories only
+        File layerDir = new File(rootCacheDir, "MockLayer");
+        File checkpoint = new File(layerDir, LayerCacheInfoBuilder.CHECKPOINT_FILE_NAME);
+        List<String> lines = readLines(checkpoint);
+        assertEquals("#complete", lines.get(lines.size() - 1));
+        List<String> done = lines.subList(0, lines.size() / 2);
+        writeLines(checkpoint, done);
+        assertTrue(infoBuilder.isScanUnfinished("MockLayer"));
+
+        int doneTiles = 0;
+        for (String dir : done) {
+            File[] files = new File(layerDir, dir).listFiles();
+            for (File file : files) {
+                if (file.isFile()) {
+                    doneTiles++;
+                }
+            }
+        }
+
+        storedTiles.set(0);
+        infoBuilder.buildCacheInfo(mockLayer, true);
+        waitFor("MockLayer");
+
+        assertEquals(numFiles - doneTiles, storedTiles.get());
+        assertFalse(infoBuilder.isScanUnfinished("MockLayer"));
+    }
+
+    /**
+     * A scan stopped after saving directories to the quota store, but before recording them in the
+     * checkpoint, scans them again on resume without counting them twice
      */
+    public void testResumeCacheInfoAfterCrash() throws Exception {
+        final TileLayer mockLayer = mockLayer("MockLayer");
+        final int numFiles = 50;
+        final int fileSize = 100;
+        mockSeed(mockLayer, numFiles, fileSize);
+
+        infoBuilder.buildCacheInfo(mockLayer, false);
+        waitFor("MockLayer");
+        assertEquals(numFiles, storedTiles.get());
+        // cleared once the scan completed
+        assertTrue(scannedDirectories.isEmpty());
+
+        // simulate a crash with all the directories saved but only half of them checkpointed
+        File layerDir = new File(rootCacheDir, "MockLayer");
+        File checkpoint = new File(layerDir, LayerCacheInfoBuilder.CHECKPOINT_FILE_NAME);
+        List<String> lines = readLines(checkpoint);
+        List<String> dirs = lines.subList(0, lines.size() - 1);
+        for (String dir : dirs) {
+            scannedDirectories.add("MockLayer#" + dir);
+        }
+        writeLines(checkpoint, dirs.subList(0, dirs.size() / 2));
+
+        storedTiles.set(0);
+        storedBytes.set(0);
+        infoBuilder.buildCacheInfo(mockLayer, true);
+        waitFor("MockLayer");
+
+        assertEquals(0, storedTiles.get());
+        assertEquals(0, storedBytes.get());
+        assertFalse(infoBuilder.isScanUnfinished("MockLayer"));
+    }
+
+    private TileLayer mockLayer(final String layerName) {
+        GridSet gridSet = new GridSetBroker(false, false).WORLD_EPSG4326;
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(gridSet, gridSet
+                .getOriginalExtent(), 0, 10);
+        TileLayer mockLayer = EasyMock.createMock(TileLayer.class);
+        EasyMock.expect(mockLayer.getName()).andReturn(layerName).anyTimes();
+        EasyMock.expect(mockLayer.getGridSubsets()).andReturn(
+                Collections.singleton(gridSubset.getName())).anyTimes();
+        EasyMock.expect(mockLayer.getGridSubset(gridSubset.getName())).andReturn(gridSubset)
+                .anyTimes();
+        EasyMock.replay(mockLayer);
+        return mockLayer;
+    }
+
+    private void waitFor(final String layerName) throws InterruptedException {
+        // be careful and don't wait more than 30s
+        long startTime = System.currentTimeMillis();
+        while (infoBuilder.isRunning(layerName)) {
+            Thread.sleep(50);
+            if (System.currentTimeMillis() - startTime > 30000) {
+                fail(LayerCacheInfoBuilder.class.getSimpleName()
+                        + ".buildCacheInfo was running for too long, aborting test!");
+            }
+        }
+    }
+
+    private List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private void writeLines(File file, List<String> lines) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            for (String line : lines) {
+                writer.write(line + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
     /**
      * Seeds {@code numFiles} fake tiles of {@code fileSize} each at random tile indices
      * 
@@ -136,15 +304,16 @@ public class LayerCacheInfoBuilderTest extends TestCase {
 
         long[] tileIndex;
         while (addedTiles.size() < numFiles) {
-            int level = (int) (gridSubset.getZoomStart() + ((gridSubset.getZoomStop() - gridSubset
-                    .getZoomStart()) * Math.random()));
+            // start at level 4 so that the tiles spread over a few directories without
+            // exhausting the smallest levels
+            int level = (int) (4 + ((1 + gridSubset.getZoomStop() - 4) * Math.random()));
 
             String tileKey = null;
             File tilePath;
             do {
                 long[] coverage = gridSubset.getCoverage(level);// {minx,miny,maxx,maxy,z}
-                long x = (long) (coverage[0] + ((coverage[2] - coverage[0]) * Math.random()));
-                long y = (long) (coverage[1] + ((coverage[3] - coverage[1]) * Math.random()));
+                long x = (long) (coverage[0] + ((1 + coverage[2] - coverage[0]) * Math.random()));
+                long y = (long) (coverage[1] + ((1 + coverage[3] - coverage[1]) * Math.random()));
                 tileIndex = new long[] { x, y, level };
                 tilePath = FilePathGenerator.tilePath(prefix, layerName, tileIndex, gridSetId,
                         mimeType, parameters_id);
@@ -0,0 +1,126 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TilePageCalculator;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+
+/**
+ * Measures how many tile events per second a {@link QueuedQuotaUpdatesConsumer} can aggregate,
+ * with a quota store that does nothing but count the commits, so that the figure is the cost of
+ * the aggregation alone.
+ * <p>
+ * Not run as part of the build (see the surefire excludes), run it manually with
+ * {@code mvn -Dtest=QueuedQuotaUpdatesConsumerPerfTest test}
+ * </p>
+ */
+public class QueuedQuotaUpdatesConsumerPerfTest extends TestCase {
+
+    private static final int NUM_UPDATES = 1000000;
+
+    private static final int ZOOM_LEVEL = 12;
+
+    private QuotaStore quotaStore;
+
+    private AtomicLong commits = new AtomicLong();
+
+    private AtomicLong committedBytes = new AtomicLong();
+
+    private TileSet tileSet;
+
+    protected void setUp() throws Exception {
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(new GridSetBroker(false,
+                false).WORLD_EPSG4326);
+        TileLayer layer = EasyMock.createNiceMock(TileLayer.class);
+        EasyMock.expect(layer.getGridSubset("EPSG:4326")).andReturn(gridSubset).anyTimes();
+        TileLayerDispatcher tld = EasyMock.createNiceMock(TileLayerDispatcher.class);
+        EasyMock.expect(tld.getTileLayer("perfLayer")).andReturn(layer).anyTimes();
+        EasyMock.replay(layer);
+        EasyMock.replay(tld);
+
+        quotaStore = EasyMock.createNiceMock(QuotaStore.class);
+        EasyMock.expect(quotaStore.getTilePageCalculator()).andReturn(
+                new TilePageCalculator(tld)).anyTimes();
+        quotaStore.addToQuotaAndTileCounts((TileSet) EasyMock.anyObject(), (Quota) EasyMock
+                .anyObject(), (Collection<PageStatsPayload>) EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                commits.incrementAndGet();
+                committedBytes.addAndGet(((Quota) EasyMock.getCurrentArguments()[1]).getBytes()
+                        .longValue());
+                return null;
+            }
+        }).anyTimes();
+        EasyMock.replay(quotaStore);
+
+        tileSet = new TileSet("perfLayer", "EPSG:4326", "image/png", null);
+    }
+
+    public void testStoredTiles() throws Exception {
+        // warm up
+        consume(NUM_UPDATES / 10);
+        consume(NUM_UPDATES);
+    }
+
+    private void consume(final int numUpdates) throws Exception {
+        commits.set(0);
+        committedBytes.set(0);
+        final BlockingQueue<QuotaUpdate> queue = new LinkedBlockingQueue<QuotaUpdate>();
+        final long tilesWide = 1L << (ZOOM_LEVEL + 1);
+        for (int i = 0; i < numUpdates; i++) {
+            long x = i % tilesWide;
+            long y = (i / tilesWide) % (tilesWide / 2);
+            queue.add(new QuotaUpdate(tileSet, 4096, new long[] { x, y, ZOOM_LEVEL }));
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final long start = System.currentTimeMillis();
+        Future<Long> future = executor.submit(new QueuedQuotaUpdatesConsumer(quotaStore, queue));
+        while (!queue.isEmpty()) {
+            if (future.isDone()) {
+                // the consumer died, get() throws the reason
+                future.get();
+                fail("Consumer finished before the queue was drained");
+            }
+            Thread.sleep(5);
+        }
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        future.cancel(true);
+        executor.shutdown();
+
+        System.out.println(numUpdates + " quota updates aggregated in " + elapsed + "ms ("
+                + (numUpdates * 1000L / elapsed) + " updates/s), " + commits.get()
+                + " commits so far for " + committedBytes.get() + " bytes");
+    }
+}
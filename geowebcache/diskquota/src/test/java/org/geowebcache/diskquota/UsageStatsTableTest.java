@@ -0,0 +1,112 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.TilePage;
+
+public class UsageStatsTableTest extends TestCase {
+
+    public void testCoalesceHitsByPage() {
+        UsageStatsTable table = new UsageStatsTable(64);
+        assertTrue(table.hit("layer", "EPSG:4326", "image/png", -1, 0, 0, 1, 1000));
+        assertTrue(table.hit("layer", "EPSG:4326", "image/png", -1, 0, 0, 1, 2000));
+        assertTrue(table.hit("layer", "EPSG:4326", "image/png", 10, 0, 0, 1, 3000));
+        assertTrue(table.hit("layer", "EPSG:4326", "image/png", -1, 1, 0, 1, 4000));
+        assertEquals(3, table.size());
+
+        Map<TilePage, PageStatsPayload> payloads = byPage(table.drain());
+        assertEquals(3, payloads.size());
+        assertEquals(0, table.size());
+
+        PageStatsPayload payload = payloads.get(new TilePage("layer#EPSG:4326#image/png", 0, 0,
+                1));
+        assertEquals(2, payload.getNumHits());
+        assertEquals(2000, payload.getLastAccessTime());
+        payload = payloads.get(new TilePage("layer#EPSG:4326#image/png#10", 0, 0, 1));
+        assertEquals(1, payload.getNumHits());
+        payload = payloads.get(new TilePage("layer#EPSG:4326#image/png", 1, 0, 1));
+        assertEquals(1, payload.getNumHits());
+
+        // drained
+        assertTrue(table.drain().isEmpty());
+        assertTrue(table.hit("layer", "EPSG:4326", "image/png", -1, 0, 0, 1, 5000));
+        assertEquals(1, table.drain().get(0).getNumHits());
+    }
+
+    public void testDropWhenFull() {
+        UsageStatsTable table = new UsageStatsTable(16);
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (table.hit("layer", "EPSG:4326", "image/png", -1, i, 0, 10, 1000)) {
+                accepted++;
+            }
+        }
+        // at most three quarters full
+        assertTrue(accepted <= 12);
+        assertEquals(100 - accepted, table.getDroppedCount());
+        assertEquals(accepted, table.drain().size());
+
+        // room again once drained
+        assertTrue(table.hit("layer", "EPSG:4326", "image/png", -1, 0, 0, 10, 1000));
+    }
+
+    public void testConcurrentHits() throws Exception {
+        final UsageStatsTable table = new UsageStatsTable(1024);
+        final int numThreads = 4;
+        final int hitsPerThread = 20000;
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < hitsPerThread; i++) {
+                        table.hit("layer", "EPSG:4326", "image/png", -1, i % 10, 0, 5, i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        long total = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+            for (PageStatsPayload payload : table.drain()) {
+                total += payload.getNumHits();
+            }
+        }
+        for (PageStatsPayload payload : table.drain()) {
+            total += payload.getNumHits();
+        }
+        assertEquals(0, table.getDroppedCount());
+        assertEquals(numThreads * hitsPerThread, total);
+    }
+
+    private Map<TilePage, PageStatsPayload> byPage(List<PageStatsPayload> payloads) {
+        Map<TilePage, PageStatsPayload> byPage = new HashMap<TilePage, PageStatsPayload>();
+        for (PageStatsPayload payload : payloads) {
+            byPage.put(payload.getPage(), payload);
+        }
+        return byPage;
+    }
+}
@@ -8,6 +8,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +27,11 @@ import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.storage.DefaultStorageFinder;
 
+import com.sleepycat.je.Environment;
+import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.SecondaryIndex;
+
 public class BDBQuotaStoreTest extends TestCase {
 
     private BDBQuotaStore store;
@@ -229,6 +235,34 @@ public class BDBQuotaStoreTest extends TestCase {
         assertEquals(500, usedQuota.getBytes().intValue());
     }
 
+    /**
+     * A directory recorded by a cache scan is only ever added once, until cleared
+     */
+    public void testAddScannedDirectory() throws InterruptedException {
+        final String layerName = testTileSet.getLayerName();
+        final String tileSetId = testTileSet.getId();
+        Map<TileSet, Quota> quotaDiffs = new HashMap<TileSet, Quota>();
+        quotaDiffs.put(testTileSet, new Quota(BigInteger.valueOf(1000)));
+        PageStatsPayload payload = new PageStatsPayload(new TilePage(tileSetId, 0, 0, (byte) 0));
+        payload.setNumTiles(1);
+        Collection<PageStatsPayload> tileCountDiffs = Collections.singleton(payload);
+
+        assertTrue(store.addScannedDirectory(layerName, "z0/a", quotaDiffs, tileCountDiffs));
+        assertEquals(1000, store.getUsedQuotaByTileSetId(tileSetId).getBytes().intValue());
+
+        // a resumed scan going over the same directory again
+        assertFalse(store.addScannedDirectory(layerName, "z0/a", quotaDiffs, tileCountDiffs));
+        assertEquals(1000, store.getUsedQuotaByTileSetId(tileSetId).getBytes().intValue());
+
+        assertTrue(store.addScannedDirectory(layerName, "z0/b", quotaDiffs, tileCountDiffs));
+        assertEquals(2000, store.getUsedQuotaByTileSetId(tileSetId).getBytes().intValue());
+        assertEquals(2000, store.getGloballyUsedQuota().getBytes().intValue());
+
+        store.clearScannedDirectories(layerName);
+        assertTrue(store.addScannedDirectory(layerName, "z0/a", quotaDiffs, tileCountDiffs));
+        assertEquals(3000, store.getUsedQuotaByTileSetId(tileSetId).getBytes().intValue());
+    }
+
     public void testDeleteLayer() throws InterruptedException {
         String layerName = tilePageCalculator.getLayerNames().iterator().next();
         // make sure the layer is there and has stuff
@@ -349,6 +383,104 @@ public class BDBQuotaStoreTest extends TestCase {
         assertEquals(page2, leastRecentlyUsedPage);
     }
 
+    public void testGetLeastRecentlyUsedPages() throws Exception {
+        MockSystemUtils mockSystemUtils = new MockSystemUtils();
+        mockSystemUtils.setCurrentTimeMinutes(1000);
+        mockSystemUtils.setCurrentTimeMillis(mockSystemUtils.currentTimeMinutes() * 60 * 1000);
+        SystemUtils.set(mockSystemUtils);
+
+        Iterator<TileSet> tileSets = tilePageCalculator.getTileSetsFor("topp:states2").iterator();
+        final TileSet tileSet1 = tileSets.next();
+        final TileSet tileSet2 = tileSets.next();
+        final TileSet otherLayerTileSet = tilePageCalculator.getTileSetsFor("topp:states")
+                .iterator().next();
+        Set<String> layerNames = Collections.singleton("topp:states2");
+
+        TilePage page1 = new TilePage(tileSet1.getId(), 0, 1, 2);
+        TilePage page2 = new TilePage(tileSet2.getId(), 0, 1, 2);
+        TilePage page3 = new TilePage(tileSet1.getId(), 1, 1, 2);
+        // least recently used, but of another layer
+        TilePage otherLayerPage = new TilePage(otherLayerTileSet.getId(), 0, 1, 2);
+        // most recently used, but has no tiles
+        TilePage emptyPage = new TilePage(tileSet2.getId(), 1, 1, 2);
+
+        addTileAndAccess(tileSet1, page1, 2);
+        addTileAndAccess(tileSet2, page2, 3);
+        addTileAndAccess(tileSet1, page3, 4);
+        addTileAndAccess(otherLayerTileSet, otherLayerPage, 1);
+        PageStatsPayload emptyPayload = new PageStatsPayload(emptyPage);
+        emptyPayload.setLastAccessTime(mockSystemUtils.currentTimeMillis() + 5 * 60 * 1000);
+        store.addHitsAndSetAccesTime(Collections.singleton(emptyPayload)).get();
+        store.setTruncated(emptyPage);
+
+        List<TilePage> pages = store.getLeastRecentlyUsedPages(layerNames, 10);
+        assertEquals(Arrays.asList(page1, page2, page3), pages);
+        assertEquals(Arrays.asList(page1, page2), store.getLeastRecentlyUsedPages(layerNames, 2));
+
+        store.setTruncated(pages.subList(0, 2));
+        assertEquals(Collections.singletonList(page3), store.getLeastRecentlyUsedPages(
+                layerNames, 10));
+        assertEquals(otherLayerPage, store.getLeastRecentlyUsedPage(Collections
+                .singleton("topp:states")));
+    }
+
+    /**
+     * Page stats left without tile set by an interrupted indexing are indexed at the next start
+     * up, even though the expiration indexes are no longer empty
+     */
+    public void testResumesPageStatsIndexing() throws Exception {
+        MockSystemUtils mockSystemUtils = new MockSystemUtils();
+        mockSystemUtils.setCurrentTimeMinutes(1000);
+        mockSystemUtils.setCurrentTimeMillis(mockSystemUtils.currentTimeMinutes() * 60 * 1000);
+        SystemUtils.set(mockSystemUtils);
+
+        Set<String> layerNames = Collections.singleton(testTileSet.getLayerName());
+        TilePage page1 = new TilePage(testTileSet.getId(), 0, 1, 2);
+        TilePage page2 = new TilePage(testTileSet.getId(), 1, 1, 2);
+        addTileAndAccess(testTileSet, page1, 2);
+        addTileAndAccess(testTileSet, page2, 3);
+        store.destroy();
+
+        // a store whose indexing got interrupted after the second page
+        EntityStore entityStore = new EntityStoreBuilder(new PageStoreConfig()).buildEntityStore(
+                new File(targetDir, "diskquota_page_store"), null);
+        try {
+            PrimaryIndex<Long, TilePage> pageById = entityStore.getPrimaryIndex(Long.class,
+                    TilePage.class);
+            SecondaryIndex<String, Long, TilePage> pageByKey = entityStore.getSecondaryIndex(
+                    pageById, String.class, "page_key");
+            PrimaryIndex<Long, PageStats> pageStatsById = entityStore.getPrimaryIndex(Long.class,
+                    PageStats.class);
+            SecondaryIndex<Long, Long, PageStats> pageStatsByPageId = entityStore
+                    .getSecondaryIndex(pageStatsById, Long.class, "page_stats_by_page_id");
+            PrimaryIndex<String, CompletedMigration> completedMigrationByName = entityStore
+                    .getPrimaryIndex(String.class, CompletedMigration.class);
+
+            assertEquals(1, completedMigrationByName.count());
+            completedMigrationByName.delete("page_stats_by_tileset");
+            long pageId = pageByKey.get(page1.getKey()).getId();
+            PageStats pageStats = pageStatsByPageId.get(Long.valueOf(pageId));
+            pageStats.setTileSetId(null);
+            pageStatsById.put(pageStats);
+        } finally {
+            Environment environment = entityStore.getEnvironment();
+            entityStore.close();
+            environment.close();
+        }
+
+        store.startUp();
+        assertEquals(Arrays.asList(page1, page2), store.getLeastRecentlyUsedPages(layerNames, 10));
+    }
+
+    private void addTileAndAccess(TileSet tileSet, TilePage page, int minutes) throws Exception {
+        PageStatsPayload payload = new PageStatsPayload(page);
+        payload.setNumTiles(1);
+        payload.setLastAccessTime(SystemUtils.get().currentTimeMillis() + minutes * 60 * 1000);
+        store.addToQuotaAndTileCounts(tileSet, new Quota(1, StorageUnit.KiB), Collections
+                .singleton(payload));
+        store.addHitsAndSetAccesTime(Collections.singleton(payload)).get();
+    }
+
     public void testGetTileSetById() throws Exception {
 
         TileSet tileSet = store.getTileSetById(testTileSet.getId());
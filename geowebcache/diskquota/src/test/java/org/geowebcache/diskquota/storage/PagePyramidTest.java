@@ -75,7 +75,7 @@ public class PagePyramidTest extends TestCase {
             PageLevelInfo pageInfo = pp.getPageInfo(z);
 
             long levelPages = pageInfo.pagesX * pageInfo.pagesY;
-            BigInteger tilesPerPage = pageInfo.tilesPerPage;
+            BigInteger tilesPerPage = BigInteger.valueOf(pageInfo.tilesPerPage);
 
             totalPages += levelPages;
             totalTiles = totalTiles.add(tilesPerPage.multiply(BigInteger.valueOf(levelPages)));
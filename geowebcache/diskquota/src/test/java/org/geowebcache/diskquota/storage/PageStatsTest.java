@@ -1,7 +1,5 @@
 package org.geowebcache.diskquota.storage;
 
-import java.math.BigInteger;
-
 import junit.framework.TestCase;
 
 public class PageStatsTest extends TestCase {
@@ -80,7 +78,7 @@ public class PageStatsTest extends TestCase {
 
     public void testAddTiles() {
         PageStats stats = new PageStats(1);
-        final BigInteger maxTiles = BigInteger.valueOf(1000);
+        final long maxTiles = 1000;
 
         stats.addTiles(1, maxTiles);
         assertEquals(1 / 1000f, stats.getFillFactor(), 1e-6f);
@@ -17,7 +17,6 @@
  */
 package org.geowebcache.georss;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -43,6 +42,7 @@ import org.geowebcache.storage.DiscontinuousTileRange;
 import org.geowebcache.storage.GeometryRasterMaskBuilder;
 import org.geowebcache.storage.RasterMask;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.util.SparseBitMatrix;
 
 /**
  * A task to run a GeoRSS feed poll and launch the seeding process
@@ -218,13 +218,13 @@ class GeoRSSPollTask implements Runnable {
 
         logger.warn("\n!!!!!!!!!!!\n REMEMBER NOT TO SET THE org.geowebcache.georss.debugToDisk"
                 + " SYSTEM PROPERTY ON A PRODUCTION ENVIRONMENT \n!!!!!!!!!!!");
-        BufferedImage[] byLevelMasks = matrix.getByLevelMasks();
+        SparseBitMatrix[] byLevelMasks = matrix.getByLevelMasks();
 
         for (int i = 0; i < byLevelMasks.length; i++) {
             File output = new File(target, poll.getLayerName() + "_level_" + i + ".tiff");
             System.out.println("--- writing " + output.getAbsolutePath() + "---");
             try {
-                ImageIO.write(byLevelMasks[i], "TIFF", output);
+                ImageIO.write(GeometryRasterMaskBuilder.toImage(byLevelMasks[i]), "TIFF", output);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -239,7 +239,7 @@ class GeoRSSPollTask implements Runnable {
         long[][] fullCoverage = gridSub.getCoverages();
         long[][] coveredBounds = tileRangeMask.getCoveredBounds();
 
-        BufferedImage[] byLevelMasks = tileRangeMask.getByLevelMasks();
+        SparseBitMatrix[] byLevelMasks = tileRangeMask.getByLevelMasks();
 
         RasterMask rasterMask = new RasterMask(byLevelMasks, fullCoverage, coveredBounds);
 
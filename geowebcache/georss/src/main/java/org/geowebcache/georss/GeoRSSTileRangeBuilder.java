@@ -93,34 +93,28 @@ class GeoRSSTileRangeBuilder {
         Entry entry;
         Geometry geom;
 
-        try {
-            while ((entry = reader.nextEntry()) != null) {
-                if (entry.getUpdated() != null && entry.getUpdated().equals(previousEntryUpdate)) {
-                    logger.warn("Skipping entry with id " + entry.getId()
-                            + " since it has the same date as our last feed update.");
-                } else {
-                    if (matrix == null) {
-                        matrix = new GeometryRasterMaskBuilder(gridSubset, metaTilingFactors,
-                                maxMaskLevel);
-                    }
-
-                    // Record the most recent updated entry. Date comparison
-                    // done on the String as the format is like
-                    // "2010-03-02T15:51:55Z" with the most significant part
-                    // first.
-                    if ((entry.getUpdated() != null)
-                            && ((lastEntryUpdate == null) || (lastEntryUpdate.compareTo(entry
-                                    .getUpdated()) < 0))) {
-                        lastEntryUpdate = entry.getUpdated();
-                    }
-
-                    geom = entry.getWhere();
-                    matrix.setMasksForGeometry(geom);
+        while ((entry = reader.nextEntry()) != null) {
+            if (entry.getUpdated() != null && entry.getUpdated().equals(previousEntryUpdate)) {
+                logger.warn("Skipping entry with id " + entry.getId()
+                        + " since it has the same date as our last feed update.");
+            } else {
+                if (matrix == null) {
+                    matrix = new GeometryRasterMaskBuilder(gridSubset, metaTilingFactors,
+                            maxMaskLevel);
                 }
-            }
-        } finally {
-            if (matrix != null) {
-                matrix.disposeGraphics();
+
+                // Record the most recent updated entry. Date comparison
+                // done on the String as the format is like
+                // "2010-03-02T15:51:55Z" with the most significant part
+                // first.
+                if ((entry.getUpdated() != null)
+                        && ((lastEntryUpdate == null) || (lastEntryUpdate.compareTo(entry
+                                .getUpdated()) < 0))) {
+                    lastEntryUpdate = entry.getUpdated();
+                }
+
+                geom = entry.getWhere();
+                matrix.setMasksForGeometry(geom);
             }
         }
 
@@ -17,33 +17,41 @@
  */
 package org.geowebcache.storage;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.Rectangle;
-import java.awt.RenderingHints;
-import java.awt.Shape;
-import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.coverage.grid.GridEnvelope2D;
 import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.jts.JTS;
-import org.geotools.geometry.jts.LiteShape;
 import org.geotools.referencing.operation.builder.GridToEnvelopeMapper;
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
+import org.geowebcache.util.SparseBitMatrix;
 import org.opengis.geometry.MismatchedDimensionException;
 import org.opengis.referencing.datum.PixelInCell;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 /**
  * An object that builds a mask of tiles affected by geometries
+ * <p>
+ * The masks are {@link SparseBitMatrix sparse bit matrices}, only the areas the geometries touch
+ * take memory, so masking deep zoom levels of large gridsets doesn't need a full image per level.
+ * A tile is set if its center falls inside the buffered geometry, as when painting the geometry
+ * without antialiasing, but the covered tiles are computed by intersecting the geometry with
+ * recursively smaller blocks of tiles: blocks inside the geometry are set at once, blocks
+ * outside of it skipped, and only the tiles along its edges are tested one by one.
+ * </p>
  * 
  * @author Gabriel Roldan (OpenGeo)
  * @see GeoRSSTileRangeBuilder
@@ -56,15 +64,18 @@ public class GeometryRasterMaskBuilder {
 
     private static final Log logger = LogFactory.getLog(GeometryRasterMaskBuilder.class);
 
-    private static final AffineTransform IDENTITY = new AffineTransform();
+    /**
+     * Blocks of up to this many tiles crossed by the geometry edges are tested tile by tile
+     */
+    private static final int MIN_BLOCK_TILES = 16;
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
 
     /**
-     * By zoom level bitmasked images where every pixel represents a tile in the level's
+     * By zoom level bit masks where every bit represents a tile in the level's
      * {@link GridSubset#getCoverages() grid coverage}
      */
-    private final BufferedImage[] byLevelMasks;
-
-    private Graphics2D[] graphics;
+    private final SparseBitMatrix[] byLevelMasks;
 
     /**
      * Aggregated bounds of all the geometries sent to {@link #setMasksForGeometry}, in grid
@@ -91,7 +102,7 @@ public class GeometryRasterMaskBuilder {
         final int numLevels = gridSubset.getCoverages().length;
         final int endLevel = numLevels - 1;
 
-        byLevelMasks = new BufferedImage[numLevels];
+        byLevelMasks = new SparseBitMatrix[numLevels];
         transformCache = new MathTransform[numLevels];
 
         for (int level = startLevel; level <= endLevel; level++) {
@@ -101,24 +112,10 @@ public class GeometryRasterMaskBuilder {
                 final long[] levelBounds = getGridCoverage(level);
                 final long tilesX = (levelBounds[2] + 1) - levelBounds[0];
                 final long tilesY = (levelBounds[3] + 1) - levelBounds[1];
-                final long numTiles = tilesX * tilesY;
-
-                if (tilesX >= Integer.MAX_VALUE || tilesY >= Integer.MAX_VALUE
-                        || numTiles >= Integer.MAX_VALUE) {
-                    // this is so because the image's sample model can't cope up with more than
-                    // Integer.MAX_VALUE pixels
-                    throw new IllegalStateException("Masking level " + level
-                            + " would produce a backing image of too many tiles!"
-                            + " Consider setting a lower maxMaskLevel ");
-                }
 
-                // BufferedImage with 1-bit per pixel sample model
-                BufferedImage mask = new BufferedImage((int) tilesX, (int) tilesY,
-                        BufferedImage.TYPE_BYTE_BINARY);
-                byLevelMasks[level] = mask;
+                byLevelMasks[level] = new SparseBitMatrix(tilesX, tilesY);
             }
         }
-        createGraphics();
     }
 
     private long[] getGridCoverage(final int level) {
@@ -176,20 +173,60 @@ public class GeometryRasterMaskBuilder {
                 logger.debug("Buffered Geom in grid CRS: " + bufferedGeomInGridCrs);
             }
 
-            // do not generalize in LiteShape, it affects the expected masked pixels
-            boolean generalize = false;
-            // shape used identity transform, as the geometry is already projected
-            Shape shape = new LiteShape(bufferedGeomInGridCrs, IDENTITY, generalize);
-
-            Graphics2D graphics = getGraphics(level);
-            /*
-             * Disable antialiasing explicitly, otherwise the rendering will pick the platform's
-             * default potentially producing missing pixels
-             */
-            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                    RenderingHints.VALUE_ANTIALIAS_OFF);
-            graphics.setColor(Color.WHITE);
-            graphics.fill(shape);
+            final SparseBitMatrix mask = byLevelMasks[level];
+            final Envelope env = bufferedGeomInGridCrs.getEnvelopeInternal();
+            if (env.isNull()) {
+                continue;
+            }
+            // the tiles whose center may fall inside the geometry
+            final long minX = Math.max(0, (long) Math.floor(env.getMinX() - 0.5));
+            final long minY = Math.max(0, (long) Math.floor(env.getMinY() - 0.5));
+            final long maxX = Math.min(mask.getWidth() - 1, (long) Math.ceil(env.getMaxX() - 0.5));
+            final long maxY = Math.min(mask.getHeight() - 1,
+                    (long) Math.ceil(env.getMaxY() - 0.5));
+            if (minX <= maxX && minY <= maxY) {
+                PreparedGeometry prepared = PreparedGeometryFactory.prepare(bufferedGeomInGridCrs);
+                setMasks(prepared, mask, minX, minY, maxX, maxY);
+            }
+        }
+    }
+
+    /**
+     * Sets the tiles of the block whose center is inside the geometry, splitting the block in
+     * halves as long as it's crossed by the geometry edges
+     */
+    private static void setMasks(final PreparedGeometry geom, final SparseBitMatrix mask,
+            final long minX, final long minY, final long maxX, final long maxY) {
+        // the area spanned by the tile centers
+        final Envelope centers = new Envelope(minX + 0.5, maxX + 0.5, minY + 0.5, maxY + 0.5);
+        final Geometry block = GEOMETRY_FACTORY.toGeometry(centers);
+        if (!geom.intersects(block)) {
+            return;
+        }
+        if (geom.contains(block)) {
+            mask.set(minX, minY, maxX, maxY);
+            return;
+        }
+
+        final long width = maxX - minX + 1;
+        final long height = maxY - minY + 1;
+        if (width * height <= MIN_BLOCK_TILES) {
+            for (long y = minY; y <= maxY; y++) {
+                for (long x = minX; x <= maxX; x++) {
+                    Coordinate center = new Coordinate(x + 0.5, y + 0.5);
+                    if (geom.intersects(GEOMETRY_FACTORY.createPoint(center))) {
+                        mask.set(x, y);
+                    }
+                }
+            }
+        } else if (width >= height) {
+            final long midX = minX + width / 2 - 1;
+            setMasks(geom, mask, minX, minY, midX, maxY);
+            setMasks(geom, mask, midX + 1, minY, maxX, maxY);
+        } else {
+            final long midY = minY + height / 2 - 1;
+            setMasks(geom, mask, minX, minY, maxX, midY);
+            setMasks(geom, mask, minX, midY + 1, maxX, maxY);
         }
     }
 
@@ -267,34 +304,6 @@ public class GeometryRasterMaskBuilder {
         return worldToScreen;
     }
 
-    private Graphics2D getGraphics(int level) {
-        return graphics[level];
-    }
-
-    public void disposeGraphics() {
-        if (graphics == null) {
-            return;
-        }
-        final int numLevels = getNumLevels();
-        for (int level = 0; level < numLevels; level++) {
-            if (graphics[level] != null) {
-                graphics[level].dispose();
-            }
-        }
-        graphics = null;
-    }
-
-    public void createGraphics() {
-        final int numLevels = getNumLevels();
-        graphics = new Graphics2D[numLevels];
-        for (int level = 0; level < numLevels; level++) {
-            BufferedImage bufferedImage = byLevelMasks[level];
-            if (bufferedImage != null) {
-                graphics[level] = bufferedImage.createGraphics();
-            }
-        }
-    }
-
     public int getStartLevel() {
         // hardcoded to zero for now, we can see whether level filtering is going to be needed
         // afterwards
@@ -354,17 +363,34 @@ public class GeometryRasterMaskBuilder {
     }
 
     /**
-     * Package visible method for testing purposes only!
-     * 
-     * @return
+     * @return the masks of the levels up to the max masking level, the deeper levels are
+     *         interpolated by {@link RasterMask}
      */
-    public BufferedImage[] getByLevelMasks() {
+    public SparseBitMatrix[] getByLevelMasks() {
         final int numMaskedLevels = Math.min(getNumLevels(), maxMaskLevel + 1);
-        BufferedImage[] maskedLevels = new BufferedImage[numMaskedLevels];
+        SparseBitMatrix[] maskedLevels = new SparseBitMatrix[numMaskedLevels];
         for (int level = 0; level < numMaskedLevels; level++) {
             maskedLevels[level] = byLevelMasks[level];
         }
         return maskedLevels;
     }
 
+    /**
+     * For debug purposes only, renders a mask as a bitmask image, which has to fit in memory
+     */
+    public static BufferedImage toImage(final SparseBitMatrix mask) {
+        final int width = (int) mask.getWidth();
+        final int height = (int) mask.getHeight();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (mask.get(x, y)) {
+                    raster.setSample(x, y, 0, 1);
+                }
+            }
+        }
+        return image;
+    }
+
 }
\ No newline at end of file
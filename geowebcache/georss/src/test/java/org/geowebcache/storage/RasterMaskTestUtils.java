@@ -17,7 +17,6 @@
  */
 package org.geowebcache.storage;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 
@@ -25,6 +24,7 @@ import javax.imageio.ImageIO;
 
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.util.SparseBitMatrix;
 
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.io.ParseException;
@@ -49,12 +49,8 @@ public class RasterMaskTestUtils {
         GeometryRasterMaskBuilder matrix = new GeometryRasterMaskBuilder(gridSubset,
                 metaTilingFactors, maxMaskLevel);
 
-        try {
-            for (Geometry geom : entries) {
-                matrix.setMasksForGeometry(geom);
-            }
-        } finally {
-            matrix.disposeGraphics();
+        for (Geometry geom : entries) {
+            matrix.setMasksForGeometry(geom);
         }
 
         logImages(new File("target"), matrix);
@@ -65,12 +61,12 @@ public class RasterMaskTestUtils {
     public static void logImages(final File target, final GeometryRasterMaskBuilder matrix)
             throws IOException {
         if (debugToDisk) {
-            BufferedImage[] byLevelMasks = matrix.getByLevelMasks();
+            SparseBitMatrix[] byLevelMasks = matrix.getByLevelMasks();
 
             for (int i = 0; i < byLevelMasks.length; i++) {
                 File output = new File(target, "level_" + i + ".tiff");
                 System.out.println("--- writing " + output.getAbsolutePath() + "---");
-                ImageIO.write(byLevelMasks[i], "TIFF", output);
+                ImageIO.write(GeometryRasterMaskBuilder.toImage(byLevelMasks[i]), "TIFF", output);
             }
         }
     }
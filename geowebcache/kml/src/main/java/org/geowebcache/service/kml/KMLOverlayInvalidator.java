@@ -0,0 +1,298 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service.kml;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.mime.KMLOverlayMime;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.mime.XMLMime;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileRange;
+
+/**
+ * Deletes the cached overlays of the tiles deleted or replaced in the blob store, so that
+ * truncating a layer also drops the KML and KMZ documents linking to or packaging its tiles.
+ * <p>
+ * The blob store notifies the events while deleting or storing, possibly holding a metastore
+ * connection, so the overlays are not deleted right away: the tiles are collected by layer, format
+ * and zoom level into the bounding box of their grid positions, and a background thread issues a
+ * single range deletion per overlay format for each of them. The overlays of untouched tiles
+ * inside a box are deleted too and simply regenerated on the next request. Layers no overlay was
+ * ever {@link #overlayStored(String) stored} for, flagged in the layer metadata, are skipped.
+ * </p>
+ * <p>
+ * Deleting a layer or one of its gridsets already takes the overlays stored along with the tiles.
+ * </p>
+ */
+class KMLOverlayInvalidator implements BlobStoreListener {
+
+    private static final Log log = LogFactory.getLog(KMLOverlayInvalidator.class);
+
+    /**
+     * Layer metadata key flagging the layers overlays have been cached for
+     */
+    static final String OVERLAYS_METADATA_KEY = "kml.overlays";
+
+    private static final XMLMime[] WRAPPERS = { XMLMime.kml, XMLMime.kmz };
+
+    private final StorageBroker storageBroker;
+
+    private final String gridSetId;
+
+    /**
+     * Whether overlays have been cached for each layer, read from the layer metadata on first use
+     */
+    private final ConcurrentMap<String, Boolean> layersWithOverlays;
+
+    private final Object monitor = new Object();
+
+    /**
+     * Areas to invalidate by layer, data format and zoom level, guarded by {@link #monitor}
+     */
+    private final Map<String, Invalidation> pending = new LinkedHashMap<String, Invalidation>();
+
+    /**
+     * Whether the background thread is deleting a batch of overlays, guarded by {@link #monitor}
+     */
+    private boolean invalidating;
+
+    private final Thread invalidator;
+
+    /**
+     * @param gridSetId
+     *            the gridset the overlays are generated for
+     */
+    KMLOverlayInvalidator(StorageBroker storageBroker, String gridSetId) {
+        this.storageBroker = storageBroker;
+        this.gridSetId = gridSetId;
+        this.layersWithOverlays = new ConcurrentHashMap<String, Boolean>();
+        this.invalidator = new Thread("GWC KML overlay invalidator") {
+            public void run() {
+                runInvalidator();
+            }
+        };
+        invalidator.setDaemon(true);
+        invalidator.start();
+    }
+
+    /**
+     * Flags the layer as having cached overlays, to be called before storing one
+     */
+    void overlayStored(String layerName) {
+        if (Boolean.TRUE.equals(layersWithOverlays.put(layerName, Boolean.TRUE))) {
+            return;
+        }
+        if (storageBroker.getLayerMetadata(layerName, OVERLAYS_METADATA_KEY) == null) {
+            storageBroker.putLayerMetadata(layerName, OVERLAYS_METADATA_KEY, "true");
+        }
+    }
+
+    /**
+     * Waits for the overlays of the tiles notified so far to be deleted
+     */
+    void awaitInvalidations() throws InterruptedException {
+        synchronized (monitor) {
+            while (!pending.isEmpty() || invalidating) {
+                monitor.wait();
+            }
+        }
+    }
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize) {
+        // nothing to do, overlays are regenerated once their tiles are deleted
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize) {
+        if (appliesTo(layerName, gridSetId, blobFormat)) {
+            invalidate(layerName, blobFormat, z, x, y, x, y);
+        }
+    }
+
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        if (appliesTo(layerName, gridSetId, blobFormat)) {
+            invalidate(layerName, blobFormat, z, x, y, x, y);
+        }
+    }
+
+    public void tilesDeleted(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, int z, long[] x, long[] y, long[] blobSizes) {
+        if (x.length == 0 || !appliesTo(layerName, gridSetId, blobFormat)) {
+            return;
+        }
+        long minx = x[0], miny = y[0], maxx = x[0], maxy = y[0];
+        for (int i = 1; i < x.length; i++) {
+            minx = Math.min(minx, x[i]);
+            miny = Math.min(miny, y[i]);
+            maxx = Math.max(maxx, x[i]);
+            maxy = Math.max(maxy, y[i]);
+        }
+        invalidate(layerName, blobFormat, z, minx, miny, maxx, maxy);
+    }
+
+    public void layerDeleted(String layerName) {
+        // the overlays are gone with the layer, and the flag with its metadata
+        layersWithOverlays.remove(layerName);
+    }
+
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        // the overlays are renamed with the layer
+        layersWithOverlays.remove(oldLayerName);
+        layersWithOverlays.remove(newLayerName);
+    }
+
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        // the overlays are gone with the gridset
+    }
+
+    /**
+     * @return whether the tile may have overlays, the deletion of the overlays themselves is
+     *         notified too
+     */
+    private boolean appliesTo(String layerName, String gridSetId, String blobFormat) {
+        return this.gridSetId.equals(gridSetId) && !KMLOverlayMime.isOverlayFormat(blobFormat)
+                && hasOverlays(layerName);
+    }
+
+    private boolean hasOverlays(String layerName) {
+        Boolean hasOverlays = layersWithOverlays.get(layerName);
+        if (hasOverlays == null) {
+            String flag = storageBroker.getLayerMetadata(layerName, OVERLAYS_METADATA_KEY);
+            hasOverlays = Boolean.valueOf(flag != null);
+            // don't override a concurrent overlayStored()
+            Boolean current = layersWithOverlays.putIfAbsent(layerName, hasOverlays);
+            if (current != null) {
+                hasOverlays = current;
+            }
+        }
+        return hasOverlays.booleanValue();
+    }
+
+    private void invalidate(String layerName, String dataFormat, int z, long minx, long miny,
+            long maxx, long maxy) {
+        final String key = layerName + '#' + dataFormat + '#' + z;
+        synchronized (monitor) {
+            Invalidation invalidation = pending.get(key);
+            if (invalidation == null) {
+                pending.put(key, new Invalidation(layerName, dataFormat, z, minx, miny, maxx,
+                        maxy));
+                monitor.notifyAll();
+            } else {
+                invalidation.expand(minx, miny, maxx, maxy);
+            }
+        }
+    }
+
+    private void runInvalidator() {
+        while (true) {
+            List<Invalidation> batch;
+            synchronized (monitor) {
+                while (pending.isEmpty()) {
+                    invalidating = false;
+                    monitor.notifyAll();
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = new ArrayList<Invalidation>(pending.values());
+                pending.clear();
+                invalidating = true;
+            }
+            for (Invalidation invalidation : batch) {
+                try {
+                    deleteOverlays(invalidation);
+                } catch (RuntimeException e) {
+                    log.error("Unable to delete the overlays of " + invalidation, e);
+                }
+            }
+        }
+    }
+
+    private void deleteOverlays(Invalidation invalidation) {
+        final MimeType data;
+        try {
+            data = MimeType.createFromFormat(invalidation.dataFormat);
+        } catch (MimeException e) {
+            // no overlay can have been generated for it
+            return;
+        }
+        final long[][] rangeBounds = { { invalidation.minx, invalidation.miny, invalidation.maxx,
+                invalidation.maxy, invalidation.z } };
+        for (XMLMime wrapper : WRAPPERS) {
+            TileRange overlays = new TileRange(invalidation.layerName, gridSetId,
+                    invalidation.z, invalidation.z, rangeBounds, new KMLOverlayMime(wrapper,
+                            data), (Map<String, String>) null, Long.valueOf(-1L));
+            try {
+                storageBroker.delete(overlays);
+            } catch (StorageException e) {
+                log.warn("Unable to delete the " + wrapper.getFileExtension() + " overlays of "
+                        + invalidation + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The bounding box of the grid positions of the tiles notified for a layer, data format and
+     * zoom level
+     */
+    private static class Invalidation {
+
+        final String layerName;
+
+        final String dataFormat;
+
+        final int z;
+
+        long minx, miny, maxx, maxy;
+
+        Invalidation(String layerName, String dataFormat, int z, long minx, long miny,
+                long maxx, long maxy) {
+            this.layerName = layerName;
+            this.dataFormat = dataFormat;
+            this.z = z;
+            this.minx = minx;
+            this.miny = miny;
+            this.maxx = maxx;
+            this.maxy = maxy;
+        }
+
+        void expand(long minx, long miny, long maxx, long maxy) {
+            this.minx = Math.min(this.minx, minx);
+            this.miny = Math.min(this.miny, miny);
+            this.maxx = Math.max(this.maxx, maxx);
+            this.maxy = Math.max(this.maxy, maxy);
+        }
+
+        public String toString() {
+            return layerName + " " + dataFormat + " z" + z + " [" + minx + "," + miny + " - "
+                    + maxx + "," + maxy + "]";
+        }
+    }
+}
@@ -17,8 +17,11 @@
 package org.geowebcache.service.kml;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.Arrays;
+import java.util.zip.ZipInputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -27,6 +30,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.Conveyor;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
 import org.geowebcache.conveyor.ConveyorKMLTile;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.grid.BoundingBox;
@@ -34,15 +38,21 @@ import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.KMLOverlayMime;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.service.Service;
 import org.geowebcache.service.ServiceException;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.util.GWCVars;
 
 /**
  * The flow through this service is roughly as follows:
@@ -51,6 +61,9 @@ import org.geowebcache.storage.StorageBroker;
  * completed by service 3a) SuperOverlay -> handleSuperOverlay(); -> generates required KML 3b)
  * Overlay (possibly KMZ with packaged data) -> handleOverlay() -> check cache, or call
  * createOverlay and package
+ * 
+ * Overlays are cached through the storage broker as tiles of their own {@link KMLOverlayMime
+ * format}, and deleted along with the tiles they wrap, super overlays are kept in memory.
  */
 public class KMLService extends Service {
     private static Log log = LogFactory.getLog(org.geowebcache.service.kml.KMLService.class);
@@ -71,6 +84,10 @@ public class KMLService extends Service {
 
     private RuntimeStats stats;
 
+    private CapabilitiesCache superOverlays;
+
+    private KMLOverlayInvalidator overlayInvalidator;
+
     /**
      * Protected no-argument constructor to allow run-time instrumentation
      */
@@ -86,6 +103,10 @@ public class KMLService extends Service {
         this.tld = tld;
         this.gsb = gsb;
         this.stats = stats;
+        this.superOverlays = new CapabilitiesCache(tld, 256);
+
+        this.overlayInvalidator = new KMLOverlayInvalidator(sb, gsb.WORLD_EPSG4326.getName());
+        sb.addBlobStoreListener(overlayInvalidator);
     }
 
     /**
@@ -279,16 +300,39 @@ public class KMLService extends Service {
     private void handleSuperOverlay(ConveyorKMLTile tile) throws GeoWebCacheException {
         TileLayer layer = tile.getLayer();
 
-        GridSubset gridSubset = tile.getGridSubset();
-
-        // int srsIdx = layer.getSRSIndex(srs);
-        BoundingBox bbox = gridSubset.getCoverageBestFitBounds();
-
         String formatExtension = "." + tile.getMimeType().getFileExtension();
         if (tile.getWrapperMimeType() != null) {
             formatExtension = formatExtension + "." + tile.getWrapperMimeType().getFileExtension();
         }
 
+        // the links are absolute, so the document depends on the URL it's requested with
+        final String key = tile.getUrlPrefix() + formatExtension;
+        final String mimeStr = getMimeTypeOverride(tile);
+        CapabilitiesCache.Document document = superOverlays.get(key);
+        if (document == null) {
+            final long generation = superOverlays.getGeneration();
+            String xml = createSuperOverlay(tile, formatExtension);
+            document = superOverlays.put(key, generation, encode(xml),
+                    mimeStr == null ? XMLMime.kml.getMimeType() : mimeStr);
+        }
+
+        layer.setExpirationHeader(tile.servletResp, (int) tile.getTileIndex()[2]);
+        try {
+            int size = document.writeTo(tile.servletReq, tile.servletResp);
+            stats.log(size, tile.getCacheResult());
+        } catch (IOException ioe) {
+            log.debug("Unable to write super overlay: " + ioe.getMessage());
+        }
+    }
+
+    private static String createSuperOverlay(ConveyorKMLTile tile, String formatExtension)
+            throws GeoWebCacheException {
+        TileLayer layer = tile.getLayer();
+
+        GridSubset gridSubset = tile.getGridSubset();
+
+        BoundingBox bbox = gridSubset.getCoverageBestFitBounds();
+
         long[] gridRect = gridSubset.getCoverageBestFit();
         String networkLinks = null;
 
@@ -319,14 +363,8 @@ public class KMLService extends Service {
                     + gridLocString(gridLoc) + formatExtension);
         }
 
-        String xml = KMLHeader() + "\n<Folder>" + getLookAt(bbox) + networkLinks + "\n</Folder>"
+        return KMLHeader() + "\n<Folder>" + getLookAt(bbox) + networkLinks + "\n</Folder>"
                 + "\n</kml>\n";
-
-        tile.setBlob(new ByteArrayResource(xml.getBytes()));
-        tile.setMimeType(XMLMime.kml);
-        tile.setStatus(200);
-        String mimeStr = getMimeTypeOverride(tile);
-        writeTileResponse(tile, true, stats, mimeStr);
     }
 
     /**
@@ -394,22 +432,29 @@ public class KMLService extends Service {
             packageData = true;
         }
 
-        // TODO The 1.1 branch doesn't have a good way of storing the archives.
-        // For now we compress on every request
+        String mimeStr = getMimeTypeOverride(tile);
 
         // Did we get lucky?
-        // TODO need to look into expiration here
-        // if(tile.retrieve(-1)) {
-        // writeResponse(tile,true);
-        // return;
-        // }
+        final int expireCache = tileLayer.getExpireCache((int) tile.getTileIndex()[2]);
+        final boolean cache = tile.getHint() != HINT_DEBUGGRID
+                && expireCache != GWCVars.CACHE_DISABLE_CACHE;
+        final String overlayFormat = new KMLOverlayMime(tile.getWrapperMimeType(),
+                tile.getMimeType()).getFormat();
+        final TileObject overlay = TileObject.createQueryTileObject(tile.getLayerId(),
+                tile.getTileIndex(), tile.getGridSetId(), overlayFormat, null);
+        if (cache && retrieveOverlay(overlay, expireCache, tile.getUrlPrefix(), packageData)) {
+            tile.setBlob(overlay.getBlob());
+            tile.setStatus(200);
+            tile.setCacheResult(CacheResult.HIT);
+            writeCachedTileResponse(tile, overlay.getCreated(), stats, mimeStr);
+            return;
+        }
 
         // Sigh....
         if (!packageData) {
             String overlayXml = createOverlay(tile, false);
-            tile.setBlob(new ByteArrayResource(overlayXml.getBytes()));
+            tile.setBlob(new ByteArrayResource(encode(overlayXml)));
             tile.setStatus(200);
-            // tileLayer.putTile(tile);
         } else {
             // Get the overlay
             String overlayXml = createOverlay(tile, true);
@@ -432,17 +477,92 @@ public class KMLService extends Service {
             }
 
             byte[] zip = KMZHelper.createZippedKML(gridLocString(tile.getTileIndex()), tile
-                    .getMimeType().getFileExtension(), overlayXml.getBytes(), tile.getBlob());
+                    .getMimeType().getFileExtension(), encode(overlayXml), tile.getBlob());
 
             tile.setBlob(new ByteArrayResource(zip));
             tile.setStatus(200);
-            // tileLayer.putTile(tile);
+        }
+        tile.setCacheResult(CacheResult.MISS);
 
+        long created = System.currentTimeMillis();
+        if (cache) {
+            overlay.setBlob(tile.getBlob());
+            overlay.setCreated(created);
+            try {
+                overlayInvalidator.overlayStored(tile.getLayerId());
+                if (sb.put(overlay)) {
+                    created = overlay.getCreated();
+                }
+            } catch (StorageException se) {
+                log.warn("Unable to cache overlay: " + se.getMessage());
+            }
         }
 
-        String mimeStr = getMimeTypeOverride(tile);
+        writeCachedTileResponse(tile, created, stats, mimeStr);
+    }
+
+    /**
+     * Looks up a cached overlay, which needs to be recent enough and to have been generated for
+     * the same URL prefix, since the links to the next level are absolute
+     */
+    private boolean retrieveOverlay(TileObject overlay, int expireCache, String urlPrefix,
+            boolean zipped) {
+        try {
+            if (!sb.get(overlay)) {
+                return false;
+            }
+            if (expireCache > 0
+                    && overlay.getCreated() + expireCache * 1000L < System.currentTimeMillis()) {
+                return false;
+            }
+            return hasUrlPrefix(overlay.getBlob(), zipped, urlPrefix);
+        } catch (StorageException se) {
+            log.warn("Unable to retrieve overlay: " + se.getMessage());
+        } catch (IOException ioe) {
+            log.warn("Unable to read cached overlay: " + ioe.getMessage());
+        }
+        return false;
+    }
 
-        writeTileResponse(tile, true, stats, mimeStr);
+    /**
+     * Checks the overlay, or the one packaged first in the KMZ, starts with the comment
+     * {@link #createOverlayHeader} writes the URL prefix in
+     */
+    private static boolean hasUrlPrefix(Resource blob, boolean zipped, String urlPrefix)
+            throws IOException {
+        final byte[] expected = (KMLHeader() + urlPrefixComment(urlPrefix)).getBytes("UTF-8");
+        InputStream in = blob.getInputStream();
+        try {
+            if (zipped) {
+                ZipInputStream zip = new ZipInputStream(in);
+                if (zip.getNextEntry() == null) {
+                    return false;
+                }
+                in = zip;
+            }
+            byte[] start = new byte[expected.length];
+            int read = 0;
+            int n;
+            while (read < start.length && (n = in.read(start, read, start.length - read)) != -1) {
+                read += n;
+            }
+            return read == start.length && Arrays.equals(expected, start);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String urlPrefixComment(String urlPrefix) {
+        // comments can't contain "--"
+        return "<!-- " + urlPrefix.replace("-", "%2D") + " -->\n";
+    }
+
+    private static byte[] encode(String xml) throws ServiceException {
+        try {
+            return xml.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new ServiceException(uee.getMessage());
+        }
     }
 
     private String getMimeTypeOverride(ConveyorKMLTile tile) {
@@ -493,7 +613,7 @@ public class KMLService extends Service {
         if (isRaster && gridLoc[2] < gridSubset.getZoomStop()) {
             setMaxLod = true;
         }
-        buf.append(createOverlayHeader(bbox, setMaxLod));
+        buf.append(createOverlayHeader(bbox, setMaxLod, tile.getUrlPrefix()));
 
         buf.append("\n<!-- Network links to subtiles -->\n");
         // 2) Network links, only to tiles getCoverages();within bounds
@@ -562,13 +682,15 @@ public class KMLService extends Service {
      * @param bbox
      * @return
      */
-    private static String createOverlayHeader(BoundingBox bbox, boolean setMaxLod) {
+    private static String createOverlayHeader(BoundingBox bbox, boolean setMaxLod,
+            String urlPrefix) {
         int maxLodPixels = -1;
         if (setMaxLod) {
             maxLodPixels = 385;
         }
 
-        return KMLHeader() + "<Document>\n" + "<Region>\n" + bbox.toKMLLatLonAltBox()
+        return KMLHeader() + urlPrefixComment(urlPrefix) + "<Document>\n" + "<Region>\n"
+                + bbox.toKMLLatLonAltBox()
                 + "<Lod><minLodPixels>128</minLodPixels>" + "<maxLodPixels>"
                 + Integer.toString(maxLodPixels) + "</maxLodPixels></Lod>\n" + "</Region>\n";
     }
@@ -16,8 +16,10 @@
  */
 package org.geowebcache.service.kml;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -37,6 +39,11 @@ public class KMLSiteMap {
     private TileLayerDispatcher tLD = null;
     private StorageBroker storageBroker;
     private GridSetBroker gridSetBroker;
+
+    /**
+     * The response writer, sitemap entries are streamed as the layers and tiles are visited
+     */
+    private PrintWriter out;
     
     public KMLSiteMap(ConveyorKMLTile tile, TileLayerDispatcher tLD, GridSetBroker gridSetBroker) {
         this.tile = tile;
@@ -50,28 +57,29 @@ public class KMLSiteMap {
         tile.servletResp.setContentType("application/xml");
         tile.servletResp.setStatus(200);
         
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(tile.servletResp
+                .getOutputStream(), "UTF-8")));
         if(tile.getHint() == KMLService.HINT_SITEMAP_LAYER) {
             writeSiteMap();
         } else {
             writeSiteMapIndex();
         }
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException("Error writing the sitemap");
+        }
     }
     
     private void writeSiteMapIndex() throws IOException {
-        OutputStream os = tile.servletResp.getOutputStream();
-        
-        String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-        "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n";
-        os.write(header.getBytes());
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+        "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
         
         writeSiteMapIndexLoop();
         
-        String footer = "</sitemapindex>";
-        os.write(footer.getBytes());
+        out.write("</sitemapindex>");
     }
     
     private void writeSiteMapIndexLoop() throws IOException {
-        OutputStream os = tile.servletResp.getOutputStream();
         String urlPrefix = tile.getUrlPrefix();
         
         Iterable<TileLayer> iter = tLD.getLayerList();
@@ -85,8 +93,8 @@ public class KMLSiteMap {
             
             if( grids != null && grids.contains(gridSetBroker.WORLD_EPSG4326.getName())
                     && mimeTypes != null && mimeTypes.contains(XMLMime.kml) ) {
-                String smStr = "<sitemap><loc>"+urlPrefix+tl.getName()+"/sitemap.xml</loc></sitemap>";
-                os.write(smStr.getBytes());
+                out.append("<sitemap><loc>").append(urlPrefix).append(tl.getName())
+                        .append("/sitemap.xml</loc></sitemap>");
             }
         }
     }
@@ -122,26 +130,21 @@ public class KMLSiteMap {
     }
     
     private void writeSiteMapHeader() throws IOException {
-        String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-        		"<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" xmlns:geo=\"http://www.google.com/geo/schemas/sitemap/1.0\">\n";
-        tile.servletResp.getOutputStream().write(header.getBytes());
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+        		"<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" xmlns:geo=\"http://www.google.com/geo/schemas/sitemap/1.0\">\n");
     }
 
     private void writeSiteMapFooter() throws IOException {
-        String footer = "</urlset>";
-        tile.servletResp.getOutputStream().write(footer.getBytes());       
+        out.write("</urlset>");
     }
 
     public void writeSiteMapLoop(long[] gridLoc) throws GeoWebCacheException, IOException {
-        OutputStream os = tile.servletResp.getOutputStream();
         TileLayer tileLayer = tile.getLayer();
         String urlPrefix = tile.getUrlPrefix();
         
         // Add a link to the super overlay first
-        String  superOverlayLoc = 
-            "<url><loc>" + urlPrefix.substring(0, urlPrefix.length() - 1) 
-            + ".kml.kml</loc><geo:geo><geo:format>kml</geo:format></geo:geo></url>\n";
-        os.write(superOverlayLoc.getBytes());
+        out.append("<url><loc>").append(urlPrefix.substring(0, urlPrefix.length() - 1))
+                .append(".kml.kml</loc><geo:geo><geo:format>kml</geo:format></geo:geo></url>\n");
         
         
         LinkedList<long[]> subTileList = new LinkedList<long[]>();
@@ -162,8 +165,8 @@ public class KMLSiteMap {
             }
             
             // We need to link to the data tiles only, for now
-            String tmp = "<url><loc>" + urlPrefix + KMLService.gridLocString(curLoc) +".kml" + "</loc><geo:geo><geo:format>kml</geo:format></geo:geo></url>\n";
-            os.write(tmp.getBytes());
+            out.append("<url><loc>").append(urlPrefix).append(KMLService.gridLocString(curLoc))
+                    .append(".kml</loc><geo:geo><geo:format>kml</geo:format></geo:geo></url>\n");
             
             // Could add priority as 1 / (zoomlevel + 1)
         }
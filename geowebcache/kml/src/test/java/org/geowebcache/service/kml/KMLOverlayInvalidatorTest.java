@@ -0,0 +1,174 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service.kml;
+
+import java.io.File;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.KMLOverlayMime;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.mime.XMLMime;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+public class KMLOverlayInvalidatorTest extends TestCase {
+
+    private static final String LAYER = "topp:states";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private File directory;
+
+    private StorageBroker sb;
+
+    private KMLOverlayInvalidator invalidator;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("kmloverlays", "");
+        directory.delete();
+        directory.mkdir();
+
+        sb = new StorageBroker(null, new FileBlobStore(directory.getAbsolutePath()));
+        invalidator = new KMLOverlayInvalidator(sb, GRIDSET);
+        sb.addBlobStoreListener(invalidator);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            delete(children[i]);
+        }
+        file.delete();
+    }
+
+    public void testOverlayFormat() throws Exception {
+        KMLOverlayMime overlay = new KMLOverlayMime(XMLMime.kmz, ImageMime.png);
+        assertEquals("png.kmz", overlay.getFileExtension());
+        assertEquals(XMLMime.kmz.getMimeType(), overlay.getMimeType());
+        assertTrue(KMLOverlayMime.isOverlayFormat(overlay.getFormat()));
+        assertFalse(KMLOverlayMime.isOverlayFormat(ImageMime.png.getFormat()));
+
+        MimeType parsed = MimeType.createFromFormat(overlay.getFormat());
+        assertEquals(overlay, parsed);
+        assertEquals(ImageMime.png, ((KMLOverlayMime) parsed).getData());
+        assertFalse(overlay.equals(new KMLOverlayMime(XMLMime.kml, ImageMime.png)));
+    }
+
+    public void testTruncateDeletesOverlays() throws Exception {
+        final String kmz = new KMLOverlayMime(XMLMime.kmz, ImageMime.png).getFormat();
+        final String kml = new KMLOverlayMime(XMLMime.kml, ImageMime.png).getFormat();
+        invalidator.overlayStored(LAYER);
+        for (long x = 0; x < 2; x++) {
+            put(ImageMime.png.getFormat(), x);
+            put(kmz, x);
+            put(kml, x);
+        }
+
+        long[][] rangeBounds = { { 0, 0, 0, 0, 1 } };
+        sb.delete(new TileRange(LAYER, GRIDSET, 1, 1, rangeBounds, ImageMime.png,
+                (Map<String, String>) null, Long.valueOf(-1L)));
+        invalidator.awaitInvalidations();
+
+        assertFalse(get(ImageMime.png.getFormat(), 0));
+        assertFalse(get(kmz, 0));
+        assertFalse(get(kml, 0));
+        // outside of the truncated range
+        assertTrue(get(ImageMime.png.getFormat(), 1));
+        assertTrue(get(kmz, 1));
+        assertTrue(get(kml, 1));
+    }
+
+    public void testUpdateDeletesOverlays() throws Exception {
+        final String kmz = new KMLOverlayMime(XMLMime.kmz, ImageMime.png).getFormat();
+        invalidator.overlayStored(LAYER);
+        put(ImageMime.png.getFormat(), 0);
+        put(kmz, 0);
+
+        put(ImageMime.png.getFormat(), 0);
+        invalidator.awaitInvalidations();
+        assertFalse(get(kmz, 0));
+        assertTrue(get(ImageMime.png.getFormat(), 0));
+    }
+
+    /**
+     * The overlays are only looked for on the layers some were stored for
+     */
+    public void testSkipsLayersWithoutOverlays() throws Exception {
+        final String kmz = new KMLOverlayMime(XMLMime.kmz, ImageMime.png).getFormat();
+        put(ImageMime.png.getFormat(), 0);
+        put(kmz, 0);
+
+        sb.delete(TileObject.createQueryTileObject(LAYER, new long[] { 0, 0, 1 }, GRIDSET,
+                ImageMime.png.getFormat(), null));
+        invalidator.awaitInvalidations();
+        assertFalse(get(ImageMime.png.getFormat(), 0));
+        assertTrue(get(kmz, 0));
+    }
+
+    /**
+     * The layers with overlays are flagged in the layer metadata, surviving restarts
+     */
+    public void testOverlaysFlagPersisted() throws Exception {
+        final String kmz = new KMLOverlayMime(XMLMime.kmz, ImageMime.png).getFormat();
+        invalidator.overlayStored(LAYER);
+        assertNotNull(sb.getLayerMetadata(LAYER, KMLOverlayInvalidator.OVERLAYS_METADATA_KEY));
+
+        sb = new StorageBroker(null, new FileBlobStore(directory.getAbsolutePath()));
+        invalidator = new KMLOverlayInvalidator(sb, GRIDSET);
+        sb.addBlobStoreListener(invalidator);
+        put(ImageMime.png.getFormat(), 0);
+        put(kmz, 0);
+
+        sb.delete(TileObject.createQueryTileObject(LAYER, new long[] { 0, 0, 1 }, GRIDSET,
+                ImageMime.png.getFormat(), null));
+        invalidator.awaitInvalidations();
+        assertFalse(get(kmz, 0));
+    }
+
+    public void testOverlayDeletionKeepsTiles() throws Exception {
+        final String kmz = new KMLOverlayMime(XMLMime.kmz, ImageMime.png).getFormat();
+        invalidator.overlayStored(LAYER);
+        put(ImageMime.png.getFormat(), 0);
+        put(kmz, 0);
+
+        sb.delete(TileObject.createQueryTileObject(LAYER, new long[] { 0, 0, 1 }, GRIDSET, kmz,
+                null));
+        invalidator.awaitInvalidations();
+        assertFalse(get(kmz, 0));
+        assertTrue(get(ImageMime.png.getFormat(), 0));
+    }
+
+    private void put(String format, long x) throws Exception {
+        sb.put(TileObject.createCompleteTileObject(LAYER, new long[] { x, 0, 1 }, GRIDSET,
+                format, null, new ByteArrayResource(format.getBytes())));
+    }
+
+    private boolean get(String format, long x) throws Exception {
+        return sb.get(TileObject.createQueryTileObject(LAYER, new long[] { x, 0, 1 }, GRIDSET,
+                format, null));
+    }
+}
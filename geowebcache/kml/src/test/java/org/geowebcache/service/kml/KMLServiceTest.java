@@ -1,11 +1,102 @@
 package org.geowebcache.service.kml;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
 import junit.framework.TestCase;
 
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.KMLOverlayMime;
+import org.geowebcache.mime.XMLMime;
+import org.geowebcache.stats.RuntimeStats;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
 public class KMLServiceTest extends TestCase {
+
+    private static final String LAYER = "test:layer";
+
+    private static final String OVERLAY = "/" + LAYER + "/x1y1z1.png.kml";
+
+    private File directory;
+
+    private StorageBroker sb;
+
+    private KMLService service;
+
+    private String gridSetId;
+
     @Override
     protected void setUp() throws Exception {
         super.setUp();
+        directory = File.createTempFile("kmlservice", "");
+        directory.delete();
+        directory.mkdir();
+
+        GridSetBroker gsb = new GridSetBroker(false, false);
+        gridSetId = gsb.WORLD_EPSG4326.getName();
+        WMSLayer layer = createLayer(gsb);
+
+        TileLayerDispatcher tld = EasyMock.createNiceMock(TileLayerDispatcher.class);
+        EasyMock.expect(tld.getTileLayer(LAYER)).andReturn(layer).anyTimes();
+        RuntimeStats stats = EasyMock.createNiceMock(RuntimeStats.class);
+        EasyMock.replay(tld, stats);
+
+        sb = new StorageBroker(null, new FileBlobStore(directory.getAbsolutePath()));
+        service = new KMLService(sb, tld, gsb, stats);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+        super.tearDown();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            delete(children[i]);
+        }
+        file.delete();
+    }
+
+    /**
+     * A layer with ETags, covering the x1y1z1 tile of the EPSG:4326 gridset
+     */
+    private static WMSLayer createLayer(GridSetBroker gsb) {
+        String[] urls = { "http://localhost:38080/wms" };
+        List<String> formatList = Collections.singletonList(ImageMime.png.getFormat());
+
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gsb.WORLD_EPSG4326,
+                new BoundingBox(-30.0, 15.0, 45.0, 30), 0, 10, null, null);
+        grids.put(grid.getName(), grid);
+        int[] metaWidthHeight = { 3, 3 };
+
+        WMSLayer layer = new WMSLayer(LAYER, urls, "aStyle", LAYER, formatList, grids, null,
+                metaWidthHeight, "vendorparam=true", false) {
+            @Override
+            public boolean useETags() {
+                return true;
+            }
+        };
+        layer.initialize(gsb);
+        return layer;
     }
 
     /**
@@ -43,4 +134,90 @@ public class KMLServiceTest extends TestCase {
         assertEquals(test[1], KMLService.parseGridLocString(retVals[1])[1]);
         assertEquals(test[2], KMLService.parseGridLocString(retVals[1])[2]);
     }
+
+    public void testOverlayCached() throws Exception {
+        MockHttpServletResponse miss = new MockHttpServletResponse();
+        ConveyorTile tile = request(request("http://localhost/geowebcache"), miss);
+        assertEquals(CacheResult.MISS, tile.getCacheResult());
+        assertEquals(200, miss.getStatusCode());
+        assertTrue(miss.getOutputStreamContent().indexOf("x1y1z1.png") > 0);
+        assertTrue(sb.get(overlay()));
+
+        MockHttpServletResponse hit = new MockHttpServletResponse();
+        tile = request(request("http://localhost/geowebcache"), hit);
+        assertEquals(CacheResult.HIT, tile.getCacheResult());
+        assertEquals(200, hit.getStatusCode());
+        assertEquals(miss.getOutputStreamContent(), hit.getOutputStreamContent());
+        assertEquals(miss.getHeader("ETag"), hit.getHeader("ETag"));
+        assertEquals(miss.getHeader("Last-Modified"), hit.getHeader("Last-Modified"));
+    }
+
+    public void testOverlayNotModified() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        request(request("http://localhost/geowebcache"), response);
+        final String eTag = response.getHeader("ETag");
+        final String lastModified = response.getHeader("Last-Modified");
+        assertNotNull(eTag);
+        assertNotNull(lastModified);
+
+        MockHttpServletRequest request = request("http://localhost/geowebcache");
+        request.addHeader("If-None-Match", eTag);
+        response = new MockHttpServletResponse();
+        assertEquals(CacheResult.HIT, request(request, response).getCacheResult());
+        assertEquals(304, response.getStatusCode());
+        assertEquals(0, response.getOutputStreamContent().length());
+
+        request = request("http://localhost/geowebcache");
+        request.addHeader("If-Modified-Since", lastModified);
+        response = new MockHttpServletResponse();
+        request(request, response);
+        assertEquals(304, response.getStatusCode());
+
+        request = request("http://localhost/geowebcache");
+        request.addHeader("If-None-Match", "other");
+        response = new MockHttpServletResponse();
+        request(request, response);
+        assertEquals(200, response.getStatusCode());
+    }
+
+    /**
+     * The links to the next level are absolute, an overlay cached for a different URL prefix is
+     * generated again
+     */
+    public void testOverlayRegeneratedForOtherUrlPrefix() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        request(request("http://localhost/geowebcache"), response);
+        assertTrue(response.getOutputStreamContent().indexOf("http://localhost/") > 0);
+
+        response = new MockHttpServletResponse();
+        ConveyorTile tile = request(request("http://otherhost/geowebcache"), response);
+        assertEquals(CacheResult.MISS, tile.getCacheResult());
+        assertTrue(response.getOutputStreamContent().indexOf("http://otherhost/") > 0);
+        assertTrue(response.getOutputStreamContent().indexOf("http://localhost/") < 0);
+
+        response = new MockHttpServletResponse();
+        tile = request(request("http://otherhost/geowebcache"), response);
+        assertEquals(CacheResult.HIT, tile.getCacheResult());
+        assertTrue(response.getOutputStreamContent().indexOf("http://otherhost/") > 0);
+    }
+
+    private MockHttpServletRequest request(String baseUrl) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setPathInfo(OVERLAY);
+        request.setRequestURL(baseUrl + "/service/kml" + OVERLAY);
+        return request;
+    }
+
+    private ConveyorTile request(MockHttpServletRequest request,
+            MockHttpServletResponse response) throws Exception {
+        ConveyorTile tile = service.getConveyor(request, response);
+        assertEquals(ConveyorTile.RequestHandler.SERVICE, tile.getRequestHandler());
+        service.handleRequest(tile);
+        return tile;
+    }
+
+    private TileObject overlay() {
+        return TileObject.createQueryTileObject(LAYER, new long[] { 1, 1, 1 }, gridSetId,
+                new KMLOverlayMime(XMLMime.kml, ImageMime.png).getFormat(), null);
+    }
 }
@@ -22,6 +22,7 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,8 +31,12 @@ import org.geowebcache.config.XMLConfiguration;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.rest.GWCRestlet;
 import org.geowebcache.rest.RestletException;
+import org.geowebcache.seed.GWCTask;
+import org.geowebcache.seed.SeedJob;
 import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.TileRange;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.restlet.data.MediaType;
@@ -67,6 +72,8 @@ public class SeedRestlet extends GWCRestlet {
                 doGet(request, response);
             } else if (met.equals(Method.POST)) {
                 doPost(request, response);
+            } else if (met.equals(Method.DELETE)) {
+                doDelete(request, response);
             } else {
                 throw new RestletException("Method not allowed",
                         Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
@@ -84,6 +91,10 @@ public class SeedRestlet extends GWCRestlet {
      * Returns a StringRepresentation with the status of the running threads in the thread pool.
      */
     public void doGet(Request req, Response resp) throws RestletException {
+        if (isJobRequest(req)) {
+            getJobs(req, resp);
+            return;
+        }
         Representation rep = null;
 
         final String layerName;
@@ -126,6 +137,10 @@ public class SeedRestlet extends GWCRestlet {
      * executor.
      */
     public void doPost(Request req, Response resp) throws RestletException, IOException {
+        if (isJobRequest(req)) {
+            throw new RestletException("Method not allowed",
+                    Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
+        }
         String formatExtension = (String) req.getAttributes().get("extension");
 
         SeedRequest sr = null;
@@ -157,6 +172,103 @@ public class SeedRestlet extends GWCRestlet {
 
     }
 
+    /**
+     * Cancels a journaled seed job, see {@link TileBreeder#cancelJob(long)}
+     */
+    public void doDelete(Request req, Response resp) throws RestletException {
+        if (!req.getAttributes().containsKey("job")) {
+            throw new RestletException("Method not allowed",
+                    Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
+        }
+        final long jobId = getJobId(req);
+        if (!seeder.cancelJob(jobId)) {
+            throw new RestletException("No such seed job: " + jobId,
+                    Status.CLIENT_ERROR_NOT_FOUND);
+        }
+        resp.setStatus(Status.SUCCESS_OK);
+    }
+
+    /**
+     * Whether the request is for {@code /seedjobs.<extension>} or
+     * {@code /seedjobs/<job>.<extension>} rather than for a layer. Jobs are not under
+     * {@code /seed} so that they can't collide with a layer name.
+     */
+    private boolean isJobRequest(Request req) {
+        Map<String, Object> attributes = req.getAttributes();
+        return attributes.containsKey("job")
+                || (attributes.containsKey("extension") && !attributes.containsKey("layer"));
+    }
+
+    private long getJobId(Request req) throws RestletException {
+        String job = (String) req.getAttributes().get("job");
+        try {
+            return Long.parseLong(job);
+        } catch (NumberFormatException e) {
+            throw new RestletException("Invalid seed job id: " + job,
+                    Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Lists the journaled seed jobs, or a single one, as JSON
+     */
+    private void getJobs(Request req, Response resp) throws RestletException {
+        String formatExtension = (String) req.getAttributes().get("extension");
+        if (!"json".equalsIgnoreCase(formatExtension)) {
+            throw new RestletException("Format extension unknown or not specified: "
+                    + formatExtension, Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+        try {
+            JSONObject obj;
+            if (req.getAttributes().containsKey("job")) {
+                final long jobId = getJobId(req);
+                obj = null;
+                for (SeedJob job : seeder.getJobs()) {
+                    if (job.getId() == jobId) {
+                        obj = toJSON(job);
+                    }
+                }
+                if (obj == null) {
+                    throw new RestletException("No such seed job: " + jobId,
+                            Status.CLIENT_ERROR_NOT_FOUND);
+                }
+            } else {
+                JSONArray jobs = new JSONArray();
+                for (SeedJob job : seeder.getJobs()) {
+                    jobs.put(toJSON(job));
+                }
+                obj = new JSONObject();
+                obj.put("jobs", jobs);
+            }
+            resp.setEntity(new JsonRepresentation(obj));
+        } catch (JSONException e) {
+            throw new RestletException(e.getMessage(), Status.SERVER_ERROR_INTERNAL);
+        }
+    }
+
+    private JSONObject toJSON(SeedJob job) throws JSONException {
+        TileRange tr = job.getTileRange();
+        JSONObject obj = new JSONObject();
+        obj.put("id", job.getId());
+        obj.put("type", job.getType().toString());
+        obj.put("layer", tr.getLayerName());
+        obj.put("gridSetId", tr.getGridSetId());
+        obj.put("format", tr.getMimeType().getFormat());
+        obj.put("zoomStart", tr.getZoomStart());
+        obj.put("zoomStop", tr.getZoomStop());
+        obj.put("threadCount", job.getThreadCount());
+        obj.put("chunks", job.getChunkCount());
+        obj.put("chunksDone", job.getChunksDone());
+        obj.put("resumed", job.isResumed());
+        obj.put("failed", job.isFailed());
+        JSONArray tasks = new JSONArray();
+        for (GWCTask task : job.getTasks()) {
+            tasks.put(task.getTaskId());
+        }
+        obj.put("tasks", tasks);
+        return obj;
+    }
+
     /**
      * Deserializing a json string is more complicated.
      * 
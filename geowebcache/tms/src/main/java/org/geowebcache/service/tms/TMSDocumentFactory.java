@@ -16,6 +16,7 @@
  */
 package org.geowebcache.service.tms;
 
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 
@@ -47,8 +48,10 @@ public class TMSDocumentFactory {
         this.baseUrl = baseUrl;
     }
     
-    protected String getTileMapServiceDoc() {
-        StringBuilder str = new StringBuilder();
+    /**
+     * Writes the TileMapService document, layer by layer, to the given writer
+     */
+    protected void writeTileMapServiceDoc(PrintWriter str) {
         str.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
         str.append("<TileMapService version=\"1.0.0\" services=\""+baseUrl+"\">\n");
         // TODO can have these set through Spring
@@ -86,11 +89,9 @@ public class TMSDocumentFactory {
         }
         str.append("  </TileMaps>\n");
         str.append("</TileMapService>\n");
-        
-        return str.toString();
     }
     
-    private void tileMapsForLayer(StringBuilder str, TileLayer layer) {
+    private void tileMapsForLayer(PrintWriter str, TileLayer layer) {
         for(String gridSetId : layer.getGridSubsets()){
             GridSubset gridSub = layer.getGridSubset(gridSetId);
             for(MimeType mimeType : layer.getMimeTypes()) {
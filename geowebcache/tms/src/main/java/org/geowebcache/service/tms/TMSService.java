@@ -17,10 +17,13 @@
 package org.geowebcache.service.tms;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.Conveyor;
 import org.geowebcache.conveyor.Conveyor.CacheResult;
@@ -31,6 +34,7 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.service.Service;
 import org.geowebcache.service.ServiceException;
 import org.geowebcache.stats.RuntimeStats;
@@ -39,6 +43,8 @@ import org.geowebcache.util.ServletUtils;
 
 public class TMSService extends Service {
 
+    private static Log log = LogFactory.getLog(org.geowebcache.service.tms.TMSService.class);
+
     public static final String SERVICE_TMS = "tms";
 
     private StorageBroker sb;
@@ -50,6 +56,8 @@ public class TMSService extends Service {
     private String baseUrl;
     
     private RuntimeStats stats;
+
+    private CapabilitiesCache capabilitiesCache;
     
     /**
      * Protected no-argument constructor to allow run-time instrumentation
@@ -64,6 +72,7 @@ public class TMSService extends Service {
         this.tld = tld;
         this.gsb = gsb;
         this.stats = stats;
+        this.capabilitiesCache = new CapabilitiesCache(tld);
     }
     
     public void setBaseURL(String baseUrl) {
@@ -147,7 +156,7 @@ public class TMSService extends Service {
             base = reqUrl.substring(0, idx);
         }
         
-        TMSDocumentFactory tdf = new TMSDocumentFactory(tld,gsb, base);
+        final TMSDocumentFactory tdf = new TMSDocumentFactory(tld,gsb, base);
         
         String ret = null;
         
@@ -158,7 +167,19 @@ public class TMSService extends Service {
             if(! version.equals("1.0.0")) {
                 throw new GeoWebCacheException("Unknown version " + version + ", only 1.0.0 is supported.");
             } else {
-                ret = tdf.getTileMapServiceDoc();
+                // lists all the layers, streamed and cached
+                try {
+                    int length = capabilitiesCache.write(base, conv.servletReq,
+                            conv.servletResp, "text/xml", new CapabilitiesCache.Generator() {
+                                public void write(PrintWriter writer) {
+                                    tdf.writeTileMapServiceDoc(writer);
+                                }
+                            });
+                    stats.log(length, CacheResult.OTHER);
+                } catch (IOException e) {
+                    log.debug("Caught IOException" + e.getMessage());
+                }
+                return;
             }
         } else {
             String layerNameAndSRS = params[2];
@@ -17,7 +17,7 @@
 package org.geowebcache.service.wms;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -44,6 +44,7 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.util.ServletUtils;
 
 public class WMSGetCapabilities {
@@ -56,8 +57,11 @@ public class WMSGetCapabilities {
 
     private boolean includeVendorSpecific = false;
 
+    private HttpServletRequest servReq;
+
     protected WMSGetCapabilities(TileLayerDispatcher tld, HttpServletRequest servReq) {
         this.tld = tld;
+        this.servReq = servReq;
         urlStr = servReq.getRequestURL().toString() + "?SERVICE=WMS&amp;";
 
         String[] tiledKey = { "TILED" };
@@ -69,27 +73,24 @@ public class WMSGetCapabilities {
         }
     }
 
-    protected void writeResponse(HttpServletResponse response) {
-
-        byte[] data = generateGetCapabilities().getBytes();
-
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setContentType("application/vnd.ogc.wms_xml");
-        response.setCharacterEncoding("UTF-8");
-        response.setContentLength(data.length);
-
+    /**
+     * Writes the capabilities document, streaming it to the response if not found in the cache
+     */
+    protected void writeResponse(HttpServletResponse response, CapabilitiesCache cache) {
+        final String key = urlStr + (includeVendorSpecific ? "#tiled" : "");
         try {
-            OutputStream os = response.getOutputStream();
-            os.write(data);
-            os.flush();
+            cache.write(key, servReq, response, "application/vnd.ogc.wms_xml",
+                    new CapabilitiesCache.Generator() {
+                        public void write(PrintWriter writer) {
+                            writeGetCapabilities(writer);
+                        }
+                    });
         } catch (IOException ioe) {
             log.debug("Caught IOException" + ioe.getMessage());
         }
     }
 
-    private String generateGetCapabilities() {
-        StringBuilder str = new StringBuilder();
-
+    private void writeGetCapabilities(PrintWriter str) {
         str.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
         str.append("<!DOCTYPE WMT_MS_Capabilities SYSTEM \"http://schemas.opengis.net/wms/1.1.1/capabilities_1_1_1.dtd\" ");
         if (includeVendorSpecific) {
@@ -112,10 +113,9 @@ public class WMSGetCapabilities {
 
         str.append("</WMT_MS_Capabilities>\n");
 
-        return str.toString();
     }
 
-    private void service(StringBuilder str) {
+    private void service(PrintWriter str) {
         ServiceInformation servInfo = tld.getServiceInformation();
         str.append("<Service>\n");
         str.append("  <Name>OGC:WMS</Name>\n");
@@ -150,7 +150,7 @@ public class WMSGetCapabilities {
         str.append("</Service>\n");
     }
 
-    private void serviceContact(StringBuilder str) {
+    private void serviceContact(PrintWriter str) {
         ServiceInformation servInfo = tld.getServiceInformation();
         if (servInfo == null) {
             return;
@@ -200,7 +200,7 @@ public class WMSGetCapabilities {
         str.append("  </ContactInformation>\n");
     }
 
-    private void capability(StringBuilder str) {
+    private void capability(PrintWriter str) {
         str.append("<Capability>\n");
         str.append("  <Request>\n");
         capabilityRequestGetCapabilities(str);
@@ -218,7 +218,7 @@ public class WMSGetCapabilities {
 
     }
 
-    private void capabilityRequestGetCapabilities(StringBuilder str) {
+    private void capabilityRequestGetCapabilities(PrintWriter str) {
         str.append("    <GetCapabilities>\n");
         str.append("      <Format>application/vnd.ogc.wms_xml</Format>\n");
         str.append("      <DCPType>\n");
@@ -232,7 +232,7 @@ public class WMSGetCapabilities {
         str.append("    </GetCapabilities>\n");
     }
 
-    private void capabilityRequestGetMap(StringBuilder str) {
+    private void capabilityRequestGetMap(PrintWriter str) {
         // Find all the formats we support
         Iterable<TileLayer> layerIter = tld.getLayerList();
 
@@ -271,7 +271,7 @@ public class WMSGetCapabilities {
         str.append("    </GetMap>\n");
     }
 
-    private void capabilityRequestGetFeatureInfo(StringBuilder str) {
+    private void capabilityRequestGetFeatureInfo(PrintWriter str) {
         str.append("    <GetFeatureInfo>\n");
         str.append("      <Format>text/plain</Format>\n");
         str.append("      <Format>text/html</Format>\n");
@@ -288,7 +288,7 @@ public class WMSGetCapabilities {
 
     }
 
-    private void capabilityRequestDescribeLayer(StringBuilder str) {
+    private void capabilityRequestDescribeLayer(PrintWriter str) {
         str.append("    <DescribeLayer>\n");
         str.append("      <Format>application/vnd.ogc.wms_xml</Format>\n");
         str.append("      <DCPType>\n");
@@ -302,7 +302,7 @@ public class WMSGetCapabilities {
         str.append("    </DescribeLayer>\n");
     }
 
-    private void capabilityRequestGetLegendGraphic(StringBuilder str) {
+    private void capabilityRequestGetLegendGraphic(PrintWriter str) {
         str.append("    <GetLegendGraphic>\n");
         str.append("      <Format>image/png</Format>\n");
         str.append("      <Format>image/jpeg</Format>\n");
@@ -319,13 +319,13 @@ public class WMSGetCapabilities {
 
     }
 
-    private void capabilityException(StringBuilder str) {
+    private void capabilityException(PrintWriter str) {
         str.append("  <Exception>\n");
         str.append("    <Format>application/vnd.ogc.se_xml</Format>\n");
         str.append("  </Exception>\n");
     }
 
-    private void capabilityVendorSpecific(StringBuilder str) {
+    private void capabilityVendorSpecific(PrintWriter str) {
         str.append("  <VendorSpecificCapabilities>\n");
         Iterable<TileLayer> layerIter = tld.getLayerList();
         for (TileLayer layer : layerIter) {
@@ -386,7 +386,7 @@ public class WMSGetCapabilities {
         return styles;
     }
 
-    private void capabilityVendorSpecificTileset(StringBuilder str, TileLayer layer,
+    private void capabilityVendorSpecificTileset(PrintWriter str, TileLayer layer,
             GridSubset grid, String formatStr, String styleName) throws GeoWebCacheException {
 
         String srsStr = grid.getSRS().toString();
@@ -412,7 +412,7 @@ public class WMSGetCapabilities {
         str.append("    </TileSet>\n");
     }
 
-    private void capabilityLayerOuter(StringBuilder str) {
+    private void capabilityLayerOuter(PrintWriter str) {
         str.append("  <Layer>\n");
         str.append("    <Title>GeoWebCache WMS</Title>\n");
         str.append("    <Abstract>Note that not all GeoWebCache instances provide a full WMS service.</Abstract>\n");
@@ -433,7 +433,7 @@ public class WMSGetCapabilities {
         str.append("  </Layer>\n");
     }
 
-    private void capabilityLayerInner(StringBuilder str, TileLayer layer)
+    private void capabilityLayerInner(PrintWriter str, TileLayer layer)
             throws GeoWebCacheException {
         if (layer.isQueryable()) {
             str.append("    <Layer queryable=\"1\">\n");
@@ -42,6 +42,7 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.service.Service;
 import org.geowebcache.service.ServiceException;
 import org.geowebcache.stats.RuntimeStats;
@@ -68,6 +69,8 @@ public class WMSService extends Service {
 
     private RuntimeStats stats;
 
+    private CapabilitiesCache capabilitiesCache;
+
     /**
      * Protected no-argument constructor to allow run-time instrumentation
      */
@@ -81,6 +84,7 @@ public class WMSService extends Service {
         this.sb = sb;
         this.tld = tld;
         this.stats = stats;
+        this.capabilitiesCache = new CapabilitiesCache(tld);
     }
 
     @Override
@@ -227,7 +231,7 @@ public class WMSService extends Service {
         if (tile.getHint() != null) {
             if (tile.getHint().equalsIgnoreCase("getcapabilities")) {
                 WMSGetCapabilities wmsCap = new WMSGetCapabilities(tld, tile.servletReq);
-                wmsCap.writeResponse(tile.servletResp);
+                wmsCap.writeResponse(tile.servletResp, capabilitiesCache);
             } else if (tile.getHint().equalsIgnoreCase("getmap")) {
                 WMSTileFuser wmsFuser = new WMSTileFuser(tld, sb, tile.servletReq);
                 try {
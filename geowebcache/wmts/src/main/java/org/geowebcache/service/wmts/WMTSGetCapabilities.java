@@ -18,7 +18,7 @@
 package org.geowebcache.service.wmts;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.List;
 
@@ -41,6 +41,7 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.util.ServletUtils;
 
@@ -53,10 +54,13 @@ public class WMTSGetCapabilities {
     private GridSetBroker gsb;
     
     private String baseUrl;
+
+    private HttpServletRequest servReq;
     
     protected WMTSGetCapabilities(TileLayerDispatcher tld, GridSetBroker gsb, HttpServletRequest servReq) {
         this.tld = tld;
         this.gsb = gsb;
+        this.servReq = servReq;
         
         baseUrl = ServletUtils.stringFromMap(servReq.getParameterMap(), servReq.getCharacterEncoding(), "base_url");
         
@@ -70,28 +74,25 @@ public class WMTSGetCapabilities {
         }
     }
     
-    protected void writeResponse(HttpServletResponse response, RuntimeStats stats) {
-        byte[] data = generateGetCapabilities().getBytes();
-
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setContentType("application/vnd.ogc.wms_xml");
-        response.setCharacterEncoding("UTF-8");
-        response.setContentLength(data.length);
-        
-        stats.log(data.length, CacheResult.OTHER);
-        
+    /**
+     * Writes the capabilities document, streaming it to the response if not found in the cache
+     */
+    protected void writeResponse(HttpServletResponse response, RuntimeStats stats,
+            CapabilitiesCache cache) {
         try {
-            OutputStream os = response.getOutputStream();
-            os.write(data);
-            os.flush();
+            int length = cache.write(baseUrl, servReq, response, "application/vnd.ogc.wms_xml",
+                    new CapabilitiesCache.Generator() {
+                        public void write(PrintWriter writer) {
+                            writeGetCapabilities(writer);
+                        }
+                    });
+            stats.log(length, CacheResult.OTHER);
         } catch (IOException ioe) {
             log.debug("Caught IOException" + ioe.getMessage());
         }
     }
 
-    private String generateGetCapabilities() {
-        StringBuilder str = new StringBuilder();
-        
+    private void writeGetCapabilities(PrintWriter str) {
         str.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
         str.append("<Capabilities xmlns=\"http://www.opengis.net/wmts/1.0\"\n");
         str.append("xmlns:ows=\"http://www.opengis.net/ows/1.1\"\n"); 
@@ -109,11 +110,9 @@ public class WMTSGetCapabilities {
         contents(str);
         str.append("<ServiceMetadataURL xlink:href=\""+baseUrl+"?REQUEST=getcapabilities&amp;VERSION=1.0.0\"/>\n");
         str.append("</Capabilities>");
-
-        return str.toString();
     }
 
-    private void serviceIdentification(StringBuilder str) {
+    private void serviceIdentification(PrintWriter str) {
         ServiceInformation servInfo = tld.getServiceInformation();
         
         str.append("<ows:ServiceIdentification>\n");
@@ -145,7 +144,7 @@ public class WMTSGetCapabilities {
         str.append("</ows:ServiceIdentification>\n");
     }
     
-    private void serviceProvider(StringBuilder str) {
+    private void serviceProvider(PrintWriter str) {
         ServiceInformation servInfo = tld.getServiceInformation();
         ServiceProvider servProv = null;
         if(servInfo != null) {
@@ -197,7 +196,7 @@ public class WMTSGetCapabilities {
         str.append("</ows:ServiceProvider>\n"); 
     }
     
-    private void operationsMetadata(StringBuilder str) {
+    private void operationsMetadata(PrintWriter str) {
         str.append("<ows:OperationsMetadata>\n");
         operation(str, "GetCapabilities", baseUrl);
         operation(str, "GetTile", baseUrl);
@@ -205,7 +204,7 @@ public class WMTSGetCapabilities {
         str.append("</ows:OperationsMetadata>\n");
     }
         
-     private void operation(StringBuilder str, String operationName, String baseUrl) {
+     private void operation(PrintWriter str, String operationName, String baseUrl) {
         str.append("  <ows:Operation name=\""+operationName+"\">\n");
         str.append("    <ows:DCP>\n");
         str.append("      <ows:HTTP>\n");
@@ -221,7 +220,7 @@ public class WMTSGetCapabilities {
         str.append("  </ows:Operation>\n");
      }
      
-     private void contents(StringBuilder str) {
+     private void contents(PrintWriter str) {
          str.append("<Contents>\n");
          Iterable<TileLayer> iter = tld.getLayerList();
         for (TileLayer layer : iter) {
@@ -238,7 +237,7 @@ public class WMTSGetCapabilities {
          str.append("</Contents>\n");
      }
      
-     private void layer(StringBuilder str, TileLayer layer, String baseurl) {
+     private void layer(PrintWriter str, TileLayer layer, String baseurl) {
         str.append("  <Layer>\n");
         LayerMetaInformation layerMeta = layer.getMetaInformation();
 
@@ -271,7 +270,7 @@ public class WMTSGetCapabilities {
         str.append("  </Layer>\n");
     }
      
-    private void layerWGS84BoundingBox(StringBuilder str, TileLayer layer) {
+    private void layerWGS84BoundingBox(PrintWriter str, TileLayer layer) {
         GridSubset subset = layer.getGridSubsetForSRS(SRS.getEPSG4326());
         if(subset != null) {
             double[] coords = subset.getOriginalExtent().getCoords();
@@ -282,7 +281,7 @@ public class WMTSGetCapabilities {
         }
      }
      
-     private void layerStyles(StringBuilder str, TileLayer layer, List<ParameterFilter> filters) {
+     private void layerStyles(PrintWriter str, TileLayer layer, List<ParameterFilter> filters) {
          String defStyle = layer.getStyles();
          if(filters == null) {
              str.append("    <Style isDefault=\"true\">\n");
@@ -323,7 +322,7 @@ public class WMTSGetCapabilities {
          }
      }
      
-     private void layerFormats(StringBuilder str, TileLayer layer) {
+     private void layerFormats(PrintWriter str, TileLayer layer) {
          Iterator<MimeType> mimeIter = layer.getMimeTypes().iterator();
          
          while(mimeIter.hasNext()){
@@ -331,7 +330,7 @@ public class WMTSGetCapabilities {
          }
      }
      
-     private void layerInfoFormats(StringBuilder str, TileLayer layer) {
+     private void layerInfoFormats(PrintWriter str, TileLayer layer) {
          // TODO properly
          if(layer.isQueryable()) {
              str.append("    <InfoFormat>text/plain</InfoFormat>\n");
@@ -341,7 +340,7 @@ public class WMTSGetCapabilities {
          
      }
      
-     private void layerDimensions(StringBuilder str, TileLayer layer, List<ParameterFilter> filters) {
+     private void layerDimensions(PrintWriter str, TileLayer layer, List<ParameterFilter> filters) {
          
          Iterator<ParameterFilter> iter = filters.iterator();
          
@@ -358,7 +357,7 @@ public class WMTSGetCapabilities {
          }
      }
          
-     private void dimensionDescription(StringBuilder str, ParameterFilter filter, List<String> values) {
+     private void dimensionDescription(PrintWriter str, ParameterFilter filter, List<String> values) {
          str.append("    <Dimension>");
          str.append("      <Identifier>"+filter.getKey()+"</Identifier>");
          String defaultStr = TileLayer.encodeDimensionValue(filter.getDefaultValue());
@@ -373,7 +372,7 @@ public class WMTSGetCapabilities {
      }
      
       
-     private void layerGridSubSets(StringBuilder str, TileLayer layer) {
+     private void layerGridSubSets(PrintWriter str, TileLayer layer) {
 
         for (String gridSetId : layer.getGridSubsets()) {
             GridSubset gridSubset = layer.getGridSubset(gridSetId);
@@ -401,7 +400,7 @@ public class WMTSGetCapabilities {
          }
      }
      
-     private void tileMatrixSet(StringBuilder str, GridSet gridSet) {
+     private void tileMatrixSet(PrintWriter str, GridSet gridSet) {
          str.append("  <TileMatrixSet>\n");
          str.append("    <ows:Identifier>"+gridSet.getName()+"</ows:Identifier>\n");
          // If the following is not good enough, please get in touch and we will try to fix it :)
@@ -415,7 +414,7 @@ public class WMTSGetCapabilities {
          str.append("  </TileMatrixSet>\n");
      }
      
-     private void tileMatrix(StringBuilder str, Grid grid, double[] tlCoordinates, int tileWidth, int tileHeight, boolean scaleWarning) {
+     private void tileMatrix(PrintWriter str, Grid grid, double[] tlCoordinates, int tileWidth, int tileHeight, boolean scaleWarning) {
          str.append("    <TileMatrix>\n");
          if(scaleWarning) {
              str.append("      <ows:Abstract>The grid was not well-defined, the scale therefore assumes 1m per map unit.</ows:Abstract>");
@@ -430,7 +429,7 @@ public class WMTSGetCapabilities {
          str.append("    </TileMatrix>\n");
      }
      
-     private void appendTag(StringBuilder str, String padding, String tagName, String value, String defaultValue) {
+     private void appendTag(PrintWriter str, String padding, String tagName, String value, String defaultValue) {
          if(defaultValue == null && value == null) {
              return;
          }
@@ -445,7 +444,7 @@ public class WMTSGetCapabilities {
          str.append(padding + "<"+tagName+">"+escapedValue+"</"+tagName+">\n");         
      }
      
-     private void appendXlink(StringBuilder str, String padding, String tagName, String xlink) {         
+     private void appendXlink(PrintWriter str, String padding, String tagName, String xlink) {         
          String escapedValue = encodeXmlChars(xlink);
 
          str.append(padding + "<"+tagName+" xlink:href=\""+escapedValue+"\" />\n");         
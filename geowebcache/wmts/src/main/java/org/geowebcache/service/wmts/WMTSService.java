@@ -32,6 +32,7 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.service.OWSException;
 import org.geowebcache.service.Service;
 import org.geowebcache.stats.RuntimeStats;
@@ -55,6 +56,8 @@ public class WMTSService extends Service {
 
     private RuntimeStats stats;
 
+    private CapabilitiesCache capabilitiesCache;
+
     /**
      * Protected no-argument constructor to allow run-time instrumentation
      */
@@ -70,6 +73,7 @@ public class WMTSService extends Service {
         this.tld = tld;
         this.gsb = gsb;
         this.stats = stats;
+        this.capabilitiesCache = new CapabilitiesCache(tld);
     }
 
     @Override
@@ -244,7 +248,7 @@ public class WMTSService extends Service {
         if (tile.getHint() != null) {
             if (tile.getHint().equals("getcapabilities")) {
                 WMTSGetCapabilities wmsGC = new WMTSGetCapabilities(tld, gsb, tile.servletReq);
-                wmsGC.writeResponse(tile.servletResp, stats);
+                wmsGC.writeResponse(tile.servletResp, stats, capabilitiesCache);
 
             } else if (tile.getHint().equals("getfeatureinfo")) {
                 ConveyorTile convTile = (ConveyorTile) conv;